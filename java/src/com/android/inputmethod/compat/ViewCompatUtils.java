@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.compat;
+
+import android.graphics.Paint;
+import android.view.View;
+import android.view.Window;
+
+import java.lang.reflect.Method;
+
+public class ViewCompatUtils {
+    // Note that View.LAYER_TYPE_* constants have been introduced in API level 11.
+    public static final int LAYER_TYPE_NONE = 0;
+    public static final int LAYER_TYPE_HARDWARE = 2;
+    // Note that WindowManager.LayoutParams.FLAG_HARDWARE_ACCELERATED has been introduced in API
+    // level 11.
+    private static final int FLAG_HARDWARE_ACCELERATED = 0x01000000;
+
+    private static final Method METHOD_setLayerType = CompatUtils.getMethod(
+            View.class, "setLayerType", int.class, Paint.class);
+
+    public static boolean isLayerTypeSupported() {
+        return METHOD_setLayerType != null;
+    }
+
+    public static void setLayerType(View view, int layerType) {
+        CompatUtils.invoke(view, null, METHOD_setLayerType, layerType, null);
+    }
+
+    /**
+     * Requests hardware acceleration for a window. It has to be requested before the content of
+     * the window is attached, and is ignored before API level 11.
+     */
+    public static void setHardwareAccelerated(Window window) {
+        if (isLayerTypeSupported()) {
+            window.addFlags(FLAG_HARDWARE_ACCELERATED);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.util.Xml;
 
+import com.android.inputmethod.keyboard.internal.CompiledKeyboardLayout;
 import com.android.inputmethod.keyboard.internal.KeyStyles;
 import com.android.inputmethod.keyboard.internal.KeyStyles.KeyStyle;
 import com.android.inputmethod.keyboard.internal.KeyboardBuilder;
@@ -35,6 +36,9 @@ import com.android.inputmethod.latin.R;
 
 import org.xmlpull.v1.XmlPullParser;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -72,6 +76,10 @@ public class Key {
     private Drawable mIcon;
     /** Preview version of the icon, for the preview popup */
     private Drawable mPreviewIcon;
+    /** Ids of the icons in the {@link KeyboardIconsSet}, to compile the layout */
+    private final int mIconId;
+    private final int mPreviewIconId;
+    private final int mShiftedIconId;
 
     /** Width of the key, not including the gap */
     public final int mWidth;
@@ -190,6 +198,7 @@ public class Key {
         mOutputText = outputText;
         mCode = code;
         mIcon = icon;
+        mIconId = mPreviewIconId = mShiftedIconId = KeyboardIconsSet.ICON_UNDEFINED;
         // Horizontal gap is divided equally to both sides of the key.
         mX = x + mHorizontalGap / 2;
         mY = y;
@@ -262,14 +271,16 @@ public class Key {
                 R.styleable.Keyboard_Key_visualInsetsLeft, params.mBaseWidth, 0);
         mVisualInsetsRight = (int) KeyboardBuilder.getDimensionOrFraction(keyAttr,
                 R.styleable.Keyboard_Key_visualInsetsRight, params.mBaseWidth, 0);
-        mPreviewIcon = iconsSet.getIcon(style.getInt(keyAttr,
-                R.styleable.Keyboard_Key_keyIconPreview, KeyboardIconsSet.ICON_UNDEFINED));
-        mIcon = iconsSet.getIcon(style.getInt(keyAttr, R.styleable.Keyboard_Key_keyIcon,
-                KeyboardIconsSet.ICON_UNDEFINED));
-        final int shiftedIconId = style.getInt(keyAttr, R.styleable.Keyboard_Key_keyIconShifted,
+        mPreviewIconId = style.getInt(keyAttr,
+                R.styleable.Keyboard_Key_keyIconPreview, KeyboardIconsSet.ICON_UNDEFINED);
+        mPreviewIcon = iconsSet.getIcon(mPreviewIconId);
+        mIconId = style.getInt(keyAttr, R.styleable.Keyboard_Key_keyIcon,
                 KeyboardIconsSet.ICON_UNDEFINED);
-        if (shiftedIconId != KeyboardIconsSet.ICON_UNDEFINED) {
-            final Drawable shiftedIcon = iconsSet.getIcon(shiftedIconId);
+        mIcon = iconsSet.getIcon(mIconId);
+        mShiftedIconId = style.getInt(keyAttr, R.styleable.Keyboard_Key_keyIconShifted,
+                KeyboardIconsSet.ICON_UNDEFINED);
+        if (mShiftedIconId != KeyboardIconsSet.ICON_UNDEFINED) {
+            final Drawable shiftedIcon = iconsSet.getIcon(mShiftedIconId);
             params.addShiftedIcon(this, shiftedIcon);
         }
         mHintLabel = style.getText(keyAttr, R.styleable.Keyboard_Key_keyHintLabel);
@@ -293,6 +304,79 @@ public class Key {
         keyAttr.recycle();
     }
 
+    /**
+     * Create a key from a compiled keyboard layout, in the order {@link #writeTo} wrote it.
+     * @param params the keyboard building parameters, whose icons have been loaded.
+     * @param buffer the compiled layout, positioned at this key
+     * @see CompiledKeyboardLayout
+     */
+    public Key(KeyboardParams params, ByteBuffer buffer) {
+        mCode = buffer.getInt();
+        mLabel = CompiledKeyboardLayout.readText(buffer);
+        mHintLabel = CompiledKeyboardLayout.readText(buffer);
+        mLabelOption = buffer.getInt();
+        mIconId = buffer.getInt();
+        mPreviewIconId = buffer.getInt();
+        mShiftedIconId = buffer.getInt();
+        mWidth = buffer.getInt();
+        mHeight = buffer.getInt();
+        mHorizontalGap = buffer.getInt();
+        mVerticalGap = buffer.getInt();
+        mVisualInsetsLeft = buffer.getInt();
+        mVisualInsetsRight = buffer.getInt();
+        mX = buffer.getInt();
+        mY = buffer.getInt();
+        mHitBox.left = buffer.getInt();
+        mHitBox.top = buffer.getInt();
+        mHitBox.right = buffer.getInt();
+        mHitBox.bottom = buffer.getInt();
+        mOutputText = CompiledKeyboardLayout.readText(buffer);
+        mMoreKeys = CompiledKeyboardLayout.readTextArray(buffer);
+        mMaxMoreKeysColumn = buffer.getInt();
+        mBackgroundType = buffer.getInt();
+        mRepeatable = CompiledKeyboardLayout.readBoolean(buffer);
+        mEnabled = CompiledKeyboardLayout.readBoolean(buffer);
+
+        final KeyboardIconsSet iconsSet = params.mIconsSet;
+        mIcon = iconsSet.getIcon(mIconId);
+        mPreviewIcon = iconsSet.getIcon(mPreviewIconId);
+        if (mShiftedIconId != KeyboardIconsSet.ICON_UNDEFINED) {
+            params.addShiftedIcon(this, iconsSet.getIcon(mShiftedIconId));
+        }
+    }
+
+    /**
+     * Writes the key as it has been parsed, to compile the keyboard layout.
+     * @see #Key(KeyboardParams, ByteBuffer)
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(mCode);
+        CompiledKeyboardLayout.writeText(out, mLabel);
+        CompiledKeyboardLayout.writeText(out, mHintLabel);
+        out.writeInt(mLabelOption);
+        out.writeInt(mIconId);
+        out.writeInt(mPreviewIconId);
+        out.writeInt(mShiftedIconId);
+        out.writeInt(mWidth);
+        out.writeInt(mHeight);
+        out.writeInt(mHorizontalGap);
+        out.writeInt(mVerticalGap);
+        out.writeInt(mVisualInsetsLeft);
+        out.writeInt(mVisualInsetsRight);
+        out.writeInt(mX);
+        out.writeInt(mY);
+        out.writeInt(mHitBox.left);
+        out.writeInt(mHitBox.top);
+        out.writeInt(mHitBox.right);
+        out.writeInt(mHitBox.bottom);
+        CompiledKeyboardLayout.writeText(out, mOutputText);
+        CompiledKeyboardLayout.writeTextArray(out, mMoreKeys);
+        out.writeInt(mMaxMoreKeysColumn);
+        out.writeInt(mBackgroundType);
+        out.writeBoolean(mRepeatable);
+        out.writeBoolean(mEnabled);
+    }
+
     public void markAsLeftEdge(KeyboardParams params) {
         mHitBox.left = params.mHorizontalEdgesPadding;
     }
@@ -541,6 +625,10 @@ public class Key {
             super(res, params, row, parser, keyStyles);
         }
 
+        public Spacer(KeyboardParams params, ByteBuffer buffer) {
+            super(params, buffer);
+        }
+
         /**
          * This constructor is being used only for divider in more keys keyboard.
          */
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.keyboard;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.text.TextUtils;
+import android.util.Printer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A least recently used cache of the rendered keys of a {@link KeyboardView}, so that redrawing
+ * the entire keyboard blits the keys instead of drawing their backgrounds, labels and icons
+ * again. A bitmap is looked up by everything that changes how a key looks: the key itself, its
+ * drawable state, the case of its label, its icon and whether it is enabled. The drawing
+ * parameters of the view, such as the theme and the text sizes, are not part of the lookup:
+ * the cache has to be cleared when they change.
+ *
+ * Must only be used on the UI thread.
+ */
+/* package */ class KeyBitmapCache {
+    /**
+     * How a key looks. The drawable states of {@link Key} are constant arrays, and the icons are
+     * shared drawables, so both are compared by identity.
+     */
+    public static class KeyVisual {
+        private Key mKey;
+        private int[] mDrawableState;
+        private CharSequence mLabel;
+        private Drawable mIcon;
+        private boolean mEnabled;
+        private boolean mUpperCase;
+        private boolean mNeedsSpecialPopupHint;
+        private int mHashCode;
+
+        public KeyVisual set(Key key, CharSequence label, boolean upperCase) {
+            mKey = key;
+            mDrawableState = key.getCurrentDrawableState();
+            mLabel = label;
+            mIcon = key.getIcon();
+            mEnabled = key.isEnabled();
+            mUpperCase = upperCase;
+            mNeedsSpecialPopupHint = key.needsSpecialPopupHint();
+            mHashCode = ((System.identityHashCode(key) * 31
+                    + System.identityHashCode(mDrawableState)) * 31
+                    + (label == null ? 0 : label.toString().hashCode())) * 31
+                    + System.identityHashCode(mIcon)
+                    + (mEnabled ? 1 : 0) + (upperCase ? 2 : 0) + (mNeedsSpecialPopupHint ? 4 : 0);
+            return this;
+        }
+
+        private KeyVisual copy() {
+            final KeyVisual visual = new KeyVisual();
+            visual.mKey = mKey;
+            visual.mDrawableState = mDrawableState;
+            visual.mLabel = mLabel;
+            visual.mIcon = mIcon;
+            visual.mEnabled = mEnabled;
+            visual.mUpperCase = mUpperCase;
+            visual.mNeedsSpecialPopupHint = mNeedsSpecialPopupHint;
+            visual.mHashCode = mHashCode;
+            return visual;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof KeyVisual)) return false;
+            final KeyVisual other = (KeyVisual)o;
+            return mKey == other.mKey && mDrawableState == other.mDrawableState
+                    && mIcon == other.mIcon && mEnabled == other.mEnabled
+                    && mUpperCase == other.mUpperCase
+                    && mNeedsSpecialPopupHint == other.mNeedsSpecialPopupHint
+                    && TextUtils.equals(mLabel, other.mLabel);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private int mMaxMemorySize;
+    private int mMemorySize;
+    private int mHitCount;
+    private int mMissCount;
+    // In access order, from the least recently used.
+    private final LinkedHashMap<KeyVisual, Bitmap> mBitmaps =
+            new LinkedHashMap<KeyVisual, Bitmap>(64, 0.75f, true);
+
+    /**
+     * @param maxMemorySize the budget, in bytes
+     */
+    public KeyBitmapCache(int maxMemorySize) {
+        mMaxMemorySize = maxMemorySize;
+    }
+
+    private static int getMemorySize(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Returns the rendered key, and makes it the most recently used one.
+     * @return the bitmap, or null if this visual of the key is not in the cache
+     */
+    public Bitmap get(KeyVisual visual) {
+        final Bitmap bitmap = mBitmaps.get(visual);
+        if (bitmap != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds a rendered key, after recycling the least recently used ones until it fits in the
+     * budget. The bitmap that is added is never recycled here, since the caller draws it next.
+     * The visual is copied, so that the caller can reuse it for lookups.
+     */
+    public void put(KeyVisual visual, Bitmap bitmap) {
+        final int memorySize = getMemorySize(bitmap);
+        trimToSize(mMaxMemorySize - memorySize);
+        final Bitmap oldBitmap = mBitmaps.put(visual.copy(), bitmap);
+        if (oldBitmap != null) {
+            mMemorySize -= getMemorySize(oldBitmap);
+            oldBitmap.recycle();
+        }
+        mMemorySize += memorySize;
+    }
+
+    public void setMaxMemorySize(int maxMemorySize) {
+        mMaxMemorySize = maxMemorySize;
+        trimToSize(maxMemorySize);
+    }
+
+    private void trimToSize(int memorySize) {
+        final Iterator<Bitmap> iterator = mBitmaps.values().iterator();
+        while (mMemorySize > memorySize && iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            iterator.remove();
+            mMemorySize -= getMemorySize(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public int size() {
+        return mBitmaps.size();
+    }
+
+    /**
+     * Returns the memory size of the bitmaps of the cache, in bytes.
+     */
+    public int getMemorySize() {
+        return mMemorySize;
+    }
+
+    public void dump(Printer p) {
+        p.println("  keyBitmapCache: bitmaps=" + mBitmaps.size() + " memory=" + mMemorySize
+                + "/" + mMaxMemorySize + " hits=" + mHitCount + " misses=" + mMissCount);
+    }
+}
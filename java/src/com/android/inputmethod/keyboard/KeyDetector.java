@@ -162,7 +162,7 @@ public class KeyDetector {
 
         // allCodes[0] should always have the key code even if it is a non-letter key.
         if (indices[0] == NOT_A_KEY) {
-            allCodes[0] = NOT_A_CODE;
+            Arrays.fill(allCodes, NOT_A_CODE);
             return;
         }
 
@@ -177,6 +177,8 @@ public class KeyDetector {
                 continue;
             allCodes[numCodes++] = code;
         }
+        // The array may be reused, so clear what the previous key press left in it.
+        Arrays.fill(allCodes, numCodes, allCodes.length, NOT_A_CODE);
     }
 
     /**
@@ -187,7 +189,8 @@ public class KeyDetector {
      *
      * @param x The x-coordinate of a touch point
      * @param y The y-coordinate of a touch point
-     * @param allCodes All nearby key code except functional key are returned in this array
+     * @param allCodes All nearby key code except functional key are returned in this array,
+     *        followed by {@link #NOT_A_CODE} values
      * @return The nearest key index
      */
     public int getKeyIndexAndNearbyCodes(int x, int y, final int[] allCodes) {
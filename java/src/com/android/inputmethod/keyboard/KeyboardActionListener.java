@@ -47,7 +47,8 @@ public interface KeyboardActionListener {
      *            the first. If the primary key code is a single character such as an alphabet or
      *            number or symbol, the alternatives will include other characters that may be on
      *            the same key or adjacent keys. These codes are useful to correct for accidental
-     *            presses of a key adjacent to the intended key.
+     *            presses of a key adjacent to the intended key. The array may be reused after
+     *            this returns, so it has to be copied to be kept.
      * @param x x-coordinate pixel of touched event. If {@link #onCodeInput} is not called by
      *            {@link PointerTracker#onTouchEvent} or so, the value should be
      *            {@link #NOT_A_TOUCH_COORDINATE}.
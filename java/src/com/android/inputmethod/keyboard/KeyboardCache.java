@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.keyboard;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of keyboards, that holds them strongly as long as their estimated
+ * size fits in a budget of memory. Unlike soft references, the keyboards are not dropped by the
+ * first garbage collection under pressure, which would make the next switch of keyboard parse
+ * its layout again; the owner is expected to trim the cache when memory is low instead. The
+ * keyboard in use is never dropped.
+ *
+ * Must only be used on the UI thread.
+ */
+/* package */ class KeyboardCache {
+    // A rough size of a key with its label, icons references and more keys.
+    private static final int KEY_MEMORY_SIZE = 256;
+
+    private final int mMaxMemorySize;
+    private int mMemorySize;
+    // In access order, from the least recently used.
+    private final LinkedHashMap<KeyboardId, LatinKeyboard> mKeyboards =
+            new LinkedHashMap<KeyboardId, LatinKeyboard>(16, 0.75f, true);
+    // The keyboard that is shown, or null.
+    private KeyboardId mKeyboardInUse;
+
+    /**
+     * @param maxMemorySize the budget, in bytes
+     */
+    public KeyboardCache(int maxMemorySize) {
+        mMaxMemorySize = maxMemorySize;
+    }
+
+    /* package for test */ static int getMemorySize(Keyboard keyboard) {
+        return keyboard.mKeys.size() * KEY_MEMORY_SIZE
+                + keyboard.getProximityInfo().getMemorySize();
+    }
+
+    /**
+     * Sets the keyboard that is shown, which is kept by the trimming even if it is not the most
+     * recently used one, for instance when keyboards have been preloaded since it was shown.
+     */
+    public void setKeyboardInUse(KeyboardId id) {
+        mKeyboardInUse = id;
+    }
+
+    /**
+     * Returns the keyboard, and makes it the most recently used one.
+     * @return the keyboard, or null if it is not in the cache
+     */
+    public LatinKeyboard get(KeyboardId id) {
+        return mKeyboards.get(id);
+    }
+
+    /**
+     * Returns whether the keyboard is in the cache, without changing the order of use.
+     */
+    public boolean contains(KeyboardId id) {
+        return mKeyboards.containsKey(id);
+    }
+
+    /**
+     * Adds the keyboard as the most recently used one, and drops the least recently used ones
+     * until the cache fits in its budget again. The keyboard that is added is always kept, as
+     * well as the keyboard in use.
+     */
+    public void put(KeyboardId id, LatinKeyboard keyboard) {
+        final LatinKeyboard oldKeyboard = mKeyboards.put(id, keyboard);
+        if (oldKeyboard != null) mMemorySize -= getMemorySize(oldKeyboard);
+        mMemorySize += getMemorySize(keyboard);
+        trimToSize(mMaxMemorySize, id);
+    }
+
+    /**
+     * Drops the least recently used keyboards until the cache takes at most the memory size,
+     * except for the keyboard in use.
+     */
+    public void trimToSize(int memorySize) {
+        trimToSize(memorySize, null);
+    }
+
+    private void trimToSize(int memorySize, KeyboardId keptId) {
+        final Iterator<Map.Entry<KeyboardId, LatinKeyboard>> iterator =
+                mKeyboards.entrySet().iterator();
+        while (mMemorySize > memorySize && iterator.hasNext()) {
+            final Map.Entry<KeyboardId, LatinKeyboard> entry = iterator.next();
+            final KeyboardId id = entry.getKey();
+            if (id.equals(mKeyboardInUse) || id.equals(keptId)) continue;
+            mMemorySize -= getMemorySize(entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    public void clear() {
+        mKeyboards.clear();
+        mMemorySize = 0;
+    }
+
+    public int size() {
+        return mKeyboards.size();
+    }
+
+    /**
+     * Returns the estimated memory size of the keyboards of the cache, in bytes.
+     */
+    public int getMemorySize() {
+        return mMemorySize;
+    }
+}
@@ -113,6 +113,12 @@ public class KeyboardId {
                 false, F2KEY_MODE_NONE, false, false, false);
     }
 
+    public KeyboardId cloneWithNewLocale(Locale locale) {
+        return new KeyboardId(mXmlName, mXmlId, locale, mOrientation, mWidth, mMode, mAttribute,
+                mHasSettingsKey, mF2KeyMode, mClobberSettingsKey, mShortcutKeyEnabled,
+                mHasShortcutKey);
+    }
+
     public int getXmlId() {
         return mXmlId;
     }
@@ -20,6 +20,8 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -30,6 +32,7 @@ import android.view.View;
 import android.view.inputmethod.EditorInfo;
 
 import com.android.inputmethod.accessibility.AccessibleKeyboardViewProxy;
+import com.android.inputmethod.compat.InputMethodSubtypeCompatWrapper;
 import com.android.inputmethod.keyboard.internal.ModifierKeyState;
 import com.android.inputmethod.keyboard.internal.ShiftKeyState;
 import com.android.inputmethod.latin.InputView;
@@ -41,8 +44,8 @@ import com.android.inputmethod.latin.Settings;
 import com.android.inputmethod.latin.SubtypeSwitcher;
 import com.android.inputmethod.latin.Utils;
 
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Locale;
 
 public class KeyboardSwitcher implements SharedPreferences.OnSharedPreferenceChangeListener {
@@ -51,6 +54,7 @@ public class KeyboardSwitcher implements SharedPreferences.OnSharedPreferenceCha
     public static final boolean DEBUG_STATE = false;
 
     public static final String PREF_KEYBOARD_LAYOUT = "pref_keyboard_layout_20110916";
+    public static final String PREF_KEYBOARD_HARDWARE_LAYER = "pref_keyboard_hardware_layer";
     private static final int[] KEYBOARD_THEMES = {
         R.style.KeyboardTheme,
         R.style.KeyboardTheme_HighContrast,
@@ -78,8 +82,41 @@ public class KeyboardSwitcher implements SharedPreferences.OnSharedPreferenceCha
     private KeyboardId mSymbolsShiftedKeyboardId;
 
     private KeyboardId mCurrentId;
-    private final HashMap<KeyboardId, SoftReference<LatinKeyboard>> mKeyboardCache =
-            new HashMap<KeyboardId, SoftReference<LatinKeyboard>>();
+    // About a dozen keyboards.
+    private static final int KEYBOARD_CACHE_MEMORY_SIZE = 1024 * 1024;
+    private final KeyboardCache mKeyboardCache = new KeyboardCache(KEYBOARD_CACHE_MEMORY_SIZE);
+    // The directory of the cache where the parsed keyboard layouts are compiled.
+    private static final String COMPILED_LAYOUT_DIR = "keyboards";
+
+    // The keyboards that the user is likely to switch to next, which are built when the UI
+    // thread is idle, so that switching to them doesn't have to parse their layout.
+    private final ArrayList<PreloadRequest> mPreloadRequests = new ArrayList<PreloadRequest>();
+    private boolean mIsPreloaderScheduled;
+    private final MessageQueue.IdleHandler mPreloader = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            // One keyboard at a time, so that a key press doesn't wait for all of them.
+            while (!mPreloadRequests.isEmpty()) {
+                final PreloadRequest request = mPreloadRequests.remove(0);
+                if (!mKeyboardCache.contains(request.mId)) {
+                    preloadKeyboard(request);
+                    break;
+                }
+            }
+            mIsPreloaderScheduled = !mPreloadRequests.isEmpty();
+            return mIsPreloaderScheduled;
+        }
+    };
+
+    private static class PreloadRequest {
+        public final KeyboardId mId;
+        public final boolean mTouchPositionCorrectionEnabled;
+
+        public PreloadRequest(KeyboardId id, boolean touchPositionCorrectionEnabled) {
+            mId = id;
+            mTouchPositionCorrectionEnabled = touchPositionCorrectionEnabled;
+        }
+    }
 
     private KeyboardLayoutState mSavedKeyboardState = new KeyboardLayoutState();
 
@@ -207,6 +244,7 @@ public class KeyboardSwitcher implements SharedPreferences.OnSharedPreferenceCha
             mLayoutSwitchBackSymbols = mResources.getString(R.string.layout_switch_back_symbols);
             setKeyboard(getKeyboard(mSavedKeyboardState.getKeyboardId()));
             mSavedKeyboardState.restore();
+            schedulePreload();
         } catch (RuntimeException e) {
             Log.w(TAG, "loading keyboard failed: " + mMainKeyboardId, e);
             LatinImeLogger.logOnException(mMainKeyboardId.toString(), e);
@@ -230,6 +268,7 @@ public class KeyboardSwitcher implements SharedPreferences.OnSharedPreferenceCha
         mKeyboardView.setKeyboard(keyboard);
         mCurrentInputView.setKeyboardGeometry(keyboard.mTopPadding);
         mCurrentId = keyboard.mId;
+        mKeyboardCache.setKeyboardInUse(mCurrentId);
         mSwitchState = getSwitchState(mCurrentId);
         updateShiftLockState(keyboard);
         mKeyboardView.setKeyPreviewPopupEnabled(
@@ -258,26 +297,27 @@ public class KeyboardSwitcher implements SharedPreferences.OnSharedPreferenceCha
         }
     }
 
+    private LatinKeyboard buildKeyboard(KeyboardId id, boolean touchPositionCorrectionEnabled) {
+        final Locale savedLocale = LocaleUtils.setSystemLocale(mResources, id.mLocale);
+        try {
+            final LatinKeyboard.Builder builder = new LatinKeyboard.Builder(mThemeContext);
+            builder.load(id, new File(mInputMethodService.getCacheDir(), COMPILED_LAYOUT_DIR));
+            builder.setTouchPositionCorrectionEnabled(touchPositionCorrectionEnabled);
+            return builder.build();
+        } finally {
+            LocaleUtils.setSystemLocale(mResources, savedLocale);
+        }
+    }
+
     private LatinKeyboard getKeyboard(KeyboardId id) {
-        final SoftReference<LatinKeyboard> ref = mKeyboardCache.get(id);
-        LatinKeyboard keyboard = (ref == null) ? null : ref.get();
+        LatinKeyboard keyboard = mKeyboardCache.get(id);
         if (keyboard == null) {
-            final Locale savedLocale = LocaleUtils.setSystemLocale(mResources, id.mLocale);
-            try {
-                final LatinKeyboard.Builder builder = new LatinKeyboard.Builder(mThemeContext);
-                builder.load(id);
-                builder.setTouchPositionCorrectionEnabled(
-                        mSubtypeSwitcher.currentSubtypeContainsExtraValueKey(
-                                LatinIME.SUBTYPE_EXTRA_VALUE_SUPPORT_TOUCH_POSITION_CORRECTION));
-                keyboard = builder.build();
-            } finally {
-                LocaleUtils.setSystemLocale(mResources, savedLocale);
-            }
-            mKeyboardCache.put(id, new SoftReference<LatinKeyboard>(keyboard));
+            keyboard = buildKeyboard(id, mSubtypeSwitcher.currentSubtypeContainsExtraValueKey(
+                    LatinIME.SUBTYPE_EXTRA_VALUE_SUPPORT_TOUCH_POSITION_CORRECTION));
+            mKeyboardCache.put(id, keyboard);
 
             if (DEBUG_CACHE) {
-                Log.d(TAG, "keyboard cache size=" + mKeyboardCache.size() + ": "
-                        + ((ref == null) ? "LOAD" : "GCed") + " id=" + id
+                Log.d(TAG, "keyboard cache size=" + mKeyboardCache.size() + ": LOAD id=" + id
                         + " theme=" + Keyboard.themeName(keyboard.mThemeId));
             }
         } else if (DEBUG_CACHE) {
@@ -296,6 +336,68 @@ public class KeyboardSwitcher implements SharedPreferences.OnSharedPreferenceCha
         return keyboard;
     }
 
+    private void preloadKeyboard(PreloadRequest request) {
+        try {
+            final LatinKeyboard keyboard = buildKeyboard(
+                    request.mId, request.mTouchPositionCorrectionEnabled);
+            // The keyboard in use is not dropped to make room.
+            mKeyboardCache.put(request.mId, keyboard);
+            if (DEBUG_CACHE) {
+                Log.d(TAG, "keyboard cache size=" + mKeyboardCache.size() + ": PRELOAD id="
+                        + request.mId + " theme=" + Keyboard.themeName(keyboard.mThemeId));
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "preloading keyboard failed: " + request.mId, e);
+        }
+    }
+
+    /**
+     * Queues the keyboards that the user may switch to from the current one: the other
+     * keyboards of the same editor, and the main keyboards of the other enabled languages.
+     */
+    private void schedulePreload() {
+        mPreloadRequests.clear();
+        final boolean touchPositionCorrectionEnabled =
+                mSubtypeSwitcher.currentSubtypeContainsExtraValueKey(
+                        LatinIME.SUBTYPE_EXTRA_VALUE_SUPPORT_TOUCH_POSITION_CORRECTION);
+        for (final KeyboardId id : new KeyboardId[] {
+                mSymbolsKeyboardId, mMainKeyboardId, mSymbolsShiftedKeyboardId }) {
+            if (!id.equals(mCurrentId)) {
+                mPreloadRequests.add(new PreloadRequest(id, touchPositionCorrectionEnabled));
+            }
+        }
+        // The main keyboard doesn't follow the language when it is forced to be ASCII.
+        if (mMainKeyboardId.mLocale.equals(mSubtypeSwitcher.getInputLocale())) {
+            final String inputLocaleStr = mSubtypeSwitcher.getInputLocaleStr();
+            for (final InputMethodSubtypeCompatWrapper subtype
+                    : mSubtypeSwitcher.getEnabledKeyboardSubtypes()) {
+                final String localeStr = SubtypeSwitcher.getSubtypeLocale(subtype);
+                if (localeStr.equals(inputLocaleStr)) continue;
+                mPreloadRequests.add(new PreloadRequest(
+                        mMainKeyboardId.cloneWithNewLocale(
+                                LocaleUtils.constructLocaleFromString(localeStr)),
+                        subtype.containsExtraValueKey(
+                                LatinIME.SUBTYPE_EXTRA_VALUE_SUPPORT_TOUCH_POSITION_CORRECTION)));
+            }
+        }
+        if (!mIsPreloaderScheduled && !mPreloadRequests.isEmpty()) {
+            mIsPreloaderScheduled = true;
+            Looper.myQueue().addIdleHandler(mPreloader);
+        }
+    }
+
+    /**
+     * Drops the cached keyboards but the current one, the pending preloads and the rendered
+     * keys.
+     */
+    public void onLowMemory() {
+        mPreloadRequests.clear();
+        mKeyboardCache.trimToSize(0);
+        if (mKeyboardView != null) {
+            mKeyboardView.clearKeyBitmapCache();
+        }
+    }
+
     private KeyboardId getKeyboardId(EditorInfo editorInfo, final boolean isSymbols,
             final boolean isShift, Settings.Values settingsValues) {
         final int mode = Utils.getKeyboardMode(editorInfo);
@@ -795,6 +897,7 @@ public class KeyboardSwitcher implements SharedPreferences.OnSharedPreferenceCha
 
         mKeyboardView = (LatinKeyboardView) mCurrentInputView.findViewById(R.id.keyboard_view);
         mKeyboardView.setKeyboardActionListener(mInputMethodService);
+        mKeyboardView.setHardwareLayerEnabled(isHardwareLayerEnabled(mPrefs));
 
         // This always needs to be set since the accessibility state can
         // potentially change without the input view being re-created.
@@ -822,9 +925,17 @@ public class KeyboardSwitcher implements SharedPreferences.OnSharedPreferenceCha
             postSetInputView(createInputView(themeIndex, false));
         } else if (Settings.PREF_SHOW_SETTINGS_KEY.equals(key)) {
             postSetInputView(createInputView(mThemeIndex, true));
+        } else if (PREF_KEYBOARD_HARDWARE_LAYER.equals(key)) {
+            if (mKeyboardView != null) {
+                mKeyboardView.setHardwareLayerEnabled(isHardwareLayerEnabled(sharedPreferences));
+            }
         }
     }
 
+    public static boolean isHardwareLayerEnabled(SharedPreferences prefs) {
+        return prefs.getBoolean(PREF_KEYBOARD_HARDWARE_LAYER, false);
+    }
+
     public void onAutoCorrectionStateChanged(boolean isAutoCorrection) {
         if (mIsAutoCorrectionActive != isAutoCorrection) {
             mIsAutoCorrectionActive = isAutoCorrection;
@@ -26,11 +26,13 @@ import android.graphics.Paint;
 import android.graphics.Paint.Align;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.Region.Op;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.os.Message;
 import android.util.AttributeSet;
+import android.util.Printer;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -39,11 +41,14 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import com.android.inputmethod.compat.FrameLayoutCompatUtils;
+import com.android.inputmethod.compat.ViewCompatUtils;
+import com.android.inputmethod.latin.LatencyMetrics;
 import com.android.inputmethod.latin.LatinImeLogger;
 import com.android.inputmethod.latin.R;
 import com.android.inputmethod.latin.StaticInnerHandlerWrapper;
 
 import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * A view that renders a virtual {@link Keyboard}.
@@ -122,6 +127,23 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
     /** The canvas for the above mutable keyboard bitmap */
     private Canvas mCanvas;
     private final Paint mPaint = new Paint();
+    // The rendered keys take at most the memory of one keyboard bitmap buffer, and at most this
+    // number of bytes.
+    private static final int KEY_BITMAP_CACHE_MAX_SIZE = 1024 * 1024;
+    /** The rendered keys, that are blitted to the keyboard bitmap buffer */
+    private final KeyBitmapCache mKeyBitmapCache = new KeyBitmapCache(0);
+    private final KeyBitmapCache.KeyVisual mKeyVisual = new KeyBitmapCache.KeyVisual();
+    /** The keys whose label, hint or icon is drawn beyond their bitmap, so are never rendered */
+    private final HashSet<Key> mUncachedKeys = new HashSet<Key>();
+    /** The area drawn by a key that is rendered, relative to the key */
+    private final RectF mRenderedKeyBounds = new RectF();
+    /** The canvas to render a key to its bitmap */
+    private final Canvas mKeyCanvas = new Canvas();
+    /** Whether the keys are drawn to a hardware layer of the view instead of the bitmap buffer */
+    private boolean mHardwareLayerEnabled;
+    private final Rect mClipRect = new Rect();
+    /** When the first invalidation since the last draw was requested, or 0 */
+    private long mInvalidateTime;
     // This map caches key label text height in pixel as value and key label text size as map key.
     private static final HashMap<Integer, Float> sTextHeightCache =
             new HashMap<Integer, Float>();
@@ -221,6 +243,8 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
         private static final float UNDEFINED_RATIO = -1.0f;
 
         public final Rect mPadding = new Rect();
+
+        public int mKeyHeight;
         public int mKeyLetterSize;
         public int mKeyLargeLetterSize;
         public int mKeyLabelSize;
@@ -273,6 +297,7 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
         }
 
         public void updateKeyHeight(int keyHeight) {
+            mKeyHeight = keyHeight;
             if (mKeyLetterRatio >= 0.0f)
                 mKeyLetterSize = (int)(keyHeight * mKeyLetterRatio);
             if (mKeyLabelRatio >= 0.0f)
@@ -392,12 +417,18 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
             PointerTracker.dismissAllKeyPreviews();
         }
         mKeyboard = keyboard;
+        mUncachedKeys.clear();
         LatinImeLogger.onSetKeyboard(keyboard);
         requestLayout();
         mDirtyRect.set(0, 0, getWidth(), getHeight());
         mBufferNeedsUpdate = true;
         invalidateAllKeys();
         final int keyHeight = keyboard.mMostCommonKeyHeight - keyboard.mVerticalGap;
+        if (keyHeight != mKeyDrawParams.mKeyHeight) {
+            // The text sizes of the rendered keys change.
+            mKeyBitmapCache.clear();
+            mUncachedKeys.clear();
+        }
         mKeyDrawParams.updateKeyHeight(keyHeight);
         mKeyPreviewDrawParams.updateKeyHeight(keyHeight);
     }
@@ -443,14 +474,100 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
         }
     }
 
+    /**
+     * Selects how the keys are drawn. By default, they are drawn to a bitmap buffer, which is
+     * blitted to the view. With a hardware layer, they are drawn straight to the canvas of the
+     * view, and only the keys in the invalidated region are drawn again. The layer is only
+     * backed by the GPU when the window is hardware accelerated.
+     * The draw and frame times of each way are recorded in separate histograms of
+     * {@link LatencyMetrics}, to compare them on the same device.
+     * @param enabled whether to draw to a hardware layer
+     */
+    public void setHardwareLayerEnabled(boolean enabled) {
+        if (!ViewCompatUtils.isLayerTypeSupported()) {
+            enabled = false;
+        }
+        if (enabled == mHardwareLayerEnabled) return;
+        mHardwareLayerEnabled = enabled;
+        ViewCompatUtils.setLayerType(this, enabled
+                ? ViewCompatUtils.LAYER_TYPE_HARDWARE : ViewCompatUtils.LAYER_TYPE_NONE);
+        if (enabled) {
+            // Neither the bitmap buffer nor the rendered keys are used by the layer.
+            if (mBuffer != null) {
+                mBuffer.recycle();
+                mBuffer = null;
+            }
+            mKeyBitmapCache.clear();
+        }
+        invalidateAllKeys();
+    }
+
+    public boolean isHardwareLayerEnabled() {
+        return mHardwareLayerEnabled;
+    }
+
     @Override
     public void onDraw(Canvas canvas) {
+        final long startTime = System.nanoTime();
         super.onDraw(canvas);
-        if (mBufferNeedsUpdate || mBuffer == null) {
-            mBufferNeedsUpdate = false;
-            onBufferDraw();
+        if (mHardwareLayerEnabled) {
+            onLayerDraw(canvas);
+            LatencyMetrics.KEYBOARD_DRAW_LAYER.recordSince(startTime);
+            if (mInvalidateTime != 0) {
+                LatencyMetrics.KEYBOARD_FRAME_LAYER.recordSince(mInvalidateTime);
+            }
+        } else {
+            if (mBufferNeedsUpdate || mBuffer == null) {
+                mBufferNeedsUpdate = false;
+                onBufferDraw();
+            }
+            if (mBuffer != null) {
+                canvas.drawBitmap(mBuffer, 0, 0, null);
+            }
+            LatencyMetrics.KEYBOARD_DRAW.recordSince(startTime);
+            if (mInvalidateTime != 0) {
+                LatencyMetrics.KEYBOARD_FRAME.recordSince(mInvalidateTime);
+            }
+        }
+        mInvalidateTime = 0;
+    }
+
+    // Draws the keys that intersect the clip of the canvas, which is the invalidated region of
+    // the layer. The keys are recorded as drawing operations rather than blitted from rendered
+    // bitmaps, which would each have to be uploaded as a texture.
+    private void onLayerDraw(Canvas canvas) {
+        mBufferNeedsUpdate = false;
+        mInvalidatedKey = null;
+        mDirtyRect.setEmpty();
+        if (mKeyboard == null) return;
+        final Rect clipRect = mClipRect;
+        if (!canvas.getClipBounds(clipRect)) return;
+
+        final boolean isManualTemporaryUpperCase = mKeyboard.isManualTemporaryUpperCase();
+        final KeyDrawParams params = mKeyDrawParams;
+        final Rect padding = params.mPadding;
+        final int paddingLeft = getPaddingLeft();
+        final int paddingTop = getPaddingTop();
+        for (final Key key : mKeyboard.mKeys) {
+            final int keyDrawX = key.mX + key.mVisualInsetsLeft + paddingLeft;
+            final int keyDrawY = key.mY + paddingTop;
+            // The key background extends beyond the key by its padding.
+            if (!clipRect.intersects(keyDrawX - padding.left, keyDrawY - padding.top,
+                    keyDrawX + key.mWidth + padding.right,
+                    keyDrawY + key.mHeight + padding.bottom)) {
+                continue;
+            }
+            canvas.translate(keyDrawX, keyDrawY);
+            onBufferDrawKey(key, mKeyboard, canvas, mPaint, params, isManualTemporaryUpperCase,
+                    null);
+            canvas.translate(-keyDrawX, -keyDrawY);
+        }
+
+        // Overlay a dark rectangle to dim the entire keyboard
+        if (mNeedsToDimBackground) {
+            mPaint.setColor((int) (mBackgroundDimAmount * 0xFF) << 24);
+            canvas.drawRect(0, 0, getWidth(), getHeight(), mPaint);
         }
-        canvas.drawBitmap(mBuffer, 0, 0, null);
     }
 
     private void onBufferDraw() {
@@ -462,6 +579,8 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
             if (mBuffer != null)
                 mBuffer.recycle();
             mBuffer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mKeyBitmapCache.setMaxMemorySize(
+                    Math.min(mBuffer.getRowBytes() * height, KEY_BITMAP_CACHE_MAX_SIZE));
             mDirtyRect.union(0, 0, width, height);
             if (mCanvas != null) {
                 mCanvas.setBitmap(mBuffer);
@@ -482,18 +601,15 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
             final int keyDrawX = mInvalidatedKey.mX + mInvalidatedKey.mVisualInsetsLeft
                     + getPaddingLeft();
             final int keyDrawY = mInvalidatedKey.mY + getPaddingTop();
-            canvas.translate(keyDrawX, keyDrawY);
-            onBufferDrawKey(mInvalidatedKey, mKeyboard, canvas, mPaint, params,
-                    isManualTemporaryUpperCase);
-            canvas.translate(-keyDrawX, -keyDrawY);
+            onBufferDrawCachedKey(mInvalidatedKey, canvas, params, isManualTemporaryUpperCase,
+                    keyDrawX, keyDrawY);
         } else {
             // Draw all keys.
             for (final Key key : mKeyboard.mKeys) {
                 final int keyDrawX = key.mX + key.mVisualInsetsLeft + getPaddingLeft();
                 final int keyDrawY = key.mY + getPaddingTop();
-                canvas.translate(keyDrawX, keyDrawY);
-                onBufferDrawKey(key, mKeyboard, canvas, mPaint, params, isManualTemporaryUpperCase);
-                canvas.translate(-keyDrawX, -keyDrawY);
+                onBufferDrawCachedKey(key, canvas, params, isManualTemporaryUpperCase,
+                        keyDrawX, keyDrawY);
             }
         }
 
@@ -507,6 +623,68 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
         mDirtyRect.setEmpty();
     }
 
+    // Blits the rendered key from the cache, rendering it first if this visual of the key isn't
+    // there. The bitmap covers the key background, which extends beyond the key by its padding.
+    // A key that draws beyond its background, like a long label or a hint letter in a narrow
+    // key, is drawn directly instead, since its bitmap would clip it.
+    private void onBufferDrawCachedKey(Key key, Canvas canvas, KeyDrawParams params,
+            boolean isManualTemporaryUpperCase, int keyDrawX, int keyDrawY) {
+        final Rect padding = params.mPadding;
+        final int bitmapWidth = key.mWidth - key.mVisualInsetsLeft - key.mVisualInsetsRight
+                + padding.left + padding.right;
+        final int bitmapHeight = key.mHeight + padding.top + padding.bottom;
+        if (LatinImeLogger.sVISUALDEBUG || bitmapWidth <= 0 || bitmapHeight <= 0
+                || mUncachedKeys.contains(key)) {
+            canvas.translate(keyDrawX, keyDrawY);
+            onBufferDrawKey(key, mKeyboard, canvas, mPaint, params, isManualTemporaryUpperCase,
+                    null);
+            canvas.translate(-keyDrawX, -keyDrawY);
+            return;
+        }
+
+        final KeyBitmapCache.KeyVisual visual = mKeyVisual.set(key,
+                mKeyboard.adjustLabelCase(key.mLabel),
+                key.hasUppercaseLetter() && isManualTemporaryUpperCase);
+        Bitmap bitmap = mKeyBitmapCache.get(visual);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
+            final Canvas keyCanvas = mKeyCanvas;
+            keyCanvas.setBitmap(bitmap);
+            keyCanvas.translate(padding.left, padding.top);
+            final RectF bounds = mRenderedKeyBounds;
+            bounds.setEmpty();
+            onBufferDrawKey(key, mKeyboard, keyCanvas, mPaint, params, isManualTemporaryUpperCase,
+                    bounds);
+            keyCanvas.translate(-padding.left, -padding.top);
+            if (bounds.left < -padding.left || bounds.top < -padding.top
+                    || bounds.right > bitmapWidth - padding.left
+                    || bounds.bottom > bitmapHeight - padding.top) {
+                bitmap.recycle();
+                mUncachedKeys.add(key);
+                canvas.translate(keyDrawX, keyDrawY);
+                onBufferDrawKey(key, mKeyboard, canvas, mPaint, params,
+                        isManualTemporaryUpperCase, null);
+                canvas.translate(-keyDrawX, -keyDrawY);
+                return;
+            }
+            mKeyBitmapCache.put(visual, bitmap);
+        }
+        canvas.drawBitmap(bitmap, keyDrawX - padding.left, keyDrawY - padding.top, null);
+    }
+
+    /**
+     * Drops the rendered keys, e.g. when memory is low.
+     */
+    public void clearKeyBitmapCache() {
+        mKeyBitmapCache.clear();
+        mUncachedKeys.clear();
+    }
+
+    public void dump(Printer p) {
+        p.println("  KeyboardView: hardwareLayer=" + mHardwareLayerEnabled);
+        mKeyBitmapCache.dump(p);
+    }
+
     public void dimEntireKeyboard(boolean dimmed) {
         final boolean needsRedrawing = mNeedsToDimBackground != dimmed;
         mNeedsToDimBackground = dimmed;
@@ -515,8 +693,10 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
         }
     }
 
+    // The area the key draws on, besides its background, is added to drawnBounds if it's not null.
     private static void onBufferDrawKey(final Key key, final Keyboard keyboard, final Canvas canvas,
-            Paint paint, KeyDrawParams params, boolean isManualTemporaryUpperCase) {
+            Paint paint, KeyDrawParams params, boolean isManualTemporaryUpperCase,
+            RectF drawnBounds) {
         final boolean debugShowAlign = LatinImeLogger.sVISUALDEBUG;
         // Draw key background.
         if (!key.isSpacer()) {
@@ -611,6 +791,10 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
                 paint.setColor(Color.TRANSPARENT);
             }
             canvas.drawText(label, 0, label.length(), positionX, baseline, paint);
+            if (drawnBounds != null) {
+                unionTextBounds(drawnBounds, label, positionX, baseline, params.mShadowRadius,
+                        paint);
+            }
             // Turn off drop shadow and reset x-scale.
             paint.setShadowLayer(0, 0, 0, 0);
             paint.setTextScaleX(1.0f);
@@ -621,10 +805,10 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
                 final int iconY = (keyHeight - iconHeight) / 2;
                 if (key.hasLabelWithIconLeft()) {
                     final int iconX = (int)(centerX - labelWidth / 2);
-                    drawIcon(canvas, icon, iconX, iconY, iconWidth, iconHeight);
+                    drawIcon(canvas, icon, iconX, iconY, iconWidth, iconHeight, drawnBounds);
                 } else if (key.hasLabelWithIconRight()) {
                     final int iconX = (int)(centerX + labelWidth / 2 - iconWidth);
-                    drawIcon(canvas, icon, iconX, iconY, iconWidth, iconHeight);
+                    drawIcon(canvas, icon, iconX, iconY, iconWidth, iconHeight, drawnBounds);
                 }
             }
 
@@ -677,6 +861,9 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
                 paint.setTextAlign(Align.CENTER);
             }
             canvas.drawText(hint, 0, hint.length(), hintX, hintY, paint);
+            if (drawnBounds != null) {
+                unionTextBounds(drawnBounds, hint, hintX, hintY, 0, paint);
+            }
 
             if (debugShowAlign) {
                 final Paint line = new Paint();
@@ -701,7 +888,7 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
                 iconX = (keyWidth - iconWidth) / 2;
                 alignX = iconX + iconWidth / 2;
             }
-            drawIcon(canvas, icon, iconX, iconY, iconWidth, iconHeight);
+            drawIcon(canvas, icon, iconX, iconY, iconWidth, iconHeight, drawnBounds);
 
             if (debugShowAlign) {
                 final Paint line = new Paint();
@@ -720,6 +907,9 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
                     - getCharWidth(KEY_LABEL_REFERENCE_CHAR, paint) / 2;
             final float hintY = keyHeight - params.mKeyPopupHintLetterPadding;
             canvas.drawText(POPUP_HINT_CHAR, hintX, hintY, paint);
+            if (drawnBounds != null) {
+                unionTextBounds(drawnBounds, POPUP_HINT_CHAR, hintX, hintY, 0, paint);
+            }
 
             if (debugShowAlign) {
                 final Paint line = new Paint();
@@ -782,11 +972,31 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
     }
 
     private static void drawIcon(Canvas canvas, Drawable icon, int x, int y, int width,
-            int height) {
+            int height, RectF drawnBounds) {
         canvas.translate(x, y);
         icon.setBounds(0, 0, width, height);
         icon.draw(canvas);
         canvas.translate(-x, -y);
+        if (drawnBounds != null) {
+            drawnBounds.union(x, y, x + width, y + height);
+        }
+    }
+
+    // Adds the ink of text drawn with the paint, including its shadow, to the bounds.
+    private static void unionTextBounds(RectF bounds, CharSequence text, float x, float y,
+            float shadowRadius, Paint paint) {
+        final String string = text.toString();
+        final Rect textBounds = sTextBounds;
+        paint.getTextBounds(string, 0, string.length(), textBounds);
+        // The text bounds are relative to the origin of left aligned text.
+        float left = x;
+        if (paint.getTextAlign() == Align.RIGHT) {
+            left -= paint.measureText(string);
+        } else if (paint.getTextAlign() == Align.CENTER) {
+            left -= paint.measureText(string) / 2;
+        }
+        bounds.union(left + textBounds.left - shadowRadius, y + textBounds.top - shadowRadius,
+                left + textBounds.right + shadowRadius, y + textBounds.bottom + shadowRadius);
     }
 
     private static void drawHorizontalLine(Canvas canvas, float y, float w, int color,
@@ -930,6 +1140,7 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
      * @see #invalidateKey(Key)
      */
     public void invalidateAllKeys() {
+        if (mInvalidateTime == 0) mInvalidateTime = System.nanoTime();
         mDirtyRect.union(0, 0, getWidth(), getHeight());
         mBufferNeedsUpdate = true;
         invalidate();
@@ -946,6 +1157,7 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
     public void invalidateKey(Key key) {
         if (key == null)
             return;
+        if (mInvalidateTime == 0) mInvalidateTime = System.nanoTime();
         mInvalidatedKey = key;
         final int x = key.mX + getPaddingLeft();
         final int y = key.mY + getPaddingTop();
@@ -984,5 +1196,7 @@ public class KeyboardView extends View implements PointerTracker.DrawingProxy {
             mBuffer.recycle();
             mBuffer = null;
         }
+        mKeyBitmapCache.clear();
+        mUncachedKeys.clear();
     }
 }
@@ -38,6 +38,7 @@ import com.android.inputmethod.latin.R;
 import com.android.inputmethod.latin.SubtypeSwitcher;
 import com.android.inputmethod.latin.Utils;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
@@ -134,6 +135,12 @@ public class LatinKeyboard extends Keyboard {
             return this;
         }
 
+        @Override
+        public Builder load(KeyboardId id, File compiledLayoutDir) {
+            super.load(id, compiledLayoutDir);
+            return this;
+        }
+
         @Override
         public LatinKeyboard build() {
             return new LatinKeyboard(mContext, mParams);
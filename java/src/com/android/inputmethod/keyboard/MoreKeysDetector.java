@@ -16,6 +16,7 @@
 
 package com.android.inputmethod.keyboard;
 
+import java.util.Arrays;
 import java.util.List;
 
 public class MoreKeysDetector extends KeyDetector {
@@ -57,8 +58,12 @@ public class MoreKeysDetector extends KeyDetector {
             }
         }
 
-        if (allCodes != null && nearestIndex != NOT_A_KEY)
-            allCodes[0] = keys.get(nearestIndex).mCode;
+        if (allCodes != null) {
+            // The array is reused across touches, so reset what an earlier detection left.
+            Arrays.fill(allCodes, NOT_A_CODE);
+            if (nearestIndex != NOT_A_KEY)
+                allCodes[0] = keys.get(nearestIndex).mCode;
+        }
         return nearestIndex;
     }
 }
\ No newline at end of file
@@ -23,6 +23,7 @@ import android.view.MotionEvent;
 import android.widget.TextView;
 
 import com.android.inputmethod.keyboard.internal.PointerTrackerQueue;
+import com.android.inputmethod.latin.LatencyMetrics;
 import com.android.inputmethod.latin.LatinImeLogger;
 import com.android.inputmethod.latin.R;
 
@@ -108,6 +109,8 @@ public class PointerTracker {
     private DrawingProxy mDrawingProxy;
     private TimerProxy mTimerProxy;
     private KeyDetector mKeyDetector;
+    // The codes of the key press being sent. The listener copies them, so this is reused.
+    private int[] mKeyCodes;
     private KeyboardActionListener mListener = EMPTY_LISTENER;
 
     private Keyboard mKeyboard;
@@ -285,6 +288,7 @@ public class PointerTracker {
 
     private void setKeyDetectorInner(KeyDetector keyDetector) {
         mKeyDetector = keyDetector;
+        mKeyCodes = keyDetector.newCodeArray();
         mKeyboard = keyDetector.getKeyboard();
         mKeys = mKeyboard.mKeys;
         final int keyQuarterWidth = mKeyboard.mMostCommonKeyWidth / 4;
@@ -722,8 +726,11 @@ public class PointerTracker {
             callListenerOnRelease(key, key.mCode, false);
         } else {
             int code = key.mCode;
-            final int[] codes = mKeyDetector.newCodeArray();
+            final int[] codes = mKeyCodes;
+            // Only the detection of a key press is timed, not the ones of the moves.
+            final long startTime = System.nanoTime();
             mKeyDetector.getKeyIndexAndNearbyCodes(x, y, codes);
+            LatencyMetrics.KEY_DETECTION.recordSince(startTime);
 
             // If keyboard is in manual temporary upper case state and key has manual temporary
             // uppercase letter as key hint letter, alternate character code should be sent.
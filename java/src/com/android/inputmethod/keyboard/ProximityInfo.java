@@ -161,6 +161,19 @@ public class ProximityInfo {
         return mNativeProximityInfo;
     }
 
+    /**
+     * Returns roughly how many bytes the grid takes, in the Java heap and in the native one.
+     */
+    /* package */ int getMemorySize() {
+        // The native copy has room for MAX_PROXIMITY_CHARS_SIZE codes per cell.
+        int size = mNativeProximityInfo != 0 ? mGridSize * MAX_PROXIMITY_CHARS_SIZE * 4 : 0;
+        for (final int[] neighbors : mGridNeighbors) {
+            // An array has a header of about 16 bytes.
+            if (neighbors != null) size += 16 + neighbors.length * 4;
+        }
+        return size;
+    }
+
     @Override
     protected void finalize() throws Throwable {
         try {
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.keyboard.internal;
+
+import android.util.Log;
+
+import com.android.inputmethod.keyboard.Key;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The binary format of a keyboard whose layout has been parsed once: the keyboard parameters
+ * and the keys, with their includes, switch cases and key styles already resolved for one
+ * {@link com.android.inputmethod.keyboard.KeyboardId}.
+ *
+ * The file looks like:
+ * <pre>
+ *   int magic, int version, int body length, int body CRC32
+ *   body:
+ *     text signature
+ *     keyboard parameters
+ *     int key count
+ *     (boolean isSpacer, key)*
+ * </pre>
+ * The signature describes everything the layout depends on, so that a file compiled for another
+ * display, theme or version of the application is ignored. A file whose body doesn't match its
+ * length and CRC32, for instance because it has been truncated, is ignored as well. A text is an
+ * int length, -1 for null, followed by its chars.
+ */
+public class CompiledKeyboardLayout {
+    private static final String TAG = CompiledKeyboardLayout.class.getSimpleName();
+
+    private static final int MAGIC_NUMBER = 0x4B424C59;
+    // Has to be incremented when the format changes.
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 * 4;
+    private static final String FILE_SUFFIX = ".kbl";
+
+    private CompiledKeyboardLayout() {
+        // This utility class is not publicly instantiable.
+    }
+
+    /**
+     * Returns the file of a keyboard variant. The variant must not include the version of the
+     * application, so that its file is overwritten when the application is updated.
+     */
+    public static File getFile(File dir, String variant) {
+        return new File(dir, Integer.toHexString(variant.hashCode()) + FILE_SUFFIX);
+    }
+
+    /**
+     * Maps a compiled layout to memory and checks its header and its body.
+     * @return the buffer positioned at the keyboard parameters, or null if the file doesn't
+     *         exist, is broken or was compiled for another signature
+     */
+    public static ByteBuffer open(File file, String signature) {
+        if (!file.isFile()) return null;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE) return null;
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC_NUMBER || buffer.getInt() != VERSION) return null;
+            final int length = buffer.getInt();
+            final int crc = buffer.getInt();
+            if (length != size - HEADER_SIZE || crc != getCrc(buffer)) {
+                Log.w(TAG, "broken compiled keyboard layout " + file);
+                return null;
+            }
+            if (!signature.equals(readText(buffer))) return null;
+            return buffer;
+        } catch (IOException e) {
+            Log.w(TAG, "cannot map compiled keyboard layout " + file + ": " + e);
+            return null;
+        } catch (RuntimeException e) {
+            // A corrupted signature.
+            Log.w(TAG, "corrupted compiled keyboard layout " + file + ": " + e);
+            return null;
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the keyboard parameters and the keys that follow the header. The icons of the
+     * parameters have to be loaded already.
+     * @throws RuntimeException if the data is not a valid keyboard, such as a
+     *         {@link java.nio.BufferUnderflowException} or an {@link IllegalArgumentException}
+     */
+    public static void readKeyboard(ByteBuffer buffer, KeyboardParams params) {
+        params.mOccupiedHeight = buffer.getInt();
+        params.mOccupiedWidth = buffer.getInt();
+        params.mBaseHeight = buffer.getInt();
+        params.mBaseWidth = buffer.getInt();
+        params.mTopPadding = buffer.getInt();
+        params.mBottomPadding = buffer.getInt();
+        params.mHorizontalEdgesPadding = buffer.getInt();
+        params.mHorizontalCenterPadding = buffer.getInt();
+        params.mDefaultRowHeight = buffer.getInt();
+        params.mDefaultKeyWidth = buffer.getInt();
+        params.mHorizontalGap = buffer.getInt();
+        params.mVerticalGap = buffer.getInt();
+        params.mIsRtlKeyboard = readBoolean(buffer);
+        params.mMoreKeysTemplate = buffer.getInt();
+        params.mMaxMiniKeyboardColumn = buffer.getInt();
+
+        final int keyCount = buffer.getInt();
+        checkCount(keyCount, buffer, 1);
+        for (int i = 0; i < keyCount; i++) {
+            final boolean isSpacer = readBoolean(buffer);
+            params.onAddKey(isSpacer ? new Key.Spacer(params, buffer) : new Key(params, buffer));
+        }
+    }
+
+    /**
+     * Writes the keyboard that has just been parsed. The file is replaced atomically, so that a
+     * reader never sees a partially written layout.
+     */
+    public static void write(File file, String signature, KeyboardParams params) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            // The length and the CRC32 of the body are filled in once it is written.
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(VERSION);
+            out.writeInt(0);
+            out.writeInt(0);
+            writeText(out, signature);
+
+            out.writeInt(params.mOccupiedHeight);
+            out.writeInt(params.mOccupiedWidth);
+            out.writeInt(params.mBaseHeight);
+            out.writeInt(params.mBaseWidth);
+            out.writeInt(params.mTopPadding);
+            out.writeInt(params.mBottomPadding);
+            out.writeInt(params.mHorizontalEdgesPadding);
+            out.writeInt(params.mHorizontalCenterPadding);
+            out.writeInt(params.mDefaultRowHeight);
+            out.writeInt(params.mDefaultKeyWidth);
+            out.writeInt(params.mHorizontalGap);
+            out.writeInt(params.mVerticalGap);
+            out.writeBoolean(params.mIsRtlKeyboard);
+            out.writeInt(params.mMoreKeysTemplate);
+            out.writeInt(params.mMaxMiniKeyboardColumn);
+
+            out.writeInt(params.mKeys.size());
+            for (final Key key : params.mKeys) {
+                out.writeBoolean(key.isSpacer());
+                key.writeTo(out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Can't happen when writing to memory.
+            throw new RuntimeException(e);
+        }
+        final ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+        data.position(HEADER_SIZE);
+        data.putInt(8, data.remaining()).putInt(12, getCrc(data));
+
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "cannot create directory for compiled keyboard layouts: " + dir);
+            return;
+        }
+        final File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = null;
+        try {
+            fileOut = new FileOutputStream(tempFile);
+            fileOut.write(data.array());
+            fileOut.close();
+            fileOut = null;
+            if (!tempFile.renameTo(file)) {
+                Log.w(TAG, "cannot rename compiled keyboard layout to " + file);
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write compiled keyboard layout " + file + ": " + e);
+            tempFile.delete();
+        } finally {
+            if (fileOut != null) {
+                try {
+                    fileOut.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    // Computes the CRC32 of the rest of the buffer, without moving its position.
+    private static int getCrc(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[8192];
+        final ByteBuffer data = buffer.duplicate();
+        while (data.hasRemaining()) {
+            final int length = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int)crc.getValue();
+    }
+
+    // A count read from a broken file could make the reader allocate a huge array. There can't
+    // be more elements than the rest of the buffer holds.
+    private static void checkCount(int count, ByteBuffer buffer, int minElementSize) {
+        if (count > buffer.remaining() / minElementSize) {
+            throw new IllegalArgumentException("count " + count + " exceeds the "
+                    + buffer.remaining() + " remaining bytes");
+        }
+    }
+
+    public static boolean readBoolean(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+
+    public static String readText(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) return null;
+        checkCount(length, buffer, 2);
+        final char[] chars = new char[length];
+        buffer.asCharBuffer().get(chars);
+        buffer.position(buffer.position() + length * 2);
+        return new String(chars);
+    }
+
+    public static void writeText(DataOutput out, CharSequence text) throws IOException {
+        if (text == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(text.length());
+        out.writeChars(text.toString());
+    }
+
+    public static CharSequence[] readTextArray(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) return null;
+        // A text takes at least its length.
+        checkCount(length, buffer, 4);
+        final CharSequence[] array = new CharSequence[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = readText(buffer);
+        }
+        return array;
+    }
+
+    public static void writeTextArray(DataOutput out, CharSequence[] array) throws IOException {
+        if (array == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(array.length);
+        for (final CharSequence text : array) {
+            writeText(out, text);
+        }
+    }
+}
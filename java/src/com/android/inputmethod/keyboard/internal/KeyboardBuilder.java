@@ -17,6 +17,7 @@
 package com.android.inputmethod.keyboard.internal;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
@@ -36,7 +37,9 @@ import com.android.inputmethod.latin.R;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -284,6 +287,64 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
         return this;
     }
 
+    /**
+     * Loads the keyboard from its compiled layout in the directory, if there is one for the same
+     * keyboard id, display, theme and version of the application. Otherwise parses the XML of
+     * the keyboard, and compiles it to the directory for the next time.
+     * @see CompiledKeyboardLayout
+     */
+    public KeyboardBuilder<KP> load(KeyboardId id, File compiledLayoutDir) {
+        mParams.mId = id;
+        final String variant = String.format("%s theme=%d display=%dx%d/%d", id,
+                mParams.mThemeId, mDisplayMetrics.widthPixels, mDisplayMetrics.heightPixels,
+                mDisplayMetrics.densityDpi);
+        final String signature = variant + " version=" + getPackageLastUpdateTime(mContext);
+        final File file = CompiledKeyboardLayout.getFile(compiledLayoutDir, variant);
+        final ByteBuffer buffer = CompiledKeyboardLayout.open(file, signature);
+        if (buffer != null) {
+            try {
+                loadIcons();
+                CompiledKeyboardLayout.readKeyboard(buffer, mParams);
+                if (DEBUG) Log.d(TAG, "loaded compiled layout " + file + " " + id);
+                return this;
+            } catch (RuntimeException e) {
+                // The file checked out but is not a keyboard this version can read. It is
+                // compiled again from the XML.
+                Log.w(TAG, "corrupted compiled keyboard layout " + file + ": " + e);
+                file.delete();
+            }
+            mParams.clearKeys();
+        }
+        load(id);
+        CompiledKeyboardLayout.write(file, signature, mParams);
+        return this;
+    }
+
+    private static long sPackageLastUpdateTime;
+
+    private static long getPackageLastUpdateTime(Context context) {
+        if (sPackageLastUpdateTime == 0) {
+            try {
+                sPackageLastUpdateTime = context.getPackageManager().getPackageInfo(
+                        context.getPackageName(), 0).lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(TAG, "package not found: " + context.getPackageName());
+            }
+        }
+        return sPackageLastUpdateTime;
+    }
+
+    // The icons only come from the theme: the keyboard XML never overrides them.
+    private void loadIcons() {
+        final TypedArray keyboardAttr = mContext.obtainStyledAttributes(
+                null, R.styleable.Keyboard, R.attr.keyboardStyle, R.style.Keyboard);
+        try {
+            mParams.mIconsSet.loadIcons(keyboardAttr);
+        } finally {
+            keyboardAttr.recycle();
+        }
+    }
+
     public void setTouchPositionCorrectionEnabled(boolean enabled) {
         mParams.mTouchPositionCorrection.setEnabled(enabled);
     }
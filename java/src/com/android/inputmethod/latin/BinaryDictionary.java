@@ -17,10 +17,15 @@
 package com.android.inputmethod.latin;
 
 import android.content.Context;
+import android.text.TextUtils;
 
 import com.android.inputmethod.keyboard.ProximityInfo;
 
-import java.util.Arrays;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
 
 /**
  * Implements a static, compacted, binary dictionary of standard words.
@@ -45,13 +50,32 @@ public class BinaryDictionary extends Dictionary {
 
     private static final int TYPED_LETTER_MULTIPLIER = 2;
 
+    // The native lookups return the words packed one after the other, each prefixed with its
+    // length and its flags. These must match defines.h.
+    private static final int PACKED_WORD_HEADER_SIZE = 2;
+    private static final int PACKED_WORD_FLAG_BIGRAM_BOOSTED = 0x1;
+
     private int mDicTypeId;
     private int mNativeDict;
-    private final int[] mInputCodes = new int[MAX_WORD_LENGTH * MAX_PROXIMITY_CHARS_SIZE];
-    private final char[] mOutputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
-    private final char[] mOutputChars_bigrams = new char[MAX_WORD_LENGTH * MAX_BIGRAMS];
-    private final int[] mScores = new int[MAX_WORDS];
-    private final int[] mBigramScores = new int[MAX_BIGRAMS];
+    private SharedBuffer mSharedBuffer;
+    // The direct buffers the native lookups read their input from and write their output to,
+    // so that a lookup doesn't copy or pin any array. mNativeLookupBuffers holds their addresses.
+    private final IntBuffer mInputCodes =
+            allocateInts(MAX_WORD_LENGTH * MAX_PROXIMITY_CHARS_SIZE);
+    private final IntBuffer mXCoordinates = allocateInts(MAX_WORD_LENGTH);
+    private final IntBuffer mYCoordinates = allocateInts(MAX_WORD_LENGTH);
+    private final CharBuffer mPrevWord = allocateChars(MAX_WORD_LENGTH);
+    private final CharBuffer mOutputChars =
+            allocateChars((PACKED_WORD_HEADER_SIZE + MAX_WORD_LENGTH) * MAX_WORDS);
+    private final IntBuffer mScores = allocateInts(MAX_WORDS);
+    private final CharBuffer mOutputChars_bigrams =
+            allocateChars((PACKED_WORD_HEADER_SIZE + MAX_WORD_LENGTH) * MAX_BIGRAMS);
+    private final IntBuffer mBigramScores = allocateInts(MAX_BIGRAMS);
+    private int mNativeLookupBuffers;
+    // The number of keystrokes whose codes are in mInputCodes, the rest being NOT_A_CODE.
+    private int mInputCodesSize;
+    // The word passed to the callback.
+    private final char[] mWord = new char[MAX_WORD_LENGTH];
 
     public static final Flag FLAG_REQUIRES_GERMAN_UMLAUT_PROCESSING =
             new Flag(R.bool.config_require_umlaut_processing, 0x1);
@@ -81,6 +105,32 @@ public class BinaryDictionary extends Dictionary {
 
     private int mFlags = 0;
 
+    /**
+     * The native dictionary that has mapped or loaded the dictionary buffer, and the number of
+     * BinaryDictionary instances reading that buffer. The buffer is read-only, so it can be
+     * shared by instances that each have their own native search state. It is released when the
+     * last of them is closed.
+     */
+    private static class SharedBuffer {
+        public final int mNativeDict;
+        private int mRefCount = 1;
+
+        public SharedBuffer(int nativeDict) {
+            mNativeDict = nativeDict;
+        }
+
+        public synchronized void acquire() {
+            ++mRefCount;
+        }
+
+        /**
+         * @return true if this was the last reference, and the buffer has to be released.
+         */
+        public synchronized boolean release() {
+            return --mRefCount == 0;
+        }
+    }
+
     /**
      * Constructor for the binary dictionary. This is supposed to be called from the
      * dictionary factory.
@@ -101,6 +151,58 @@ public class BinaryDictionary extends Dictionary {
         mFlags = Flag.initFlags(null == flagArray ? ALL_CONFIG_FLAGS : flagArray, context,
                 SubtypeSwitcher.getInstance());
         loadDictionary(filename, offset, length);
+        if (mNativeDict != 0) {
+            mSharedBuffer = new SharedBuffer(mNativeDict);
+            createLookupBuffers();
+        }
+    }
+
+    private BinaryDictionary(final BinaryDictionary source) {
+        mDicTypeId = source.mDicTypeId;
+        mFlags = source.mFlags;
+        mSharedBuffer = source.mSharedBuffer;
+        mSharedBuffer.acquire();
+        mNativeDict = openSharingNative(mSharedBuffer.mNativeDict,
+                TYPED_LETTER_MULTIPLIER, FULL_WORD_SCORE_MULTIPLIER,
+                MAX_WORD_LENGTH, MAX_WORDS, MAX_PROXIMITY_CHARS_SIZE);
+        if (mNativeDict != 0) {
+            createLookupBuffers();
+        } else {
+            // closeInternal() only releases the buffer of a dictionary that was opened.
+            if (mSharedBuffer.release()) closeNative(mSharedBuffer.mNativeDict);
+        }
+    }
+
+    private static IntBuffer allocateInts(final int size) {
+        return ByteBuffer.allocateDirect(size * Integer.SIZE / Byte.SIZE)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private static CharBuffer allocateChars(final int size) {
+        return ByteBuffer.allocateDirect(size * Character.SIZE / Byte.SIZE)
+                .order(ByteOrder.nativeOrder()).asCharBuffer();
+    }
+
+    private void createLookupBuffers() {
+        for (int i = 0; i < mInputCodes.capacity(); i++) {
+            mInputCodes.put(i, WordComposer.NOT_A_CODE);
+        }
+        mNativeLookupBuffers = createLookupBuffersNative(mInputCodes, mXCoordinates,
+                mYCoordinates, mPrevWord, mOutputChars, mScores, mOutputChars_bigrams,
+                mBigramScores);
+    }
+
+    /**
+     * Creates a dictionary that reads the same dictionary buffer as this one, without mapping or
+     * loading it again. It has its own search state, so both can be searched concurrently. The
+     * buffer is released when both are closed, in any order.
+     * @return the new dictionary, or null if this one is not valid or has been closed, or if the
+     * new one could not be opened.
+     */
+    public synchronized BinaryDictionary createSharingDictionary() {
+        if (!isValidDictionary()) return null;
+        final BinaryDictionary dictionary = new BinaryDictionary(this);
+        return dictionary.isValidDictionary() ? dictionary : null;
     }
 
     static {
@@ -110,14 +212,19 @@ public class BinaryDictionary extends Dictionary {
     private native int openNative(String sourceDir, long dictOffset, long dictSize,
             int typedLetterMultiplier, int fullWordMultiplier, int maxWordLength,
             int maxWords, int maxAlternatives);
+    private native int openSharingNative(int dict, int typedLetterMultiplier,
+            int fullWordMultiplier, int maxWordLength, int maxWords, int maxAlternatives);
     private native void closeNative(int dict);
+    private native void closeSharingNative(int dict);
     private native boolean isValidWordNative(int nativeData, char[] word, int wordLength);
-    private native int getSuggestionsNative(int dict, int proximityInfo, int[] xCoordinates,
-            int[] yCoordinates, int[] inputCodes, int codesSize, int flags, char[] outputChars,
-            int[] scores);
-    private native int getBigramsNative(int dict, char[] prevWord, int prevWordLength,
-            int[] inputCodes, int inputCodesLength, char[] outputChars, int[] scores,
-            int maxWordLength, int maxBigrams, int maxAlternatives);
+    private native int createLookupBuffersNative(Buffer inputCodes, Buffer xCoordinates,
+            Buffer yCoordinates, Buffer prevWord, Buffer outputChars, Buffer scores,
+            Buffer bigramOutputChars, Buffer bigramScores);
+    private native void releaseLookupBuffersNative(int lookupBuffers);
+    private native int getSuggestionsNative(int dict, int lookupBuffers, int proximityInfo,
+            int codesSize, int flags, int prevWordLength);
+    private native int getBigramsNative(int dict, int lookupBuffers, int prevWordLength,
+            int codesSize);
 
     private final void loadDictionary(String path, long startOffset, long length) {
         mNativeDict = openNative(path, startOffset, length,
@@ -130,85 +237,104 @@ public class BinaryDictionary extends Dictionary {
             final WordCallback callback) {
         if (mNativeDict == 0) return;
 
-        char[] chars = previousWord.toString().toCharArray();
-        Arrays.fill(mOutputChars_bigrams, (char) 0);
-        Arrays.fill(mBigramScores, 0);
-
         int codesSize = codes.size();
         if (codesSize <= 0) {
             // Do not return bigrams from BinaryDictionary when nothing was typed.
             // Only use user-history bigrams (or whatever other bigram dictionaries decide).
             return;
         }
-        Arrays.fill(mInputCodes, -1);
-        int[] alternatives = codes.getCodesAt(0);
-        System.arraycopy(alternatives, 0, mInputCodes, 0,
-                Math.min(alternatives.length, MAX_PROXIMITY_CHARS_SIZE));
-
-        int count = getBigramsNative(mNativeDict, chars, chars.length, mInputCodes, codesSize,
-                mOutputChars_bigrams, mBigramScores, MAX_WORD_LENGTH, MAX_BIGRAMS,
-                MAX_PROXIMITY_CHARS_SIZE);
+        final int prevWordLength = writePrevWord(previousWord);
+        if (prevWordLength <= 0) return;
+        writeInputCodes(codes, Math.min(codesSize, MAX_WORD_LENGTH - 1));
 
-        for (int j = 0; j < count; ++j) {
-            if (mBigramScores[j] < 1) break;
-            final int start = j * MAX_WORD_LENGTH;
-            int len = 0;
-            while (len <  MAX_WORD_LENGTH && mOutputChars_bigrams[start + len] != 0) {
-                ++len;
-            }
-            if (len > 0) {
-                callback.addWord(mOutputChars_bigrams, start, len, mBigramScores[j],
-                        mDicTypeId, DataType.BIGRAM);
-            }
-        }
+        int count = getBigramsNative(mNativeDict, mNativeLookupBuffers, prevWordLength,
+                codesSize);
+        addPackedWords(mOutputChars_bigrams, mBigramScores, count, DataType.BIGRAM, callback);
     }
 
     // proximityInfo may not be null.
     @Override
     public void getWords(final WordComposer codes, final WordCallback callback,
             final ProximityInfo proximityInfo) {
-        final int count = getSuggestions(codes, proximityInfo, mOutputChars, mScores);
+        getWords(codes, null, callback, proximityInfo);
+    }
+
+    /**
+     * Looks up the words and boosts the ones that follow the previous word in one native call.
+     * The boosted words are passed with {@link DataType#BOOSTED_UNIGRAM}. proximityInfo may not
+     * be null.
+     */
+    @Override
+    public void getWords(final WordComposer codes, final CharSequence previousWord,
+            final WordCallback callback, final ProximityInfo proximityInfo) {
+        final int count = getSuggestions(codes, previousWord, proximityInfo);
+        addPackedWords(mOutputChars, mScores, count, DataType.UNIGRAM, callback);
+    }
 
+    private void addPackedWords(final CharBuffer block, final IntBuffer scores, final int count,
+            final DataType dataType, final WordCallback callback) {
+        int start = 0;
         for (int j = 0; j < count; ++j) {
-            if (mScores[j] < 1) break;
-            final int start = j * MAX_WORD_LENGTH;
-            int len = 0;
-            while (len < MAX_WORD_LENGTH && mOutputChars[start + len] != 0) {
-                ++len;
-            }
-            if (len > 0) {
-                callback.addWord(mOutputChars, start, len, mScores[j], mDicTypeId,
-                        DataType.UNIGRAM);
+            final int length = block.get(start);
+            final boolean boosted = (block.get(start + 1) & PACKED_WORD_FLAG_BIGRAM_BOOSTED) != 0;
+            start += PACKED_WORD_HEADER_SIZE;
+            block.position(start);
+            block.get(mWord, 0, length);
+            if (!callback.addWord(mWord, 0, length, scores.get(j), mDicTypeId,
+                    boosted ? DataType.BOOSTED_UNIGRAM : dataType)) {
+                return;
             }
+            start += length;
         }
     }
 
+    // Writes the codes of the first codesSize keystrokes to the input buffers, and resets the
+    // codes of the keystrokes of the previous lookup past them.
+    private void writeInputCodes(final WordComposer codes, final int codesSize) {
+        codes.writeTo(mInputCodes, mXCoordinates, mYCoordinates, codesSize);
+        for (int i = codesSize * MAX_PROXIMITY_CHARS_SIZE;
+                i < mInputCodesSize * MAX_PROXIMITY_CHARS_SIZE; i++) {
+            mInputCodes.put(i, WordComposer.NOT_A_CODE);
+        }
+        mInputCodesSize = codesSize;
+    }
+
+    // Writes the previous word to its buffer, and returns its length, or 0 if there is none or
+    // it is too long to be in the dictionary.
+    private int writePrevWord(final CharSequence previousWord) {
+        if (TextUtils.isEmpty(previousWord)) return 0;
+        final int length = previousWord.length();
+        if (length > MAX_WORD_LENGTH) return 0;
+        for (int i = 0; i < length; i++) {
+            mPrevWord.put(i, previousWord.charAt(i));
+        }
+        return length;
+    }
+
     /* package for test */ boolean isValidDictionary() {
         return mNativeDict != 0;
     }
 
-    // proximityInfo may not be null.
+    /**
+     * Looks up the words into mOutputChars, packed one after the other, each prefixed with its
+     * length and its flags, and their scores into mScores.
+     * @param previousWord the word before, to boost the words that follow it, or null.
+     * @param proximityInfo the proximity info of the keyboard, that may not be null.
+     * @return the number of words, or -1 if the lookup could not be done.
+     */
     /* package for test */ int getSuggestions(final WordComposer codes,
-            final ProximityInfo proximityInfo, char[] outputChars, int[] scores) {
+            final CharSequence previousWord, final ProximityInfo proximityInfo) {
         if (!isValidDictionary()) return -1;
 
         final int codesSize = codes.size();
         // Won't deal with really long words.
         if (codesSize > MAX_WORD_LENGTH - 1) return -1;
 
-        Arrays.fill(mInputCodes, WordComposer.NOT_A_CODE);
-        for (int i = 0; i < codesSize; i++) {
-            int[] alternatives = codes.getCodesAt(i);
-            System.arraycopy(alternatives, 0, mInputCodes, i * MAX_PROXIMITY_CHARS_SIZE,
-                    Math.min(alternatives.length, MAX_PROXIMITY_CHARS_SIZE));
-        }
-        Arrays.fill(outputChars, (char) 0);
-        Arrays.fill(scores, 0);
+        writeInputCodes(codes, codesSize);
+        final int prevWordLength = writePrevWord(previousWord);
 
-        return getSuggestionsNative(
-                mNativeDict, proximityInfo.getNativeProximityInfo(),
-                codes.getXCoordinates(), codes.getYCoordinates(), mInputCodes, codesSize,
-                mFlags, outputChars, scores);
+        return getSuggestionsNative(mNativeDict, mNativeLookupBuffers,
+                proximityInfo.getNativeProximityInfo(), codesSize, mFlags, prevWordLength);
     }
 
     @Override
@@ -225,9 +351,14 @@ public class BinaryDictionary extends Dictionary {
 
     private void closeInternal() {
         if (mNativeDict != 0) {
-            closeNative(mNativeDict);
+            if (mNativeDict != mSharedBuffer.mNativeDict) closeSharingNative(mNativeDict);
+            if (mSharedBuffer.release()) closeNative(mSharedBuffer.mNativeDict);
             mNativeDict = 0;
         }
+        if (mNativeLookupBuffers != 0) {
+            releaseLookupBuffersNative(mNativeLookupBuffers);
+            mNativeLookupBuffers = 0;
+        }
     }
 
     @Override
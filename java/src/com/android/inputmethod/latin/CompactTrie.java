@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A trie stored in parallel primitive arrays, used as the in-memory storage of
+ * {@link ExpandableDictionary}.
+ *
+ * A node is an index in the node arrays. The children of a node are chained in insertion order
+ * through the next sibling array, and the bigram links of a terminal node are chained in insertion
+ * order through the link arrays. Node {@link #ROOT} is a sentinel without a code whose children are
+ * the first characters of all the words. Nothing is ever allocated per node or per link, so a
+ * dictionary of tens of thousands of words is a dozen arrays instead of hundreds of thousands of
+ * small objects.
+ *
+ * Nodes and links are only ever appended, so a view made by {@link #createView} can be searched
+ * on another thread while words are added to the trie: it ignores the nodes and links that come
+ * after the ones it was made with.
+ */
+class CompactTrie {
+    public static final int ROOT = 0;
+    public static final int NOT_A_NODE = -1;
+    public static final int NOT_A_LINK = -1;
+    // The frequency of a node that does not terminate a word.
+    public static final int NOT_A_FREQUENCY = -1;
+
+    private static final int DEFAULT_NODE_CAPACITY = 256;
+    private static final int DEFAULT_LINK_CAPACITY = 16;
+
+    private char[] mCodes;
+    private int[] mFrequencies;
+    private int[] mParents;
+    private int[] mFirstChildren;
+    private int[] mNextSiblings;
+    private int[] mFirstLinks;
+    private int mNodeCount;
+
+    private int[] mLinkTargets;
+    private int[] mLinkFrequencies;
+    private int[] mLinkTimes;
+    private int[] mNextLinks;
+    private int mLinkCount;
+    // The slots of the links that have been unchained by removeLink, that addLink reuses. They
+    // are still counted by mLinkCount.
+    private int[] mFreeLinks;
+    private int mFreeLinkCount;
+    // The trie whose arrays these are: this one, or the one this is a view of.
+    private final CompactTrie mOwner;
+    // Whether a view has been made of this trie. A free slot is not reused then, since a lookup
+    // may still be in the removed link.
+    private boolean mHasViews;
+
+    public CompactTrie() {
+        this(DEFAULT_NODE_CAPACITY, DEFAULT_LINK_CAPACITY);
+    }
+
+    public CompactTrie(final int nodeCapacity, final int linkCapacity) {
+        final int nodes = Math.max(nodeCapacity, 1);
+        mCodes = new char[nodes];
+        mFrequencies = new int[nodes];
+        mParents = new int[nodes];
+        mFirstChildren = new int[nodes];
+        mNextSiblings = new int[nodes];
+        mFirstLinks = new int[nodes];
+        final int links = Math.max(linkCapacity, 1);
+        mLinkTargets = new int[links];
+        mLinkFrequencies = new int[links];
+        mLinkTimes = new int[links];
+        mNextLinks = new int[links];
+        mFreeLinks = new int[DEFAULT_LINK_CAPACITY];
+        mOwner = this;
+        newNode((char)0, NOT_A_NODE);
+    }
+
+    /**
+     * Creates a copy of the trie, that can be changed without changing the source.
+     */
+    public CompactTrie(final CompactTrie source) {
+        mCodes = source.mCodes.clone();
+        mFrequencies = source.mFrequencies.clone();
+        mParents = source.mParents.clone();
+        mFirstChildren = source.mFirstChildren.clone();
+        mNextSiblings = source.mNextSiblings.clone();
+        mFirstLinks = source.mFirstLinks.clone();
+        mNodeCount = source.mNodeCount;
+        mLinkTargets = source.mLinkTargets.clone();
+        mLinkFrequencies = source.mLinkFrequencies.clone();
+        mLinkTimes = source.mLinkTimes.clone();
+        mNextLinks = source.mNextLinks.clone();
+        mLinkCount = source.mLinkCount;
+        mFreeLinks = source.mFreeLinks.clone();
+        mFreeLinkCount = source.mFreeLinkCount;
+        mOwner = this;
+    }
+
+    private CompactTrie(final CompactTrie owner, final int nodeCount, final int linkCount) {
+        mCodes = owner.mCodes;
+        mFrequencies = owner.mFrequencies;
+        mParents = owner.mParents;
+        mFirstChildren = owner.mFirstChildren;
+        mNextSiblings = owner.mNextSiblings;
+        mFirstLinks = owner.mFirstLinks;
+        mNodeCount = nodeCount;
+        mLinkTargets = owner.mLinkTargets;
+        mLinkFrequencies = owner.mLinkFrequencies;
+        mLinkTimes = owner.mLinkTimes;
+        mNextLinks = owner.mNextLinks;
+        mLinkCount = linkCount;
+        mFreeLinks = owner.mFreeLinks;
+        mFreeLinkCount = owner.mFreeLinkCount;
+        mOwner = owner;
+    }
+
+    /**
+     * Returns a view of the nodes and links of the trie as they are now, that shares its arrays.
+     * The trie can still be changed while the view is searched: the new nodes and links are not
+     * in the view, but frequencies and removed links are changed in place. A view must not be
+     * changed itself, and it must not be copied, since its arrays may hold the nodes and links
+     * that came after it.
+     */
+    public CompactTrie createView() {
+        mOwner.mHasViews = true;
+        return new CompactTrie(mOwner, mNodeCount, mLinkCount);
+    }
+
+    /**
+     * Returns true if both tries are views of the same nodes, so that a node index means the
+     * same word in both. Their frequencies and links may still differ.
+     */
+    public boolean hasSameNodes(final CompactTrie other) {
+        return mOwner == other.mOwner && mNodeCount == other.mNodeCount;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Returns the number of link slots, including the free ones of removed links. Links are
+     * indexed from 0 to this count.
+     */
+    public int getLinkCount() {
+        return mLinkCount;
+    }
+
+    /**
+     * Returns the number of links that are chained to their node, that is without the removed
+     * ones.
+     */
+    public int getChainedLinkCount() {
+        return mLinkCount - mFreeLinkCount;
+    }
+
+    public char getCode(final int node) {
+        return mCodes[node];
+    }
+
+    public int getParent(final int node) {
+        return mParents[node];
+    }
+
+    // The indices past the counts are the nodes and links appended after this view was made.
+
+    public int getFirstChild(final int node) {
+        final int child = mFirstChildren[node];
+        return (child < mNodeCount) ? child : NOT_A_NODE;
+    }
+
+    public int getNextSibling(final int node) {
+        final int sibling = mNextSiblings[node];
+        return (sibling < mNodeCount) ? sibling : NOT_A_NODE;
+    }
+
+    public boolean isTerminal(final int node) {
+        return mFrequencies[node] != NOT_A_FREQUENCY;
+    }
+
+    /**
+     * Returns the frequency of the word that ends at this node, or {@link #NOT_A_FREQUENCY}.
+     */
+    public int getFrequency(final int node) {
+        return mFrequencies[node];
+    }
+
+    /**
+     * Sets the frequency of the word that ends at this node. Setting {@link #NOT_A_FREQUENCY}
+     * makes the node non-terminal again.
+     */
+    public void setFrequency(final int node, final int frequency) {
+        mFrequencies[node] = frequency;
+    }
+
+    public int getFirstLink(final int node) {
+        final int link = mFirstLinks[node];
+        return (link < mLinkCount) ? link : NOT_A_LINK;
+    }
+
+    public int getNextLink(final int link) {
+        final int next = mNextLinks[link];
+        return (next < mLinkCount) ? next : NOT_A_LINK;
+    }
+
+    public int getLinkTarget(final int link) {
+        return mLinkTargets[link];
+    }
+
+    public int getLinkFrequency(final int link) {
+        return mLinkFrequencies[link];
+    }
+
+    public void setLinkFrequency(final int link, final int frequency) {
+        mLinkFrequencies[link] = frequency;
+    }
+
+    /**
+     * Returns the time the frequency of the link was last updated at, in the unit of the owner.
+     */
+    public int getLinkTime(final int link) {
+        return mLinkTimes[link];
+    }
+
+    public void setLinkTime(final int link, final int time) {
+        mLinkTimes[link] = time;
+    }
+
+    /**
+     * Returns the child of the node that has the code, or {@link #NOT_A_NODE}.
+     */
+    public int findChild(final int parent, final char code) {
+        for (int child = getFirstChild(parent); child != NOT_A_NODE;
+                child = getNextSibling(child)) {
+            if (mCodes[child] == code) return child;
+        }
+        return NOT_A_NODE;
+    }
+
+    /**
+     * Returns the node for the first {@code length} characters of the word, creating the missing
+     * nodes on the way. The returned node is not made terminal.
+     */
+    public int insert(final CharSequence word, final int length) {
+        int node = ROOT;
+        for (int i = 0; i < length; i++) {
+            node = findOrAddChild(node, word.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Returns the terminal node for the first {@code length} characters of the word, or
+     * {@link #NOT_A_NODE} if this word is not in the trie.
+     */
+    public int search(final CharSequence word, final int length) {
+        if (length <= 0) return NOT_A_NODE;
+        int node = ROOT;
+        for (int i = 0; i < length && node != NOT_A_NODE; i++) {
+            node = findChild(node, word.charAt(i));
+        }
+        return (node != NOT_A_NODE && isTerminal(node)) ? node : NOT_A_NODE;
+    }
+
+    /**
+     * Returns the link from the node to the target node, or {@link #NOT_A_LINK}.
+     */
+    public int findLink(final int node, final int target) {
+        for (int link = getFirstLink(node); link != NOT_A_LINK; link = getNextLink(link)) {
+            if (mLinkTargets[link] == target) return link;
+        }
+        return NOT_A_LINK;
+    }
+
+    /**
+     * Appends a link from the node to the target node, in the slot of a removed link if there is
+     * one. The caller is expected to have checked that there was no such link already.
+     */
+    public int addLink(final int node, final int target, final int frequency) {
+        final int link;
+        if (mFreeLinkCount > 0 && !mHasViews) {
+            link = mFreeLinks[--mFreeLinkCount];
+        } else {
+            if (mLinkCount == mLinkTargets.length) {
+                final int capacity = newCapacity(mLinkCount);
+                mLinkTargets = Arrays.copyOf(mLinkTargets, capacity);
+                mLinkFrequencies = Arrays.copyOf(mLinkFrequencies, capacity);
+                mLinkTimes = Arrays.copyOf(mLinkTimes, capacity);
+                mNextLinks = Arrays.copyOf(mNextLinks, capacity);
+            }
+            link = mLinkCount++;
+        }
+        mLinkTargets[link] = target;
+        mLinkFrequencies[link] = frequency;
+        mLinkTimes[link] = 0;
+        mNextLinks[link] = NOT_A_LINK;
+        int last = mFirstLinks[node];
+        if (last == NOT_A_LINK) {
+            mFirstLinks[node] = link;
+        } else {
+            while (mNextLinks[last] != NOT_A_LINK) last = mNextLinks[last];
+            mNextLinks[last] = link;
+        }
+        return link;
+    }
+
+    /**
+     * Unchains the link from the node to the target node, if there is one. The slot of the link
+     * is still counted by {@link #getLinkCount}, until {@link #addLink} reuses it.
+     * @return true if there was such a link
+     */
+    public boolean removeLink(final int node, final int target) {
+        int previous = NOT_A_LINK;
+        for (int link = mFirstLinks[node]; link != NOT_A_LINK; link = mNextLinks[link]) {
+            if (mLinkTargets[link] == target) {
+                if (previous == NOT_A_LINK) {
+                    mFirstLinks[node] = mNextLinks[link];
+                } else {
+                    mNextLinks[previous] = mNextLinks[link];
+                }
+                if (mFreeLinkCount == mFreeLinks.length) {
+                    mFreeLinks = Arrays.copyOf(mFreeLinks, newCapacity(mFreeLinkCount));
+                }
+                mFreeLinks[mFreeLinkCount++] = link;
+                return true;
+            }
+            previous = link;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the word that ends at the node at the end of the buffer, and returns the index of its
+     * first character. The buffer must be at least as long as the word.
+     */
+    public int getWord(final int node, final char[] buffer) {
+        int index = buffer.length;
+        for (int n = node; n != ROOT; n = mParents[n]) {
+            buffer[--index] = mCodes[n];
+        }
+        return index;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the arrays, in bytes.
+     */
+    public int getHeapFootprint() {
+        final int nodeCapacity = mCodes.length;
+        final int linkCapacity = mLinkTargets.length;
+        // 2 bytes per char, 4 bytes per int; 16 bytes of header for each of the 10 arrays.
+        return nodeCapacity * (2 + 4 * 5) + linkCapacity * 4 * 4 + 10 * 16;
+    }
+
+    /**
+     * Returns the size of the trie as written by {@link #writeTo}, in bytes.
+     */
+    public int getSerializedSize() {
+        return 4 + 4 + mNodeCount * (2 + 4 * 5) + mLinkCount * 4 * 4;
+    }
+
+    /**
+     * Writes the node count, the link count and then the used part of each array. A view can be
+     * written while its trie is changed.
+     */
+    public void writeTo(final ByteBuffer buffer) {
+        final int nodeCount = mNodeCount;
+        final int linkCount = mLinkCount;
+        buffer.putInt(nodeCount).putInt(linkCount);
+        buffer.asCharBuffer().put(mCodes, 0, nodeCount);
+        buffer.position(buffer.position() + nodeCount * 2);
+        putInts(buffer, mFrequencies, nodeCount);
+        putInts(buffer, mParents, nodeCount);
+        putIndices(buffer, mFirstChildren, nodeCount, nodeCount, NOT_A_NODE);
+        putIndices(buffer, mNextSiblings, nodeCount, nodeCount, NOT_A_NODE);
+        putIndices(buffer, mFirstLinks, nodeCount, linkCount, NOT_A_LINK);
+        putInts(buffer, mLinkTargets, linkCount);
+        putInts(buffer, mLinkFrequencies, linkCount);
+        putInts(buffer, mLinkTimes, linkCount);
+        putIndices(buffer, mNextLinks, linkCount, linkCount, NOT_A_LINK);
+    }
+
+    /**
+     * Reads a trie written by {@link #writeTo}, that takes up the rest of the buffer.
+     * @return the trie, or null if the data is not a consistent trie
+     */
+    public static CompactTrie readFrom(final ByteBuffer buffer) {
+        if (buffer.remaining() < 4 + 4) return null;
+        final int nodeCount = buffer.getInt();
+        final int linkCount = buffer.getInt();
+        if (nodeCount < 1 || linkCount < 0
+                || buffer.remaining() != (long)nodeCount * (2 + 4 * 5) + (long)linkCount * 4 * 4) {
+            return null;
+        }
+        final CompactTrie trie = new CompactTrie(nodeCount, linkCount);
+        buffer.asCharBuffer().get(trie.mCodes, 0, nodeCount);
+        buffer.position(buffer.position() + nodeCount * 2);
+        getInts(buffer, trie.mFrequencies, nodeCount);
+        getInts(buffer, trie.mParents, nodeCount);
+        getInts(buffer, trie.mFirstChildren, nodeCount);
+        getInts(buffer, trie.mNextSiblings, nodeCount);
+        getInts(buffer, trie.mFirstLinks, nodeCount);
+        getInts(buffer, trie.mLinkTargets, linkCount);
+        getInts(buffer, trie.mLinkFrequencies, linkCount);
+        getInts(buffer, trie.mLinkTimes, linkCount);
+        getInts(buffer, trie.mNextLinks, linkCount);
+        trie.mNodeCount = nodeCount;
+        trie.mLinkCount = linkCount;
+        if (!trie.isConsistent()) return null;
+        // Reused slots are chained out of order, so the links are followed to rule out cycles
+        // and links chained twice. The slots that are not chained are the free ones.
+        final boolean[] chained = new boolean[linkCount];
+        for (int node = 0; node < nodeCount; node++) {
+            for (int link = trie.mFirstLinks[node]; link != NOT_A_LINK;
+                    link = trie.mNextLinks[link]) {
+                if (chained[link]) return null;
+                chained[link] = true;
+            }
+        }
+        for (int link = 0; link < linkCount; link++) {
+            if (chained[link]) continue;
+            if (trie.mFreeLinkCount == trie.mFreeLinks.length) {
+                trie.mFreeLinks = Arrays.copyOf(trie.mFreeLinks,
+                        newCapacity(trie.mFreeLinkCount));
+            }
+            trie.mFreeLinks[trie.mFreeLinkCount++] = link;
+        }
+        return trie;
+    }
+
+    // Nodes are only ever appended, so parents come before their children, and siblings are
+    // chained in increasing order. Checking this also rules out cycles among the nodes.
+    private boolean isConsistent() {
+        if (mParents[ROOT] != NOT_A_NODE) return false;
+        for (int node = 0; node < mNodeCount; node++) {
+            if (node != ROOT && (mParents[node] < 0 || mParents[node] >= node)) return false;
+            if (mFrequencies[node] < NOT_A_FREQUENCY) return false;
+            if (!isNextIndex(mFirstChildren[node], node, mNodeCount, NOT_A_NODE)) return false;
+            if (!isNextIndex(mNextSiblings[node], node, mNodeCount, NOT_A_NODE)) return false;
+            if (!isNextIndex(mFirstLinks[node], -1, mLinkCount, NOT_A_LINK)) return false;
+        }
+        for (int link = 0; link < mLinkCount; link++) {
+            if (mLinkTargets[link] <= ROOT || mLinkTargets[link] >= mNodeCount) return false;
+            if (!isNextIndex(mNextLinks[link], -1, mLinkCount, NOT_A_LINK)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isNextIndex(final int index, final int after, final int count,
+            final int none) {
+        return index == none || (index > after && index < count);
+    }
+
+    private static void putInts(final ByteBuffer buffer, final int[] array, final int count) {
+        buffer.asIntBuffer().put(array, 0, count);
+        buffer.position(buffer.position() + count * 4);
+    }
+
+    // Writes the indices past the count as none, like the getters return them.
+    private static void putIndices(final ByteBuffer buffer, final int[] array, final int count,
+            final int indexCount, final int none) {
+        for (int i = 0; i < count; i++) {
+            final int index = array[i];
+            buffer.putInt((index < indexCount) ? index : none);
+        }
+    }
+
+    private static void getInts(final ByteBuffer buffer, final int[] array, final int count) {
+        buffer.asIntBuffer().get(array, 0, count);
+        buffer.position(buffer.position() + count * 4);
+    }
+
+    private int findOrAddChild(final int parent, final char code) {
+        int last = NOT_A_NODE;
+        for (int child = mFirstChildren[parent]; child != NOT_A_NODE;
+                child = mNextSiblings[child]) {
+            if (mCodes[child] == code) return child;
+            last = child;
+        }
+        final int child = newNode(code, parent);
+        if (last == NOT_A_NODE) {
+            mFirstChildren[parent] = child;
+        } else {
+            mNextSiblings[last] = child;
+        }
+        return child;
+    }
+
+    private int newNode(final char code, final int parent) {
+        if (mNodeCount == mCodes.length) {
+            final int capacity = newCapacity(mNodeCount);
+            mCodes = Arrays.copyOf(mCodes, capacity);
+            mFrequencies = Arrays.copyOf(mFrequencies, capacity);
+            mParents = Arrays.copyOf(mParents, capacity);
+            mFirstChildren = Arrays.copyOf(mFirstChildren, capacity);
+            mNextSiblings = Arrays.copyOf(mNextSiblings, capacity);
+            mFirstLinks = Arrays.copyOf(mFirstLinks, capacity);
+        }
+        final int node = mNodeCount++;
+        mCodes[node] = code;
+        mFrequencies[node] = NOT_A_FREQUENCY;
+        mParents[node] = parent;
+        mFirstChildren[node] = NOT_A_NODE;
+        mNextSiblings[node] = NOT_A_NODE;
+        mFirstLinks[node] = NOT_A_LINK;
+        return node;
+    }
+
+    private static int newCapacity(final int size) {
+        return size + Math.max(size >> 1, 1);
+    }
+}
@@ -28,6 +28,11 @@ import android.util.Log;
 
 import com.android.inputmethod.keyboard.Keyboard;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class ContactsDictionary extends ExpandableDictionary {
 
     private static final String[] PROJECTION = {
@@ -43,12 +48,25 @@ public class ContactsDictionary extends ExpandableDictionary {
     private static final int FREQUENCY_FOR_CONTACTS = 40;
     private static final int FREQUENCY_FOR_CONTACTS_BIGRAM = 90;
 
+    private static final int INDEX_ID = 0;
     private static final int INDEX_NAME = 1;
 
     private ContentObserver mObserver;
 
     private long mLastLoadedContacts;
 
+    // The names of the contacts the words come from, by contact id, and how many of these names
+    // each word and each bigram come from. A change to the contacts is applied by comparing the
+    // names with the new ones, so that only the words of the changed names are added or removed.
+    // Only used by the loading thread.
+    private HashMap<Long, String> mNames;
+    private final HashMap<String, Integer> mWordCounts = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mBigramCounts = new HashMap<String, Integer>();
+    // The words and bigrams removed since the last full load. They leave nodes behind in the
+    // trie, so the words are loaded again once there are more of them than there are words.
+    private int mRemovedCount;
+    private volatile boolean mCanUpdate;
+
     public ContactsDictionary(final Context context, final int dicTypeId) {
         super(context, dicTypeId);
         registerObserver(context);
@@ -85,26 +103,60 @@ public class ContactsDictionary extends ExpandableDictionary {
     @Override
     public void startDictionaryLoadingTaskLocked() {
         long now = SystemClock.uptimeMillis();
-        if (mLastLoadedContacts == 0
+        // Updating only costs as much as the changes, so it is not rate limited.
+        if (mCanUpdate || mLastLoadedContacts == 0
                 || now - mLastLoadedContacts > 30 * 60 * 1000 /* 30 minutes */) {
             super.startDictionaryLoadingTaskLocked();
         }
     }
 
+    @Override
+    protected String getSnapshotName() {
+        return "contacts_dict";
+    }
+
     @Override
     public void loadDictionaryAsync() {
-        try {
-            Cursor cursor = getContext().getContentResolver()
-                    .query(Contacts.CONTENT_URI, PROJECTION, null, null, null);
-            if (cursor != null) {
-                addWords(cursor);
+        final HashMap<Long, String> names = queryNames();
+        if (names != null) {
+            mWordCounts.clear();
+            mBigramCounts.clear();
+            mRemovedCount = 0;
+            for (final String name : names.values()) {
+                addName(name);
             }
-        } catch(IllegalStateException e) {
-            Log.e(TAG, "Contacts DB is having problems");
+            mNames = names;
         }
+        mCanUpdate = canUpdateDictionary();
         mLastLoadedContacts = SystemClock.uptimeMillis();
     }
 
+    @Override
+    protected boolean canUpdateDictionary() {
+        return mNames != null && mRemovedCount <= mWordCounts.size();
+    }
+
+    @Override
+    protected void updateDictionaryAsync() {
+        final HashMap<Long, String> names = queryNames();
+        if (names != null) {
+            // Remove the old names first, so that a word moving from a name to another one
+            // never drops to no name in between.
+            for (final Map.Entry<Long, String> entry : mNames.entrySet()) {
+                if (!entry.getValue().equals(names.get(entry.getKey()))) {
+                    removeName(entry.getValue());
+                }
+            }
+            for (final Map.Entry<Long, String> entry : names.entrySet()) {
+                if (!entry.getValue().equals(mNames.get(entry.getKey()))) {
+                    addName(entry.getValue());
+                }
+            }
+            mNames = names;
+        }
+        mCanUpdate = canUpdateDictionary();
+    }
+
     @Override
     public void getBigrams(final WordComposer codes, final CharSequence previousWord,
             final WordCallback callback) {
@@ -113,58 +165,132 @@ public class ContactsDictionary extends ExpandableDictionary {
         super.getBigrams(codes, previousWord, callback);
     }
 
-    private void addWords(Cursor cursor) {
-        clearDictionary();
-
-        final int maxWordLength = getMaxWordLength();
+    /**
+     * Returns the display names of the contacts by id, without the ones that are e-mail
+     * addresses, or null if they could not be read.
+     */
+    private HashMap<Long, String> queryNames() {
+        Cursor cursor = null;
         try {
+            cursor = getContext().getContentResolver()
+                    .query(Contacts.CONTENT_URI, PROJECTION, null, null, null);
+            if (cursor == null) return null;
+            // Keep the order of the cursor, that the words are added in by a full load.
+            final HashMap<Long, String> names =
+                    new LinkedHashMap<Long, String>(cursor.getCount());
             if (cursor.moveToFirst()) {
                 while (!cursor.isAfterLast()) {
                     String name = cursor.getString(INDEX_NAME);
-
                     if (name != null && -1 == name.indexOf('@')) {
-                        int len = name.length();
-                        String prevWord = null;
-
-                        // TODO: Better tokenization for non-Latin writing systems
-                        for (int i = 0; i < len; i++) {
-                            if (Character.isLetter(name.charAt(i))) {
-                                int j;
-                                for (j = i + 1; j < len; j++) {
-                                    char c = name.charAt(j);
-
-                                    if (!(c == Keyboard.CODE_DASH
-                                            || c == Keyboard.CODE_SINGLE_QUOTE
-                                            || Character.isLetter(c))) {
-                                        break;
-                                    }
-                                }
-
-                                String word = name.substring(i, j);
-                                i = j - 1;
-
-                                // Safeguard against adding really long words. Stack
-                                // may overflow due to recursion
-                                // Also don't add single letter words, possibly confuses
-                                // capitalization of i.
-                                final int wordLen = word.length();
-                                if (wordLen < maxWordLength && wordLen > 1) {
-                                    super.addWord(word, FREQUENCY_FOR_CONTACTS);
-                                    if (!TextUtils.isEmpty(prevWord)) {
-                                        super.setBigram(prevWord, word,
-                                                FREQUENCY_FOR_CONTACTS_BIGRAM);
-                                    }
-                                    prevWord = word;
-                                }
-                            }
-                        }
+                        names.put(cursor.getLong(INDEX_ID), name);
                     }
                     cursor.moveToNext();
                 }
             }
-            cursor.close();
+            return names;
         } catch(IllegalStateException e) {
             Log.e(TAG, "Contacts DB is having problems");
+            return null;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    private void addName(final String name) {
+        final ArrayList<String> words = getWords(name);
+        String prevWord = null;
+        for (final String word : words) {
+            if (incrementCount(mWordCounts, word) == 1) {
+                super.addWord(word, FREQUENCY_FOR_CONTACTS);
+            }
+            if (!TextUtils.isEmpty(prevWord)
+                    && incrementCount(mBigramCounts, getBigramKey(prevWord, word)) == 1) {
+                super.setBigram(prevWord, word, FREQUENCY_FOR_CONTACTS_BIGRAM);
+            }
+            prevWord = word;
+        }
+    }
+
+    private void removeName(final String name) {
+        final ArrayList<String> words = getWords(name);
+        // Remove the bigrams first, so that the words that do not have any left are removed
+        // altogether.
+        String prevWord = null;
+        for (final String word : words) {
+            if (!TextUtils.isEmpty(prevWord)
+                    && decrementCount(mBigramCounts, getBigramKey(prevWord, word)) == 0) {
+                removeBigram(prevWord, word);
+                mRemovedCount++;
+            }
+            prevWord = word;
+        }
+        for (final String word : words) {
+            if (decrementCount(mWordCounts, word) == 0) {
+                removeWord(word);
+                mRemovedCount++;
+            }
+        }
+    }
+
+    // The bigrams of the trie do not depend on the case of their first word.
+    private static String getBigramKey(final String word1, final String word2) {
+        return word1.toLowerCase() + " " + word2;
+    }
+
+    private static int incrementCount(final HashMap<String, Integer> counts, final String key) {
+        final Integer count = counts.get(key);
+        final int newCount = (count == null) ? 1 : count + 1;
+        counts.put(key, newCount);
+        return newCount;
+    }
+
+    private static int decrementCount(final HashMap<String, Integer> counts, final String key) {
+        final Integer count = counts.get(key);
+        if (count == null) return -1;
+        final int newCount = count - 1;
+        if (newCount == 0) {
+            counts.remove(key);
+        } else {
+            counts.put(key, newCount);
+        }
+        return newCount;
+    }
+
+    /**
+     * Splits the name into the words to add, in order.
+     */
+    private ArrayList<String> getWords(final String name) {
+        final ArrayList<String> words = new ArrayList<String>();
+        final int maxWordLength = getMaxWordLength();
+        int len = name.length();
+
+        // TODO: Better tokenization for non-Latin writing systems
+        for (int i = 0; i < len; i++) {
+            if (Character.isLetter(name.charAt(i))) {
+                int j;
+                for (j = i + 1; j < len; j++) {
+                    char c = name.charAt(j);
+
+                    if (!(c == Keyboard.CODE_DASH
+                            || c == Keyboard.CODE_SINGLE_QUOTE
+                            || Character.isLetter(c))) {
+                        break;
+                    }
+                }
+
+                String word = name.substring(i, j);
+                i = j - 1;
+
+                // Safeguard against adding really long words. Stack
+                // may overflow due to recursion
+                // Also don't add single letter words, possibly confuses
+                // capitalization of i.
+                final int wordLen = word.length();
+                if (wordLen < maxWordLength && wordLen > 1) {
+                    words.add(word);
+                }
+            }
         }
+        return words;
     }
 }
@@ -34,7 +34,11 @@ public abstract class Dictionary {
     protected static final int FULL_WORD_SCORE_MULTIPLIER = 2;
 
     public static enum DataType {
-        UNIGRAM, BIGRAM
+        UNIGRAM, BIGRAM,
+        /**
+         * A unigram whose score has already been boosted because it follows the previous word.
+         */
+        BOOSTED_UNIGRAM
     }
 
     /**
@@ -69,6 +73,20 @@ public abstract class Dictionary {
     abstract public void getWords(final WordComposer composer, final WordCallback callback,
             final ProximityInfo proximityInfo);
 
+    /**
+     * Searches for words like {@link #getWords(WordComposer, WordCallback, ProximityInfo)}, and
+     * may boost the score of the words that follow the previous word. The boosted words are
+     * added with {@link DataType#BOOSTED_UNIGRAM}, and the others with {@link DataType#UNIGRAM}.
+     * @param composer the key sequence to match
+     * @param previousWord the word before, or null
+     * @param callback the callback object to send matched words to as possible candidates
+     * @param proximityInfo the object for key proximity. May be ignored by some implementations.
+     */
+    public void getWords(final WordComposer composer, final CharSequence previousWord,
+            final WordCallback callback, final ProximityInfo proximityInfo) {
+        getWords(composer, callback, proximityInfo);
+    }
+
     /**
      * Searches for pairs in the bigram dictionary that matches the previous word and all the
      * possible words following are added through the callback object.
@@ -18,17 +18,39 @@ package com.android.inputmethod.latin;
 
 import com.android.inputmethod.keyboard.ProximityInfo;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Class for a collection of dictionaries that behave like one dictionary.
+ *
+ * In parallel lookup mode, the dictionaries are searched concurrently, each into its own buffer,
+ * and the buffers are then passed to the callback in the order of the dictionaries. The callback
+ * gets the same words in the same order as in sequential mode, but the lookup takes as long as
+ * the slowest dictionary instead of the sum of all of them.
  */
 public class DictionaryCollection extends Dictionary {
+    // The lookups of all the collections share these threads. The calling thread searches too,
+    // so the lookups go on even if all the threads are busy.
+    private static final int LOOKUP_THREAD_COUNT = 2;
+    private static ExecutorService sLookupExecutor;
 
     protected final List<Dictionary> mDictionaries;
+    private volatile boolean mParallelLookup;
+    // The dictionaries searched by the parallel lookup in progress, and the buffer of each of
+    // them, reused by the next lookups. Only one lookup runs at a time.
+    private Dictionary[] mLookupDictionaries = new Dictionary[0];
+    private WordBuffer[] mBuffers = new WordBuffer[0];
 
     public DictionaryCollection() {
         mDictionaries = new CopyOnWriteArrayList<Dictionary>();
@@ -48,20 +70,206 @@ public class DictionaryCollection extends Dictionary {
         mDictionaries.removeAll(Collections.singleton(null));
     }
 
+    /**
+     * Sets whether the dictionaries are searched concurrently. This is only worth it if several
+     * of them are slow to search, like binary dictionaries. The dictionaries must not be
+     * searched by another thread at the same time.
+     */
+    public void setParallelLookup(final boolean parallelLookup) {
+        mParallelLookup = parallelLookup;
+    }
+
     @Override
     public void getWords(final WordComposer composer, final WordCallback callback,
             final ProximityInfo proximityInfo) {
+        if (mParallelLookup && mDictionaries.size() > 1) {
+            runParallelLookup(new Lookup() {
+                @Override
+                public void run(final Dictionary dict, final WordCallback buffer) {
+                    dict.getWords(composer, buffer, proximityInfo);
+                }
+            }, callback);
+            return;
+        }
         for (final Dictionary dict : mDictionaries)
             dict.getWords(composer, callback, proximityInfo);
     }
 
+    @Override
+    public void getWords(final WordComposer composer, final CharSequence previousWord,
+            final WordCallback callback, final ProximityInfo proximityInfo) {
+        if (mParallelLookup && mDictionaries.size() > 1) {
+            runParallelLookup(new Lookup() {
+                @Override
+                public void run(final Dictionary dict, final WordCallback buffer) {
+                    dict.getWords(composer, previousWord, buffer, proximityInfo);
+                }
+            }, callback);
+            return;
+        }
+        for (final Dictionary dict : mDictionaries)
+            dict.getWords(composer, previousWord, callback, proximityInfo);
+    }
+
     @Override
     public void getBigrams(final WordComposer composer, final CharSequence previousWord,
             final WordCallback callback) {
+        if (mParallelLookup && mDictionaries.size() > 1) {
+            runParallelLookup(new Lookup() {
+                @Override
+                public void run(final Dictionary dict, final WordCallback buffer) {
+                    dict.getBigrams(composer, previousWord, buffer);
+                }
+            }, callback);
+            return;
+        }
         for (final Dictionary dict : mDictionaries)
             dict.getBigrams(composer, previousWord, callback);
     }
 
+    private interface Lookup {
+        public void run(Dictionary dict, WordCallback buffer);
+    }
+
+    private static synchronized ExecutorService getLookupExecutor() {
+        if (null == sLookupExecutor) {
+            sLookupExecutor = Executors.newFixedThreadPool(LOOKUP_THREAD_COUNT,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "DictionaryLookup");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sLookupExecutor;
+    }
+
+    private void runParallelLookup(final Lookup lookup, final WordCallback callback) {
+        int count = 0;
+        for (final Dictionary dict : mDictionaries) {
+            if (count == mLookupDictionaries.length) {
+                mLookupDictionaries = Arrays.copyOf(mLookupDictionaries, count + 1);
+                mBuffers = Arrays.copyOf(mBuffers, count + 1);
+                mBuffers[count] = new WordBuffer();
+            }
+            mLookupDictionaries[count] = dict;
+            mBuffers[count].clear();
+            count++;
+        }
+        final Dictionary[] dictionaries = mLookupDictionaries;
+        final WordBuffer[] buffers = mBuffers;
+        final int dictionaryCount = count;
+        // The threads take the next dictionary to search until there is none left. A searcher
+        // that only starts once this lookup is over finds none left, so it never touches the
+        // buffers of the next lookup.
+        final AtomicInteger nextIndex = new AtomicInteger(0);
+        final CountDownLatch doneSignal = new CountDownLatch(dictionaryCount);
+        // The first exception thrown by a dictionary, on any thread.
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Runnable searcher = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = nextIndex.getAndIncrement()) < dictionaryCount) {
+                    try {
+                        lookup.run(dictionaries[i], buffers[i]);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        doneSignal.countDown();
+                    }
+                }
+            }
+        };
+        final ExecutorService executor = getLookupExecutor();
+        for (int i = 1; i < Math.min(dictionaryCount, LOOKUP_THREAD_COUNT + 1); i++) {
+            try {
+                executor.execute(searcher);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        searcher.run();
+        // The other threads may still be writing to the buffers, which the next lookup reuses,
+        // so this waits for them even if interrupted.
+        boolean interrupted = false;
+        while (true) {
+            try {
+                doneSignal.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        // Don't keep the dictionaries alive.
+        Arrays.fill(dictionaries, 0, dictionaryCount, null);
+        final Throwable e = failure.get();
+        if (e instanceof RuntimeException) throw (RuntimeException)e;
+        if (e instanceof Error) throw (Error)e;
+        for (int i = 0; i < dictionaryCount; i++) {
+            buffers[i].replay(callback);
+        }
+    }
+
+    /**
+     * Holds the words found in one dictionary until they are passed to the callback.
+     */
+    private static class WordBuffer implements WordCallback {
+        private char[] mChars = new char[BinaryDictionary.MAX_WORD_LENGTH * 4];
+        private int mCharsLength;
+        // The end of each word in mChars.
+        private int[] mEnds = new int[4];
+        private int[] mScores = new int[4];
+        private int[] mDicTypeIds = new int[4];
+        private DataType[] mDataTypes = new DataType[4];
+        private int mCount;
+
+        @Override
+        public boolean addWord(final char[] word, final int wordOffset, final int wordLength,
+                final int score, final int dicTypeId, final DataType dataType) {
+            if (mCharsLength + wordLength > mChars.length) {
+                mChars = Arrays.copyOf(mChars, Math.max(mChars.length * 2,
+                        mCharsLength + wordLength));
+            }
+            if (mCount == mEnds.length) {
+                final int capacity = mCount * 2;
+                mEnds = Arrays.copyOf(mEnds, capacity);
+                mScores = Arrays.copyOf(mScores, capacity);
+                mDicTypeIds = Arrays.copyOf(mDicTypeIds, capacity);
+                mDataTypes = Arrays.copyOf(mDataTypes, capacity);
+            }
+            System.arraycopy(word, wordOffset, mChars, mCharsLength, wordLength);
+            mCharsLength += wordLength;
+            mEnds[mCount] = mCharsLength;
+            mScores[mCount] = score;
+            mDicTypeIds[mCount] = dicTypeId;
+            mDataTypes[mCount] = dataType;
+            mCount++;
+            return true;
+        }
+
+        public void clear() {
+            mCharsLength = 0;
+            mCount = 0;
+            Arrays.fill(mDataTypes, null);
+        }
+
+        public void replay(final WordCallback callback) {
+            // Like the dictionary would have, stop at the first word the callback doesn't want.
+            int start = 0;
+            for (int i = 0; i < mCount; i++) {
+                if (!callback.addWord(mChars, start, mEnds[i] - start, mScores[i],
+                        mDicTypeIds[i], mDataTypes[i])) {
+                    return;
+                }
+                start = mEnds[i];
+            }
+        }
+    }
+
     @Override
     public boolean isValidWord(CharSequence word) {
         for (int i = mDictionaries.size() - 1; i >= 0; --i)
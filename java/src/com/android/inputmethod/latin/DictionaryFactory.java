@@ -87,6 +87,37 @@ public class DictionaryFactory {
         return createDictionaryFromManager(context, locale, fallbackResId, null);
     }
 
+    /**
+     * Creates a collection with the same dictionaries as the passed collection, reading the same
+     * native dictionary buffers instead of mapping or loading them again. The new dictionaries
+     * have their own search state, so they can be used concurrently with the source ones.
+     * A dictionary that is not a binary dictionary is added as is.
+     * @param source a collection created by {@link #createDictionaryFromManager}
+     * @return a new instance of DictionaryCollection, or null if a binary dictionary of the
+     * source has been closed, and can't be shared
+     */
+    public static DictionaryCollection createDictionarySharingBuffers(
+            final DictionaryCollection source) {
+        final List<Dictionary> dictList = new LinkedList<Dictionary>();
+        for (final Dictionary dictionary : source.mDictionaries) {
+            if (dictionary instanceof BinaryDictionary) {
+                final BinaryDictionary sharingDictionary =
+                        ((BinaryDictionary)dictionary).createSharingDictionary();
+                if (null == sharingDictionary) {
+                    // Don't return a collection that silently misses a dictionary.
+                    for (final Dictionary dict : dictList) {
+                        if (dict instanceof BinaryDictionary) dict.close();
+                    }
+                    return null;
+                }
+                dictList.add(sharingDictionary);
+            } else {
+                dictList.add(dictionary);
+            }
+        }
+        return new DictionaryCollection(dictList);
+    }
+
     /**
      * Initializes a dictionary from a raw resource file
      * @param context application context for reading resources
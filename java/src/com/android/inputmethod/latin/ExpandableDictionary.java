@@ -21,7 +21,7 @@ import android.content.Context;
 import com.android.inputmethod.keyboard.Keyboard;
 import com.android.inputmethod.keyboard.ProximityInfo;
 
-import java.util.LinkedList;
+import java.util.Arrays;
 
 /**
  * Base class for an in-memory dictionary that can grow dynamically and can
@@ -29,10 +29,10 @@ import java.util.LinkedList;
  */
 public class ExpandableDictionary extends Dictionary {
     /**
-     * There is difference between what java and native code can handle.
-     * It uses 32 because Java stack overflows when greater value is used.
+     * The traversal runs on an explicit stack, so this can match what the native code handles.
      */
-    protected static final int MAX_WORD_LENGTH = 32;
+    protected static final int MAX_WORD_LENGTH = BinaryDictionary.MAX_WORD_LENGTH;
+    private static final int CODES_PER_KEY = WordComposer.CODES_PER_KEY;
 
     // Bigram frequency is a fixed point number with 1 meaning 1.2 and 255 meaning 1.8.
     protected static final int BIGRAM_MAX_FREQUENCY = 255;
@@ -43,76 +43,71 @@ public class ExpandableDictionary extends Dictionary {
     private int mMaxDepth;
     private int mInputLength;
 
-    private boolean mRequiresReload;
+    private volatile boolean mRequiresReload;
 
-    private boolean mUpdatingDictionary;
+    private volatile boolean mUpdatingDictionary;
 
-    // Use this lock before touching mUpdatingDictionary & mRequiresDownload
+    // Use this lock before changing mUpdatingDictionary & mRequiresDownload. Lookups only read
+    // them.
     private Object mUpdatingLock = new Object();
 
-    private static class Node {
-        char mCode;
-        int mFrequency;
-        boolean mTerminal;
-        Node mParent;
-        NodeArray mChildren;
-        LinkedList<NextWord> mNGrams; // Supports ngram
-    }
-
-    private static class NodeArray {
-        Node[] mData;
-        int mLength = 0;
-        private static final int INCREMENT = 2;
-
-        NodeArray() {
-            mData = new Node[INCREMENT];
-        }
-
-        void add(Node n) {
-            if (mLength + 1 > mData.length) {
-                Node[] tempData = new Node[mLength + INCREMENT];
-                if (mLength > 0) {
-                    System.arraycopy(mData, 0, tempData, 0, mLength);
-                }
-                mData = tempData;
-            }
-            mData[mLength++] = n;
-        }
-    }
-
-    private static class NextWord {
-        public final Node mWord;
-        private int mFrequency;
-
-        public NextWord(Node word, int frequency) {
-            mWord = word;
-            mFrequency = frequency;
-        }
+    // The trie that lookups search, a view of mWritableTrie. Lookups on other threads can search
+    // it without a lock while words are added: the new nodes and links are appended past the
+    // ones of the view, and each change publishes a new view here.
+    private volatile CompactTrie mTrie;
+    // The trie that the changes are made to in place. Guarded by mWriteLock.
+    private CompactTrie mWritableTrie;
+    // The trie that is being built by a reload, where words are added until it replaces
+    // mWritableTrie. Null if no reload is in progress. Guarded by mWriteLock.
+    private CompactTrie mLoadingTrie;
+    // Held while changing a trie and publishing it, so that the changes of the UI thread and of
+    // the reloads are serialized.
+    private final Object mWriteLock = new Object();
+    // Held while a reload is in progress, so that there is only one at a time.
+    private final Object mLoadingLock = new Object();
+    // Whether the words have been loaded once. Guarded by mLoadingLock.
+    private boolean mLoaded;
 
-        public int getFrequency() {
-            return mFrequency;
-        }
+    private int[] mCodes;
 
-        public int setFrequency(int freq) {
-            mFrequency = freq;
-            return mFrequency;
-        }
+    // The traversal frontiers of the last lookup, kept so that the next lookup only has to match
+    // the input positions that changed. A frame is a node whose children are to be matched
+    // against an input position, stored as FRAME_SIZE consecutive ints.
+    private static final int FRAME_NODE = 0;
+    // The depth of the children of the node, that is the length of the word at the node.
+    private static final int FRAME_DEPTH = 1;
+    private static final int FRAME_SNR = 2;
+    // The skip position the node has been reached with, or one of the VARIANT_* values.
+    private static final int FRAME_VARIANT = 3;
+    private static final int FRAME_SIZE = 4;
+    // The node has been reached without skipping, matching all the input alternatives.
+    private static final int VARIANT_ALL_ALTERNATIVES = -1;
+    // The node has been reached matching only the primary codes and without skipping a character
+    // yet. It stands for all the skip positions at or after its depth.
+    private static final int VARIANT_NOT_SKIPPED_YET = -2;
+    private static final int INITIAL_FRAME_CAPACITY = 64 * FRAME_SIZE;
 
-        public int addFrequency(int add) {
-            mFrequency += add;
-            if (mFrequency > BIGRAM_MAX_FREQUENCY) mFrequency = BIGRAM_MAX_FREQUENCY;
-            return mFrequency;
-        }
-    }
+    // The frontier of input position i holds the frames of the nodes reached by matching the
+    // first i input positions. It is [mFrontierStart[i], mFrontierStart[i + 1]) in mFrames.
+    private int[] mFrames = new int[INITIAL_FRAME_CAPACITY];
+    private int mFramesEnd;
+    private final int[] mFrontierStart = new int[MAX_WORD_LENGTH + 2];
+    private int mFrontierCount;
+    // The frames that are matched against the same input position as their parent: skipped
+    // apostrophes and skipped characters.
+    private int[] mPendingFrames = new int[INITIAL_FRAME_CAPACITY];
+    private int mPendingFramesEnd;
+    // The input and the trie the frontiers have been computed from. The latter is also the trie
+    // the lookup in progress searches, even if mTrie is replaced in the meantime.
+    private final int[] mFrontierCodes = new int[MAX_WORD_LENGTH * CODES_PER_KEY];
+    private CompactTrie mFrontierTrie;
 
-    private NodeArray mRoots;
-
-    private int[][] mCodes;
+    // The explicit stack of the completion traversal: the child being looked at for each depth.
+    private final int[] mCompletionStack = new int[MAX_WORD_LENGTH];
 
     public ExpandableDictionary(Context context, int dicTypeId) {
         mContext = context;
         clearDictionary();
-        mCodes = new int[MAX_WORD_LENGTH][];
         mDicTypeId = dicTypeId;
     }
 
@@ -140,11 +135,124 @@ public class ExpandableDictionary extends Dictionary {
         return mRequiresReload;
     }
 
-    /** Override to load your dictionary here, on a background thread. */
+    /**
+     * Override to load your dictionary here, on a background thread. The words are added to a
+     * new trie, that replaces the current one when this returns, so all the words have to be
+     * added again.
+     */
     public void loadDictionaryAsync() {
         // empty base implementation
     }
 
+    /**
+     * Override to return true when the changes to the words can be applied to the current ones,
+     * by {@link #updateDictionaryAsync}, instead of loading them all again.
+     */
+    protected boolean canUpdateDictionary() {
+        return false;
+    }
+
+    /**
+     * Override to apply the changes to the words here, on a background thread, if
+     * {@link #canUpdateDictionary} returns true. The changes are made to a copy of the current
+     * trie, that replaces it when this returns.
+     */
+    protected void updateDictionaryAsync() {
+        // empty base implementation
+    }
+
+    /**
+     * Override to keep a snapshot of the words in the private files of the application, under
+     * this name. The snapshot is searched while the words are loaded for the first time, and it
+     * is written again after each full load. It is not written after the words are updated by
+     * {@link #updateDictionaryAsync}, since the next full load writes the changes anyway.
+     * @return the name of the snapshot, unique to the words of this dictionary, or null to not
+     * keep a snapshot
+     */
+    protected String getSnapshotName() {
+        return null;
+    }
+
+    /**
+     * Runs {@link #loadDictionaryAsync}, or {@link #updateDictionaryAsync} if the words can be
+     * updated, on the calling thread, and replaces the current words with the loaded ones once it
+     * is done. Lookups go on with the current words in the meantime. If the loading fails with an
+     * exception, the current words are kept.
+     */
+    protected final void loadDictionarySynchronously() {
+        synchronized (mLoadingLock) {
+            final String snapshotName = getSnapshotName();
+            final TrieSnapshot snapshot = (snapshotName == null) ? null
+                    : new TrieSnapshot(mContext.getFilesDir(), snapshotName);
+            final boolean update = canUpdateDictionary();
+            synchronized (mWriteLock) {
+                // The changes go to the loading trie from now on.
+                mLoadingTrie = update ? new CompactTrie(mWritableTrie) : new CompactTrie();
+            }
+            boolean loaded = false;
+            try {
+                if (!mLoaded && snapshot != null) {
+                    // Search the words of the last run until they have been loaded again.
+                    final CompactTrie snapshotTrie = snapshot.read();
+                    if (snapshotTrie != null) {
+                        synchronized (mWriteLock) {
+                            setWritableTrieLocked(snapshotTrie);
+                        }
+                    }
+                }
+                if (update) {
+                    updateDictionaryAsync();
+                } else {
+                    loadDictionaryAsync();
+                }
+                loaded = true;
+            } finally {
+                synchronized (mWriteLock) {
+                    final CompactTrie loadingTrie = mLoadingTrie;
+                    mLoadingTrie = null;
+                    if (loaded) setWritableTrieLocked(loadingTrie);
+                }
+            }
+            mLoaded = true;
+            // Updates are meant to be cheap: don't rewrite the whole snapshot for them.
+            if (snapshot != null && !update) snapshot.write(mTrie);
+        }
+    }
+
+    /**
+     * Returns the trie that words are added to: the one being built if a reload is in progress,
+     * or else the one that is searched. The changes to the latter are made visible to lookups by
+     * {@link #publishChangesLocked}. Must be called with mWriteLock held.
+     */
+    private CompactTrie getWritableTrieLocked() {
+        return (mLoadingTrie != null) ? mLoadingTrie : mWritableTrie;
+    }
+
+    /**
+     * Publishes a new view of the trie that words are added to, unless a reload is in progress.
+     * Must be called with mWriteLock held.
+     */
+    private void publishChangesLocked() {
+        if (mLoadingTrie == null) mTrie = mWritableTrie.createView();
+    }
+
+    /**
+     * Replaces the trie that words are added to, and publishes it to lookups unless a reload is
+     * in progress. Must be called with mWriteLock held.
+     */
+    private void replaceWritableTrieLocked(final CompactTrie trie) {
+        if (mLoadingTrie != null) {
+            mLoadingTrie = trie;
+        } else {
+            setWritableTrieLocked(trie);
+        }
+    }
+
+    private void setWritableTrieLocked(final CompactTrie trie) {
+        mWritableTrie = trie;
+        mTrie = trie.createView();
+    }
+
     public Context getContext() {
         return mContext;
     }
@@ -154,77 +262,336 @@ public class ExpandableDictionary extends Dictionary {
     }
 
     public void addWord(String word, int frequency) {
-        addWordRec(mRoots, word, 0, frequency, null);
-    }
-
-    private void addWordRec(NodeArray children, final String word, final int depth,
-            final int frequency, Node parentNode) {
         final int wordLength = word.length();
-        if (wordLength <= depth) return;
-        final char c = word.charAt(depth);
-        // Does children have the current character?
-        final int childrenLength = children.mLength;
-        Node childNode = null;
-        for (int i = 0; i < childrenLength; i++) {
-            final Node node = children.mData[i];
-            if (node.mCode == c) {
-                childNode = node;
-                break;
-            }
-        }
-        if (childNode == null) {
-            childNode = new Node();
-            childNode.mCode = c;
-            childNode.mParent = parentNode;
-            children.add(childNode);
-        }
-        if (wordLength == depth + 1) {
+        if (wordLength == 0) return;
+        synchronized (mWriteLock) {
+            final CompactTrie trie = getWritableTrieLocked();
+            final int node = trie.insert(word, wordLength);
             // Terminate this word
-            childNode.mTerminal = true;
-            childNode.mFrequency = Math.max(frequency, childNode.mFrequency);
-            if (childNode.mFrequency > 255) childNode.mFrequency = 255;
-            return;
+            int newFrequency = Math.max(frequency, trie.getFrequency(node));
+            if (newFrequency > 255) newFrequency = 255;
+            // A word is terminal even if its frequency is 0 or less.
+            trie.setFrequency(node, Math.max(newFrequency, 0));
+            publishChangesLocked();
         }
-        if (childNode.mChildren == null) {
-            childNode.mChildren = new NodeArray();
+    }
+
+    /**
+     * Removes the word, so that lookups do not return it anymore. If it still has bigrams, it
+     * stays with a frequency of 0 so that they are kept, like the words added by
+     * {@link #setBigram}.
+     */
+    protected void removeWord(String word) {
+        synchronized (mWriteLock) {
+            final CompactTrie trie = getWritableTrieLocked();
+            final int node = trie.search(word, word.length());
+            if (node == CompactTrie.NOT_A_NODE) return;
+            trie.setFrequency(node, (trie.getFirstLink(node) != CompactTrie.NOT_A_LINK)
+                    ? 0 : CompactTrie.NOT_A_FREQUENCY);
+            publishChangesLocked();
         }
-        addWordRec(childNode.mChildren, word, depth + 1, frequency, childNode);
     }
 
     @Override
     public void getWords(final WordComposer codes, final WordCallback callback,
             final ProximityInfo proximityInfo) {
-        synchronized (mUpdatingLock) {
-            // If we need to update, start off a background task
-            if (mRequiresReload) startDictionaryLoadingTaskLocked();
-            // Currently updating contacts, don't return any results.
-            if (mUpdatingDictionary) return;
-        }
+        // If we need to update, start off a background task. The current words are searched
+        // until it is done.
+        reloadDictionaryIfRequired();
         getWordsInner(codes, callback, proximityInfo);
     }
 
+    /**
+     * Looks up the words that match the input. Input consists of a list of arrays. Each item in
+     * the list is one input character position. An input character is actually an array of
+     * multiple possible candidates.
+     *
+     * The words are looked up once with all the candidates, and once for each input position with
+     * only the first candidate, supposing that a character is missing in the input at that
+     * position. The matching walks the trie one input position at a time, from the frontier of
+     * nodes reached with the previous positions. The position in the input can be off from the
+     * depth in the trie in case we skip over some punctuations such as apostrophe in the
+     * traversal. That is, if you type "wouldve", it could be matching "would've", so the depth
+     * will be one more than the input index. Once the input is exhausted, all the words under the
+     * reached nodes are completions.
+     */
+    // TODO: Share this routine with the native code for BinaryDictionary
     protected final void getWordsInner(final WordComposer codes, final WordCallback callback,
             @SuppressWarnings("unused") final ProximityInfo proximityInfo) {
         mInputLength = codes.size();
-        if (mCodes.length < mInputLength) mCodes = new int[mInputLength][];
-        // Cache the codes so that we don't have to lookup an array list
-        for (int i = 0; i < mInputLength; i++) {
-            mCodes[i] = codes.getCodesAt(i);
-        }
+        // No word in this dictionary can match more input than it has characters.
+        if (mInputLength > MAX_WORD_LENGTH) return;
+        mCodes = codes.getCodes();
         mMaxDepth = mInputLength * 3;
-        getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
-        for (int i = 0; i < mInputLength; i++) {
-            getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, i, callback);
+
+        // The frontier of position i only depends on the first i input positions, so the
+        // frontiers of the last lookup are still valid up to the first position that differs:
+        // typing a letter reuses all of them, and deleting one rolls back to an earlier one.
+        final CompactTrie trie = mTrie;
+        int validFrontierCount = getValidFrontierCount(trie);
+        if (validFrontierCount == 0) {
+            resetFrontiers(trie);
+            validFrontierCount = 1;
+        }
+        // The last position is always matched again, because that's where the words are found.
+        final int firstInputIndex = Math.max(0,
+                Math.min(validFrontierCount - 1, mInputLength - 1));
+        for (int i = firstInputIndex; i < mInputLength; i++) {
+            expandFrontier(i, codes, callback);
+        }
+        // The nodes that matched the whole input lead to the completions.
+        final int end = mFrontierStart[mInputLength + 1];
+        for (int f = mFrontierStart[mInputLength]; f < end; f += FRAME_SIZE) {
+            final int[] frames = mFrames;
+            if (!addCompletions(frames[f + FRAME_NODE], frames[f + FRAME_DEPTH],
+                    frames[f + FRAME_SNR], frames[f + FRAME_VARIANT], callback)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of frontiers of the last lookup that can be reused for the current input.
+     */
+    private int getValidFrontierCount(final CompactTrie trie) {
+        // Nodes are never removed from a trie, but a new node may be a child of a node that has
+        // already been expanded. A new view of the same nodes only has new frequencies or links,
+        // that are read from it when the words are found.
+        if (mFrontierTrie == null || !mFrontierTrie.hasSameNodes(trie)) return 0;
+        if (mFrontierCount == 0) return 0;
+        mFrontierTrie = trie;
+        int count = 1;
+        while (count < mFrontierCount && count <= mInputLength
+                && isSameInputPosition(count - 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private boolean isSameInputPosition(final int inputIndex) {
+        final int[] codes = mCodes;
+        final int[] frontierCodes = mFrontierCodes;
+        final int end = (inputIndex + 1) * CODES_PER_KEY;
+        for (int i = inputIndex * CODES_PER_KEY; i < end; i++) {
+            if (codes[i] != frontierCodes[i]) return false;
+        }
+        return true;
+    }
+
+    private void resetFrontiers(final CompactTrie trie) {
+        mFrontierTrie = trie;
+        mFramesEnd = 0;
+        mFrontierStart[0] = 0;
+        appendFrame(CompactTrie.ROOT, 0, 1, VARIANT_ALL_ALTERNATIVES);
+        appendFrame(CompactTrie.ROOT, 0, 1, VARIANT_NOT_SKIPPED_YET);
+        mFrontierStart[1] = mFramesEnd;
+        mFrontierCount = 1;
+    }
+
+    private void appendFrame(final int node, final int depth, final int snr, final int variant) {
+        if (mFramesEnd == mFrames.length) {
+            mFrames = Arrays.copyOf(mFrames, mFrames.length * 2);
+        }
+        final int[] frames = mFrames;
+        final int f = mFramesEnd;
+        frames[f + FRAME_NODE] = node;
+        frames[f + FRAME_DEPTH] = depth;
+        frames[f + FRAME_SNR] = snr;
+        frames[f + FRAME_VARIANT] = variant;
+        mFramesEnd = f + FRAME_SIZE;
+    }
+
+    private void pushPendingFrame(final int node, final int depth, final int snr,
+            final int variant) {
+        if (mPendingFramesEnd == mPendingFrames.length) {
+            mPendingFrames = Arrays.copyOf(mPendingFrames, mPendingFrames.length * 2);
+        }
+        final int[] frames = mPendingFrames;
+        final int f = mPendingFramesEnd;
+        frames[f + FRAME_NODE] = node;
+        frames[f + FRAME_DEPTH] = depth;
+        frames[f + FRAME_SNR] = snr;
+        frames[f + FRAME_VARIANT] = variant;
+        mPendingFramesEnd = f + FRAME_SIZE;
+    }
+
+    /**
+     * Matches the frontier of the input position against the codes at that position, which
+     * builds the frontier of the next position. On the last position, this also reports the words
+     * that match the whole input.
+     */
+    private void expandFrontier(final int inputIndex, final WordComposer codes,
+            final WordCallback callback) {
+        System.arraycopy(mCodes, inputIndex * CODES_PER_KEY, mFrontierCodes,
+                inputIndex * CODES_PER_KEY, CODES_PER_KEY);
+
+        final int start = mFrontierStart[inputIndex];
+        final int end = mFrontierStart[inputIndex + 1];
+        // The frontiers of the following positions are built again.
+        mFramesEnd = end;
+        mPendingFramesEnd = 0;
+        for (int f = start; f < end; f += FRAME_SIZE) {
+            final int[] frames = mFrames;
+            expandFrame(frames[f + FRAME_NODE], frames[f + FRAME_DEPTH], frames[f + FRAME_SNR],
+                    frames[f + FRAME_VARIANT], inputIndex, codes, callback);
+        }
+        while (mPendingFramesEnd > 0) {
+            mPendingFramesEnd -= FRAME_SIZE;
+            final int[] frames = mPendingFrames;
+            final int f = mPendingFramesEnd;
+            expandFrame(frames[f + FRAME_NODE], frames[f + FRAME_DEPTH], frames[f + FRAME_SNR],
+                    frames[f + FRAME_VARIANT], inputIndex, codes, callback);
+        }
+        mFrontierStart[inputIndex + 2] = mFramesEnd;
+        mFrontierCount = inputIndex + 2;
+    }
+
+    /**
+     * Matches the children of a node against the input position.
+     *
+     * The frames are kept regardless of the depth limit of the current input length, because they
+     * are reused for longer input. Words are only reported from frames within the limit.
+     */
+    private void expandFrame(final int parent, final int depth, final int snr, final int variant,
+            final int inputIndex, final WordComposer codes, final WordCallback callback) {
+        final CompactTrie trie = mFrontierTrie;
+        final int[] currentChars = mCodes;
+        final int offset = inputIndex * CODES_PER_KEY;
+        final boolean reportsWords = inputIndex == mInputLength - 1
+                && depth <= Math.min(mMaxDepth, MAX_WORD_LENGTH - 1);
+        final boolean canDescend = depth + 1 < MAX_WORD_LENGTH;
+        // Don't use alternatives if we're looking for missing characters
+        final int alternativesSize = (variant == VARIANT_ALL_ALTERNATIVES)
+                ? CODES_PER_KEY : 1;
+        for (int child = trie.getFirstChild(parent); child != CompactTrie.NOT_A_NODE;
+                child = trie.getNextSibling(child)) {
+            final char c = trie.getCode(child);
+            final boolean hasChildren = canDescend
+                    && trie.getFirstChild(child) != CompactTrie.NOT_A_NODE;
+            if (variant == VARIANT_NOT_SKIPPED_YET && hasChildren) {
+                // The lookup that skips the character at this depth.
+                pushPendingFrame(child, depth + 1, snr, depth);
+            }
+            if (c == Keyboard.CODE_SINGLE_QUOTE
+                    && currentChars[offset] != Keyboard.CODE_SINGLE_QUOTE) {
+                // Skip the ' and continue deeper
+                if (hasChildren) pushPendingFrame(child, depth + 1, snr, variant);
+                continue;
+            }
+            final char lowerC = toLowerCase(c);
+            for (int j = 0; j < alternativesSize; j++) {
+                final int currentChar = currentChars[offset + j];
+                if (currentChar == -1) break;
+                if (currentChar != lowerC && currentChar != c) continue;
+                final int addedAttenuation = (j > 0 ? 1 : 2);
+                if (reportsWords && trie.isTerminal(child)) {
+                    addFullWord(parent, depth, child, snr * addedAttenuation, variant, codes,
+                            callback);
+                }
+                if (hasChildren) {
+                    appendFrame(child, depth + 1, snr * addedAttenuation, variant);
+                }
+            }
+        }
+    }
+
+    private void addFullWord(final int parent, final int depth, final int node, final int snr,
+            final int variant, final WordComposer codes, final WordCallback callback) {
+        final int count = getLookupCount(variant, depth + 1);
+        if (count == 0) return;
+        final char[] word = mWordBuilder;
+        copyWord(parent, depth, word);
+        word[depth] = mFrontierTrie.getCode(node);
+        if (!INCLUDE_TYPED_WORD_IF_VALID && same(word, depth + 1, codes.getTypedWord())) return;
+        final int freq = mFrontierTrie.getFrequency(node);
+        final int finalFreq;
+        if (variant == VARIANT_ALL_ALTERNATIVES) {
+            finalFreq = freq * snr * FULL_WORD_SCORE_MULTIPLIER;
+        } else {
+            finalFreq = computeSkippedWordFinalFreq(freq, snr, mInputLength);
+        }
+        for (int i = 0; i < count; i++) {
+            callback.addWord(word, 0, depth + 1, finalFreq, mDicTypeId, DataType.UNIGRAM);
+        }
+    }
+
+    /**
+     * Reports all the words under a node that matched the whole input.
+     * @return false if the callback doesn't want any more words.
+     */
+    private boolean addCompletions(final int node, final int depth, final int snr,
+            final int variant, final WordCallback callback) {
+        final int count = getLookupCount(variant, depth);
+        // Optimization: Prune out words that are too long compared to how much was typed.
+        final int maxDepth = Math.min(mMaxDepth, MAX_WORD_LENGTH - 1);
+        if (count == 0 || depth > maxDepth) return true;
+        final CompactTrie trie = mFrontierTrie;
+        final char[] word = mWordBuilder;
+        final int[] stack = mCompletionStack;
+        copyWord(node, depth, word);
+        int d = depth;
+        stack[d] = trie.getFirstChild(node);
+        while (d >= depth) {
+            final int child = stack[d];
+            if (child == CompactTrie.NOT_A_NODE) {
+                // All the children of this level have been looked at.
+                --d;
+                continue;
+            }
+            stack[d] = trie.getNextSibling(child);
+            word[d] = trie.getCode(child);
+            if (trie.isTerminal(child)) {
+                final int freq = trie.getFrequency(child);
+                final int finalFreq;
+                if (variant == VARIANT_ALL_ALTERNATIVES) {
+                    finalFreq = freq * snr;
+                } else {
+                    finalFreq = computeSkippedWordFinalFreq(freq, snr, mInputLength);
+                }
+                boolean wantsMore = true;
+                for (int i = 0; i < count && wantsMore; i++) {
+                    wantsMore = callback.addWord(word, 0, d + 1, finalFreq, mDicTypeId,
+                            DataType.UNIGRAM);
+                }
+                if (!wantsMore) {
+                    // No more words are needed from this level.
+                    if (d == depth) return false;
+                    --d;
+                    continue;
+                }
+            }
+            final int firstChild = trie.getFirstChild(child);
+            if (firstChild != CompactTrie.NOT_A_NODE && d < maxDepth) {
+                stack[++d] = firstChild;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns how many of the lookups of the current input report the words found through a node
+     * at this depth: a word that can be found with any of several skip positions is reported once
+     * for each of them.
+     */
+    private int getLookupCount(final int variant, final int depth) {
+        if (variant == VARIANT_ALL_ALTERNATIVES) return 1;
+        if (variant == VARIANT_NOT_SKIPPED_YET) return Math.max(0, mInputLength - depth);
+        return variant < mInputLength ? 1 : 0;
+    }
+
+    private void copyWord(final int node, final int length, final char[] word) {
+        final CompactTrie trie = mFrontierTrie;
+        int n = node;
+        for (int i = length - 1; i >= 0; i--) {
+            word[i] = trie.getCode(n);
+            n = trie.getParent(n);
         }
     }
 
     @Override
     public synchronized boolean isValidWord(CharSequence word) {
-        synchronized (mUpdatingLock) {
-            // If we need to update, start off a background task
-            if (mRequiresReload) startDictionaryLoadingTaskLocked();
-            if (mUpdatingDictionary) return false;
-        }
+        // If we need to update, start off a background task
+        reloadDictionaryIfRequired();
         return getWordFrequency(word) > -1;
     }
 
@@ -233,8 +600,9 @@ public class ExpandableDictionary extends Dictionary {
      */
     protected int getWordFrequency(CharSequence word) {
         // Case-sensitive search
-        Node node = searchNode(mRoots, word, 0, word.length());
-        return (node == null) ? -1 : node.mFrequency;
+        final CompactTrie trie = mTrie;
+        final int node = trie.search(word, word.length());
+        return (node == CompactTrie.NOT_A_NODE) ? -1 : trie.getFrequency(node);
     }
 
     private static int computeSkippedWordFinalFreq(int freq, int snr, int inputLength) {
@@ -247,220 +615,244 @@ public class ExpandableDictionary extends Dictionary {
         }
     }
 
+    protected int setBigram(String word1, String word2, int frequency) {
+        return addOrSetBigram(word1, word2, frequency, false, getBigramTime());
+    }
+
     /**
-     * Recursively traverse the tree for words that match the input. Input consists of
-     * a list of arrays. Each item in the list is one input character position. An input
-     * character is actually an array of multiple possible candidates. This function is not
-     * optimized for speed, assuming that the user dictionary will only be a few hundred words in
-     * size.
-     * @param roots node whose children have to be search for matches
-     * @param codes the input character codes
-     * @param word the word being composed as a possible match
-     * @param depth the depth of traversal - the length of the word being composed thus far
-     * @param completion whether the traversal is now in completion mode - meaning that we've
-     * exhausted the input and we're looking for all possible suffixes.
-     * @param snr current weight of the word being formed
-     * @param inputIndex position in the input characters. This can be off from the depth in
-     * case we skip over some punctuations such as apostrophe in the traversal. That is, if you type
-     * "wouldve", it could be matching "would've", so the depth will be one more than the
-     * inputIndex
-     * @param callback the callback class for adding a word
+     * Sets the frequency of a bigram as it was at the given time, see {@link #getBigramTime}.
      */
-    // TODO: Share this routine with the native code for BinaryDictionary
-    protected void getWordsRec(NodeArray roots, final WordComposer codes, final char[] word,
-            final int depth, final boolean completion, int snr, int inputIndex, int skipPos,
-            WordCallback callback) {
-        final int count = roots.mLength;
-        final int codeSize = mInputLength;
-        // Optimization: Prune out words that are too long compared to how much was typed.
-        if (depth > mMaxDepth) {
-            return;
-        }
-        final int[] currentChars;
-        if (codeSize <= inputIndex) {
-            currentChars = null;
-        } else {
-            currentChars = mCodes[inputIndex];
-        }
+    protected int setBigram(String word1, String word2, int frequency, int time) {
+        return addOrSetBigram(word1, word2, frequency, false, time);
+    }
 
-        for (int i = 0; i < count; i++) {
-            final Node node = roots.mData[i];
-            final char c = node.mCode;
-            final char lowerC = toLowerCase(c);
-            final boolean terminal = node.mTerminal;
-            final NodeArray children = node.mChildren;
-            final int freq = node.mFrequency;
-            if (completion || currentChars == null) {
-                word[depth] = c;
-                if (terminal) {
-                    final int finalFreq;
-                    if (skipPos < 0) {
-                        finalFreq = freq * snr;
-                    } else {
-                        finalFreq = computeSkippedWordFinalFreq(freq, snr, mInputLength);
-                    }
-                    if (!callback.addWord(word, 0, depth + 1, finalFreq, mDicTypeId,
-                            DataType.UNIGRAM)) {
-                        return;
-                    }
-                }
-                if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, true, snr, inputIndex,
-                            skipPos, callback);
-                }
-            } else if ((c == Keyboard.CODE_SINGLE_QUOTE
-                    && currentChars[0] != Keyboard.CODE_SINGLE_QUOTE) || depth == skipPos) {
-                // Skip the ' and continue deeper
-                word[depth] = c;
-                if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex,
-                            skipPos, callback);
-                }
-            } else {
-                // Don't use alternatives if we're looking for missing characters
-                final int alternativesSize = skipPos >= 0? 1 : currentChars.length;
-                for (int j = 0; j < alternativesSize; j++) {
-                    final int addedAttenuation = (j > 0 ? 1 : 2);
-                    final int currentChar = currentChars[j];
-                    if (currentChar == -1) {
-                        break;
-                    }
-                    if (currentChar == lowerC || currentChar == c) {
-                        word[depth] = c;
-
-                        if (codeSize == inputIndex + 1) {
-                            if (terminal) {
-                                if (INCLUDE_TYPED_WORD_IF_VALID
-                                        || !same(word, depth + 1, codes.getTypedWord())) {
-                                    final int finalFreq;
-                                    if (skipPos < 0) {
-                                        finalFreq = freq * snr * addedAttenuation
-                                                * FULL_WORD_SCORE_MULTIPLIER;
-                                    } else {
-                                        finalFreq = computeSkippedWordFinalFreq(freq,
-                                                snr * addedAttenuation, mInputLength);
-                                    }
-                                    callback.addWord(word, 0, depth + 1, finalFreq, mDicTypeId,
-                                            DataType.UNIGRAM);
-                                }
-                            }
-                            if (children != null) {
-                                getWordsRec(children, codes, word, depth + 1,
-                                        true, snr * addedAttenuation, inputIndex + 1,
-                                        skipPos, callback);
-                            }
-                        } else if (children != null) {
-                            getWordsRec(children, codes, word, depth + 1,
-                                    false, snr * addedAttenuation, inputIndex + 1,
-                                    skipPos, callback);
-                        }
-                    }
-                }
-            }
-        }
+    protected int addBigram(String word1, String word2, int frequency) {
+        return addOrSetBigram(word1, word2, frequency, true, getBigramTime());
     }
 
-    protected int setBigram(String word1, String word2, int frequency) {
-        return addOrSetBigram(word1, word2, frequency, false);
+    /**
+     * Override to make the frequency of the bigrams decay over time. The time is recorded when a
+     * bigram is set or added to, and passed to {@link #decayBigramFrequency} later on.
+     * @return the current time, in the unit of the subclass
+     */
+    protected int getBigramTime() {
+        return 0;
     }
 
-    protected int addBigram(String word1, String word2, int frequency) {
-        return addOrSetBigram(word1, word2, frequency, true);
+    /**
+     * Override to make the frequency of the bigrams decay over time.
+     * @param frequency the frequency of the bigram at the time it was last updated
+     * @param time the time the bigram was last updated at
+     * @param now the current time
+     * @return the frequency of the bigram now
+     */
+    protected int decayBigramFrequency(int frequency, int time, int now) {
+        return frequency;
     }
 
     /**
      * Adds bigrams to the in-memory trie structure that is being used to retrieve any word
      * @param frequency frequency for this bigram
      * @param addFrequency if true, it adds to current frequency, else it overwrites the old value
+     * @param time the time of the update
      * @return returns the final frequency
      */
-    private int addOrSetBigram(String word1, String word2, int frequency, boolean addFrequency) {
+    private int addOrSetBigram(String word1, String word2, int frequency, boolean addFrequency,
+            int time) {
         // We don't want results to be different according to case of the looked up left hand side
         // word. We do want however to return the correct case for the right hand side.
         // So we want to squash the case of the left hand side, and preserve that of the right
         // hand side word.
-        Node firstWord = searchWord(mRoots, word1.toLowerCase(), 0, null);
-        Node secondWord = searchWord(mRoots, word2, 0, null);
-        LinkedList<NextWord> bigram = firstWord.mNGrams;
-        if (bigram == null || bigram.size() == 0) {
-            firstWord.mNGrams = new LinkedList<NextWord>();
-            bigram = firstWord.mNGrams;
-        } else {
-            for (NextWord nw : bigram) {
-                if (nw.mWord == secondWord) {
-                    if (addFrequency) {
-                        return nw.addFrequency(frequency);
-                    } else {
-                        return nw.setFrequency(frequency);
-                    }
+        synchronized (mWriteLock) {
+            final CompactTrie trie = getWritableTrieLocked();
+            final int firstWord = searchWord(trie, word1.toLowerCase());
+            final int secondWord = searchWord(trie, word2);
+            final int link = trie.findLink(firstWord, secondWord);
+            final int newFrequency;
+            if (link == CompactTrie.NOT_A_LINK) {
+                trie.setLinkTime(trie.addLink(firstWord, secondWord, frequency), time);
+                newFrequency = frequency;
+            } else {
+                if (addFrequency) {
+                    final int oldFrequency = decayBigramFrequency(trie.getLinkFrequency(link),
+                            trie.getLinkTime(link), time);
+                    newFrequency = Math.min(oldFrequency + frequency, BIGRAM_MAX_FREQUENCY);
+                } else {
+                    newFrequency = frequency;
                 }
+                trie.setLinkFrequency(link, newFrequency);
+                trie.setLinkTime(link, time);
             }
+            publishChangesLocked();
+            return newFrequency;
         }
-        firstWord.mNGrams.add(new NextWord(secondWord, frequency));
-        return frequency;
     }
 
     /**
-     * Searches for the word and add the word if it does not exist.
-     * @return Returns the terminal node of the word we are searching for.
+     * Removes the bigram, if both of its words are still in the dictionary.
      */
-    private Node searchWord(NodeArray children, String word, int depth, Node parentNode) {
-        final int wordLength = word.length();
-        final char c = word.charAt(depth);
-        // Does children have the current character?
-        final int childrenLength = children.mLength;
-        Node childNode = null;
-        for (int i = 0; i < childrenLength; i++) {
-            final Node node = children.mData[i];
-            if (node.mCode == c) {
-                childNode = node;
-                break;
+    protected void removeBigram(String word1, String word2) {
+        final String lowerCaseWord1 = word1.toLowerCase();
+        synchronized (mWriteLock) {
+            final CompactTrie trie = getWritableTrieLocked();
+            final int firstWord = trie.search(lowerCaseWord1, lowerCaseWord1.length());
+            final int secondWord = trie.search(word2, word2.length());
+            if (firstWord == CompactTrie.NOT_A_NODE || secondWord == CompactTrie.NOT_A_NODE) {
+                return;
             }
+            // Lookups that are in the removed link go on from where it pointed.
+            if (trie.removeLink(firstWord, secondWord)) publishChangesLocked();
         }
-        if (childNode == null) {
-            childNode = new Node();
-            childNode.mCode = c;
-            childNode.mParent = parentNode;
-            children.add(childNode);
+    }
+
+    /**
+     * Returns the number of bigrams, not counting the removed ones.
+     */
+    protected int getBigramCount() {
+        synchronized (mWriteLock) {
+            return getWritableTrieLocked().getChainedLinkCount();
         }
-        if (wordLength == depth + 1) {
-            // Terminate this word
-            childNode.mTerminal = true;
-            return childNode;
+    }
+
+    /**
+     * Keeps the maxCount bigrams with the highest decayed frequency, and the most recent ones
+     * among equal frequencies. The trie is rebuilt without the evicted bigrams, and without the
+     * words that were only there for them, so that their memory is reclaimed.
+     */
+    protected void retainBigrams(int maxCount) {
+        synchronized (mWriteLock) {
+            retainBigramsLocked(maxCount);
+        }
+    }
+
+    private void retainBigramsLocked(int maxCount) {
+        // The trie is only read: the kept bigrams are copied to a new one.
+        final CompactTrie trie = getWritableTrieLocked();
+        final int chainedLinkCount = trie.getChainedLinkCount();
+        if (chainedLinkCount <= maxCount) return;
+        final int linkCount = trie.getLinkCount();
+        final int nodeCount = trie.getNodeCount();
+        final int now = getBigramTime();
+        // Rank the links by decayed frequency, then by time, in a long so that they sort
+        // without allocating per link. The slots of the removed links are not ranked.
+        final long[] ranks = new long[linkCount];
+        final long[] sortedRanks = new long[chainedLinkCount];
+        int rankCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            for (int link = trie.getFirstLink(node); link != CompactTrie.NOT_A_LINK;
+                    link = trie.getNextLink(link)) {
+                final int time = trie.getLinkTime(link);
+                final int frequency = decayBigramFrequency(trie.getLinkFrequency(link), time,
+                        now);
+                ranks[link] = ((long)frequency << 32) | (time & 0xFFFFFFFFL);
+                sortedRanks[rankCount++] = ranks[link];
+            }
+        }
+        Arrays.sort(sortedRanks);
+        final int keptCount = Math.max(0, maxCount);
+        // Only the links ranked at least as high as this are kept.
+        final long minRank = (keptCount == 0) ? Long.MAX_VALUE
+                : sortedRanks[chainedLinkCount - keptCount];
+        int minRankQuota = 0;
+        for (int i = chainedLinkCount - keptCount;
+                i < chainedLinkCount && sortedRanks[i] == minRank; i++) {
+            minRankQuota++;
+        }
+
+        // Keep the words with a frequency of their own, the ends of the kept links, and all the
+        // nodes above them.
+        final boolean[] keptNodes = new boolean[nodeCount];
+        final boolean[] keptLinks = new boolean[linkCount];
+        for (int node = 0; node < nodeCount; node++) {
+            if (trie.getFrequency(node) > 0) keptNodes[node] = true;
+            for (int link = trie.getFirstLink(node); link != CompactTrie.NOT_A_LINK;
+                    link = trie.getNextLink(link)) {
+                final long rank = ranks[link];
+                if (rank < minRank) continue;
+                if (rank == minRank) {
+                    if (minRankQuota == 0) continue;
+                    minRankQuota--;
+                }
+                keptLinks[link] = true;
+                keptNodes[node] = true;
+                keptNodes[trie.getLinkTarget(link)] = true;
+            }
+        }
+        // A parent always comes before its children.
+        for (int node = nodeCount - 1; node > CompactTrie.ROOT; node--) {
+            if (keptNodes[node]) keptNodes[trie.getParent(node)] = true;
+        }
+
+        // Copying the nodes in order keeps the children in the same order.
+        final CompactTrie newTrie = new CompactTrie();
+        final int[] newNodes = new int[nodeCount];
+        final char[] word = new char[MAX_WORD_LENGTH];
+        for (int node = CompactTrie.ROOT + 1; node < nodeCount; node++) {
+            if (!keptNodes[node]) continue;
+            final int index = trie.getWord(node, word);
+            final int newNode = newTrie.insert(
+                    new String(word, index, MAX_WORD_LENGTH - index), MAX_WORD_LENGTH - index);
+            newTrie.setFrequency(newNode, trie.getFrequency(node));
+            newNodes[node] = newNode;
         }
-        if (childNode.mChildren == null) {
-            childNode.mChildren = new NodeArray();
+        for (int node = CompactTrie.ROOT + 1; node < nodeCount; node++) {
+            if (!keptNodes[node]) continue;
+            for (int link = trie.getFirstLink(node); link != CompactTrie.NOT_A_LINK;
+                    link = trie.getNextLink(link)) {
+                if (!keptLinks[link]) continue;
+                final int newLink = newTrie.addLink(newNodes[node],
+                        newNodes[trie.getLinkTarget(link)], trie.getLinkFrequency(link));
+                newTrie.setLinkTime(newLink, trie.getLinkTime(link));
+            }
         }
-        return searchWord(childNode.mChildren, word, depth + 1, childNode);
+        replaceWritableTrieLocked(newTrie);
     }
 
+    /**
+     * Searches for the word and add the word if it does not exist.
+     * @return Returns the terminal node of the word we are searching for.
+     */
+    private static int searchWord(final CompactTrie trie, final String word) {
+        final int node = trie.insert(word, word.length());
+        if (!trie.isTerminal(node)) {
+            // Terminate this word
+            trie.setFrequency(node, 0);
+        }
+        return node;
+    }
+
+    /**
+     * Starts a reload if one is required. This only takes the lock if it is.
+     * @return true if a reload is in progress.
+     */
     // @VisibleForTesting
     boolean reloadDictionaryIfRequired() {
-        synchronized (mUpdatingLock) {
-            // If we need to update, start off a background task
-            if (mRequiresReload) startDictionaryLoadingTaskLocked();
-            // Currently updating contacts, don't return any results.
-            return mUpdatingDictionary;
+        if (mRequiresReload) {
+            synchronized (mUpdatingLock) {
+                // If we need to update, start off a background task
+                if (mRequiresReload) startDictionaryLoadingTaskLocked();
+            }
         }
+        return mUpdatingDictionary;
     }
 
     private void runBigramReverseLookUp(final CharSequence previousWord,
             final WordCallback callback) {
+        final CompactTrie trie = mTrie;
         // Search for the lowercase version of the word only, because that's where bigrams
         // store their sons.
-        Node prevWord = searchNode(mRoots, previousWord.toString().toLowerCase(), 0,
+        final int prevWord = trie.search(previousWord.toString().toLowerCase(),
                 previousWord.length());
-        if (prevWord != null && prevWord.mNGrams != null) {
-            reverseLookUp(prevWord.mNGrams, callback);
+        if (prevWord != CompactTrie.NOT_A_NODE) {
+            reverseLookUp(trie, prevWord, callback);
         }
     }
 
     @Override
     public void getBigrams(final WordComposer codes, final CharSequence previousWord,
             final WordCallback callback) {
-        if (!reloadDictionaryIfRequired()) {
-            runBigramReverseLookUp(previousWord, callback);
-        }
+        reloadDictionaryIfRequired();
+        runBigramReverseLookUp(previousWord, callback);
     }
 
     /**
@@ -488,68 +880,35 @@ public class ExpandableDictionary extends Dictionary {
     /**
      * reverseLookUp retrieves the full word given a list of terminal nodes and adds those words
      * through callback.
-     * @param terminalNodes list of terminal nodes we want to add
+     * @param trie the trie of the node
+     * @param prevWord the terminal node whose bigram links we want to add
      */
-    private void reverseLookUp(LinkedList<NextWord> terminalNodes,
+    private void reverseLookUp(final CompactTrie trie, final int prevWord,
             final WordCallback callback) {
-        Node node;
-        int freq;
-        for (NextWord nextWord : terminalNodes) {
-            node = nextWord.mWord;
-            freq = nextWord.getFrequency();
-            int index = MAX_WORD_LENGTH;
-            do {
-                --index;
-                mLookedUpString[index] = node.mCode;
-                node = node.mParent;
-            } while (node != null);
-
+        final int now = getBigramTime();
+        for (int link = trie.getFirstLink(prevWord); link != CompactTrie.NOT_A_LINK;
+                link = trie.getNextLink(link)) {
+            final int freq = decayBigramFrequency(trie.getLinkFrequency(link),
+                    trie.getLinkTime(link), now);
+            final int index = trie.getWord(trie.getLinkTarget(link), mLookedUpString);
             callback.addWord(mLookedUpString, index, MAX_WORD_LENGTH - index, freq, mDicTypeId,
                     DataType.BIGRAM);
         }
     }
 
     /**
-     * Recursively search for the terminal node of the word.
-     *
-     * One iteration takes the full word to search for and the current index of the recursion.
-     *
-     * @param children the node of the trie to search under.
-     * @param word the word to search for. Only read [offset..length] so there may be trailing chars
-     * @param offset the index in {@code word} this recursion should operate on.
-     * @param length the length of the input word.
-     * @return Returns the terminal node of the word if the word exists
+     * Removes all the words. During a reload, this only empties the trie being built.
      */
-    private Node searchNode(final NodeArray children, final CharSequence word, final int offset,
-            final int length) {
-        final int count = children.mLength;
-        final char currentChar = word.charAt(offset);
-        for (int j = 0; j < count; j++) {
-            final Node node = children.mData[j];
-            if (node.mCode == currentChar) {
-                if (offset == length - 1) {
-                    if (node.mTerminal) {
-                        return node;
-                    }
-                } else {
-                    if (node.mChildren != null) {
-                        Node returnNode = searchNode(node.mChildren, word, offset + 1, length);
-                        if (returnNode != null) return returnNode;
-                    }
-                }
-            }
-        }
-        return null;
-    }
-
     protected void clearDictionary() {
-        mRoots = new NodeArray();
+        synchronized (mWriteLock) {
+            replaceWritableTrieLocked(new CompactTrie());
+        }
     }
 
     private class LoadDictionaryTask extends Thread {
         @Override
         public void run() {
-            loadDictionaryAsync();
+            loadDictionarySynchronously();
             synchronized (mUpdatingLock) {
                 mUpdatingDictionary = false;
             }
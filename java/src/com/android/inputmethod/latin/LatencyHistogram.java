@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.util.Printer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with fixed buckets, that any thread can record into without locking
+ * and without allocating.
+ *
+ * The durations are counted in microseconds. Below {@link #SUB_BUCKETS} us each bucket holds one
+ * value, and every power of two above is split into {@link #SUB_BUCKETS} buckets of the same
+ * width, so that the percentiles are within 25% of the actual durations. The last bucket also
+ * holds the durations that are too long for the others, of about a minute or more.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    /* package for test */ static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /* package for test */ static final int BUCKET_COUNT = 25 * SUB_BUCKETS;
+
+    private final String mName;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalTime = new AtomicLong();
+    private final AtomicLong mMaxTime = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /* package for test */ static int getBucket(long micros) {
+        if (micros < SUB_BUCKETS) return (int)Math.max(micros, 0);
+        final int powerOfTwo = 63 - Long.numberOfLeadingZeros(micros);
+        final int subBucket = (int)(micros >>> (powerOfTwo - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min((powerOfTwo - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket,
+                BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the smallest duration of the bucket, in microseconds.
+     */
+    /* package for test */ static long getBucketStart(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        final int powerOfTwo = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (powerOfTwo - SUB_BUCKET_BITS);
+    }
+
+    public void record(long nanos) {
+        final long micros = nanos / 1000;
+        mCounts.incrementAndGet(getBucket(micros));
+        mCount.incrementAndGet();
+        mTotalTime.addAndGet(micros);
+        long max = mMaxTime.get();
+        while (micros > max && !mMaxTime.compareAndSet(max, micros)) {
+            max = mMaxTime.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since the start time.
+     * @param startNanos the start time, as returned by {@link System#nanoTime}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns an upper bound of the duration that the percentage of the recorded durations do not
+     * exceed, in microseconds, or 0 if nothing has been recorded.
+     * @param percentile the percentage, more than 0 and at most 100
+     */
+    public long getPercentile(double percentile) {
+        final long count = mCount.get();
+        if (count == 0) return 0;
+        final long rank = (long)Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT - 1; bucket++) {
+            seen += mCounts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(getBucketStart(bucket + 1) - 1, mMaxTime.get());
+            }
+        }
+        return mMaxTime.get();
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            mCounts.set(bucket, 0);
+        }
+        mCount.set(0);
+        mTotalTime.set(0);
+        mMaxTime.set(0);
+    }
+
+    public void dump(Printer p) {
+        final long count = mCount.get();
+        if (count == 0) return;
+        p.println("  " + mName + ": count=" + count
+                + " avg=" + mTotalTime.get() / count + "us"
+                + " p50=" + getPercentile(50) + "us"
+                + " p90=" + getPercentile(90) + "us"
+                + " p99=" + getPercentile(99) + "us"
+                + " max=" + mMaxTime.get() + "us");
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.util.Printer;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The latency histograms of the stages that a key stroke goes through, from the key detection to
+ * the drawing of the keyboard and of the suggestions. They are printed by the dump of the IME:
+ * "adb shell dumpsys input_method" shows their percentiles on a real device.
+ *
+ * A stage is timed like this:
+ * <pre>
+ *     final long startTime = System.nanoTime();
+ *     ...
+ *     LatencyMetrics.KEY_DETECTION.recordSince(startTime);
+ * </pre>
+ */
+public class LatencyMetrics {
+    public static final LatencyHistogram KEY_DETECTION = new LatencyHistogram("keyDetection");
+    public static final LatencyHistogram WORD_COMPOSER_ADD =
+            new LatencyHistogram("wordComposerAdd");
+    public static final LatencyHistogram AUTO_CORRECTION =
+            new LatencyHistogram("autoCorrection");
+    public static final LatencyHistogram SUGGESTION_LOOKUP =
+            new LatencyHistogram("suggestionLookup");
+    public static final LatencyHistogram KEY_TO_SUGGESTION_STRIP =
+            new LatencyHistogram("keyToSuggestionStrip");
+    public static final LatencyHistogram SUGGESTIONS_LAYOUT =
+            new LatencyHistogram("suggestionsLayout");
+    // The keyboard is drawn either to a bitmap buffer or to a hardware layer. A frame is timed
+    // from the first invalidation of a key since the previous draw to the end of the draw.
+    public static final LatencyHistogram KEYBOARD_DRAW = new LatencyHistogram("keyboardDraw");
+    public static final LatencyHistogram KEYBOARD_FRAME = new LatencyHistogram("keyboardFrame");
+    public static final LatencyHistogram KEYBOARD_DRAW_LAYER =
+            new LatencyHistogram("keyboardDrawLayer");
+    public static final LatencyHistogram KEYBOARD_FRAME_LAYER =
+            new LatencyHistogram("keyboardFrameLayer");
+
+    private static final LatencyHistogram[] STAGES = {
+        KEY_DETECTION, WORD_COMPOSER_ADD, SUGGESTION_LOOKUP, AUTO_CORRECTION,
+        KEY_TO_SUGGESTION_STRIP, SUGGESTIONS_LAYOUT, KEYBOARD_DRAW, KEYBOARD_FRAME,
+        KEYBOARD_DRAW_LAYER, KEYBOARD_FRAME_LAYER,
+    };
+
+    // By dictionary key, as in Suggest.
+    private static final ConcurrentHashMap<String, LatencyHistogram> sGetWords =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> sGetBigrams =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private LatencyMetrics() {
+        // This class is not publicly instantiable.
+    }
+
+    private static LatencyHistogram getHistogram(
+            ConcurrentHashMap<String, LatencyHistogram> histograms, String prefix, String key) {
+        final LatencyHistogram histogram = histograms.get(key);
+        if (histogram != null) return histogram;
+        histograms.putIfAbsent(key, new LatencyHistogram(prefix + "." + key));
+        return histograms.get(key);
+    }
+
+    /**
+     * Returns the histogram of the getWords lookups of a dictionary.
+     * @param dictionaryKey the key of the dictionary in Suggest
+     */
+    public static LatencyHistogram getWords(String dictionaryKey) {
+        return getHistogram(sGetWords, "getWords", dictionaryKey);
+    }
+
+    /**
+     * Returns the histogram of the getBigrams lookups of a dictionary.
+     * @param dictionaryKey the key of the dictionary in Suggest
+     */
+    public static LatencyHistogram getBigrams(String dictionaryKey) {
+        return getHistogram(sGetBigrams, "getBigrams", dictionaryKey);
+    }
+
+    public static void reset() {
+        for (final LatencyHistogram histogram : STAGES) {
+            histogram.reset();
+        }
+        sGetWords.clear();
+        sGetBigrams.clear();
+    }
+
+    public static void dump(Printer p) {
+        p.println("Latency (us) :");
+        for (final LatencyHistogram histogram : STAGES) {
+            histogram.dump(p);
+        }
+        for (final LatencyHistogram histogram : sGetWords.values()) {
+            histogram.dump(p);
+        }
+        for (final LatencyHistogram histogram : sGetBigrams.values()) {
+            histogram.dump(p);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.inputmethod.latin;
 
 import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -57,6 +58,7 @@ import com.android.inputmethod.compat.InputMethodServiceCompatWrapper;
 import com.android.inputmethod.compat.InputTypeCompatUtils;
 import com.android.inputmethod.compat.SuggestionSpanUtils;
 import com.android.inputmethod.compat.VibratorCompatWrapper;
+import com.android.inputmethod.compat.ViewCompatUtils;
 import com.android.inputmethod.deprecated.LanguageSwitcherProxy;
 import com.android.inputmethod.deprecated.VoiceProxy;
 import com.android.inputmethod.keyboard.Key;
@@ -75,7 +77,7 @@ import java.util.Locale;
  * Input method implementation for Qwerty'ish keyboard.
  */
 public class LatinIME extends InputMethodServiceCompatWrapper implements KeyboardActionListener,
-        SuggestionsView.Listener {
+        SuggestionsView.Listener, SuggestionWorker.Listener {
     private static final String TAG = LatinIME.class.getSimpleName();
     private static final boolean PERF_DEBUG = false;
     private static final boolean TRACE = false;
@@ -164,6 +166,7 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
     private View mSuggestionsContainer;
     private SuggestionsView mSuggestionsView;
     private Suggest mSuggest;
+    private SuggestionWorker mSuggestionWorker;
     private CompletionInfo[] mApplicationSpecifiedCompletions;
 
     private InputMethodManagerCompatWrapper mImm;
@@ -178,6 +181,11 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
     private UserBigramDictionary mUserBigramDictionary;
     private UserUnigramDictionary mUserUnigramDictionary;
     private boolean mIsUserDictionaryAvaliable;
+    // The locale of mSuggest and of the user dictionaries.
+    private String mSuggestLocaleStr;
+    // The dictionaries of the locales that have been used recently, other than mSuggestLocaleStr.
+    private static final int SUGGEST_CACHE_SIZE = 2;
+    private final SuggestCache mSuggestCache = new SuggestCache(SUGGEST_CACHE_SIZE);
 
     // TODO: Create an inner class to group options and pseudo-options to improve readability.
     // These variables are initialized according to the {@link EditorInfo#inputType}.
@@ -244,6 +252,7 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         private static final int MSG_KEY_TYPED = 6;
         private static final int MSG_SET_BIGRAM_PREDICTIONS = 7;
         private static final int MSG_PENDING_IMS_CALLBACK = 8;
+        private static final int MSG_SHOW_COMPUTED_SUGGESTIONS = 9;
 
         private int mDelayBeforeFadeoutLanguageOnSpacebar;
         private int mDelayUpdateSuggestions;
@@ -252,6 +261,8 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         private float mFinalFadeoutFactorOfLanguageOnSpacebar;
         private long mDoubleSpacesTurnIntoPeriodTimeout;
         private long mIgnoreSpecialKeyTimeout;
+        // The time of the last event that asked for a suggestion update, typically a key stroke.
+        private long mUpdateSuggestionsRequestTime;
 
         public UIHandler(LatinIME outerInstance) {
             super(outerInstance);
@@ -282,7 +293,10 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
             final LatinKeyboardView inputView = switcher.getKeyboardView();
             switch (msg.what) {
             case MSG_UPDATE_SUGGESTIONS:
-                latinIme.updateSuggestions();
+                latinIme.updateSuggestions(mUpdateSuggestionsRequestTime, false);
+                break;
+            case MSG_SHOW_COMPUTED_SUGGESTIONS:
+                latinIme.showComputedSuggestions((SuggestionWorker.Result)msg.obj);
                 break;
             case MSG_UPDATE_SHIFT_STATE:
                 switcher.updateShiftState();
@@ -314,6 +328,7 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
 
         public void postUpdateSuggestions() {
             removeMessages(MSG_UPDATE_SUGGESTIONS);
+            mUpdateSuggestionsRequestTime = System.nanoTime();
             sendMessageDelayed(obtainMessage(MSG_UPDATE_SUGGESTIONS), mDelayUpdateSuggestions);
         }
 
@@ -325,6 +340,11 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
             return hasMessages(MSG_UPDATE_SUGGESTIONS);
         }
 
+        // Called on the suggestion worker thread.
+        public void postShowComputedSuggestions(SuggestionWorker.Result result) {
+            sendMessage(obtainMessage(MSG_SHOW_COMPUTED_SUGGESTIONS, result));
+        }
+
         public void postUpdateShiftKeyState() {
             removeMessages(MSG_UPDATE_SHIFT_STATE);
             sendMessageDelayed(obtainMessage(MSG_UPDATE_SHIFT_STATE), mDelayUpdateShiftState);
@@ -493,6 +513,11 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         AccessibilityUtils.init(this, prefs);
 
         super.onCreate();
+        // Whether the keyboard is drawn to a hardware layer can be switched at any time, but
+        // the window has to be accelerated before its content is attached.
+        if (KeyboardSwitcher.isHardwareLayerEnabled(prefs)) {
+            ViewCompatUtils.setHardwareAccelerated(getWindow().getWindow());
+        }
 
         mImm = InputMethodManagerCompatWrapper.getInstance();
         mInputMethodId = Utils.getInputMethodId(mImm, getPackageName());
@@ -507,6 +532,7 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
 
         loadSettings();
 
+        mSuggestionWorker = new SuggestionWorker(this);
         Utils.GCUtils.getInstance().reset();
         boolean tryGC = true;
         for (int i = 0; i < Utils.GCUtils.GC_TRY_LOOP_MAX && tryGC; ++i) {
@@ -558,32 +584,48 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         final Locale savedLocale = LocaleUtils.setSystemLocale(res, keyboardLocale);
         final ContactsDictionary oldContactsDictionary;
         if (mSuggest != null) {
-            oldContactsDictionary = mSuggest.getContactsDictionary();
-            mSuggest.close();
+            mSuggestionWorker.cancel();
+            oldContactsDictionary = mSuggest.detachContactsDictionary();
         } else {
             oldContactsDictionary = null;
         }
 
-        int mainDicResId = Utils.getMainDictionaryResourceId(res);
-        mSuggest = new Suggest(this, mainDicResId, keyboardLocale);
+        if (mSuggest == null || !localeStr.equals(mSuggestLocaleStr)) {
+            final SuggestCache.Entry cachedEntry = mSuggestCache.remove(localeStr);
+            if (mSuggest != null) {
+                // Keep the dictionaries of the previous locale, in case the user switches back.
+                mSuggestCache.put(mSuggestLocaleStr, new SuggestCache.Entry(mSuggest,
+                        mUserDictionary, mUserUnigramDictionary, mUserBigramDictionary));
+            }
+            if (cachedEntry != null) {
+                mSuggest = cachedEntry.mSuggest;
+                mUserDictionary = cachedEntry.mUserDictionary;
+                mUserUnigramDictionary = cachedEntry.mUserUnigramDictionary;
+                mUserBigramDictionary = cachedEntry.mUserBigramDictionary;
+            } else {
+                int mainDicResId = Utils.getMainDictionaryResourceId(res);
+                mSuggest = new Suggest(this, mainDicResId, keyboardLocale);
+
+                mUserDictionary = new UserDictionary(this, localeStr);
+                mSuggest.setUserDictionary(mUserDictionary);
+
+                mUserUnigramDictionary = new UserUnigramDictionary(
+                        this, this, localeStr, Suggest.DIC_USER_UNIGRAM);
+                mSuggest.setUserUnigramDictionary(mUserUnigramDictionary);
+
+                mUserBigramDictionary = new UserBigramDictionary(
+                        this, this, localeStr, Suggest.DIC_USER_BIGRAM);
+                mSuggest.setUserBigramDictionary(mUserBigramDictionary);
+            }
+            mSuggestLocaleStr = localeStr;
+        }
         if (mSettingsValues.mAutoCorrectEnabled) {
             mSuggest.setAutoCorrectionThreshold(mSettingsValues.mAutoCorrectionThreshold);
         }
-
-        mUserDictionary = new UserDictionary(this, localeStr);
-        mSuggest.setUserDictionary(mUserDictionary);
         mIsUserDictionaryAvaliable = mUserDictionary.isEnabled();
 
         resetContactsDictionary(oldContactsDictionary);
 
-        mUserUnigramDictionary
-                = new UserUnigramDictionary(this, this, localeStr, Suggest.DIC_USER_UNIGRAM);
-        mSuggest.setUserUnigramDictionary(mUserUnigramDictionary);
-
-        mUserBigramDictionary
-                = new UserBigramDictionary(this, this, localeStr, Suggest.DIC_USER_BIGRAM);
-        mSuggest.setUserBigramDictionary(mUserBigramDictionary);
-
         updateCorrectionMode();
 
         LocaleUtils.setSystemLocale(res, savedLocale);
@@ -626,14 +668,18 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         final Locale keyboardLocale = LocaleUtils.constructLocaleFromString(localeStr);
         int mainDicResId = Utils.getMainDictionaryResourceId(mResources);
         mSuggest.resetMainDict(this, mainDicResId, keyboardLocale);
+        // The cached locales may use the dictionaries that have changed.
+        mSuggestCache.clear();
     }
 
     @Override
     public void onDestroy() {
+        mSuggestionWorker.quit();
         if (mSuggest != null) {
             mSuggest.close();
             mSuggest = null;
         }
+        mSuggestCache.clear();
         unregisterReceiver(mReceiver);
         unregisterReceiver(mDictionaryPackInstallReceiver);
         mVoiceProxy.destroy();
@@ -642,6 +688,23 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         super.onDestroy();
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mSuggestCache.clear();
+        mKeyboardSwitcher.onLowMemory();
+    }
+
+    // Only called by the platforms that have it: the others call onLowMemory().
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mSuggestCache.clear();
+            mKeyboardSwitcher.onLowMemory();
+        }
+    }
+
     @Override
     public void onConfigurationChanged(Configuration conf) {
         mSubtypeSwitcher.onConfigurationChanged(conf);
@@ -1520,7 +1583,9 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         }
         if (mHasUncommittedTypedChars) {
             mComposingStringBuilder.append((char) code);
+            final long startTime = System.nanoTime();
             mWordComposer.add(code, keyCodes, x, y);
+            LatencyMetrics.WORD_COMPOSER_ADD.recordSince(startTime);
             final InputConnection ic = getCurrentInputConnection();
             if (ic != null) {
                 // If it's the first letter, make note of auto-caps state
@@ -1679,6 +1744,7 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
     }
 
     public void clearSuggestions() {
+        mSuggestionWorker.cancel();
         setSuggestions(SuggestedWords.EMPTY);
     }
 
@@ -1713,6 +1779,21 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
     }
 
     public void updateSuggestions() {
+        updateSuggestions(System.nanoTime(), false);
+    }
+
+    /**
+     * Updates the suggestions for the word being composed.
+     *
+     * The lookup normally runs on the suggestion worker thread, and the suggestions are shown
+     * later by {@link #showComputedSuggestions}. A synchronous update is needed when the caller
+     * is about to use the result right away, for instance to pick the auto-correction.
+     *
+     * @param requestTime the {@link System#nanoTime} of the event that asked for the update, for
+     *        the latency metrics.
+     * @param synchronous whether the lookup should run on the calling thread.
+     */
+    private void updateSuggestions(final long requestTime, final boolean synchronous) {
         // Check if we have a suggestion engine attached.
         if ((mSuggest == null || !isSuggestionsRequested())
                 && !mVoiceProxy.isVoiceInputHighlighted()) {
@@ -1727,7 +1808,6 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
             return;
         }
 
-        final WordComposer wordComposer = mWordComposer;
         // TODO: May need a better way of retrieving previous word
         final InputConnection ic = getCurrentInputConnection();
         final CharSequence prevWord;
@@ -1737,10 +1817,35 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
             prevWord = EditingUtils.getPreviousWord(ic, mSettingsValues.mWordSeparators);
         }
         // getSuggestedWordBuilder handles gracefully a null value of prevWord
-        final SuggestedWords.Builder builder = mSuggest.getSuggestedWordBuilder(
-                wordComposer, prevWord, mKeyboardSwitcher.getLatinKeyboard().getProximityInfo());
+        final SuggestionWorker.Request request = mSuggestionWorker.newRequest(mSuggest,
+                mWordComposer, prevWord, mKeyboardSwitcher.getLatinKeyboard().getProximityInfo(),
+                requestTime);
+        if (synchronous) {
+            showSuggestions(mSuggestionWorker.computeSuggestionsSynchronously(request));
+        } else {
+            mSuggestionWorker.post(request);
+        }
+    }
+
+    // Called on the suggestion worker thread.
+    @Override
+    public void onSuggestionsComputed(SuggestionWorker.Result result) {
+        mHandler.postShowComputedSuggestions(result);
+    }
+
+    private void showComputedSuggestions(SuggestionWorker.Result result) {
+        // The user may have typed, committed or switched languages since this was requested.
+        if (result.mRequest.mSuggest != mSuggest || !mHasUncommittedTypedChars
+                || !mSuggestionWorker.acceptResult(result)) {
+            return;
+        }
+        showSuggestions(result);
+    }
 
-        boolean autoCorrectionAvailable = !mInputTypeNoAutoCorrect && mSuggest.hasAutoCorrection();
+    private void showSuggestions(SuggestionWorker.Result result) {
+        final WordComposer wordComposer = result.mRequest.mWordComposer;
+        final SuggestedWords.Builder builder = result.mBuilder;
+        boolean autoCorrectionAvailable = !mInputTypeNoAutoCorrect && result.mHasAutoCorrection;
         final CharSequence typedWord = wordComposer.getTypedWord();
         // Here, we want to promote a whitelisted word if exists.
         // TODO: Change this scheme - a boolean is not enough. A whitelisted word may be "valid"
@@ -1748,8 +1853,7 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         // The whitelist should be case-insensitive, so it's not possible to be consistent with
         // a boolean flag. Right now this is handled with a slight hack in
         // WhitelistDictionary#shouldForciblyAutoCorrectFrom.
-        final boolean allowsToBeAutoCorrected = AutoCorrection.allowsToBeAutoCorrected(
-                mSuggest.getUnigramDictionaries(), typedWord, preferCapitalization());
+        final boolean allowsToBeAutoCorrected = result.mAllowsToBeAutoCorrected;
         if (mCorrectionMode == Suggest.CORRECTION_FULL
                 || mCorrectionMode == Suggest.CORRECTION_FULL_BIGRAM) {
             autoCorrectionAvailable |= (!allowsToBeAutoCorrected);
@@ -1806,9 +1910,9 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
 
     private boolean pickDefaultSuggestion(int separatorCode) {
         // Complete any pending suggestions query first
-        if (mHandler.hasPendingUpdateSuggestions()) {
+        if (mHandler.hasPendingUpdateSuggestions() || mSuggestionWorker.hasPendingRequest()) {
             mHandler.cancelUpdateSuggestions();
-            updateSuggestions();
+            updateSuggestions(System.nanoTime(), true);
         }
         if (mBestWord != null && mBestWord.length() > 0) {
             TextEntryState.acceptedDefault(mWordComposer.getTypedWord(), mBestWord, separatorCode);
@@ -1974,6 +2078,7 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         if (mSuggest == null || !isSuggestionsRequested())
             return;
 
+        mSuggestionWorker.cancel();
         if (!mSettingsValues.mBigramPredictionEnabled) {
             setPunctuationSuggestions();
             return;
@@ -1981,8 +2086,11 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
 
         final CharSequence prevWord = EditingUtils.getThisWord(getCurrentInputConnection(),
                 mSettingsValues.mWordSeparators);
-        SuggestedWords.Builder builder = mSuggest.getSuggestedWordBuilder(sEmptyWordComposer,
-                prevWord, mKeyboardSwitcher.getLatinKeyboard().getProximityInfo());
+        // The words of the builder are views of the buffer of the suggest, that the next lookup
+        // of the worker overwrites while they are shown, so the strip gets a copy of them.
+        final SuggestedWords.Builder builder = mSuggest.getSuggestedWordBuilder(
+                sEmptyWordComposer, prevWord,
+                mKeyboardSwitcher.getLatinKeyboard().getProximityInfo()).getStringCopy();
 
         if (builder.size() > 0) {
             // Explicitly supply an empty typed word (the no-second-arg version of
@@ -1994,6 +2102,7 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
     }
 
     public void setPunctuationSuggestions() {
+        mSuggestionWorker.cancel();
         setSuggestions(mSettingsValues.mSuggestPuncList);
         setSuggestionStripShown(isSuggestionsStripVisible());
     }
@@ -2387,6 +2496,11 @@ public class LatinIME extends InputMethodServiceCompatWrapper implements Keyboar
         p.println("  mSoundOn=" + mSettingsValues.mSoundOn);
         p.println("  mVibrateOn=" + mSettingsValues.mVibrateOn);
         p.println("  mKeyPreviewPopupOn=" + mSettingsValues.mKeyPreviewPopupOn);
+        final KeyboardView keyboardView = mKeyboardSwitcher.getKeyboardView();
+        if (keyboardView != null) {
+            keyboardView.dump(p);
+        }
+        LatencyMetrics.dump(p);
     }
 
     // Characters per second measurement
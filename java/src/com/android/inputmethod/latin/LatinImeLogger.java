@@ -70,7 +70,7 @@ public class LatinImeLogger implements SharedPreferences.OnSharedPreferenceChang
     public static void onStartSuggestion(CharSequence previousWords) {
     }
 
-    public static void onAddSuggestedWord(String word, int typeId, DataType dataType) {
+    public static void onAddSuggestedWord(CharSequence word, int typeId, DataType dataType) {
     }
 
     public static void onSetKeyboard(Keyboard kb) {
@@ -39,6 +39,7 @@ import com.android.inputmethod.keyboard.LatinKeyboard;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -195,7 +196,7 @@ public class SubtypeSwitcher {
         }
     }
 
-    private static String getSubtypeLocale(InputMethodSubtypeCompatWrapper subtype) {
+    public static String getSubtypeLocale(InputMethodSubtypeCompatWrapper subtype) {
         final String keyboardLocale = subtype.getExtraValueOf(
                 LatinIME.SUBTYPE_EXTRA_VALUE_KEYBOARD_LOCALE);
         return keyboardLocale != null ? keyboardLocale : subtype.getLocale();
@@ -436,6 +437,10 @@ public class SubtypeSwitcher {
         return mEnabledKeyboardSubtypesOfCurrentInputMethod.size();
     }
 
+    public List<InputMethodSubtypeCompatWrapper> getEnabledKeyboardSubtypes() {
+        return Collections.unmodifiableList(mEnabledKeyboardSubtypesOfCurrentInputMethod);
+    }
+
     public boolean needsToDisplayLanguage(Locale keyboardLocale) {
         if (!keyboardLocale.equals(mInputLocale)) {
             return false;
@@ -24,9 +24,9 @@ import com.android.inputmethod.keyboard.ProximityInfo;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -96,11 +96,22 @@ public class Suggest implements Dictionary.WordCallback {
     private static final int PREF_MAX_BIGRAMS = 60;
 
     private double mAutoCorrectionThreshold;
-    private int[] mScores = new int[mPrefMaxSuggestions];
-    private int[] mBigramScores = new int[PREF_MAX_BIGRAMS];
 
-    private ArrayList<CharSequence> mSuggestions = new ArrayList<CharSequence>();
-    ArrayList<CharSequence> mBigramSuggestions  = new ArrayList<CharSequence>();
+    // The dictionaries write the suggestions right into these buffers. The unigram one has room
+    // for one more than mPrefMaxSuggestions, which the bigrams that match the first character
+    // may fill.
+    private SuggestionBuffer mSuggestionBuffer = createSuggestionBuffer(mPrefMaxSuggestions + 1);
+    private final SuggestionBuffer mBigramSuggestionBuffer =
+            createSuggestionBuffer(PREF_MAX_BIGRAMS);
+    // The suggestions of the last lookup, views of the words of mSuggestionBuffer plus the typed
+    // word and the whitelisted word.
+    private final ArrayList<CharSequence> mSuggestions = new ArrayList<CharSequence>();
+    // Returned by getSuggestedWordBuilder, which refills it at each lookup.
+    private final SuggestedWords.Builder mBuilder = new SuggestedWords.Builder();
+    final List<CharSequence> mBigramSuggestions = mBigramSuggestionBuffer.getWords();
+    // The positions of the bigram suggestions, built again when they have changed.
+    private final WordIndex mBigramSuggestionIndex = new WordIndex(PREF_MAX_BIGRAMS);
+    private boolean mBigramSuggestionIndexIsValid;
     private CharSequence mTypedWord;
 
     // TODO: Remove these member variables by passing more context to addWord() callback method
@@ -124,7 +135,10 @@ public class Suggest implements Dictionary.WordCallback {
         mWhiteListDictionary = new WhitelistDictionary(context, locale);
         addOrReplaceDictionary(mUnigramDictionaries, DICT_KEY_WHITELIST, mWhiteListDictionary);
         mAutoCorrection = new AutoCorrection();
-        StringBuilderPool.ensureCapacity(mPrefMaxSuggestions, getApproxMaxWordLength());
+    }
+
+    private static SuggestionBuffer createSuggestionBuffer(final int capacity) {
+        return new SuggestionBuffer(capacity, BinaryDictionary.MAX_WORD_LENGTH);
     }
 
     private void initAsynchronously(final Context context, final int dictionaryResId,
@@ -144,7 +158,7 @@ public class Suggest implements Dictionary.WordCallback {
         initWhitelistAndAutocorrectAndPool(context, locale);
     }
 
-    private void addOrReplaceDictionary(Map<String, Dictionary> dictionaries, String key,
+    private synchronized void addOrReplaceDictionary(Map<String, Dictionary> dictionaries, String key,
             Dictionary dict) {
         final Dictionary oldDict = (dict == null)
                 ? dictionaries.remove(key)
@@ -160,8 +174,11 @@ public class Suggest implements Dictionary.WordCallback {
         new Thread("InitializeBinaryDictionary") {
             @Override
             public void run() {
-                final Dictionary newMainDict = DictionaryFactory.createDictionaryFromManager(
-                        context, locale, dictionaryResId);
+                final DictionaryCollection newMainDict =
+                        DictionaryFactory.createDictionaryFromManager(
+                                context, locale, dictionaryResId);
+                // The main dictionary may be made of several word lists.
+                newMainDict.setParallelLookup(true);
                 mMainDict = newMainDict;
                 addOrReplaceDictionary(mUnigramDictionaries, DICT_KEY_MAIN, newMainDict);
                 addOrReplaceDictionary(mBigramDictionaries, DICT_KEY_MAIN, newMainDict);
@@ -214,6 +231,18 @@ public class Suggest implements Dictionary.WordCallback {
         addOrReplaceDictionary(mBigramDictionaries, DICT_KEY_CONTACTS, contactsDictionary);
     }
 
+    /**
+     * Removes the contacts dictionary without closing it, so that another instance can use it.
+     * @return the contacts dictionary, or null if there was none
+     */
+    public synchronized ContactsDictionary detachContactsDictionary() {
+        final ContactsDictionary contactsDictionary = mContactsDict;
+        mContactsDict = null;
+        mUnigramDictionaries.remove(DICT_KEY_CONTACTS);
+        mBigramDictionaries.remove(DICT_KEY_CONTACTS);
+        return contactsDictionary;
+    }
+
     public void setUserUnigramDictionary(Dictionary userUnigramDictionary) {
         addOrReplaceDictionary(mUnigramDictionaries, DICT_KEY_USER_UNIGRAM, userUnigramDictionary);
     }
@@ -241,10 +270,8 @@ public class Suggest implements Dictionary.WordCallback {
             throw new IllegalArgumentException("maxSuggestions must be between 1 and 100");
         }
         mPrefMaxSuggestions = maxSuggestions;
-        mScores = new int[mPrefMaxSuggestions];
-        mBigramScores = new int[PREF_MAX_BIGRAMS];
-        collectGarbage(mSuggestions, mPrefMaxSuggestions);
-        StringBuilderPool.ensureCapacity(mPrefMaxSuggestions, getApproxMaxWordLength());
+        mSuggestionBuffer = createSuggestionBuffer(mPrefMaxSuggestions + 1);
+        mSuggestions.clear();
     }
 
     /**
@@ -260,43 +287,32 @@ public class Suggest implements Dictionary.WordCallback {
                 proximityInfo).build();
     }
 
-    private CharSequence capitalizeWord(boolean all, boolean first, CharSequence word) {
+    private static CharSequence capitalizeWord(boolean all, boolean first, CharSequence word) {
         if (TextUtils.isEmpty(word) || !(all || first)) return word;
-        final int wordLength = word.length();
-        final StringBuilder sb = StringBuilderPool.getStringBuilder(getApproxMaxWordLength());
+        final String string = word.toString();
         // TODO: Must pay attention to locale when changing case.
         if (all) {
-            sb.append(word.toString().toUpperCase());
-        } else if (first) {
-            sb.append(Character.toUpperCase(word.charAt(0)));
-            if (wordLength > 1) {
-                sb.append(word.subSequence(1, wordLength));
-            }
+            return string.toUpperCase();
+        } else {
+            return Character.toUpperCase(string.charAt(0)) + string.substring(1);
         }
-        return sb;
     }
 
-    protected void addBigramToSuggestions(CharSequence bigram) {
-        // TODO: Try to be a little more shrewd with resource allocation.
-        // At the moment we copy this object because the StringBuilders are pooled (see
-        // StringBuilderPool.java) and when we are finished using mSuggestions and
-        // mBigramSuggestions we will take everything from both and insert them back in the
-        // pool, so we can't allow the same object to be in both lists at the same time.
-        final StringBuilder sb = StringBuilderPool.getStringBuilder(getApproxMaxWordLength());
-        sb.append(bigram);
-        mSuggestions.add(sb);
+    private void addBigramToSuggestions(int bigramRank) {
+        // The words are copied, so that the two buffers can be changed independently.
+        mSuggestionBuffer.append(mBigramSuggestionBuffer, bigramRank);
     }
 
     // TODO: cleanup dictionaries looking up and suggestions building with SuggestedWords.Builder
-    public SuggestedWords.Builder getSuggestedWordBuilder(
+    // The builder and its words are overwritten the next time this function is called.
+    public synchronized SuggestedWords.Builder getSuggestedWordBuilder(
             final WordComposer wordComposer, CharSequence prevWordForBigram,
             final ProximityInfo proximityInfo) {
         LatinImeLogger.onStartSuggestion(prevWordForBigram);
         mAutoCorrection.init();
         mIsFirstCharCapitalized = wordComposer.isFirstCharCapitalized();
         mIsAllUpperCase = wordComposer.isAllUpperCase();
-        collectGarbage(mSuggestions, mPrefMaxSuggestions);
-        Arrays.fill(mScores, 0);
+        mSuggestionBuffer.clear();
 
         // Save a lowercase version of the original word
         String typedWord = wordComposer.getTypedWord();
@@ -307,25 +323,31 @@ public class Suggest implements Dictionary.WordCallback {
         }
         mTypedWord = typedWord;
 
-        if (wordComposer.size() <= 1 && (mCorrectionMode == CORRECTION_FULL_BIGRAM
-                || mCorrectionMode == CORRECTION_BASIC)) {
+        final boolean usesBigrams = mCorrectionMode == CORRECTION_FULL_BIGRAM
+                || mCorrectionMode == CORRECTION_BASIC;
+        if (usesBigrams && !TextUtils.isEmpty(prevWordForBigram)) {
+            CharSequence lowerPrevWord = prevWordForBigram.toString().toLowerCase();
+            if (mMainDict != null && mMainDict.isValidWord(lowerPrevWord)) {
+                prevWordForBigram = lowerPrevWord;
+            }
+        }
+
+        if (wordComposer.size() <= 1 && usesBigrams) {
             // At first character typed, search only the bigrams
-            Arrays.fill(mBigramScores, 0);
-            collectGarbage(mBigramSuggestions, PREF_MAX_BIGRAMS);
+            mBigramSuggestionBuffer.clear();
+            mBigramSuggestionIndexIsValid = false;
 
             if (!TextUtils.isEmpty(prevWordForBigram)) {
-                CharSequence lowerPrevWord = prevWordForBigram.toString().toLowerCase();
-                if (mMainDict != null && mMainDict.isValidWord(lowerPrevWord)) {
-                    prevWordForBigram = lowerPrevWord;
-                }
-                for (final Dictionary dictionary : mBigramDictionaries.values()) {
-                    dictionary.getBigrams(wordComposer, prevWordForBigram, this);
+                for (final String key : mBigramDictionaries.keySet()) {
+                    final long startTime = System.nanoTime();
+                    mBigramDictionaries.get(key).getBigrams(wordComposer, prevWordForBigram, this);
+                    LatencyMetrics.getBigrams(key).recordSince(startTime);
                 }
                 if (TextUtils.isEmpty(typedWord)) {
                     // Nothing entered: return all bigrams for the previous word
-                    int insertCount = Math.min(mBigramSuggestions.size(), mPrefMaxSuggestions);
+                    int insertCount = Math.min(mBigramSuggestionBuffer.size(), mPrefMaxSuggestions);
                     for (int i = 0; i < insertCount; ++i) {
-                        addBigramToSuggestions(mBigramSuggestions.get(i));
+                        addBigramToSuggestions(i);
                     }
                 } else {
                     // Word entered: return only bigrams that match the first char of the typed word
@@ -334,13 +356,13 @@ public class Suggest implements Dictionary.WordCallback {
                     // TODO: Must pay attention to locale when changing case.
                     final char currentCharUpper = Character.toUpperCase(currentChar);
                     int count = 0;
-                    final int bigramSuggestionSize = mBigramSuggestions.size();
+                    final int bigramSuggestionSize = mBigramSuggestionBuffer.size();
                     for (int i = 0; i < bigramSuggestionSize; i++) {
-                        final CharSequence bigramSuggestion = mBigramSuggestions.get(i);
+                        final CharSequence bigramSuggestion = mBigramSuggestionBuffer.getWord(i);
                         final char bigramSuggestionFirstChar = bigramSuggestion.charAt(0);
                         if (bigramSuggestionFirstChar == currentChar
                                 || bigramSuggestionFirstChar == currentCharUpper) {
-                            addBigramToSuggestions(bigramSuggestion);
+                            addBigramToSuggestions(i);
                             if (++count > mPrefMaxSuggestions) break;
                         }
                     }
@@ -348,13 +370,18 @@ public class Suggest implements Dictionary.WordCallback {
             }
 
         } else if (wordComposer.size() > 1) {
-            // At second character typed, search the unigrams (scores being affected by bigrams)
+            // At second character typed, search the unigrams (scores being affected by bigrams).
+            // The dictionaries that can boost their words after the previous word themselves,
+            // like the binary ones, do it in the same lookup.
             for (final String key : mUnigramDictionaries.keySet()) {
                 // Skip UserUnigramDictionary and WhitelistDictionary to lookup
                 if (key.equals(DICT_KEY_USER_UNIGRAM) || key.equals(DICT_KEY_WHITELIST))
                     continue;
                 final Dictionary dictionary = mUnigramDictionaries.get(key);
-                dictionary.getWords(wordComposer, this, proximityInfo);
+                final long startTime = System.nanoTime();
+                dictionary.getWords(wordComposer, usesBigrams ? prevWordForBigram : null, this,
+                        proximityInfo);
+                LatencyMetrics.getWords(key).recordSince(startTime);
             }
         }
         final String typedWordString = typedWord == null ? null : typedWord.toString();
@@ -362,9 +389,17 @@ public class Suggest implements Dictionary.WordCallback {
         CharSequence whitelistedWord = capitalizeWord(mIsAllUpperCase, mIsFirstCharCapitalized,
                 mWhiteListDictionary.getWhitelistedWord(typedWordString));
 
+        mSuggestions.clear();
+        final int suggestionCount = mSuggestionBuffer.size();
+        for (int i = 0; i < suggestionCount; i++) {
+            mSuggestions.add(mSuggestionBuffer.getWord(i));
+        }
+        final int[] scores = mSuggestionBuffer.getScores();
+        final long autoCorrectionStartTime = System.nanoTime();
         mAutoCorrection.updateAutoCorrectionStatus(mUnigramDictionaries, wordComposer,
-                mSuggestions, mScores, typedWord, mAutoCorrectionThreshold, mCorrectionMode,
+                mSuggestions, scores, typedWord, mAutoCorrectionThreshold, mCorrectionMode,
                 whitelistedWord);
+        LatencyMetrics.AUTO_CORRECTION.recordSince(autoCorrectionStartTime);
 
         if (whitelistedWord != null) {
             mSuggestions.add(0, whitelistedWord);
@@ -380,24 +415,24 @@ public class Suggest implements Dictionary.WordCallback {
             ArrayList<SuggestedWords.SuggestedWordInfo> scoreInfoList =
                     new ArrayList<SuggestedWords.SuggestedWordInfo>();
             scoreInfoList.add(new SuggestedWords.SuggestedWordInfo("+", false));
-            for (int i = 0; i < mScores.length; ++i) {
+            for (int i = 0; i < mPrefMaxSuggestions; ++i) {
                 if (normalizedScore > 0) {
-                    final String scoreThreshold = String.format("%d (%4.2f)", mScores[i],
+                    final String scoreThreshold = String.format("%d (%4.2f)", scores[i],
                             normalizedScore);
                     scoreInfoList.add(
                             new SuggestedWords.SuggestedWordInfo(scoreThreshold, false));
                     normalizedScore = 0.0;
                 } else {
-                    final String score = Integer.toString(mScores[i]);
+                    final String score = Integer.toString(scores[i]);
                     scoreInfoList.add(new SuggestedWords.SuggestedWordInfo(score, false));
                 }
             }
-            for (int i = mScores.length; i < mSuggestions.size(); ++i) {
+            for (int i = mPrefMaxSuggestions; i < mSuggestions.size(); ++i) {
                 scoreInfoList.add(new SuggestedWords.SuggestedWordInfo("--", false));
             }
             return new SuggestedWords.Builder().addWords(mSuggestions, scoreInfoList);
         }
-        return new SuggestedWords.Builder().addWords(mSuggestions, null);
+        return mBuilder.clear().addWords(mSuggestions, null);
     }
 
     public boolean hasAutoCorrection() {
@@ -407,19 +442,18 @@ public class Suggest implements Dictionary.WordCallback {
     @Override
     public boolean addWord(final char[] word, final int offset, final int length, int score,
             final int dicTypeId, final Dictionary.DataType dataType) {
-        Dictionary.DataType dataTypeForLog = dataType;
-        final ArrayList<CharSequence> suggestions;
-        final int[] sortedScores;
+        Dictionary.DataType dataTypeForLog = dataType == Dictionary.DataType.BOOSTED_UNIGRAM
+                ? Dictionary.DataType.BIGRAM : dataType;
+        final SuggestionBuffer suggestions;
         final int prefMaxSuggestions;
         if(dataType == Dictionary.DataType.BIGRAM) {
-            suggestions = mBigramSuggestions;
-            sortedScores = mBigramScores;
+            suggestions = mBigramSuggestionBuffer;
             prefMaxSuggestions = PREF_MAX_BIGRAMS;
         } else {
-            suggestions = mSuggestions;
-            sortedScores = mScores;
+            suggestions = mSuggestionBuffer;
             prefMaxSuggestions = mPrefMaxSuggestions;
         }
+        final int[] sortedScores = suggestions.getScores();
 
         int pos = 0;
 
@@ -428,7 +462,7 @@ public class Suggest implements Dictionary.WordCallback {
             // TODO: remove this surrounding if clause and move this logic to
             // getSuggestedWordBuilder.
             if (suggestions.size() > 0) {
-                final String currentHighestWord = suggestions.get(0).toString();
+                final CharSequence currentHighestWord = suggestions.getWord(0);
                 // If the current highest word is also equal to typed word, we need to compare
                 // frequency to determine the insertion position. This does not ensure strictly
                 // correct ordering, but ensures the top score is on top which is enough for
@@ -445,14 +479,15 @@ public class Suggest implements Dictionary.WordCallback {
                 if(bigramSuggestion >= 0) {
                     dataTypeForLog = Dictionary.DataType.BIGRAM;
                     // turn freq from bigram into multiplier specified above
-                    double multiplier = (((double) mBigramScores[bigramSuggestion])
+                    final int bigramScore = mBigramSuggestionBuffer.getScores()[bigramSuggestion];
+                    double multiplier = (((double) bigramScore)
                             / MAXIMUM_BIGRAM_FREQUENCY)
                             * (BIGRAM_MULTIPLIER_MAX - BIGRAM_MULTIPLIER_MIN)
                             + BIGRAM_MULTIPLIER_MIN;
                     /* Log.d(TAG,"bigram num: " + bigramSuggestion
                             + "  wordB: " + mBigramSuggestions.get(bigramSuggestion).toString()
                             + "  currentScore: " + score + "  bigramScore: "
-                            + mBigramScores[bigramSuggestion]
+                            + bigramScore
                             + "  multiplier: " + multiplier); */
                     score = (int)Math.round((score * multiplier));
                 }
@@ -462,7 +497,7 @@ public class Suggest implements Dictionary.WordCallback {
             if (sortedScores[prefMaxSuggestions - 1] >= score) return true;
             while (pos < prefMaxSuggestions) {
                 if (sortedScores[pos] < score
-                        || (sortedScores[pos] == score && length < suggestions.get(pos).length())) {
+                        || (sortedScores[pos] == score && length < suggestions.getLength(pos))) {
                     break;
                 }
                 pos++;
@@ -472,70 +507,32 @@ public class Suggest implements Dictionary.WordCallback {
             return true;
         }
 
-        System.arraycopy(sortedScores, pos, sortedScores, pos + 1, prefMaxSuggestions - pos - 1);
-        sortedScores[pos] = score;
-        final StringBuilder sb = StringBuilderPool.getStringBuilder(getApproxMaxWordLength());
+        final boolean dropsLast = suggestions.size() >= prefMaxSuggestions;
+        suggestions.insert(pos, word, offset, length, score, dicTypeId, prefMaxSuggestions);
         // TODO: Must pay attention to locale when changing case.
-        if (mIsAllUpperCase) {
-            sb.append(new String(word, offset, length).toUpperCase());
-        } else if (mIsFirstCharCapitalized) {
-            sb.append(Character.toUpperCase(word[offset]));
-            if (length > 1) {
-                sb.append(word, offset + 1, length - 1);
-            }
-        } else {
-            sb.append(word, offset, length);
+        if (mIsAllUpperCase || mIsFirstCharCapitalized) {
+            suggestions.toUpperCase(pos, mIsAllUpperCase);
         }
-        suggestions.add(pos, sb);
-        if (suggestions.size() > prefMaxSuggestions) {
-            final CharSequence garbage = suggestions.remove(prefMaxSuggestions);
-            if (garbage instanceof StringBuilder) {
-                StringBuilderPool.recycle((StringBuilder)garbage);
-            }
-        } else {
-            LatinImeLogger.onAddSuggestedWord(sb.toString(), dicTypeId, dataTypeForLog);
+        if (suggestions == mBigramSuggestionBuffer) mBigramSuggestionIndexIsValid = false;
+        if (!dropsLast) {
+            LatinImeLogger.onAddSuggestedWord(suggestions.getWord(pos), dicTypeId,
+                    dataTypeForLog);
         }
         return true;
     }
 
     private int searchBigramSuggestion(final char[] word, final int offset, final int length) {
-        // TODO This is almost O(n^2). Might need fix.
         // search whether the word appeared in bigram data
-        int bigramSuggestSize = mBigramSuggestions.size();
-        for(int i = 0; i < bigramSuggestSize; i++) {
-            if(mBigramSuggestions.get(i).length() == length) {
-                boolean chk = true;
-                for(int j = 0; j < length; j++) {
-                    if(mBigramSuggestions.get(i).charAt(j) != word[offset+j]) {
-                        chk = false;
-                        break;
-                    }
-                }
-                if(chk) return i;
-            }
-        }
-
-        return -1;
-    }
-
-    private void collectGarbage(ArrayList<CharSequence> suggestions, int prefMaxSuggestions) {
-        int poolSize = StringBuilderPool.getSize();
-        int garbageSize = suggestions.size();
-        while (poolSize < prefMaxSuggestions && garbageSize > 0) {
-            final CharSequence garbage = suggestions.get(garbageSize - 1);
-            if (garbage instanceof StringBuilder) {
-                StringBuilderPool.recycle((StringBuilder)garbage);
-                poolSize++;
-            }
-            garbageSize--;
-        }
-        if (poolSize == prefMaxSuggestions + 1) {
-            Log.w("Suggest", "String pool got too big: " + poolSize);
+        if (!mBigramSuggestionIndexIsValid) {
+            mBigramSuggestionIndex.build(mBigramSuggestions);
+            mBigramSuggestionIndexIsValid = true;
         }
-        suggestions.clear();
+        return mBigramSuggestionIndex.indexOf(word, offset, length);
     }
 
-    public void close() {
+    // Synchronized so that a lookup running on the suggestion worker thread never sees its
+    // dictionaries closed under its feet.
+    public synchronized void close() {
         final Set<Dictionary> dictionaries = new HashSet<Dictionary>();
         dictionaries.addAll(mUnigramDictionaries.values());
         dictionaries.addAll(mBigramDictionaries.values());
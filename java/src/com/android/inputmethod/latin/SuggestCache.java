@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the Suggest and the user dictionaries of the locales that have been used recently, fully
+ * initialized, so that switching back to one of them does not reload its dictionaries.
+ *
+ * The cache only holds the locales that are not in use. The least recently used locale is closed
+ * when there are more than the capacity, and all of them are closed when memory is low. The
+ * contacts dictionary is shared by all the locales, so it is never kept in the cache.
+ *
+ * Must only be used on the UI thread.
+ */
+public class SuggestCache {
+    public static class Entry {
+        public final Suggest mSuggest;
+        public final UserDictionary mUserDictionary;
+        public final UserUnigramDictionary mUserUnigramDictionary;
+        public final UserBigramDictionary mUserBigramDictionary;
+
+        public Entry(Suggest suggest, UserDictionary userDictionary,
+                UserUnigramDictionary userUnigramDictionary,
+                UserBigramDictionary userBigramDictionary) {
+            mSuggest = suggest;
+            mUserDictionary = userDictionary;
+            mUserUnigramDictionary = userUnigramDictionary;
+            mUserBigramDictionary = userBigramDictionary;
+        }
+
+        // Closing the Suggest closes the user dictionaries, which flushes their pending writes.
+        private void close() {
+            mSuggest.close();
+        }
+    }
+
+    private final int mCapacity;
+    // By locale string, from the least recently used.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+    public SuggestCache(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Keeps the entry of a locale that is no longer in use. Its contacts dictionary must have
+     * been detached, see {@link Suggest#detachContactsDictionary}.
+     */
+    public void put(String localeStr, Entry entry) {
+        final Entry oldEntry = mEntries.remove(localeStr);
+        if (oldEntry != null && oldEntry != entry) oldEntry.close();
+        // What the user has learned must not be lost if the process is killed while the locale
+        // is in the cache.
+        if (entry.mUserUnigramDictionary != null) {
+            entry.mUserUnigramDictionary.flushPendingWrites();
+        }
+        if (entry.mUserBigramDictionary != null) {
+            entry.mUserBigramDictionary.flushPendingWrites();
+        }
+        mEntries.put(localeStr, entry);
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mEntries.size() > mCapacity) {
+            final Entry eldest = iterator.next();
+            iterator.remove();
+            eldest.close();
+        }
+    }
+
+    /**
+     * Removes the entry of a locale from the cache, to use it again.
+     * @return the entry, or null if the locale is not in the cache
+     */
+    public Entry remove(String localeStr) {
+        return mEntries.remove(localeStr);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Closes all the entries, e.g. when memory is low or when the dictionaries they use have
+     * changed.
+     */
+    public void clear() {
+        for (final Entry entry : mEntries.values()) {
+            entry.close();
+        }
+        mEntries.clear();
+    }
+}
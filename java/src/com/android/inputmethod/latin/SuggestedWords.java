@@ -82,15 +82,20 @@ public class SuggestedWords {
     }
 
     public static class Builder {
-        private List<CharSequence> mWords = new ArrayList<CharSequence>();
+        private final List<CharSequence> mWords;
         private boolean mTypedWordValid;
         private boolean mHasMinimalSuggestion;
         private boolean mIsPunctuationSuggestions;
-        private List<SuggestedWordInfo> mSuggestedWordInfoList =
-                new ArrayList<SuggestedWordInfo>();
+        private final List<SuggestedWordInfo> mSuggestedWordInfoList;
 
         public Builder() {
-            // Nothing to do here.
+            mWords = new ArrayList<CharSequence>();
+            mSuggestedWordInfoList = new ArrayList<SuggestedWordInfo>();
+        }
+
+        private Builder(int capacity) {
+            mWords = new ArrayList<CharSequence>(capacity);
+            mSuggestedWordInfoList = new ArrayList<SuggestedWordInfo>(capacity);
         }
 
         public Builder addWords(List<CharSequence> words,
@@ -102,7 +107,7 @@ public class SuggestedWords {
                     suggestedWordInfo = suggestedWordInfoList.get(i);
                 }
                 if (suggestedWordInfo == null) {
-                    suggestedWordInfo = new SuggestedWordInfo();
+                    suggestedWordInfo = SuggestedWordInfo.EMPTY;
                 }
                 addWord(words.get(i), suggestedWordInfo);
             }
@@ -128,6 +133,18 @@ public class SuggestedWords {
             return this;
         }
 
+        /**
+         * Removes the words and resets the flags, so that the builder can be used again.
+         */
+        public Builder clear() {
+            mWords.clear();
+            mSuggestedWordInfoList.clear();
+            mTypedWordValid = false;
+            mHasMinimalSuggestion = false;
+            mIsPunctuationSuggestions = false;
+            return this;
+        }
+
         public Builder setApplicationSpecifiedCompletions(CompletionInfo[] infos) {
             for (CompletionInfo info : infos) {
                 if (null != info) addWord(info.getText());
@@ -186,6 +203,24 @@ public class SuggestedWords {
             return mWords.get(pos);
         }
 
+        /**
+         * Returns a copy of this builder whose words are immutable strings. The words that
+         * {@link Suggest} adds are views of its buffer that the next lookup overwrites, so a
+         * builder that is handed over to another thread has to be copied first.
+         */
+        public Builder getStringCopy() {
+            final int N = mWords.size();
+            final Builder copy = new Builder(N);
+            for (int i = 0; i < N; ++i) {
+                copy.mWords.add(mWords.get(i).toString());
+                copy.mSuggestedWordInfoList.add(mSuggestedWordInfoList.get(i));
+            }
+            copy.mTypedWordValid = mTypedWordValid;
+            copy.mHasMinimalSuggestion = mHasMinimalSuggestion;
+            copy.mIsPunctuationSuggestions = mIsPunctuationSuggestions;
+            return copy;
+        }
+
         @Override
         public String toString() {
             // Pretty-print method to help debug
@@ -202,6 +237,9 @@ public class SuggestedWords {
     }
 
     public static class SuggestedWordInfo {
+        // Immutable, so it can be shared by all the words that have no info.
+        static final SuggestedWordInfo EMPTY = new SuggestedWordInfo();
+
         private final CharSequence mDebugString;
         private final boolean mPreviousSuggestedWord;
 
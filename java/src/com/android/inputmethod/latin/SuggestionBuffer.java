@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A fixed-capacity list of the best suggestions of a lookup, ranked by the caller, that keeps the
+ * characters of all the words in one flat array so that adding a word does not allocate.
+ *
+ * Each word is stored in a slot of the char array, and the ranks point to the slots, so inserting
+ * a word shifts a few ints instead of moving characters. The words are handed out as
+ * CharSequence views of their slots, that are created once. A view shows whatever word is at its
+ * slot, so the words are only valid until the buffer is changed again: use toString() to keep
+ * one.
+ */
+class SuggestionBuffer {
+    private final int mCapacity;
+    // The maximum length of a word, and the distance between two slots in mChars.
+    private int mMaxWordLength;
+    private char[] mChars;
+    // By slot.
+    private final int[] mLengths;
+    private final Word[] mWords;
+    // By rank. The ranks from mSize on hold the free slots, and a score of 0.
+    private final int[] mSlots;
+    private final int[] mScores;
+    private final int[] mDicTypeIds;
+    private int mSize;
+    private final List<CharSequence> mWordList = new AbstractList<CharSequence>() {
+        @Override
+        public CharSequence get(int rank) {
+            return getWord(rank);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    };
+
+    private class Word implements CharSequence {
+        private final int mSlot;
+
+        public Word(int slot) {
+            mSlot = slot;
+        }
+
+        @Override
+        public int length() {
+            return mLengths[mSlot];
+        }
+
+        @Override
+        public char charAt(int index) {
+            return mChars[mSlot * mMaxWordLength + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mChars, mSlot * mMaxWordLength, mLengths[mSlot]);
+        }
+    }
+
+    public SuggestionBuffer(int capacity, int maxWordLength) {
+        mCapacity = capacity;
+        mMaxWordLength = maxWordLength;
+        mChars = new char[capacity * maxWordLength];
+        mLengths = new int[capacity];
+        mWords = new Word[capacity];
+        mSlots = new int[capacity];
+        mScores = new int[capacity];
+        mDicTypeIds = new int[capacity];
+        for (int slot = 0; slot < capacity; slot++) {
+            mWords[slot] = new Word(slot);
+            mSlots[slot] = slot;
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        Arrays.fill(mScores, 0, mSize, 0);
+        mSize = 0;
+    }
+
+    public CharSequence getWord(int rank) {
+        return mWords[mSlots[rank]];
+    }
+
+    /**
+     * Returns a list view of the words, by rank.
+     */
+    public List<CharSequence> getWords() {
+        return mWordList;
+    }
+
+    public int getLength(int rank) {
+        return mLengths[mSlots[rank]];
+    }
+
+    public int getDicTypeId(int rank) {
+        return mDicTypeIds[rank];
+    }
+
+    /**
+     * Returns the scores by rank. The array is as long as the capacity, and the score of the
+     * ranks that have no word is 0.
+     */
+    public int[] getScores() {
+        return mScores;
+    }
+
+    /**
+     * Inserts the word at the rank. If there are already maxSize words, the last one is dropped.
+     * @param rank the rank of the word, at most the number of words and less than maxSize
+     */
+    public void insert(int rank, char[] word, int offset, int length, int score, int dicTypeId,
+            int maxSize) {
+        if (mSize >= maxSize) {
+            Arrays.fill(mScores, maxSize, mSize, 0);
+            mSize = maxSize - 1;
+        }
+        final int slot = mSlots[mSize];
+        final int count = mSize - rank;
+        System.arraycopy(mSlots, rank, mSlots, rank + 1, count);
+        System.arraycopy(mScores, rank, mScores, rank + 1, count);
+        System.arraycopy(mDicTypeIds, rank, mDicTypeIds, rank + 1, count);
+        mSlots[rank] = slot;
+        mScores[rank] = score;
+        mDicTypeIds[rank] = dicTypeId;
+        mSize++;
+        setChars(slot, word, offset, length);
+    }
+
+    /**
+     * Appends the word of another buffer with a score of 0, unless this buffer is full.
+     */
+    public void append(SuggestionBuffer source, int sourceRank) {
+        if (mSize == mCapacity) return;
+        final int sourceSlot = source.mSlots[sourceRank];
+        final int slot = mSlots[mSize];
+        mScores[mSize] = 0;
+        mDicTypeIds[mSize] = source.mDicTypeIds[sourceRank];
+        mSize++;
+        setChars(slot, source.mChars, sourceSlot * source.mMaxWordLength,
+                source.mLengths[sourceSlot]);
+    }
+
+    /**
+     * Capitalizes the first letter of the word at the rank, or all of them.
+     */
+    public void toUpperCase(int rank, boolean allUpperCase) {
+        final int slot = mSlots[rank];
+        final int start = slot * mMaxWordLength;
+        final int length = mLengths[slot];
+        if (length == 0) return;
+        if (!allUpperCase) {
+            mChars[start] = Character.toUpperCase(mChars[start]);
+            return;
+        }
+        // TODO: Must pay attention to locale when changing case.
+        if (isAscii(mChars, start, length) && !hasSpecialAsciiCasing(Locale.getDefault())) {
+            for (int i = start; i < start + length; i++) {
+                final char c = mChars[i];
+                if (c >= 'a' && c <= 'z') mChars[i] = (char)(c - 'a' + 'A');
+            }
+        } else {
+            // Upper casing may change the length of the word, like with a German sharp s.
+            final String upperCase = new String(mChars, start, length).toUpperCase();
+            setChars(slot, upperCase.toCharArray(), 0, upperCase.length());
+        }
+    }
+
+    private void setChars(int slot, char[] word, int offset, int length) {
+        if (length > mMaxWordLength) setMaxWordLength(length);
+        System.arraycopy(word, offset, mChars, slot * mMaxWordLength, length);
+        mLengths[slot] = length;
+    }
+
+    private void setMaxWordLength(int maxWordLength) {
+        final char[] chars = new char[mCapacity * maxWordLength];
+        for (int slot = 0; slot < mCapacity; slot++) {
+            System.arraycopy(mChars, slot * mMaxWordLength, chars, slot * maxWordLength,
+                    mLengths[slot]);
+        }
+        mChars = chars;
+        mMaxWordLength = maxWordLength;
+    }
+
+    private static boolean isAscii(char[] chars, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            if (chars[i] > 0x7F) return false;
+        }
+        return true;
+    }
+
+    // The Turkish and Azeri upper case of i is a dotted I.
+    private static boolean hasSpecialAsciiCasing(Locale locale) {
+        final String language = locale.getLanguage();
+        return "tr".equals(language) || "az".equals(language);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+import com.android.inputmethod.keyboard.ProximityInfo;
+
+/**
+ * Computes suggestions on a dedicated background thread, so that slow dictionary lookups don't
+ * delay the processing and the rendering of the next key press.
+ *
+ * Every request carries its own snapshot of the composing word and of the previous word. Only the
+ * most recent request is ever served: a request that has been superseded by a newer one before its
+ * lookup starts is dropped, and a result that has been superseded while it was being computed is
+ * discarded before it reaches the suggestion strip.
+ */
+public class SuggestionWorker {
+    private static final String TAG = SuggestionWorker.class.getSimpleName();
+
+    private static final int NOT_A_SEQUENCE_NUMBER = -1;
+
+    public interface Listener {
+        /**
+         * Called on the worker thread when the suggestions for the latest request are available.
+         * @param result the suggestions, which can be handed over to the UI thread as is.
+         */
+        public void onSuggestionsComputed(Result result);
+    }
+
+    /**
+     * An immutable snapshot of everything a suggestion lookup needs.
+     */
+    public static class Request {
+        public final int mSequenceNumber;
+        public final Suggest mSuggest;
+        public final WordComposer mWordComposer;
+        public final CharSequence mPrevWord;
+        public final ProximityInfo mProximityInfo;
+        // The System.nanoTime() of the event that asked for the lookup.
+        public final long mRequestTime;
+
+        private Request(int sequenceNumber, Suggest suggest, WordComposer wordComposer,
+                CharSequence prevWord, ProximityInfo proximityInfo, long requestTime) {
+            mSequenceNumber = sequenceNumber;
+            mSuggest = suggest;
+            // The composer of the IME keeps changing while the request is in flight.
+            mWordComposer = new WordComposer(wordComposer);
+            mPrevWord = (prevWord == null) ? null : prevWord.toString();
+            mProximityInfo = proximityInfo;
+            mRequestTime = requestTime;
+        }
+    }
+
+    public static class Result {
+        public final Request mRequest;
+        public final SuggestedWords.Builder mBuilder;
+        public final boolean mHasAutoCorrection;
+        public final boolean mAllowsToBeAutoCorrected;
+
+        private Result(Request request, SuggestedWords.Builder builder, boolean hasAutoCorrection,
+                boolean allowsToBeAutoCorrected) {
+            mRequest = request;
+            mBuilder = builder;
+            mHasAutoCorrection = hasAutoCorrection;
+            mAllowsToBeAutoCorrected = allowsToBeAutoCorrected;
+        }
+
+        public CharSequence getTypedWord() {
+            return mRequest.mWordComposer.getTypedWord();
+        }
+    }
+
+    private final Listener mListener;
+    private final HandlerThread mThread;
+    private final WorkerHandler mHandler;
+
+    // Written only by the UI thread, read by the worker thread to detect stale requests.
+    private volatile int mLatestSequenceNumber;
+    // The request that has been posted but whose result has not been delivered yet. UI thread only.
+    private int mPendingSequenceNumber = NOT_A_SEQUENCE_NUMBER;
+
+    private static class WorkerHandler extends StaticInnerHandlerWrapper<SuggestionWorker> {
+        private static final int MSG_COMPUTE_SUGGESTIONS = 0;
+
+        public WorkerHandler(SuggestionWorker outerInstance, HandlerThread thread) {
+            super(outerInstance, thread.getLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            final SuggestionWorker worker = getOuterInstance();
+            if (worker == null) return;
+            switch (msg.what) {
+            case MSG_COMPUTE_SUGGESTIONS:
+                worker.computeAndDeliver((Request)msg.obj);
+                break;
+            }
+        }
+
+        public void postComputeSuggestions(Request request) {
+            // Only the newest request is worth computing.
+            removeMessages(MSG_COMPUTE_SUGGESTIONS);
+            sendMessage(obtainMessage(MSG_COMPUTE_SUGGESTIONS, request));
+        }
+
+        public void cancelComputeSuggestions() {
+            removeMessages(MSG_COMPUTE_SUGGESTIONS);
+        }
+    }
+
+    public SuggestionWorker(Listener listener) {
+        mListener = listener;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DEFAULT);
+        mThread.start();
+        mHandler = new WorkerHandler(this, mThread);
+    }
+
+    /**
+     * Creates a request for the current state of the composing word. This invalidates any request
+     * that has been created before. Must be called on the UI thread.
+     */
+    public Request newRequest(Suggest suggest, WordComposer wordComposer, CharSequence prevWord,
+            ProximityInfo proximityInfo, long requestTime) {
+        return new Request(++mLatestSequenceNumber, suggest, wordComposer, prevWord,
+                proximityInfo, requestTime);
+    }
+
+    /**
+     * Queues the request for the worker thread. Must be called on the UI thread.
+     */
+    public void post(Request request) {
+        mPendingSequenceNumber = request.mSequenceNumber;
+        mHandler.postComputeSuggestions(request);
+    }
+
+    /**
+     * Invalidates all the requests that are queued or being computed. Must be called on the UI
+     * thread.
+     */
+    public void cancel() {
+        ++mLatestSequenceNumber;
+        mHandler.cancelComputeSuggestions();
+        mPendingSequenceNumber = NOT_A_SEQUENCE_NUMBER;
+    }
+
+    public boolean hasPendingRequest() {
+        return mPendingSequenceNumber != NOT_A_SEQUENCE_NUMBER;
+    }
+
+    /**
+     * Returns whether the result can still be shown. This must be checked on the UI thread before
+     * showing the result, because the user may have typed another key while it was on its way.
+     * A result that is accepted is considered to be delivered.
+     */
+    public boolean acceptResult(Result result) {
+        final Request request = result.mRequest;
+        if (request.mSequenceNumber != mLatestSequenceNumber) {
+            return false;
+        }
+        mPendingSequenceNumber = NOT_A_SEQUENCE_NUMBER;
+        LatencyMetrics.KEY_TO_SUGGESTION_STRIP.recordSince(request.mRequestTime);
+        return true;
+    }
+
+    public void quit() {
+        cancel();
+        mThread.quit();
+    }
+
+    private boolean isStale(Request request) {
+        return request.mSequenceNumber != mLatestSequenceNumber;
+    }
+
+    private void computeAndDeliver(Request request) {
+        if (isStale(request)) {
+            // A newer key stroke came in while this request was waiting in the queue. It is
+            // simply skipped.
+            return;
+        }
+        final long startTime = System.nanoTime();
+        final Result result = computeSuggestions(request, true);
+        LatencyMetrics.SUGGESTION_LOOKUP.recordSince(startTime);
+        if (result == null || isStale(request)) return;
+        mListener.onSuggestionsComputed(result);
+    }
+
+    /**
+     * Runs the lookup for the request on the calling thread.
+     */
+    public Result computeSuggestionsSynchronously(Request request) {
+        mPendingSequenceNumber = NOT_A_SEQUENCE_NUMBER;
+        return computeSuggestions(request, false);
+    }
+
+    private Result computeSuggestions(Request request, boolean checkStaleness) {
+        final Suggest suggest = request.mSuggest;
+        final WordComposer wordComposer = request.mWordComposer;
+        // Suggest keeps per-lookup state in member variables, so it may only serve one lookup at
+        // a time. Closing it also synchronizes on it.
+        synchronized (suggest) {
+            // Check again now that we hold the lock: the suggest may have been closed meanwhile.
+            if (checkStaleness && isStale(request)) return null;
+            final SuggestedWords.Builder builder = suggest.getSuggestedWordBuilder(
+                    wordComposer, request.mPrevWord, request.mProximityInfo);
+            final boolean hasAutoCorrection = suggest.hasAutoCorrection();
+            final boolean allowsToBeAutoCorrected = AutoCorrection.allowsToBeAutoCorrected(
+                    suggest.getUnigramDictionaries(), wordComposer.getTypedWord(),
+                    wordComposer.isFirstCharCapitalized());
+            // The words of the builder are views of the SuggestionBuffer that the next lookup
+            // reuses, while the result is still shown in the suggestion strip, so the result
+            // copies the words out of the buffer.
+            return new Result(request, builder.getStringCopy(), hasAutoCorrection,
+                    allowsToBeAutoCorrected);
+        }
+    }
+}
@@ -552,9 +552,11 @@ public class SuggestionsView extends RelativeLayout implements OnClickListener,
         if (suggestions == null || suggestions.size() == 0)
             return;
 
+        final long startTime = System.nanoTime();
         clear();
         mSuggestions = suggestions;
         mParams.layout(mSuggestions, mSuggestionsStrip, this, getWidth());
+        LatencyMetrics.SUGGESTIONS_LAYOUT.recordSince(startTime);
     }
 
     private static CharSequence getDebugInfo(SuggestedWords suggestions, int pos) {
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot of the trie of an {@link ExpandableDictionary} in the private files of the
+ * application, so that the words are back as soon as the process starts, before they have been
+ * loaded from where they come from.
+ *
+ * The file is a header of the magic number, the version, the length and the CRC32 of the data,
+ * followed by the data written by {@link CompactTrie#writeTo}. Reading maps the file in memory
+ * and copies the arrays in bulk. A snapshot is written to a temporary file that then replaces the
+ * previous one, so a crash never leaves a half written snapshot behind, and a file that does not
+ * check out is ignored.
+ */
+class TrieSnapshot {
+    private static final String TAG = TrieSnapshot.class.getSimpleName();
+
+    private static final String FILE_SUFFIX = ".trie";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    private static final int MAGIC_NUMBER = 0x4C545249;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 4;
+
+    private final File mFile;
+
+    public TrieSnapshot(File directory, String name) {
+        mFile = new File(directory, name + FILE_SUFFIX);
+    }
+
+    /**
+     * Returns the trie of the snapshot, or null if there is no valid snapshot.
+     */
+    public CompactTrie read() {
+        if (!mFile.exists()) return null;
+        try {
+            final FileInputStream stream = new FileInputStream(mFile);
+            try {
+                final FileChannel channel = stream.getChannel();
+                final long size = channel.size();
+                if (size < HEADER_SIZE) return null;
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        size);
+                if (buffer.getInt() != MAGIC_NUMBER || buffer.getInt() != VERSION) {
+                    Log.w(TAG, mFile + " is not a snapshot of this version");
+                    return null;
+                }
+                final int length = buffer.getInt();
+                final int crc = buffer.getInt();
+                if (length != size - HEADER_SIZE || crc != getCrc(buffer)) {
+                    Log.w(TAG, mFile + " is broken");
+                    return null;
+                }
+                final CompactTrie trie = CompactTrie.readFrom(buffer);
+                if (trie == null) Log.w(TAG, mFile + " is not a valid trie");
+                return trie;
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't read " + mFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the trie.
+     */
+    public void write(CompactTrie trie) {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + trie.getSerializedSize());
+        buffer.position(HEADER_SIZE);
+        trie.writeTo(buffer);
+        buffer.flip();
+        buffer.position(HEADER_SIZE);
+        final int crc = getCrc(buffer);
+        buffer.putInt(0, MAGIC_NUMBER).putInt(4, VERSION)
+                .putInt(8, buffer.limit() - HEADER_SIZE).putInt(12, crc);
+        buffer.position(0);
+        File temporaryFile = null;
+        try {
+            // Several dictionaries may write the same snapshot at once, each to its own file.
+            temporaryFile = File.createTempFile(mFile.getName(), TEMPORARY_FILE_SUFFIX,
+                    mFile.getParentFile());
+            final FileOutputStream stream = new FileOutputStream(temporaryFile);
+            try {
+                final FileChannel channel = stream.getChannel();
+                while (buffer.hasRemaining()) channel.write(buffer);
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            if (!temporaryFile.renameTo(mFile)) {
+                throw new IOException("Can't rename " + temporaryFile);
+            }
+            temporaryFile = null;
+        } catch (IOException e) {
+            Log.e(TAG, "Can't write " + mFile, e);
+        } finally {
+            if (temporaryFile != null) temporaryFile.delete();
+        }
+    }
+
+    // Computes the CRC32 of the rest of the buffer, without moving its position.
+    private static int getCrc(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[8192];
+        final ByteBuffer data = buffer.duplicate();
+        while (data.hasRemaining()) {
+            final int length = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int)crc.getValue();
+    }
+}
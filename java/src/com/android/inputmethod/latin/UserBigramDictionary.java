@@ -16,65 +16,41 @@
 
 package com.android.inputmethod.latin;
 
-import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
-import android.database.sqlite.SQLiteQueryBuilder;
-import android.os.AsyncTask;
-import android.provider.BaseColumns;
-import android.util.Log;
-
-import java.util.HashMap;
+
 import java.util.HashSet;
-import java.util.Iterator;
 
 /**
- * Stores all the pairs user types in databases. Prune the database if the size
+ * Stores all the pairs user types in a log. Prune the log if the size
  * gets too big. Unlike AutoDictionary, it even stores the pairs that are already
  * in the dictionary.
+ *
+ * The frequency of a pair halves every {@link #FREQUENCY_HALF_LIFE} it is not typed, so that
+ * the pairs that were typed often a long time ago give way to the pairs typed recently, and the
+ * pairs that are not typed any more are eventually forgotten. When there are too many pairs, the
+ * ones with the lowest decayed frequency are evicted, from memory as well as from the log.
  */
 public class UserBigramDictionary extends ExpandableDictionary {
-    private static final String TAG = "UserBigramDictionary";
-
     /** Any pair being typed or picked */
     private static final int FREQUENCY_FOR_TYPED = 2;
 
     /** Maximum frequency for all pairs */
     private static final int FREQUENCY_MAX = 127;
 
-    /** Maximum number of pairs. Pruning will start when databases goes above this number. */
-    private static int sMaxUserBigrams = 10000;
+    /** The unit of the times of the pairs, in milliseconds: one hour. */
+    private static final long TIME_UNIT = 60 * 60 * 1000;
 
-    /**
-     * When it hits maximum bigram pair, it will delete until you are left with
-     * only (sMaxUserBigrams - sDeleteUserBigrams) pairs.
-     * Do not keep this number small to avoid deleting too often.
-     */
-    private static int sDeleteUserBigrams = 1000;
+    /** The time it takes for the frequency of a pair to halve, in {@link #TIME_UNIT}s. */
+    private static final int FREQUENCY_HALF_LIFE = 30 * 24;
 
     /**
-     * Database version should increase if the database structure changes
+     * 2^(-i / 16) for i in [0, 16), in 16.16 fixed point, to decay by fractions of a half life
+     * without floating point.
      */
-    private static final int DATABASE_VERSION = 1;
-
-    private static final String DATABASE_NAME = "userbigram_dict.db";
-
-    /** Name of the words table in the database */
-    private static final String MAIN_TABLE_NAME = "main";
-    // TODO: Consume less space by using a unique id for locale instead of the whole
-    // 2-5 character string. (Same TODO from AutoDictionary)
-    private static final String MAIN_COLUMN_ID = BaseColumns._ID;
-    private static final String MAIN_COLUMN_WORD1 = "word1";
-    private static final String MAIN_COLUMN_WORD2 = "word2";
-    private static final String MAIN_COLUMN_LOCALE = "locale";
-
-    /** Name of the frequency table in the database */
-    private static final String FREQ_TABLE_NAME = "frequency";
-    private static final String FREQ_COLUMN_ID = BaseColumns._ID;
-    private static final String FREQ_COLUMN_PAIR_ID = "pair_id";
-    private static final String FREQ_COLUMN_FREQUENCY = "freq";
+    private static final int[] DECAY_FRACTIONS = {
+        65536, 62757, 60097, 57549, 55109, 52773, 50535, 48393,
+        46341, 44376, 42495, 40693, 38968, 37316, 35734, 34219
+    };
 
     private final LatinIME mIme;
 
@@ -83,33 +59,24 @@ public class UserBigramDictionary extends ExpandableDictionary {
 
     private HashSet<Bigram> mPendingWrites = new HashSet<Bigram>();
     private final Object mPendingWritesLock = new Object();
-    private static volatile boolean sUpdatingDB = false;
-
-    private final static HashMap<String, String> sDictProjectionMap;
 
-    static {
-        sDictProjectionMap = new HashMap<String, String>();
-        sDictProjectionMap.put(MAIN_COLUMN_ID, MAIN_COLUMN_ID);
-        sDictProjectionMap.put(MAIN_COLUMN_WORD1, MAIN_COLUMN_WORD1);
-        sDictProjectionMap.put(MAIN_COLUMN_WORD2, MAIN_COLUMN_WORD2);
-        sDictProjectionMap.put(MAIN_COLUMN_LOCALE, MAIN_COLUMN_LOCALE);
-
-        sDictProjectionMap.put(FREQ_COLUMN_ID, FREQ_COLUMN_ID);
-        sDictProjectionMap.put(FREQ_COLUMN_PAIR_ID, FREQ_COLUMN_PAIR_ID);
-        sDictProjectionMap.put(FREQ_COLUMN_FREQUENCY, FREQ_COLUMN_FREQUENCY);
-    }
+    private final UserBigramLog mLog;
 
-    private static DatabaseHelper sOpenHelper = null;
+    // Whether there are too many pairs in memory, so that the next update of the dictionary
+    // evicts some of them.
+    private volatile boolean mEvictionRequired;
 
-    private static class Bigram {
+    static class Bigram {
         public final String mWord1;
         public final String mWord2;
         public final int mFrequency;
+        public final int mTime;
 
-        Bigram(String word1, String word2, int frequency) {
+        Bigram(String word1, String word2, int frequency, int time) {
             this.mWord1 = word1;
             this.mWord2 = word2;
             this.mFrequency = frequency;
+            this.mTime = time;
         }
 
         @Override
@@ -125,37 +92,70 @@ public class UserBigramDictionary extends ExpandableDictionary {
     }
 
     public void setDatabaseMax(int maxUserBigram) {
-        sMaxUserBigrams = maxUserBigram;
+        mLog.setMaxBigrams(maxUserBigram);
     }
 
     public void setDatabaseDelete(int deleteUserBigram) {
-        sDeleteUserBigrams = deleteUserBigram;
+        mLog.setDeleteBigrams(deleteUserBigram);
+    }
+
+    /**
+     * Returns the current time, in the unit of the times of the pairs.
+     */
+    static int getCurrentTime() {
+        return (int)(System.currentTimeMillis() / TIME_UNIT);
+    }
+
+    /**
+     * Returns the frequency a pair has now if it had the frequency at the time. It halves every
+     * {@link #FREQUENCY_HALF_LIFE}.
+     */
+    static int getDecayedFrequency(int frequency, int time, int now) {
+        final int elapsed = now - time;
+        if (elapsed <= 0) return frequency;
+        final int halvings = elapsed / FREQUENCY_HALF_LIFE;
+        if (halvings >= 31) return 0;
+        final int fraction = DECAY_FRACTIONS[(elapsed % FREQUENCY_HALF_LIFE)
+                * DECAY_FRACTIONS.length / FREQUENCY_HALF_LIFE];
+        return (int)(((long)frequency * fraction) >> (16 + halvings));
+    }
+
+    @Override
+    protected int getBigramTime() {
+        return getCurrentTime();
+    }
+
+    @Override
+    protected int decayBigramFrequency(int frequency, int time, int now) {
+        return getDecayedFrequency(frequency, time, now);
     }
 
     public UserBigramDictionary(Context context, LatinIME ime, String locale, int dicTypeId) {
         super(context, dicTypeId);
         mIme = ime;
         mLocale = locale;
-        if (sOpenHelper == null) {
-            sOpenHelper = new DatabaseHelper(getContext());
-        }
+        mLog = UserBigramLog.getInstance(context);
         if (mLocale != null && mLocale.length() > 1) {
             loadDictionary();
         }
     }
 
+    @Override
+    protected String getSnapshotName() {
+        return "userbigram_dict_" + mLocale;
+    }
+
     @Override
     public void close() {
         flushPendingWrites();
-        // Don't close the database as locale changes will require it to be reopened anyway
-        // Also, the database is written to somewhat frequently, so it needs to be kept alive
+        // Don't close the log as locale changes will require it to be reopened anyway
+        // Also, the log is written to somewhat frequently, so it needs to be kept alive
         // throughout the life of the process.
-        // mOpenHelper.close();
         super.close();
     }
 
     /**
-     * Pair will be added to the userbigram database.
+     * Pair will be added to the userbigram log.
      */
     public int addBigrams(String word1, String word2) {
         // remove caps if second word is autocapitalized
@@ -167,233 +167,89 @@ public class UserBigramDictionary extends ExpandableDictionary {
             return 0;
         }
 
+        final int time = getCurrentTime();
         int freq = super.addBigram(word1, word2, FREQUENCY_FOR_TYPED);
         if (freq > FREQUENCY_MAX) freq = FREQUENCY_MAX;
         synchronized (mPendingWritesLock) {
             if (freq == FREQUENCY_FOR_TYPED || mPendingWrites.isEmpty()) {
-                mPendingWrites.add(new Bigram(word1, word2, freq));
+                mPendingWrites.add(new Bigram(word1, word2, freq, time));
             } else {
-                Bigram bi = new Bigram(word1, word2, freq);
+                Bigram bi = new Bigram(word1, word2, freq, time);
                 mPendingWrites.remove(bi);
                 mPendingWrites.add(bi);
             }
         }
+        evictBigramsIfNeeded();
 
         return freq;
     }
 
     /**
-     * Schedules a background thread to write any pending words to the database.
+     * Keeps the number of pairs in memory under the maximum of the log, the same way the log
+     * prunes them. Once there are too many pairs, they are evicted in a batch down to the
+     * maximum minus the number of pairs to delete, by an update of the dictionary on a
+     * background thread: the trie is rebuilt without them, which is too slow for the UI thread.
      */
-    public void flushPendingWrites() {
-        synchronized (mPendingWritesLock) {
-            // Nothing pending? Return
-            if (mPendingWrites.isEmpty()) return;
-            // Create a background thread to write the pending entries
-            new UpdateDbTask(sOpenHelper, mPendingWrites, mLocale).execute();
-            // Create a new map for writing new entries into while the old one is written to db
-            mPendingWrites = new HashSet<Bigram>();
-        }
+    private void evictBigramsIfNeeded() {
+        if (getBigramCount() <= mLog.getMaxBigrams()) return;
+        mEvictionRequired = true;
+        // This does nothing if a load or an update is already in progress. The next pair added
+        // tries again.
+        loadDictionary();
     }
 
-    /** Used for testing purpose **/
-    void waitUntilUpdateDBDone() {
-        synchronized (mPendingWritesLock) {
-            while (sUpdatingDB) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                }
-            }
-            return;
+    private void evictBigrams() {
+        mEvictionRequired = false;
+        final int maxBigrams = mLog.getMaxBigrams();
+        if (getBigramCount() > maxBigrams) {
+            retainBigrams(maxBigrams - mLog.getDeleteBigrams());
         }
     }
 
     @Override
-    public void loadDictionaryAsync() {
-        // Load the words that correspond to the current input locale
-        Cursor cursor = query(MAIN_COLUMN_LOCALE + "=?", new String[] { mLocale });
-        try {
-            if (cursor.moveToFirst()) {
-                int word1Index = cursor.getColumnIndex(MAIN_COLUMN_WORD1);
-                int word2Index = cursor.getColumnIndex(MAIN_COLUMN_WORD2);
-                int frequencyIndex = cursor.getColumnIndex(FREQ_COLUMN_FREQUENCY);
-                while (!cursor.isAfterLast()) {
-                    String word1 = cursor.getString(word1Index);
-                    String word2 = cursor.getString(word2Index);
-                    int frequency = cursor.getInt(frequencyIndex);
-                    // Safeguard against adding really long words. Stack may overflow due
-                    // to recursive lookup
-                    if (word1.length() < MAX_WORD_LENGTH && word2.length() < MAX_WORD_LENGTH) {
-                        super.setBigram(word1, word2, frequency);
-                    }
-                    cursor.moveToNext();
-                }
-            }
-        } finally {
-            cursor.close();
-        }
+    protected boolean canUpdateDictionary() {
+        // The pairs in memory are up to date with the log, so an update only has to evict some.
+        return mEvictionRequired;
     }
 
-    /**
-     * Query the database
-     */
-    private Cursor query(String selection, String[] selectionArgs) {
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-
-        // main INNER JOIN frequency ON (main._id=freq.pair_id)
-        qb.setTables(MAIN_TABLE_NAME + " INNER JOIN " + FREQ_TABLE_NAME + " ON ("
-                + MAIN_TABLE_NAME + "." + MAIN_COLUMN_ID + "=" + FREQ_TABLE_NAME + "."
-                + FREQ_COLUMN_PAIR_ID +")");
-
-        qb.setProjectionMap(sDictProjectionMap);
-
-        // Get the database and run the query
-        SQLiteDatabase db = sOpenHelper.getReadableDatabase();
-        Cursor c = qb.query(db,
-                new String[] { MAIN_COLUMN_WORD1, MAIN_COLUMN_WORD2, FREQ_COLUMN_FREQUENCY },
-                selection, selectionArgs, null, null, null);
-        return c;
+    @Override
+    protected void updateDictionaryAsync() {
+        evictBigrams();
     }
 
     /**
-     * This class helps open, create, and upgrade the database file.
+     * Schedules a background thread to write any pending words to the log.
      */
-    private static class DatabaseHelper extends SQLiteOpenHelper {
-
-        DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
-        }
-
-        @Override
-        public void onCreate(SQLiteDatabase db) {
-            db.execSQL("PRAGMA foreign_keys = ON;");
-            db.execSQL("CREATE TABLE " + MAIN_TABLE_NAME + " ("
-                    + MAIN_COLUMN_ID + " INTEGER PRIMARY KEY,"
-                    + MAIN_COLUMN_WORD1 + " TEXT,"
-                    + MAIN_COLUMN_WORD2 + " TEXT,"
-                    + MAIN_COLUMN_LOCALE + " TEXT"
-                    + ");");
-            db.execSQL("CREATE TABLE " + FREQ_TABLE_NAME + " ("
-                    + FREQ_COLUMN_ID + " INTEGER PRIMARY KEY,"
-                    + FREQ_COLUMN_PAIR_ID + " INTEGER,"
-                    + FREQ_COLUMN_FREQUENCY + " INTEGER,"
-                    + "FOREIGN KEY(" + FREQ_COLUMN_PAIR_ID + ") REFERENCES " + MAIN_TABLE_NAME
-                    + "(" + MAIN_COLUMN_ID + ")" + " ON DELETE CASCADE"
-                    + ");");
-        }
-
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + MAIN_TABLE_NAME);
-            db.execSQL("DROP TABLE IF EXISTS " + FREQ_TABLE_NAME);
-            onCreate(db);
+    public void flushPendingWrites() {
+        synchronized (mPendingWritesLock) {
+            // Nothing pending? Return
+            if (mPendingWrites.isEmpty()) return;
+            // The log writes the pending entries on its own thread
+            mLog.write(mLocale, mPendingWrites);
+            // Create a new map for writing new entries into while the old one is written to the log
+            mPendingWrites = new HashSet<Bigram>();
         }
     }
 
-    /**
-     * Async task to write pending words to the database so that it stays in sync with
-     * the in-memory trie.
-     */
-    private static class UpdateDbTask extends AsyncTask<Void, Void, Void> {
-        private final HashSet<Bigram> mMap;
-        private final DatabaseHelper mDbHelper;
-        private final String mLocale;
-
-        public UpdateDbTask(DatabaseHelper openHelper, HashSet<Bigram> pendingWrites,
-                String locale) {
-            mMap = pendingWrites;
-            mLocale = locale;
-            mDbHelper = openHelper;
-        }
-
-        /** Prune any old data if the database is getting too big. */
-        private void checkPruneData(SQLiteDatabase db) {
-            db.execSQL("PRAGMA foreign_keys = ON;");
-            Cursor c = db.query(FREQ_TABLE_NAME, new String[] { FREQ_COLUMN_PAIR_ID },
-                    null, null, null, null, null);
-            try {
-                int totalRowCount = c.getCount();
-                // prune out old data if we have too much data
-                if (totalRowCount > sMaxUserBigrams) {
-                    int numDeleteRows = (totalRowCount - sMaxUserBigrams) + sDeleteUserBigrams;
-                    int pairIdColumnId = c.getColumnIndex(FREQ_COLUMN_PAIR_ID);
-                    c.moveToFirst();
-                    int count = 0;
-                    while (count < numDeleteRows && !c.isAfterLast()) {
-                        String pairId = c.getString(pairIdColumnId);
-                        // Deleting from MAIN table will delete the frequencies
-                        // due to FOREIGN KEY .. ON DELETE CASCADE
-                        db.delete(MAIN_TABLE_NAME, MAIN_COLUMN_ID + "=?",
-                            new String[] { pairId });
-                        c.moveToNext();
-                        count++;
-                    }
-                }
-            } finally {
-                c.close();
-            }
-        }
-
-        @Override
-        protected void onPreExecute() {
-            sUpdatingDB = true;
-        }
+    /** Used for testing purpose **/
+    void waitUntilPendingWritesDone() {
+        mLog.waitForPendingWrites();
+    }
 
-        @Override
-        protected Void doInBackground(Void... v) {
-            SQLiteDatabase db = mDbHelper.getWritableDatabase();
-            db.execSQL("PRAGMA foreign_keys = ON;");
-            // Write all the entries to the db
-            Iterator<Bigram> iterator = mMap.iterator();
-            while (iterator.hasNext()) {
-                Bigram bi = iterator.next();
-
-                // find pair id
-                Cursor c = db.query(MAIN_TABLE_NAME, new String[] { MAIN_COLUMN_ID },
-                        MAIN_COLUMN_WORD1 + "=? AND " + MAIN_COLUMN_WORD2 + "=? AND "
-                        + MAIN_COLUMN_LOCALE + "=?",
-                        new String[] { bi.mWord1, bi.mWord2, mLocale }, null, null, null);
-
-                int pairId;
-                if (c.moveToFirst()) {
-                    // existing pair
-                    pairId = c.getInt(c.getColumnIndex(MAIN_COLUMN_ID));
-                    db.delete(FREQ_TABLE_NAME, FREQ_COLUMN_PAIR_ID + "=?",
-                            new String[] { Integer.toString(pairId) });
-                } else {
-                    // new pair
-                    Long pairIdLong = db.insert(MAIN_TABLE_NAME, null,
-                            getContentValues(bi.mWord1, bi.mWord2, mLocale));
-                    pairId = pairIdLong.intValue();
+    @Override
+    public void loadDictionaryAsync() {
+        // Load the words that correspond to the current input locale
+        final int now = getCurrentTime();
+        mLog.replay(mLocale, new UserBigramLog.Visitor() {
+            @Override
+            public void onBigram(String word1, String word2, int frequency, int time) {
+                // Safeguard against adding really long words, and skip the forgotten pairs.
+                if (word1.length() < MAX_WORD_LENGTH && word2.length() < MAX_WORD_LENGTH
+                        && getDecayedFrequency(frequency, time, now) > 0) {
+                    setBigram(word1, word2, frequency, time);
                 }
-                c.close();
-
-                // insert new frequency
-                db.insert(FREQ_TABLE_NAME, null, getFrequencyContentValues(pairId, bi.mFrequency));
             }
-            checkPruneData(db);
-            sUpdatingDB = false;
-
-            return null;
-        }
-
-        private ContentValues getContentValues(String word1, String word2, String locale) {
-            ContentValues values = new ContentValues(3);
-            values.put(MAIN_COLUMN_WORD1, word1);
-            values.put(MAIN_COLUMN_WORD2, word2);
-            values.put(MAIN_COLUMN_LOCALE, locale);
-            return values;
-        }
-
-        private ContentValues getFrequencyContentValues(int pairId, int frequency) {
-           ContentValues values = new ContentValues(2);
-           values.put(FREQ_COLUMN_PAIR_ID, pairId);
-           values.put(FREQ_COLUMN_FREQUENCY, frequency);
-           return values;
-        }
+        });
+        evictBigrams();
     }
-
 }
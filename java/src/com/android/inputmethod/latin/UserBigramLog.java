@@ -0,0 +1,587 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The storage of the pairs of {@link UserBigramDictionary}, for all the locales: an append-only
+ * log of (locale, word1, word2, frequency, time) records in the private files of the application.
+ *
+ * A flush appends one block of records with a single write. Every record carries its length and
+ * a checksum, so a record that has been cut short by a crash is detected and dropped the next
+ * time the log is opened. Reading maps the file in memory and replays the records in order; the
+ * last record of a pair holds its frequency. When the log has grown too big, it is compacted in
+ * the background: the latest record of each pair is written to a new file that then replaces the
+ * log. The pairs whose frequency has decayed to nothing are left out, and so are the pairs with
+ * the lowest decayed frequency if there are too many of them. See
+ * {@link UserBigramDictionary#getDecayedFrequency}.
+ *
+ * The database that stored the pairs in previous versions is imported the first time.
+ */
+class UserBigramLog {
+    private static final String TAG = UserBigramLog.class.getSimpleName();
+
+    public interface Visitor {
+        public void onBigram(String word1, String word2, int frequency, int time);
+    }
+
+    private interface RecordVisitor {
+        public void onRecord(String locale, String word1, String word2, int frequency, int time);
+    }
+
+    private static class Record {
+        public final String mLocale;
+        public final String mWord1;
+        public final String mWord2;
+        public final int mFrequency;
+        public final int mTime;
+
+        public Record(String locale, String word1, String word2, int frequency, int time) {
+            mLocale = locale;
+            mWord1 = word1;
+            mWord2 = word2;
+            mFrequency = frequency;
+            mTime = time;
+        }
+    }
+
+    private static final String FILE_NAME = "userbigram_dict.log";
+    private static final String COMPACTION_FILE_SUFFIX = ".tmp";
+
+    private static final int MAGIC_NUMBER = 0x55424C47;
+    // Version 1 had no time in the records.
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+
+    // A record is the length of its payload, the payload, and the CRC32 of the payload. The
+    // payload is the locale, the first word and the second word as a length followed by UTF-16
+    // chars, the frequency as an unsigned byte, and the time of the update as an int.
+    private static final int MAX_STRING_LENGTH = 255;
+    private static final int MIN_PAYLOAD_SIZE = 3 * 2 + 1 + 4;
+    private static final int MAX_PAYLOAD_SIZE = 3 * (2 + 2 * MAX_STRING_LENGTH) + 1 + 4;
+    private static final int RECORD_OVERHEAD = 4 + 4;
+    private static final int MAX_FREQUENCY = 255;
+
+    /** Maximum number of pairs. Pruning will start when the log goes above this number. */
+    private static final int DEFAULT_MAX_BIGRAMS = 10000;
+
+    /**
+     * When it hits maximum bigram pair, it will delete the pairs with the lowest decayed
+     * frequency until you are left with only (mMaxBigrams - mDeleteBigrams) pairs.
+     * Do not keep this number small to avoid deleting too often.
+     */
+    private static final int DEFAULT_DELETE_BIGRAMS = 1000;
+
+    // The database of the previous versions, imported once into the log.
+    private static final String LEGACY_DATABASE_NAME = "userbigram_dict.db";
+    private static final String LEGACY_MAIN_TABLE_NAME = "main";
+    private static final String LEGACY_MAIN_COLUMN_ID = "_id";
+    private static final String LEGACY_MAIN_COLUMN_WORD1 = "word1";
+    private static final String LEGACY_MAIN_COLUMN_WORD2 = "word2";
+    private static final String LEGACY_MAIN_COLUMN_LOCALE = "locale";
+    private static final String LEGACY_FREQ_TABLE_NAME = "frequency";
+    private static final String LEGACY_FREQ_COLUMN_ID = "_id";
+    private static final String LEGACY_FREQ_COLUMN_PAIR_ID = "pair_id";
+    private static final String LEGACY_FREQ_COLUMN_FREQUENCY = "freq";
+
+    private static UserBigramLog sInstance;
+
+    private final Context mContext;
+    private final File mFile;
+    private final Handler mWriteHandler;
+
+    private final Object mPendingWritesLock = new Object();
+    private int mPendingWriteCount;
+
+    // The following fields are guarded by the instance lock, which is held while the file is
+    // being read or written.
+    private boolean mOpened;
+    private int mRecordCount;
+    private int mFileVersion;
+    // The log is compacted when it has more records than this.
+    private int mCompactionThreshold;
+    private int mMaxBigrams = DEFAULT_MAX_BIGRAMS;
+    private int mDeleteBigrams = DEFAULT_DELETE_BIGRAMS;
+    // Scratch buffers of the reader.
+    private final byte[] mPayload = new byte[MAX_PAYLOAD_SIZE];
+    private final ByteBuffer mPayloadBuffer = ByteBuffer.wrap(mPayload);
+    private final CRC32 mCrc = new CRC32();
+
+    public static synchronized UserBigramLog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UserBigramLog(context);
+        }
+        return sInstance;
+    }
+
+    private UserBigramLog(Context context) {
+        this(context, FILE_NAME);
+    }
+
+    /** Used for testing purpose **/
+    UserBigramLog(Context context, String fileName) {
+        mContext = context;
+        mFile = new File(context.getFilesDir(), fileName);
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWriteHandler = new Handler(thread.getLooper());
+    }
+
+    public synchronized void setMaxBigrams(int maxBigrams) {
+        mMaxBigrams = maxBigrams;
+        mCompactionThreshold = Math.min(mCompactionThreshold, maxBigrams);
+    }
+
+    public synchronized void setDeleteBigrams(int deleteBigrams) {
+        mDeleteBigrams = deleteBigrams;
+    }
+
+    public synchronized int getMaxBigrams() {
+        return mMaxBigrams;
+    }
+
+    public synchronized int getDeleteBigrams() {
+        return mDeleteBigrams;
+    }
+
+    /**
+     * Calls the visitor for each pair of the locale, on the calling thread. The writes that have
+     * been scheduled before are waited for.
+     */
+    public void replay(String locale, final Visitor visitor) {
+        waitForPendingWrites();
+        synchronized (this) {
+            if (!open()) return;
+            try {
+                scan(locale, new RecordVisitor() {
+                    @Override
+                    public void onRecord(String recordLocale, String word1, String word2,
+                            int frequency, int time) {
+                        visitor.onBigram(word1, word2, frequency, time);
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Can't read " + mFile, e);
+            }
+        }
+    }
+
+    /**
+     * Schedules the writing of the pairs of the locale to the log, on a background thread.
+     * The pairs are handed over to the log, and must not be modified by the caller any more.
+     */
+    public void write(final String locale,
+            final Collection<UserBigramDictionary.Bigram> bigrams) {
+        synchronized (mPendingWritesLock) {
+            mPendingWriteCount++;
+        }
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeAndCompact(locale, bigrams);
+            }
+        });
+    }
+
+    /**
+     * Blocks until all the scheduled writes have been done.
+     */
+    public void waitForPendingWrites() {
+        synchronized (mPendingWritesLock) {
+            while (mPendingWriteCount > 0) {
+                try {
+                    mPendingWritesLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void writeAndCompact(String locale,
+            Collection<UserBigramDictionary.Bigram> bigrams) {
+        try {
+            if (!open()) return;
+            int blockSize = 0;
+            for (final UserBigramDictionary.Bigram bigram : bigrams) {
+                blockSize += getRecordSize(locale, bigram.mWord1, bigram.mWord2);
+            }
+            final ByteBuffer block = ByteBuffer.allocate(blockSize);
+            int count = 0;
+            for (final UserBigramDictionary.Bigram bigram : bigrams) {
+                if (putRecord(block, locale, bigram.mWord1, bigram.mWord2, bigram.mFrequency,
+                        bigram.mTime)) {
+                    count++;
+                }
+            }
+            try {
+                appendAndSync(block);
+                mRecordCount += count;
+            } catch (IOException e) {
+                Log.e(TAG, "Can't write " + mFile, e);
+                // The tail of the file may be broken. It will be dropped when it is opened again.
+                mOpened = false;
+                return;
+            }
+            if (mRecordCount > mCompactionThreshold) {
+                compact();
+            }
+        } finally {
+            synchronized (mPendingWritesLock) {
+                mPendingWriteCount--;
+                mPendingWritesLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Prepares the log for reading and writing. Returns false if it can't be used.
+     */
+    private boolean open() {
+        if (mOpened) return true;
+        if (!mFile.exists()) {
+            final File legacyDatabase = mContext.getDatabasePath(LEGACY_DATABASE_NAME);
+            if (legacyDatabase != null && legacyDatabase.exists()) {
+                importLegacyDatabase(legacyDatabase);
+            }
+        }
+        try {
+            if (!mFile.exists()) {
+                writeNewLog(mFile, new ByteBuffer[0]);
+            }
+            final long validLength = scan(null, null);
+            if (validLength < HEADER_SIZE) {
+                Log.w(TAG, mFile + " is not a valid log, starting over");
+                writeNewLog(mFile, new ByteBuffer[0]);
+                mRecordCount = 0;
+            } else if (mFileVersion != VERSION) {
+                // Rewrite it in the current format.
+                compact();
+            } else if (validLength < mFile.length()) {
+                Log.w(TAG, "Dropping " + (mFile.length() - validLength) + " bytes of broken"
+                        + " records at the end of " + mFile);
+                final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+                try {
+                    file.setLength(validLength);
+                } finally {
+                    file.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't open " + mFile, e);
+            return false;
+        }
+        // The number of distinct pairs is not known before the first compaction.
+        mCompactionThreshold = mMaxBigrams;
+        mOpened = true;
+        return true;
+    }
+
+    /**
+     * Reads all the valid records of the log, and counts them in mRecordCount. If there is a
+     * visitor, it is called for the records of the locale, or for all the records if the locale
+     * is null.
+     * @return the length of the valid part of the file, or 0 if the header is not valid.
+     */
+    private long scan(String locale, RecordVisitor visitor) throws IOException {
+        mRecordCount = 0;
+        final FileInputStream stream = new FileInputStream(mFile);
+        try {
+            final FileChannel channel = stream.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE) return 0;
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC_NUMBER) return 0;
+            mFileVersion = buffer.getInt();
+            if (mFileVersion < 1 || mFileVersion > VERSION) return 0;
+            // The records of version 1 have no time. They are considered to be updated now.
+            final int timeSize = (mFileVersion == 1) ? 0 : 4;
+            final int now = UserBigramDictionary.getCurrentTime();
+            final byte[] payload = mPayload;
+            final ByteBuffer payloadBuffer = mPayloadBuffer;
+            final CRC32 crc = mCrc;
+            while (buffer.remaining() >= RECORD_OVERHEAD + MIN_PAYLOAD_SIZE - 4 + timeSize) {
+                final int start = buffer.position();
+                final int length = buffer.getInt();
+                if (length < MIN_PAYLOAD_SIZE - 4 + timeSize
+                        || length > MAX_PAYLOAD_SIZE - 4 + timeSize
+                        || buffer.remaining() < length + 4) {
+                    return start;
+                }
+                buffer.get(payload, 0, length);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if (buffer.getInt() != (int)crc.getValue()) return start;
+                mRecordCount++;
+                if (visitor == null) continue;
+                payloadBuffer.clear();
+                payloadBuffer.limit(length);
+                final String recordLocale;
+                if (locale == null) {
+                    recordLocale = getString(payloadBuffer);
+                } else if (skipStringIfEquals(payloadBuffer, locale)) {
+                    recordLocale = locale;
+                } else {
+                    continue;
+                }
+                final String word1 = getString(payloadBuffer);
+                final String word2 = getString(payloadBuffer);
+                final int frequency = payloadBuffer.get() & 0xFF;
+                final int time = (timeSize == 0) ? now : payloadBuffer.getInt();
+                visitor.onRecord(recordLocale, word1, word2, frequency, time);
+            }
+            return buffer.position();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Rewrites the log with the latest record of each pair, pruning the pairs whose frequency has
+     * decayed the most if there are too many of them.
+     */
+    private void compact() {
+        final LinkedHashMap<String, Record> records = new LinkedHashMap<String, Record>();
+        try {
+            scan(null, new RecordVisitor() {
+                @Override
+                public void onRecord(String locale, String word1, String word2, int frequency,
+                        int time) {
+                    records.put(locale + '\n' + word1 + '\n' + word2,
+                            new Record(locale, word1, word2, frequency, time));
+                }
+            });
+            final int now = UserBigramDictionary.getCurrentTime();
+            // Rank the pairs by decayed frequency, then by time, in a long so that they sort
+            // without allocating per pair.
+            final long[] ranks = new long[records.size()];
+            int count = 0;
+            for (final Record record : records.values()) {
+                final int frequency = UserBigramDictionary.getDecayedFrequency(
+                        record.mFrequency, record.mTime, now);
+                if (frequency > 0) ranks[count] = getRank(frequency, record.mTime);
+                count++;
+            }
+            final long[] sortedRanks = Arrays.copyOf(ranks, count);
+            Arrays.sort(sortedRanks);
+            int keptCount = 0;
+            while (keptCount < count && sortedRanks[count - 1 - keptCount] > 0) keptCount++;
+            if (keptCount > mMaxBigrams) keptCount = Math.max(0, mMaxBigrams - mDeleteBigrams);
+            // Only the pairs ranked at least as high as this are kept.
+            final long minRank = (keptCount == 0) ? Long.MAX_VALUE : sortedRanks[count - keptCount];
+            int minRankQuota = 0;
+            for (int i = count - keptCount; i < count && sortedRanks[i] == minRank; i++) {
+                minRankQuota++;
+            }
+
+            final ByteBuffer[] kept = new ByteBuffer[keptCount];
+            int i = 0;
+            int k = 0;
+            for (final Record record : records.values()) {
+                final long rank = ranks[i++];
+                if (rank < minRank) continue;
+                if (rank == minRank) {
+                    if (minRankQuota == 0) continue;
+                    minRankQuota--;
+                }
+                final ByteBuffer buffer = ByteBuffer.allocate(
+                        getRecordSize(record.mLocale, record.mWord1, record.mWord2));
+                putRecord(buffer, record.mLocale, record.mWord1, record.mWord2,
+                        record.mFrequency, record.mTime);
+                buffer.flip();
+                kept[k++] = buffer;
+            }
+            final File compactionFile = new File(mFile.getPath() + COMPACTION_FILE_SUFFIX);
+            writeNewLog(compactionFile, kept);
+            if (!compactionFile.renameTo(mFile)) {
+                throw new IOException("Can't rename " + compactionFile);
+            }
+            mRecordCount = keptCount;
+            mFileVersion = VERSION;
+        } catch (IOException e) {
+            Log.e(TAG, "Can't compact " + mFile, e);
+        }
+        // Wait for a reasonable amount of new records before compacting again.
+        mCompactionThreshold = Math.max(mMaxBigrams, mRecordCount + mDeleteBigrams);
+    }
+
+    private static long getRank(int frequency, int time) {
+        return ((long)frequency << 32) | (time & 0xFFFFFFFFL);
+    }
+
+    private void importLegacyDatabase(File legacyDatabase) {
+        final File importFile = new File(mFile.getPath() + COMPACTION_FILE_SUFFIX);
+        try {
+            final SQLiteDatabase db = SQLiteDatabase.openDatabase(legacyDatabase.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            try {
+                // Oldest frequency updates first, which is the order the pairs were pruned in.
+                final Cursor c = db.rawQuery("SELECT " + LEGACY_MAIN_COLUMN_WORD1 + ", "
+                        + LEGACY_MAIN_COLUMN_WORD2 + ", " + LEGACY_MAIN_COLUMN_LOCALE + ", "
+                        + LEGACY_FREQ_COLUMN_FREQUENCY + " FROM " + LEGACY_MAIN_TABLE_NAME
+                        + " INNER JOIN " + LEGACY_FREQ_TABLE_NAME + " ON ("
+                        + LEGACY_MAIN_TABLE_NAME + "." + LEGACY_MAIN_COLUMN_ID + "="
+                        + LEGACY_FREQ_TABLE_NAME + "." + LEGACY_FREQ_COLUMN_PAIR_ID + ")"
+                        + " ORDER BY " + LEGACY_FREQ_TABLE_NAME + "." + LEGACY_FREQ_COLUMN_ID,
+                        null);
+                try {
+                    // The database doesn't know when the pairs were typed.
+                    final int now = UserBigramDictionary.getCurrentTime();
+                    final ByteBuffer[] records = new ByteBuffer[c.getCount()];
+                    int count = 0;
+                    while (c.moveToNext()) {
+                        final String word1 = c.getString(0);
+                        final String word2 = c.getString(1);
+                        final String locale = c.getString(2);
+                        final ByteBuffer record = ByteBuffer.allocate(
+                                getRecordSize(locale, word1, word2));
+                        if (putRecord(record, locale, word1, word2, c.getInt(3), now)) {
+                            record.flip();
+                            records[count++] = record;
+                        }
+                    }
+                    final ByteBuffer[] imported = new ByteBuffer[count];
+                    System.arraycopy(records, 0, imported, 0, count);
+                    writeNewLog(importFile, imported);
+                } finally {
+                    c.close();
+                }
+            } finally {
+                db.close();
+            }
+            if (!importFile.renameTo(mFile)) {
+                throw new IOException("Can't rename " + importFile);
+            }
+            mContext.deleteDatabase(LEGACY_DATABASE_NAME);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Can't import " + legacyDatabase, e);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't import " + legacyDatabase, e);
+            importFile.delete();
+        }
+    }
+
+    private void appendAndSync(ByteBuffer block) throws IOException {
+        final FileOutputStream stream = new FileOutputStream(mFile, true);
+        try {
+            stream.write(block.array(), 0, block.position());
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Writes a log with the records to the file, replacing it, and syncs it to the disk.
+     */
+    private static void writeNewLog(File file, ByteBuffer[] records) throws IOException {
+        final FileOutputStream stream = new FileOutputStream(file);
+        try {
+            final FileChannel channel = stream.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC_NUMBER).putInt(VERSION).flip();
+            while (header.hasRemaining()) channel.write(header);
+            for (final ByteBuffer record : records) {
+                while (record.hasRemaining()) channel.write(record);
+            }
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static int getRecordSize(String locale, String word1, String word2) {
+        return RECORD_OVERHEAD + 3 * 2 + 2 * (locale.length() + word1.length() + word2.length())
+                + 1 + 4;
+    }
+
+    /**
+     * Adds a record to the buffer, unless one of the strings is too long to be stored.
+     */
+    private static boolean putRecord(ByteBuffer buffer, String locale, String word1,
+            String word2, int frequency, int time) {
+        if (locale.length() > MAX_STRING_LENGTH || word1.length() > MAX_STRING_LENGTH
+                || word2.length() > MAX_STRING_LENGTH) {
+            return false;
+        }
+        final int start = buffer.position();
+        buffer.putInt(0);
+        putString(buffer, locale);
+        putString(buffer, word1);
+        putString(buffer, word2);
+        buffer.put((byte)Math.max(0, Math.min(frequency, MAX_FREQUENCY)));
+        buffer.putInt(time);
+        final int length = buffer.position() - start - 4;
+        buffer.putInt(start, length);
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), buffer.arrayOffset() + start + 4, length);
+        buffer.putInt((int)crc.getValue());
+        return true;
+    }
+
+    private static void putString(ByteBuffer buffer, String string) {
+        final int length = string.length();
+        buffer.putShort((short)length);
+        for (int i = 0; i < length; i++) {
+            buffer.putChar(string.charAt(i));
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final int length = buffer.getShort();
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar();
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reads a string and returns true if it is the given string, without allocating.
+     */
+    private static boolean skipStringIfEquals(ByteBuffer buffer, String string) {
+        final int length = buffer.getShort();
+        boolean equals = length == string.length();
+        for (int i = 0; i < length; i++) {
+            final char c = buffer.getChar();
+            if (equals && c != string.charAt(i)) equals = false;
+        }
+        return equals;
+    }
+}
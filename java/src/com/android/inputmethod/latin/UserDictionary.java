@@ -82,6 +82,11 @@ public class UserDictionary extends ExpandableDictionary {
         super.close();
     }
 
+    @Override
+    protected String getSnapshotName() {
+        return "user_dict_" + mLocale + (mAlsoUseMoreRestrictiveLocales ? "_all" : "");
+    }
+
     @Override
     public void loadDictionaryAsync() {
         // Split the locale. For example "en" => ["en"], "de_DE" => ["de", "DE"],
@@ -159,7 +164,7 @@ public class UserDictionary extends ExpandableDictionary {
     @Override
     public synchronized void addWord(final String word, final int frequency) {
         // Force load the dictionary here synchronously
-        if (getRequiresReload()) loadDictionaryAsync();
+        if (getRequiresReload()) loadDictionarySynchronously();
         // Safeguard against adding long words. Can cause stack overflow.
         if (word.length() >= getMaxWordLength()) return;
 
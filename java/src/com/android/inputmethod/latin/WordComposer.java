@@ -17,11 +17,18 @@
 package com.android.inputmethod.latin;
 
 import com.android.inputmethod.keyboard.KeyDetector;
+import com.android.inputmethod.keyboard.ProximityInfo;
 
-import java.util.ArrayList;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 /**
  * A place to store the currently composing word with information such as adjacent key codes as well
+ *
+ * The keystrokes are kept in flat arrays laid out as the native dictionary reads them, so that
+ * typing and deleting don't allocate. A copy shares the arrays of its source until either of them
+ * overwrites a keystroke the other one can see, which is when the arrays are copied. Appending
+ * keystrokes past the end of all the copies never copies anything.
  */
 public class WordComposer {
 
@@ -29,14 +36,26 @@ public class WordComposer {
     public static final int NOT_A_COORDINATE = -1;
 
     /**
-     * The list of unicode values for each keystroke (including surrounding keys)
+     * The number of codes kept for each keystroke, padded with NOT_A_CODE.
      */
-    private ArrayList<int[]> mCodes;
+    public static final int CODES_PER_KEY = ProximityInfo.MAX_PROXIMITY_CHARS_SIZE;
+
+    private static final int N = BinaryDictionary.MAX_WORD_LENGTH;
+
+    /**
+     * The unicode values for each keystroke (including surrounding keys), CODES_PER_KEY per
+     * keystroke. Only the first MAX_WORD_LENGTH keystrokes have codes and coordinates.
+     */
+    private int[] mCodes;
 
     private int[] mXCoordinates;
     private int[] mYCoordinates;
 
-    private StringBuilder mTypedWord;
+    private char[] mTypedWord;
+    private int mSize;
+
+    // The keystrokes before this one may be seen by another composer sharing the arrays.
+    private int mSharedSize;
 
     private int mCapsCount;
 
@@ -48,9 +67,8 @@ public class WordComposer {
     private boolean mIsFirstCharCapitalized;
 
     public WordComposer() {
-        final int N = BinaryDictionary.MAX_WORD_LENGTH;
-        mCodes = new ArrayList<int[]>(N);
-        mTypedWord = new StringBuilder(N);
+        mCodes = new int[N * CODES_PER_KEY];
+        mTypedWord = new char[N];
         mXCoordinates = new int[N];
         mYCoordinates = new int[N];
     }
@@ -60,21 +78,39 @@ public class WordComposer {
     }
 
     public void init(WordComposer source) {
-        mCodes = new ArrayList<int[]>(source.mCodes);
-        mTypedWord = new StringBuilder(source.mTypedWord);
+        mCodes = source.mCodes;
+        mTypedWord = source.mTypedWord;
         mXCoordinates = source.mXCoordinates;
         mYCoordinates = source.mYCoordinates;
+        mSize = source.mSize;
+        // This composer may not write anything in the shared arrays, since the source may be
+        // using any part of them, and the source may not overwrite what this one uses.
+        mSharedSize = Integer.MAX_VALUE;
+        source.mSharedSize = Math.max(source.mSharedSize, source.mSize);
         mCapsCount = source.mCapsCount;
         mIsFirstCharCapitalized = source.mIsFirstCharCapitalized;
         mAutoCapitalized = source.mAutoCapitalized;
     }
 
+    // Makes the arrays private to this composer before the keystroke at the index is written.
+    private void prepareWrite(int index) {
+        if (index < mSharedSize) {
+            mCodes = mCodes.clone();
+            mTypedWord = mTypedWord.clone();
+            mXCoordinates = mXCoordinates.clone();
+            mYCoordinates = mYCoordinates.clone();
+            mSharedSize = 0;
+        }
+        if (index >= mTypedWord.length) {
+            mTypedWord = Arrays.copyOf(mTypedWord, mTypedWord.length * 2);
+        }
+    }
+
     /**
      * Clear out the keys registered so far.
      */
     public void reset() {
-        mCodes.clear();
-        mTypedWord.setLength(0);
+        mSize = 0;
         mCapsCount = 0;
         mIsFirstCharCapitalized = false;
     }
@@ -84,16 +120,17 @@ public class WordComposer {
      * @return the number of keystrokes
      */
     public final int size() {
-        return mTypedWord.length();
+        return mSize;
     }
 
     /**
-     * Returns the codes at a particular position in the word.
-     * @param index the position in the word
-     * @return the unicode for the pressed and surrounding keys
+     * Returns the codes of the keystrokes, the ones of the keystroke at index i starting at
+     * i * CODES_PER_KEY with the pressed key, and padded with NOT_A_CODE. The array is shared
+     * and may not be modified.
+     * @return the unicode for the pressed and surrounding keys of each keystroke
      */
-    public int[] getCodesAt(int index) {
-        return mCodes.get(index);
+    public int[] getCodes() {
+        return mCodes;
     }
 
     public int[] getXCoordinates() {
@@ -104,6 +141,24 @@ public class WordComposer {
         return mYCoordinates;
     }
 
+    /**
+     * Writes the codes of the first keystrokes where the native dictionary reads them, and their
+     * coordinates. The codes are laid out as in {@link #getCodes}.
+     * @param codes the buffer to write the codes to, from its start
+     * @param xCoordinates the buffer to write the x coordinates to, from its start
+     * @param yCoordinates the buffer to write the y coordinates to, from its start
+     * @param size the number of keystrokes to write, at most size() and MAX_WORD_LENGTH
+     */
+    public void writeTo(IntBuffer codes, IntBuffer xCoordinates, IntBuffer yCoordinates,
+            int size) {
+        codes.position(0);
+        codes.put(mCodes, 0, size * CODES_PER_KEY);
+        xCoordinates.position(0);
+        xCoordinates.put(mXCoordinates, 0, size);
+        yCoordinates.position(0);
+        yCoordinates.put(mYCoordinates, 0, size);
+    }
+
     private static boolean isFirstCharCapitalized(int index, int codePoint, boolean previous) {
         if (index == 0) return Character.isUpperCase(codePoint);
         return previous && !Character.isUpperCase(codePoint);
@@ -112,34 +167,41 @@ public class WordComposer {
     /**
      * Add a new keystroke, with codes[0] containing the pressed key's unicode and the rest of
      * the array containing unicode for adjacent keys, sorted by reducing probability/proximity.
+     * The codes are copied, so the array can be reused.
      * @param codes the array of unicode values
      */
     public void add(int primaryCode, int[] codes, int x, int y) {
-        final int newIndex = size();
-        mTypedWord.append((char) primaryCode);
-        correctPrimaryJuxtapos(primaryCode, codes);
-        mCodes.add(codes);
-        if (newIndex < BinaryDictionary.MAX_WORD_LENGTH) {
+        final int newIndex = mSize;
+        prepareWrite(newIndex);
+        mTypedWord[newIndex] = (char) primaryCode;
+        if (newIndex < N) {
+            final int offset = newIndex * CODES_PER_KEY;
+            final int count = Math.min(codes.length, CODES_PER_KEY);
+            System.arraycopy(codes, 0, mCodes, offset, count);
+            Arrays.fill(mCodes, offset + count, offset + CODES_PER_KEY, NOT_A_CODE);
+            correctPrimaryJuxtapos(primaryCode, offset);
             mXCoordinates[newIndex] = x;
             mYCoordinates[newIndex] = y;
         }
+        mSize++;
         mIsFirstCharCapitalized = isFirstCharCapitalized(
                 newIndex, primaryCode, mIsFirstCharCapitalized);
         if (Character.isUpperCase(primaryCode)) mCapsCount++;
     }
 
     /**
-     * Swaps the first and second values in the codes array if the primary code is not the first
-     * value in the array but the second. This happens when the preferred key is not the key that
+     * Swaps the first and second values in the codes of a keystroke if the primary code is not
+     * the first value but the second. This happens when the preferred key is not the key that
      * the user released the finger on.
      * @param primaryCode the preferred character
-     * @param codes array of codes based on distance from touch point
+     * @param offset the offset of the codes of the keystroke, sorted by distance from touch point
      */
-    private void correctPrimaryJuxtapos(int primaryCode, int[] codes) {
-        if (codes.length < 2) return;
-        if (codes[0] > 0 && codes[1] > 0 && codes[0] != primaryCode && codes[1] == primaryCode) {
-            codes[1] = codes[0];
-            codes[0] = primaryCode;
+    private void correctPrimaryJuxtapos(int primaryCode, int offset) {
+        final int[] codes = mCodes;
+        if (codes[offset] > 0 && codes[offset + 1] > 0 && codes[offset] != primaryCode
+                && codes[offset + 1] == primaryCode) {
+            codes[offset + 1] = codes[offset];
+            codes[offset] = primaryCode;
         }
     }
 
@@ -147,15 +209,11 @@ public class WordComposer {
      * Delete the last keystroke as a result of hitting backspace.
      */
     public void deleteLast() {
-        final int size = size();
-        if (size > 0) {
-            final int lastPos = size - 1;
-            char lastChar = mTypedWord.charAt(lastPos);
-            mCodes.remove(lastPos);
-            mTypedWord.deleteCharAt(lastPos);
-            if (Character.isUpperCase(lastChar)) mCapsCount--;
+        if (mSize > 0) {
+            mSize--;
+            if (Character.isUpperCase(mTypedWord[mSize])) mCapsCount--;
         }
-        if (size() == 0) {
+        if (mSize == 0) {
             mIsFirstCharCapitalized = false;
         }
     }
@@ -165,10 +223,10 @@ public class WordComposer {
      * @return the word that was typed so far
      */
     public String getTypedWord() {
-        if (size() == 0) {
+        if (mSize == 0) {
             return null;
         }
-        return mTypedWord.toString();
+        return new String(mTypedWord, 0, mSize);
     }
 
     /**
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An index of the positions of the words of a list, that is searched with a word in a char array
+ * as passed to {@link Dictionary.WordCallback#addWord}, without allocating.
+ *
+ * The index is an open-addressing hash table with linear probing, that holds the position of each
+ * word plus one, 0 being an empty slot. The table is at least twice as big as the list so that
+ * the probe sequences stay short. It has to be built again when the list changes.
+ */
+class WordIndex {
+    private List<? extends CharSequence> mWords;
+    private int[] mTable;
+    private int mMask;
+
+    public WordIndex(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        int size = 2;
+        while (size < capacity * 2) size <<= 1;
+        mTable = new int[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Indexes the words of the list. If a word is in the list more than once, its first position
+     * is indexed.
+     */
+    public void build(List<? extends CharSequence> words) {
+        final int size = words.size();
+        if (mTable.length < size * 2) {
+            allocate(size);
+        } else {
+            Arrays.fill(mTable, 0);
+        }
+        mWords = words;
+        final int[] table = mTable;
+        for (int i = 0; i < size; i++) {
+            final CharSequence word = words.get(i);
+            int slot = getHashCode(word) & mMask;
+            while (table[slot] != 0 && !equals(words.get(table[slot] - 1), word)) {
+                slot = (slot + 1) & mMask;
+            }
+            if (table[slot] == 0) table[slot] = i + 1;
+        }
+    }
+
+    /**
+     * Returns the position of the word in the list that has been indexed, or -1.
+     */
+    public int indexOf(char[] word, int offset, int length) {
+        if (mWords == null) return -1;
+        final int[] table = mTable;
+        for (int slot = getHashCode(word, offset, length) & mMask; table[slot] != 0;
+                slot = (slot + 1) & mMask) {
+            final int index = table[slot] - 1;
+            if (equals(mWords.get(index), word, offset, length)) return index;
+        }
+        return -1;
+    }
+
+    // The same hash as String#hashCode, then mixed so that the low bits depend on all the chars.
+    private static int getHashCode(CharSequence word) {
+        int hash = 0;
+        final int length = word.length();
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + word.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int getHashCode(char[] word, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + word[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(CharSequence a, CharSequence b) {
+        final int length = a.length();
+        if (b.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (a.charAt(i) != b.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean equals(CharSequence a, char[] word, int offset, int length) {
+        if (a.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (a.charAt(i) != word[offset + i]) return false;
+        }
+        return true;
+    }
+}
@@ -16,8 +16,12 @@
 
 package com.android.inputmethod.latin.spellcheck;
 
+import android.content.ContentResolver;
 import android.content.Intent;
-import android.content.res.Resources;
+import android.database.ContentObserver;
+import android.os.AsyncTask;
+import android.provider.ContactsContract.Contacts;
+import android.provider.UserDictionary.Words;
 import android.service.textservice.SpellCheckerService;
 import android.text.TextUtils;
 import android.util.Log;
@@ -47,6 +51,8 @@ import java.util.Collections;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Service for spell checking, using LatinIME's dictionaries and mechanisms.
@@ -54,7 +60,11 @@ import java.util.TreeMap;
 public class AndroidSpellCheckerService extends SpellCheckerService {
     private static final String TAG = AndroidSpellCheckerService.class.getSimpleName();
     private static final boolean DBG = false;
-    private static final int POOL_SIZE = 2;
+    // The main dictionaries are shared by all the dictionaries of a pool, so that a dictionary
+    // only costs its search state.
+    private static final int POOL_SIZE = 4;
+    // The number of words whose results are cached for each locale.
+    private static final int SUGGESTIONS_CACHE_SIZE = 1000;
 
     private static final int CAPITALIZE_NONE = 0; // No caps, or mixed case
     private static final int CAPITALIZE_FIRST = 1; // First only
@@ -79,6 +89,16 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
     private Map<String, Dictionary> mWhitelistDictionaries =
             Collections.synchronizedMap(new TreeMap<String, Dictionary>());
     private SynchronouslyLoadedContactsDictionary mContactsDictionary;
+    private Map<String, SuggestionsCache> mSuggestionsCaches =
+            Collections.synchronizedMap(new TreeMap<String, SuggestionsCache>());
+    // Clears the caches when the user dictionary or the contacts change. The whitelist only
+    // changes when the dictionaries are created again, and the caches are replaced then.
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean self) {
+            clearSuggestionsCaches(mSuggestionsCaches);
+        }
+    };
 
     // The threshold for a candidate to be offered as a suggestion.
     private double mSuggestionThreshold;
@@ -91,6 +111,15 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
                 Double.parseDouble(getString(R.string.spellchecker_suggestion_threshold_value));
         mLikelyThreshold =
                 Double.parseDouble(getString(R.string.spellchecker_likely_threshold_value));
+        final ContentResolver cres = getContentResolver();
+        cres.registerContentObserver(Words.CONTENT_URI, true, mObserver);
+        cres.registerContentObserver(Contacts.CONTENT_URI, true, mObserver);
+    }
+
+    @Override
+    public void onDestroy() {
+        getContentResolver().unregisterContentObserver(mObserver);
+        super.onDestroy();
     }
 
     @Override
@@ -264,6 +293,10 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
         mUserDictionaries = Collections.synchronizedMap(new TreeMap<String, Dictionary>());
         final Map<String, Dictionary> oldWhitelistDictionaries = mWhitelistDictionaries;
         mWhitelistDictionaries = Collections.synchronizedMap(new TreeMap<String, Dictionary>());
+        final Map<String, SuggestionsCache> oldSuggestionsCaches = mSuggestionsCaches;
+        mSuggestionsCaches = Collections.synchronizedMap(new TreeMap<String, SuggestionsCache>());
+        // The sessions that are still open keep using the old caches.
+        clearSuggestionsCaches(oldSuggestionsCaches);
         for (DictionaryPool pool : oldPools.values()) {
             pool.close();
         }
@@ -294,14 +327,41 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
         return pool;
     }
 
-    public DictAndProximity createDictAndProximity(final Locale locale) {
+    private SuggestionsCache getSuggestionsCache(final String locale) {
+        final Map<String, SuggestionsCache> caches = mSuggestionsCaches;
+        synchronized (caches) {
+            SuggestionsCache cache = caches.get(locale);
+            if (null == cache) {
+                cache = new SuggestionsCache(SUGGESTIONS_CACHE_SIZE);
+                caches.put(locale, cache);
+            }
+            return cache;
+        }
+    }
+
+    private static void clearSuggestionsCaches(final Map<String, SuggestionsCache> caches) {
+        synchronized (caches) {
+            for (SuggestionsCache cache : caches.values()) {
+                cache.clear();
+            }
+        }
+    }
+
+    public DictionaryCollection createMainDictionary(final Locale locale) {
+        final int fallbackResourceId = Utils.getMainDictionaryResourceId(getResources());
+        return DictionaryFactory.createDictionaryFromManager(this, locale, fallbackResourceId,
+                USE_FULL_EDIT_DISTANCE_FLAG_ARRAY);
+    }
+
+    /**
+     * @param mainDictionary the main dictionaries of the new slot, created by
+     * {@link #createMainDictionary} or sharing the buffers of such dictionaries
+     */
+    public DictAndProximity createDictAndProximity(final Locale locale,
+            final DictionaryCollection mainDictionary) {
         final ProximityInfo proximityInfo = ProximityInfo.createSpellCheckerProximityInfo();
-        final Resources resources = getResources();
-        final int fallbackResourceId = Utils.getMainDictionaryResourceId(resources);
-        final DictionaryCollection dictionaryCollection =
-                DictionaryFactory.createDictionaryFromManager(this, locale, fallbackResourceId,
-                        USE_FULL_EDIT_DISTANCE_FLAG_ARRAY);
         final String localeStr = locale.toString();
+        final DictionaryCollection dictionaryCollection = new DictionaryCollection(mainDictionary);
         Dictionary userDictionary = mUserDictionaries.get(localeStr);
         if (null == userDictionary) {
             userDictionary = new SynchronouslyLoadedUserDictionary(this, localeStr, true);
@@ -345,6 +405,8 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
         // Immutable, but need the locale which is not available in the constructor yet
         private DictionaryPool mDictionaryPool;
         // Likewise
+        private SuggestionsCache mSuggestionsCache;
+        // Likewise
         private Locale mLocale;
 
         private final AndroidSpellCheckerService mService;
@@ -357,6 +419,7 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
         public void onCreate() {
             final String localeString = getLocale();
             mDictionaryPool = mService.getDictionaryPool(localeString);
+            mSuggestionsCache = mService.getSuggestionsCache(localeString);
             mLocale = LocaleUtils.constructLocaleFromString(localeString);
         }
 
@@ -405,23 +468,110 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
         @Override
         public SuggestionsInfo onGetSuggestions(final TextInfo textInfo,
                 final int suggestionsLimit) {
+            DictAndProximity dictInfo = null;
             try {
-                final String text = textInfo.getText();
+                dictInfo = mDictionaryPool.takeUninterruptibly();
+                return getSuggestions(dictInfo, textInfo.getText(), suggestionsLimit);
+            } finally {
+                if (null != dictInfo) {
+                    if (!mDictionaryPool.offer(dictInfo)) {
+                        Log.e(TAG, "Can't re-insert a dictionary into its pool");
+                    }
+                }
+            }
+        }
 
-                if (shouldFilterOut(text)) {
-                    DictAndProximity dictInfo = null;
-                    try {
-                        dictInfo = mDictionaryPool.takeOrGetNull();
-                        if (null == dictInfo) return getNotInDictEmptySuggestions();
-                        return dictInfo.mDictionary.isValidWord(text) ? getInDictEmptySuggestions()
-                                : getNotInDictEmptySuggestions();
-                    } finally {
-                        if (null != dictInfo) {
-                            if (!mDictionaryPool.offer(dictInfo)) {
-                                Log.e(TAG, "Can't re-insert a dictionary into its pool");
-                            }
+        // Note : this must be reentrant
+        /**
+         * Gets lists of suggestions for several strings at once. The strings are split in
+         * batches that are checked in parallel, one per dictionary of the pool, and each batch
+         * takes a dictionary from the pool only once.
+         */
+        @Override
+        public SuggestionsInfo[] onGetSuggestionsMultiple(final TextInfo[] textInfos,
+                final int suggestionsLimit, final boolean sequentialWords) {
+            final int length = textInfos.length;
+            final SuggestionsInfo[] retval = new SuggestionsInfo[length];
+            final int batchCount = Math.min(length, POOL_SIZE);
+            if (batchCount == 0) return retval;
+            final CountDownLatch doneSignal = new CountDownLatch(batchCount - 1);
+            for (int batch = 1; batch < batchCount; ++batch) {
+                final int start = batch * length / batchCount;
+                final int end = (batch + 1) * length / batchCount;
+                final Runnable runnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            getSuggestionsBatch(textInfos, start, end, suggestionsLimit, retval);
+                        } finally {
+                            doneSignal.countDown();
                         }
                     }
+                };
+                try {
+                    AsyncTask.THREAD_POOL_EXECUTOR.execute(runnable);
+                } catch (RejectedExecutionException e) {
+                    runnable.run();
+                }
+            }
+            // The first batch runs on the calling thread.
+            getSuggestionsBatch(textInfos, 0, length / batchCount, suggestionsLimit, retval);
+            // The other batches may still be writing their results, so this waits for them even
+            // if interrupted.
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    doneSignal.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            for (int i = 0; i < length; ++i) {
+                retval[i].setCookieAndSequence(textInfos[i].getCookie(),
+                        textInfos[i].getSequence());
+            }
+            return retval;
+        }
+
+        private void getSuggestionsBatch(final TextInfo[] textInfos, final int start,
+                final int end, final int suggestionsLimit, final SuggestionsInfo[] retval) {
+            DictAndProximity dictInfo = null;
+            try {
+                dictInfo = mDictionaryPool.takeUninterruptibly();
+                for (int i = start; i < end; ++i) {
+                    retval[i] = getSuggestions(dictInfo, textInfos[i].getText(),
+                            suggestionsLimit);
+                }
+            } finally {
+                if (null != dictInfo) {
+                    if (!mDictionaryPool.offer(dictInfo)) {
+                        Log.e(TAG, "Can't re-insert a dictionary into its pool");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the suggestions for a string with a dictionary taken from the pool.
+         */
+        private SuggestionsInfo getSuggestions(final DictAndProximity dictInfo,
+                final String text, final int suggestionsLimit) {
+            try {
+                if (shouldFilterOut(text)) {
+                    return dictInfo.mDictionary.isValidWord(text) ? getInDictEmptySuggestions()
+                            : getNotInDictEmptySuggestions();
+                }
+
+                final int generation = mSuggestionsCache.getGeneration();
+                final SuggestionsCache.Result cachedResult =
+                        mSuggestionsCache.get(text, suggestionsLimit);
+                if (DBG) {
+                    Log.i(TAG, "Cache hit rate = " + mSuggestionsCache.getHitRate());
+                }
+                if (null != cachedResult) {
+                    return new SuggestionsInfo(cachedResult.mFlags, cachedResult.mSuggestions);
                 }
 
                 // TODO: Don't gather suggestions if the limit is <= 0 unless necessary
@@ -445,26 +595,14 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
                 }
 
                 final int capitalizeType = getCapitalizationType(text);
-                boolean isInDict = true;
-                DictAndProximity dictInfo = null;
-                try {
-                    dictInfo = mDictionaryPool.takeOrGetNull();
-                    if (null == dictInfo) return getNotInDictEmptySuggestions();
-                    dictInfo.mDictionary.getWords(composer, suggestionsGatherer,
-                            dictInfo.mProximityInfo);
-                    isInDict = dictInfo.mDictionary.isValidWord(text);
-                    if (!isInDict && CAPITALIZE_NONE != capitalizeType) {
-                        // We want to test the word again if it's all caps or first caps only.
-                        // If it's fully down, we already tested it, if it's mixed case, we don't
-                        // want to test a lowercase version of it.
-                        isInDict = dictInfo.mDictionary.isValidWord(text.toLowerCase(mLocale));
-                    }
-                } finally {
-                    if (null != dictInfo) {
-                        if (!mDictionaryPool.offer(dictInfo)) {
-                            Log.e(TAG, "Can't re-insert a dictionary into its pool");
-                        }
-                    }
+                dictInfo.mDictionary.getWords(composer, suggestionsGatherer,
+                        dictInfo.mProximityInfo);
+                boolean isInDict = dictInfo.mDictionary.isValidWord(text);
+                if (!isInDict && CAPITALIZE_NONE != capitalizeType) {
+                    // We want to test the word again if it's all caps or first caps only.
+                    // If it's fully down, we already tested it, if it's mixed case, we don't
+                    // want to test a lowercase version of it.
+                    isInDict = dictInfo.mDictionary.isValidWord(text.toLowerCase(mLocale));
                 }
 
                 final SuggestionsGatherer.Result result = suggestionsGatherer.getResults(
@@ -487,6 +625,8 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
                 final int flags =
                         (isInDict ? SuggestionsInfo.RESULT_ATTR_IN_THE_DICTIONARY
                                 : SuggestionsInfo.RESULT_ATTR_LOOKS_LIKE_TYPO);
+                mSuggestionsCache.put(text, suggestionsLimit, generation,
+                        new SuggestionsCache.Result(flags, result.mSuggestions));
                 return new SuggestionsInfo(flags, result.mSuggestions);
             } catch (RuntimeException e) {
                 // Don't kill the keyboard if there is a bug in the spell checker
@@ -16,6 +16,9 @@
 
 package com.android.inputmethod.latin.spellcheck;
 
+import com.android.inputmethod.latin.DictionaryCollection;
+import com.android.inputmethod.latin.DictionaryFactory;
+
 import java.util.Locale;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -29,6 +32,8 @@ public class DictionaryPool extends LinkedBlockingQueue<DictAndProximity> {
     private final Locale mLocale;
     private int mSize;
     private volatile boolean mClosed;
+    // The main dictionaries of the first slot. The other slots read the same buffers.
+    private DictionaryCollection mMainDictionary;
 
     public DictionaryPool(final int maxSize, final AndroidSpellCheckerService service,
             final Locale locale) {
@@ -50,8 +55,38 @@ public class DictionaryPool extends LinkedBlockingQueue<DictAndProximity> {
                 return super.take();
             } else {
                 ++mSize;
-                return mService.createDictAndProximity(mLocale);
+                if (null != mMainDictionary) {
+                    // The buffers are released when the last slot reading them is closed.
+                    final DictionaryCollection sharingDictionary =
+                            DictionaryFactory.createDictionarySharingBuffers(mMainDictionary);
+                    if (null != sharingDictionary) {
+                        return mService.createDictAndProximity(mLocale, sharingDictionary);
+                    }
+                }
+                // This is the first slot, or the slot whose buffers the others shared has been
+                // closed: open the main dictionaries again.
+                mMainDictionary = mService.createMainDictionary(mLocale);
+                return mService.createDictAndProximity(mLocale, mMainDictionary);
+            }
+        }
+    }
+
+    /**
+     * Takes a dictionary, waiting for one even if the thread is interrupted, since a check that
+     * can't get one would report valid words as misspelled. The interrupt is not lost.
+     */
+    public DictAndProximity takeUninterruptibly() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
         }
     }
 
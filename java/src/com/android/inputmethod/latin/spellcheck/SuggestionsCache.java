@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin.spellcheck;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the spell checking results of the words of one locale, that evicts the least
+ * recently used results when it is full.
+ *
+ * The results depend on the contents of the dictionaries, so the cache has to be cleared when
+ * one of them changes. A result that has been computed before the cache was cleared is not
+ * added to it.
+ */
+public class SuggestionsCache {
+    /**
+     * The flags and the suggestions of a SuggestionsInfo. SuggestionsInfo itself is mutable, so
+     * a new one is created for each hit.
+     */
+    public static class Result {
+        public final int mFlags;
+        public final String[] mSuggestions;
+
+        public Result(final int flags, final String[] suggestions) {
+            mFlags = flags;
+            mSuggestions = suggestions;
+        }
+    }
+
+    private final LinkedHashMap<String, Result> mResults;
+    private int mGeneration;
+    private int mHitCount;
+    private int mMissCount;
+
+    @SuppressWarnings("serial")
+    public SuggestionsCache(final int maxSize) {
+        mResults = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Result> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    // The word as typed determines its capitalization type too.
+    private static String getKey(final String text, final int suggestionsLimit) {
+        return suggestionsLimit + ":" + text;
+    }
+
+    /**
+     * Returns the result for the word, or null if it is not in the cache.
+     */
+    public synchronized Result get(final String text, final int suggestionsLimit) {
+        final Result result = mResults.get(getKey(text, suggestionsLimit));
+        if (null == result) {
+            ++mMissCount;
+        } else {
+            ++mHitCount;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the generation of the cache, to pass to {@link #put} once the result has been
+     * computed.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Adds the result for the word, unless the cache has been cleared since the generation.
+     */
+    public synchronized void put(final String text, final int suggestionsLimit,
+            final int generation, final Result result) {
+        if (generation != mGeneration) return;
+        mResults.put(getKey(text, suggestionsLimit), result);
+    }
+
+    public synchronized void clear() {
+        mResults.clear();
+        ++mGeneration;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the ratio of the lookups that were hits, or 0 if there has been no lookup.
+     */
+    public synchronized float getHitRate() {
+        final int lookupCount = mHitCount + mMissCount;
+        return (0 == lookupCount) ? 0.0f : (float)mHitCount / lookupCount;
+    }
+}
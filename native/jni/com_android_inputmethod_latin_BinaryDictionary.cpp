@@ -124,55 +124,96 @@ static jint latinime_BinaryDictionary_open(JNIEnv *env, jobject object,
     return (jint)dictionary;
 }
 
-static int latinime_BinaryDictionary_getSuggestions(JNIEnv *env, jobject object, jint dict,
-        jint proximityInfo, jintArray xCoordinatesArray, jintArray yCoordinatesArray,
-        jintArray inputArray, jint arraySize, jint flags,
-        jcharArray outputArray, jintArray frequencyArray) {
-    Dictionary *dictionary = (Dictionary*)dict;
-    if (!dictionary) return 0;
-    ProximityInfo *pInfo = (ProximityInfo*)proximityInfo;
+static jint latinime_BinaryDictionary_openSharing(JNIEnv *env, jobject object, jint dict,
+        jint typedLetterMultiplier, jint fullWordMultiplier, jint maxWordLength, jint maxWords,
+        jint maxAlternatives) {
+    Dictionary *source = (Dictionary*)dict;
+    if (!source) return 0;
+    // The new dictionary reads the buffer of the source, which is read-only, but has its own
+    // search state so that both can be searched at the same time.
+    Dictionary *dictionary = new Dictionary(source->getDict(), source->getDictSize(),
+            source->getMmapFd(), source->getDictBufAdjust(), typedLetterMultiplier,
+            fullWordMultiplier, maxWordLength, maxWords, maxAlternatives);
+    return (jint)dictionary;
+}
 
-    int *xCoordinates = env->GetIntArrayElements(xCoordinatesArray, NULL);
-    int *yCoordinates = env->GetIntArrayElements(yCoordinatesArray, NULL);
+// The direct buffers a BinaryDictionary does its lookups through. Java writes the input to them
+// and reads the output from them, so that a lookup doesn't copy or pin any Java array. The Java
+// side keeps the buffers alive until it releases this.
+struct LookupBuffers {
+    int *inputCodes;
+    int *xCoordinates;
+    int *yCoordinates;
+    unsigned short *prevWord;
+    unsigned short *outputChars;
+    int outputSize;
+    int *frequencies;
+    int maxWords;
+    unsigned short *bigramChars;
+    int bigramOutputSize;
+    int *bigramFrequencies;
+    int maxBigrams;
+};
 
-    int *frequencies = env->GetIntArrayElements(frequencyArray, NULL);
-    int *inputCodes = env->GetIntArrayElements(inputArray, NULL);
-    jchar *outputChars = env->GetCharArrayElements(outputArray, NULL);
+static jint latinime_BinaryDictionary_createLookupBuffers(JNIEnv *env, jobject object,
+        jobject inputCodes, jobject xCoordinates, jobject yCoordinates, jobject prevWord,
+        jobject outputChars, jobject frequencies, jobject bigramChars,
+        jobject bigramFrequencies) {
+    LookupBuffers *buffers = new LookupBuffers;
+    buffers->inputCodes = (int*) env->GetDirectBufferAddress(inputCodes);
+    buffers->xCoordinates = (int*) env->GetDirectBufferAddress(xCoordinates);
+    buffers->yCoordinates = (int*) env->GetDirectBufferAddress(yCoordinates);
+    buffers->prevWord = (unsigned short*) env->GetDirectBufferAddress(prevWord);
+    buffers->outputChars = (unsigned short*) env->GetDirectBufferAddress(outputChars);
+    // The buffers are IntBuffer and CharBuffer views, whose capacity is already a count of
+    // elements rather than of bytes.
+    buffers->outputSize = env->GetDirectBufferCapacity(outputChars);
+    buffers->frequencies = (int*) env->GetDirectBufferAddress(frequencies);
+    buffers->maxWords = env->GetDirectBufferCapacity(frequencies);
+    buffers->bigramChars = (unsigned short*) env->GetDirectBufferAddress(bigramChars);
+    buffers->bigramOutputSize = env->GetDirectBufferCapacity(bigramChars);
+    buffers->bigramFrequencies = (int*) env->GetDirectBufferAddress(bigramFrequencies);
+    buffers->maxBigrams = env->GetDirectBufferCapacity(bigramFrequencies);
+    if (!buffers->inputCodes || !buffers->xCoordinates || !buffers->yCoordinates
+            || !buffers->prevWord || !buffers->outputChars || !buffers->frequencies
+            || !buffers->bigramChars || !buffers->bigramFrequencies) {
+        LOGE("DICT: lookup buffers are not direct buffers");
+        delete buffers;
+        return 0;
+    }
+    return (jint)buffers;
+}
 
-    int count = dictionary->getSuggestions(pInfo, xCoordinates, yCoordinates, inputCodes,
-            arraySize, flags, (unsigned short*) outputChars, frequencies);
+static void latinime_BinaryDictionary_releaseLookupBuffers(JNIEnv *env, jobject object,
+        jint lookupBuffers) {
+    delete (LookupBuffers*)lookupBuffers;
+}
 
-    env->ReleaseIntArrayElements(frequencyArray, frequencies, 0);
-    env->ReleaseIntArrayElements(inputArray, inputCodes, JNI_ABORT);
-    env->ReleaseIntArrayElements(xCoordinatesArray, xCoordinates, 0);
-    env->ReleaseIntArrayElements(yCoordinatesArray, yCoordinates, 0);
-    env->ReleaseCharArrayElements(outputArray, outputChars, 0);
+static int latinime_BinaryDictionary_getSuggestions(JNIEnv *env, jobject object, jint dict,
+        jint lookupBuffers, jint proximityInfo, jint codesSize, jint flags,
+        jint prevWordLength) {
+    Dictionary *dictionary = (Dictionary*)dict;
+    LookupBuffers *buffers = (LookupBuffers*)lookupBuffers;
+    if (!dictionary || !buffers) return 0;
+    ProximityInfo *pInfo = (ProximityInfo*)proximityInfo;
 
-    return count;
+    int outputLength = 0;
+    return dictionary->getPackedSuggestions(pInfo, buffers->xCoordinates,
+            buffers->yCoordinates, buffers->inputCodes, codesSize, flags, buffers->prevWord,
+            prevWordLength, buffers->outputChars, buffers->outputSize, buffers->frequencies,
+            buffers->maxWords, &outputLength);
 }
 
 static int latinime_BinaryDictionary_getBigrams(JNIEnv *env, jobject object, jint dict,
-        jcharArray prevWordArray, jint prevWordLength, jintArray inputArray, jint inputArraySize,
-        jcharArray outputArray, jintArray frequencyArray, jint maxWordLength, jint maxBigrams,
-        jint maxAlternatives) {
+        jint lookupBuffers, jint prevWordLength, jint codesSize) {
     Dictionary *dictionary = (Dictionary*)dict;
-    if (!dictionary) return 0;
-
-    jchar *prevWord = env->GetCharArrayElements(prevWordArray, NULL);
-    int *inputCodes = env->GetIntArrayElements(inputArray, NULL);
-    jchar *outputChars = env->GetCharArrayElements(outputArray, NULL);
-    int *frequencies = env->GetIntArrayElements(frequencyArray, NULL);
-
-    int count = dictionary->getBigrams((unsigned short*) prevWord, prevWordLength, inputCodes,
-            inputArraySize, (unsigned short*) outputChars, frequencies, maxWordLength, maxBigrams,
-            maxAlternatives);
+    LookupBuffers *buffers = (LookupBuffers*)lookupBuffers;
+    if (!dictionary || !buffers) return 0;
 
-    env->ReleaseCharArrayElements(prevWordArray, prevWord, JNI_ABORT);
-    env->ReleaseIntArrayElements(inputArray, inputCodes, JNI_ABORT);
-    env->ReleaseCharArrayElements(outputArray, outputChars, 0);
-    env->ReleaseIntArrayElements(frequencyArray, frequencies, 0);
-
-    return count;
+    int outputLength = 0;
+    return dictionary->getPackedBigrams(buffers->prevWord, prevWordLength,
+            buffers->inputCodes, codesSize, buffers->bigramChars, buffers->bigramOutputSize,
+            buffers->bigramFrequencies, buffers->maxBigrams, &outputLength);
 }
 
 static jboolean latinime_BinaryDictionary_isValidWord(JNIEnv *env, jobject object, jint dict,
@@ -201,6 +242,13 @@ static void latinime_BinaryDictionary_close(JNIEnv *env, jobject object, jint di
     delete dictionary;
 }
 
+static void latinime_BinaryDictionary_closeSharing(JNIEnv *env, jobject object, jint dict) {
+    Dictionary *dictionary = (Dictionary*)dict;
+    if (!dictionary) return;
+    // The buffer is released with the dictionary it has been opened from.
+    delete dictionary;
+}
+
 void releaseDictBuf(void* dictBuf, const size_t length, int fd) {
 #ifdef USE_MMAP_FOR_DICTIONARY
     int ret = munmap(dictBuf, length);
@@ -218,10 +266,17 @@ void releaseDictBuf(void* dictBuf, const size_t length, int fd) {
 
 static JNINativeMethod sMethods[] = {
     {"openNative", "(Ljava/lang/String;JJIIIII)I", (void*)latinime_BinaryDictionary_open},
+    {"openSharingNative", "(IIIIII)I", (void*)latinime_BinaryDictionary_openSharing},
     {"closeNative", "(I)V", (void*)latinime_BinaryDictionary_close},
-    {"getSuggestionsNative", "(II[I[I[III[C[I)I", (void*)latinime_BinaryDictionary_getSuggestions},
+    {"closeSharingNative", "(I)V", (void*)latinime_BinaryDictionary_closeSharing},
+    {"createLookupBuffersNative", "(Ljava/nio/Buffer;Ljava/nio/Buffer;"
+            "Ljava/nio/Buffer;Ljava/nio/Buffer;Ljava/nio/Buffer;"
+            "Ljava/nio/Buffer;Ljava/nio/Buffer;Ljava/nio/Buffer;)I",
+            (void*)latinime_BinaryDictionary_createLookupBuffers},
+    {"releaseLookupBuffersNative", "(I)V", (void*)latinime_BinaryDictionary_releaseLookupBuffers},
+    {"getSuggestionsNative", "(IIIIII)I", (void*)latinime_BinaryDictionary_getSuggestions},
     {"isValidWordNative", "(I[CI)Z", (void*)latinime_BinaryDictionary_isValidWord},
-    {"getBigramsNative", "(I[CI[II[C[IIII)I", (void*)latinime_BinaryDictionary_getBigrams}
+    {"getBigramsNative", "(IIII)I", (void*)latinime_BinaryDictionary_getBigrams}
 };
 
 int register_BinaryDictionary(JNIEnv *env) {
@@ -202,6 +202,21 @@ static void dumpWord(const unsigned short* word, const int length) {
 
 #define MAX_DEPTH_MULTIPLIER 3
 
+// This should be greater than or equal to MAX_BIGRAMS defined in BinaryDictionary.java
+#define MAX_BIGRAMS_INTERNAL 60
+
+// The score of a word that follows the previous word is multiplied by BIGRAM_MULTIPLIER_MIN to
+// BIGRAM_MULTIPLIER_MAX depending on the frequency of the bigram, MAXIMUM_BIGRAM_FREQUENCY
+// getting BIGRAM_MULTIPLIER_MAX. These must match the constants in Suggest.java.
+#define BIGRAM_MULTIPLIER_MIN 1.2
+#define BIGRAM_MULTIPLIER_MAX 1.5
+#define MAXIMUM_BIGRAM_FREQUENCY 127
+
+// Each word of a packed result block is its length, its flags, then its characters.
+// This must match BinaryDictionary.java.
+#define PACKED_WORD_HEADER_SIZE 2
+#define PACKED_WORD_FLAG_BIGRAM_BOOSTED 0x1
+
 // TODO: Reduce this constant if possible; check the maximum number of umlauts in the same German
 // word in the dictionary
 #define DEFAULT_MAX_UMLAUT_SEARCH_DEPTH 5
@@ -16,6 +16,7 @@
 */
 
 #include <stdio.h>
+#include <string.h>
 
 #define LOG_TAG "LatinIME: dictionary.cpp"
 
@@ -30,7 +31,8 @@ Dictionary::Dictionary(void *dict, int dictSize, int mmapFd, int dictBufAdjust,
     : mDict((unsigned char*) dict), mDictSize(dictSize),
     mMmapFd(mmapFd), mDictBufAdjust(dictBufAdjust),
     // Checks whether it has the latest dictionary or the old dictionary
-    IS_LATEST_DICT_VERSION((((unsigned char*) dict)[0] & 0xFF) >= DICTIONARY_VERSION_MIN) {
+    IS_LATEST_DICT_VERSION((((unsigned char*) dict)[0] & 0xFF) >= DICTIONARY_VERSION_MIN),
+    MAX_WORD_LENGTH(maxWordLength), MAX_WORDS(maxWords), MAX_ALTERNATIVES(maxAlternatives) {
     if (DEBUG_DICT) {
         if (MAX_WORD_LENGTH_INTERNAL < maxWordLength) {
             LOGI("Max word length (%d) is greater than %d",
@@ -42,11 +44,19 @@ Dictionary::Dictionary(void *dict, int dictSize, int mmapFd, int dictBufAdjust,
             maxWordLength, maxWords, maxAlternatives, IS_LATEST_DICT_VERSION);
     mBigramDictionary = new BigramDictionary(mDict, maxWordLength, maxAlternatives,
             IS_LATEST_DICT_VERSION, hasBigram(), this);
+    mWords = new unsigned short[maxWordLength * maxWords];
+    mFrequencies = new int[maxWords];
+    mBigramWords = new unsigned short[maxWordLength * MAX_BIGRAMS_INTERNAL];
+    mBigramFrequencies = new int[MAX_BIGRAMS_INTERNAL];
 }
 
 Dictionary::~Dictionary() {
     delete mUnigramDictionary;
     delete mBigramDictionary;
+    delete[] mWords;
+    delete[] mFrequencies;
+    delete[] mBigramWords;
+    delete[] mBigramFrequencies;
 }
 
 bool Dictionary::hasBigram() {
@@ -57,4 +67,112 @@ bool Dictionary::isValidWord(unsigned short *word, int length) {
     return mUnigramDictionary->isValidWord(word, length);
 }
 
+// The length of a word of a fixed-width buffer, which is NULL terminated unless it fills its slot.
+static inline int getWordLength(const unsigned short *word, const int maxWordLength) {
+    int length = 0;
+    while (length < maxWordLength && word[length]) {
+        ++length;
+    }
+    return length;
+}
+
+int Dictionary::getPackedSuggestions(ProximityInfo *proximityInfo, int *xcoordinates,
+        int *ycoordinates, int *codes, int codesSize, int flags, unsigned short *prevWord,
+        int prevWordLength, unsigned short *outBlock, int outBlockSize, int *outFrequencies,
+        int maxWords, int *outBlockLength) {
+    // The unigram dictionary ranks the words by insertion into a zero-filled buffer.
+    memset(mWords, 0, MAX_WORD_LENGTH * MAX_WORDS * sizeof(mWords[0]));
+    memset(mFrequencies, 0, MAX_WORDS * sizeof(mFrequencies[0]));
+    const int count = mUnigramDictionary->getSuggestions(proximityInfo, xcoordinates,
+            ycoordinates, codes, codesSize, flags, mWords, mFrequencies);
+    const int bigramCount = (prevWord && prevWordLength > 0 && codesSize > 0)
+            ? fillBigrams(prevWord, prevWordLength, codes, codesSize, MAX_BIGRAMS_INTERNAL) : 0;
+
+    int wordFlags[count];
+    int order[count];
+    for (int i = 0; i < count; ++i) {
+        wordFlags[i] = 0;
+        const int bigramFrequency = getBigramFrequency(mWords + i * MAX_WORD_LENGTH,
+                bigramCount);
+        if (bigramFrequency > 0) {
+            const double multiplier = ((double) bigramFrequency) / MAXIMUM_BIGRAM_FREQUENCY
+                    * (BIGRAM_MULTIPLIER_MAX - BIGRAM_MULTIPLIER_MIN) + BIGRAM_MULTIPLIER_MIN;
+            mFrequencies[i] = (int) (mFrequencies[i] * multiplier + 0.5);
+            wordFlags[i] = PACKED_WORD_FLAG_BIGRAM_BOOSTED;
+        }
+        // Boosting changes the order, so sort again, keeping the order of equal scores.
+        int insertAt = i;
+        while (insertAt > 0 && mFrequencies[order[insertAt - 1]] < mFrequencies[i]) {
+            order[insertAt] = order[insertAt - 1];
+            --insertAt;
+        }
+        order[insertAt] = i;
+    }
+    return packWords(mWords, mFrequencies, wordFlags, order, min(count, maxWords), outBlock,
+            outBlockSize, outFrequencies, outBlockLength);
+}
+
+int Dictionary::getPackedBigrams(unsigned short *prevWord, int prevWordLength, int *codes,
+        int codesSize, unsigned short *outBlock, int outBlockSize, int *outFrequencies,
+        int maxBigrams, int *outBlockLength) {
+    const int count = fillBigrams(prevWord, prevWordLength, codes, codesSize,
+            min(maxBigrams, MAX_BIGRAMS_INTERNAL));
+    return packWords(mBigramWords, mBigramFrequencies, NULL, NULL, count, outBlock,
+            outBlockSize, outFrequencies, outBlockLength);
+}
+
+// Looks up the bigrams of prevWord whose first letter matches the first code, and returns how
+// many there are in the bigram buffers.
+int Dictionary::fillBigrams(unsigned short *prevWord, int prevWordLength, int *codes,
+        int codesSize, int maxBigrams) {
+    // The bigram dictionary ranks the words by insertion into a zero-filled buffer too.
+    memset(mBigramWords, 0, MAX_WORD_LENGTH * maxBigrams * sizeof(mBigramWords[0]));
+    memset(mBigramFrequencies, 0, maxBigrams * sizeof(mBigramFrequencies[0]));
+    mBigramDictionary->getBigrams(prevWord, prevWordLength, codes, codesSize, mBigramWords,
+            mBigramFrequencies, MAX_WORD_LENGTH, maxBigrams, MAX_ALTERNATIVES);
+    int count = 0;
+    while (count < maxBigrams && mBigramFrequencies[count] > 0) {
+        ++count;
+    }
+    return count;
+}
+
+// Returns the frequency of the bigram of the word in the bigram buffers, or 0 if there is none.
+int Dictionary::getBigramFrequency(const unsigned short *word, int bigramCount) {
+    const int length = getWordLength(word, MAX_WORD_LENGTH);
+    for (int i = 0; i < bigramCount; ++i) {
+        const unsigned short *bigram = mBigramWords + i * MAX_WORD_LENGTH;
+        if (getWordLength(bigram, MAX_WORD_LENGTH) == length
+                && 0 == memcmp(bigram, word, length * sizeof(word[0]))) {
+            // The bigrams are sorted by frequency, so this is the most frequent one.
+            return mBigramFrequencies[i];
+        }
+    }
+    return 0;
+}
+
+// Packs the first count words of a fixed-width buffer, in the given order if any, until the
+// block is full. Returns the number of words packed.
+int Dictionary::packWords(const unsigned short *words, const int *frequencies, const int *flags,
+        const int *order, int count, unsigned short *outBlock, int outBlockSize,
+        int *outFrequencies, int *outBlockLength) {
+    int packedCount = 0;
+    int pos = 0;
+    for (int i = 0; i < count; ++i) {
+        const int index = order ? order[i] : i;
+        if (frequencies[index] < 1) break;
+        const unsigned short *word = words + index * MAX_WORD_LENGTH;
+        const int length = getWordLength(word, MAX_WORD_LENGTH);
+        if (length == 0) continue;
+        if (pos + PACKED_WORD_HEADER_SIZE + length > outBlockSize) break;
+        outBlock[pos++] = length;
+        outBlock[pos++] = flags ? flags[index] : 0;
+        memcpy(outBlock + pos, word, length * sizeof(word[0]));
+        pos += length;
+        outFrequencies[packedCount++] = frequencies[index];
+    }
+    *outBlockLength = pos;
+    return packedCount;
+}
+
 } // namespace latinime
@@ -44,6 +44,20 @@ public:
                 maxWordLength, maxBigrams, maxAlternatives);
     }
 
+    // Looks up the words matching the codes, and boosts the score of the ones that follow
+    // prevWord, if any. The words are written to outBlock packed as described in defines.h,
+    // sorted by score, and their scores to outFrequencies. Returns the number of words, and the
+    // number of chars of outBlock used in outBlockLength.
+    int getPackedSuggestions(ProximityInfo *proximityInfo, int *xcoordinates, int *ycoordinates,
+            int *codes, int codesSize, int flags, unsigned short *prevWord, int prevWordLength,
+            unsigned short *outBlock, int outBlockSize, int *outFrequencies, int maxWords,
+            int *outBlockLength);
+
+    // Same as getPackedSuggestions for the words that follow prevWord.
+    int getPackedBigrams(unsigned short *prevWord, int prevWordLength, int *codes, int codesSize,
+            unsigned short *outBlock, int outBlockSize, int *outFrequencies, int maxBigrams,
+            int *outBlockLength);
+
     bool isValidWord(unsigned short *word, int length);
     void *getDict() { return (void *)mDict; }
     int getDictSize() { return mDictSize; }
@@ -67,6 +81,12 @@ public:
 
 private:
     bool hasBigram();
+    int fillBigrams(unsigned short *prevWord, int prevWordLength, int *codes, int codesSize,
+            int maxBigrams);
+    int getBigramFrequency(const unsigned short *word, int bigramCount);
+    int packWords(const unsigned short *words, const int *frequencies, const int *flags,
+            const int *order, int count, unsigned short *outBlock, int outBlockSize,
+            int *outFrequencies, int *outBlockLength);
 
     const unsigned char *mDict;
 
@@ -77,8 +97,18 @@ private:
     const int mDictBufAdjust;
 
     const bool IS_LATEST_DICT_VERSION;
+    const int MAX_WORD_LENGTH;
+    const int MAX_WORDS;
+    const int MAX_ALTERNATIVES;
     UnigramDictionary *mUnigramDictionary;
     BigramDictionary *mBigramDictionary;
+
+    // The fixed-width buffers the unigram and bigram dictionaries rank their words in, before
+    // they are packed.
+    unsigned short *mWords;
+    int *mFrequencies;
+    unsigned short *mBigramWords;
+    int *mBigramFrequencies;
 };
 
 // public static utility methods
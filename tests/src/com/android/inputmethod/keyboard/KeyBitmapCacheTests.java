@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.keyboard;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import com.android.inputmethod.keyboard.internal.KeyboardParams;
+
+public class KeyBitmapCacheTests extends AndroidTestCase {
+    private static final int KEY_SIZE = 10;
+    // The memory of an ARGB_8888 bitmap of a key.
+    private static final int KEY_MEMORY_SIZE = KEY_SIZE * KEY_SIZE * 4;
+
+    private final KeyboardParams mParams = new KeyboardParams();
+
+    private Key createKey(String label) {
+        return new Key(mParams, label, null, null, label.charAt(0), null, 0, 0,
+                KEY_SIZE, KEY_SIZE);
+    }
+
+    private static Bitmap createBitmap() {
+        return Bitmap.createBitmap(KEY_SIZE, KEY_SIZE, Bitmap.Config.ARGB_8888);
+    }
+
+    public void testLookupByVisual() {
+        final KeyBitmapCache cache = new KeyBitmapCache(KEY_MEMORY_SIZE * 10);
+        final KeyBitmapCache.KeyVisual visual = new KeyBitmapCache.KeyVisual();
+        final Key key = createKey("q");
+        final Bitmap bitmap = createBitmap();
+        cache.put(visual.set(key, key.mLabel, false), bitmap);
+
+        assertSame(bitmap, cache.get(visual.set(key, "q", false)));
+        assertNull("shifted label", cache.get(visual.set(key, "Q", false)));
+        assertNull("upper case", cache.get(visual.set(key, "q", true)));
+        key.onPressed();
+        assertNull("pressed", cache.get(visual.set(key, "q", false)));
+        key.onReleased();
+        assertSame(bitmap, cache.get(visual.set(key, "q", false)));
+        assertNull("other key", cache.get(visual.set(createKey("q"), "q", false)));
+    }
+
+    public void testLeastRecentlyUsedIsRecycled() {
+        final KeyBitmapCache cache = new KeyBitmapCache(KEY_MEMORY_SIZE * 2);
+        final KeyBitmapCache.KeyVisual visual = new KeyBitmapCache.KeyVisual();
+        final Key q = createKey("q");
+        final Key w = createKey("w");
+        final Key e = createKey("e");
+        final Bitmap qBitmap = createBitmap();
+        final Bitmap wBitmap = createBitmap();
+        final Bitmap eBitmap = createBitmap();
+        cache.put(visual.set(q, "q", false), qBitmap);
+        cache.put(visual.set(w, "w", false), wBitmap);
+        // Drawing q again makes w the least recently used.
+        assertSame(qBitmap, cache.get(visual.set(q, "q", false)));
+        cache.put(visual.set(e, "e", false), eBitmap);
+
+        assertEquals(2, cache.size());
+        assertEquals(KEY_MEMORY_SIZE * 2, cache.getMemorySize());
+        assertTrue(wBitmap.isRecycled());
+        assertFalse(qBitmap.isRecycled());
+        assertFalse(eBitmap.isRecycled());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMemorySize());
+        assertTrue(qBitmap.isRecycled());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.keyboard;
+
+import android.content.res.Configuration;
+import android.test.AndroidTestCase;
+import android.util.DisplayMetrics;
+import android.view.inputmethod.EditorInfo;
+
+import com.android.inputmethod.latin.R;
+
+import java.util.Locale;
+
+public class KeyboardCacheTests extends AndroidTestCase {
+    private static final Locale[] LOCALES = { Locale.US, Locale.FRANCE, Locale.GERMANY };
+
+    private final KeyboardId[] mIds = new KeyboardId[LOCALES.length];
+    private final LatinKeyboard[] mKeyboards = new LatinKeyboard[LOCALES.length];
+    private final int[] mSizes = new int[LOCALES.length];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final DisplayMetrics dm = getContext().getResources().getDisplayMetrics();
+        final int width = Math.min(dm.widthPixels, dm.heightPixels);
+        for (int i = 0; i < LOCALES.length; i++) {
+            mIds[i] = new KeyboardId(LOCALES[i].toString() + " keyboard", R.xml.kbd_qwerty,
+                    LOCALES[i], Configuration.ORIENTATION_PORTRAIT, width, KeyboardId.MODE_TEXT,
+                    new EditorInfo(), false, KeyboardId.F2KEY_MODE_NONE, false, false, false);
+            mKeyboards[i] = new LatinKeyboard.Builder(getContext()).load(mIds[i]).build();
+            mSizes[i] = KeyboardCache.getMemorySize(mKeyboards[i]);
+            assertTrue(mSizes[i] > 0);
+        }
+    }
+
+    public void testLeastRecentlyUsedIsDropped() {
+        // Room for the first keyboard and either of the others.
+        final KeyboardCache cache = new KeyboardCache(mSizes[0] + Math.max(mSizes[1], mSizes[2]));
+        cache.put(mIds[0], mKeyboards[0]);
+        cache.put(mIds[1], mKeyboards[1]);
+        assertEquals(2, cache.size());
+        assertEquals(mSizes[0] + mSizes[1], cache.getMemorySize());
+        // Getting the first keyboard makes the second one the least recently used.
+        assertSame(mKeyboards[0], cache.get(mIds[0]));
+        cache.put(mIds[2], mKeyboards[2]);
+
+        assertEquals(2, cache.size());
+        assertEquals(mSizes[0] + mSizes[2], cache.getMemorySize());
+        assertTrue(cache.contains(mIds[0]));
+        assertFalse(cache.contains(mIds[1]));
+        assertSame(mKeyboards[2], cache.get(mIds[2]));
+    }
+
+    public void testAddedKeyboardAndKeyboardInUseAreKept() {
+        final KeyboardCache cache = new KeyboardCache(1);
+        cache.setKeyboardInUse(mIds[0]);
+        cache.put(mIds[0], mKeyboards[0]);
+        // Over budget, but neither the keyboard in use nor the added one can be dropped.
+        cache.put(mIds[1], mKeyboards[1]);
+        assertEquals(2, cache.size());
+        cache.put(mIds[2], mKeyboards[2]);
+        assertEquals(2, cache.size());
+        assertEquals(mSizes[0] + mSizes[2], cache.getMemorySize());
+        assertTrue(cache.contains(mIds[0]));
+        assertFalse(cache.contains(mIds[1]));
+        assertTrue(cache.contains(mIds[2]));
+    }
+
+    public void testTrimKeepsKeyboardInUse() {
+        final KeyboardCache cache = new KeyboardCache(Integer.MAX_VALUE);
+        for (int i = 0; i < LOCALES.length; i++) {
+            cache.put(mIds[i], mKeyboards[i]);
+        }
+        assertEquals(mSizes[0] + mSizes[1] + mSizes[2], cache.getMemorySize());
+        // The keyboard in use is the least recently used one, after keyboards were preloaded.
+        cache.setKeyboardInUse(mIds[0]);
+        cache.trimToSize(0);
+
+        assertEquals(1, cache.size());
+        assertEquals(mSizes[0], cache.getMemorySize());
+        assertSame(mKeyboards[0], cache.get(mIds[0]));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMemorySize());
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.keyboard.internal;
+
+import android.content.res.Configuration;
+import android.graphics.drawable.Drawable;
+import android.test.AndroidTestCase;
+import android.util.DisplayMetrics;
+import android.view.inputmethod.EditorInfo;
+
+import com.android.inputmethod.keyboard.Key;
+import com.android.inputmethod.keyboard.Keyboard;
+import com.android.inputmethod.keyboard.KeyboardId;
+import com.android.inputmethod.keyboard.LatinKeyboard;
+import com.android.inputmethod.latin.R;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+public class CompiledKeyboardLayoutTests extends AndroidTestCase {
+    private static final String SIGNATURE = "[qwerty.xml en_US port480 text] version=1";
+
+    private File mFile;
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("keyboard", ".kbl");
+        mDir = new File(getContext().getCacheDir(), "compiled_keyboard_layout_tests");
+        deleteDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        deleteDir();
+        super.tearDown();
+    }
+
+    private void deleteDir() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (final File file : files) file.delete();
+        }
+        mDir.delete();
+    }
+
+    private static KeyboardParams createParams() {
+        final KeyboardParams params = new KeyboardParams();
+        params.mOccupiedHeight = 200;
+        params.mOccupiedWidth = 480;
+        params.mBaseWidth = 470;
+        params.mHorizontalGap = 4;
+        params.mVerticalGap = 6;
+        params.mIsRtlKeyboard = true;
+        params.mMaxMiniKeyboardColumn = 5;
+        params.onAddKey(new Key(params, "q", "1", null, 'q', null, 5, 0, 47, 50));
+        params.onAddKey(new Key(params, ".com", null, null, Keyboard.CODE_DUMMY, ".com",
+                52, 0, 94, 50));
+        params.onAddKey(new Key.Spacer(params, null, 146, 0, 10, 50));
+        return params;
+    }
+
+    private KeyboardParams writeAndRead(KeyboardParams params) {
+        CompiledKeyboardLayout.write(mFile, SIGNATURE, params);
+        final ByteBuffer buffer = CompiledKeyboardLayout.open(mFile, SIGNATURE);
+        assertNotNull(buffer);
+        final KeyboardParams readParams = new KeyboardParams();
+        CompiledKeyboardLayout.readKeyboard(buffer, readParams);
+        assertFalse(buffer.hasRemaining());
+        return readParams;
+    }
+
+    public void testRoundTrip() {
+        final KeyboardParams params = createParams();
+        final KeyboardParams readParams = writeAndRead(params);
+
+        assertEquals(params.mOccupiedHeight, readParams.mOccupiedHeight);
+        assertEquals(params.mOccupiedWidth, readParams.mOccupiedWidth);
+        assertEquals(params.mBaseWidth, readParams.mBaseWidth);
+        assertEquals(params.mHorizontalGap, readParams.mHorizontalGap);
+        assertEquals(params.mVerticalGap, readParams.mVerticalGap);
+        assertEquals(params.mIsRtlKeyboard, readParams.mIsRtlKeyboard);
+        assertEquals(params.mMaxMiniKeyboardColumn, readParams.mMaxMiniKeyboardColumn);
+        assertEquals(params.mMostCommonKeyWidth, readParams.mMostCommonKeyWidth);
+
+        assertEquals(params.mKeys.size(), readParams.mKeys.size());
+        for (int i = 0; i < params.mKeys.size(); i++) {
+            final Key key = params.mKeys.get(i);
+            final Key readKey = readParams.mKeys.get(i);
+            assertEquals("code " + i, key.mCode, readKey.mCode);
+            assertEquals("label " + i, str(key.mLabel), str(readKey.mLabel));
+            assertEquals("hint label " + i, str(key.mHintLabel), str(readKey.mHintLabel));
+            assertEquals("output text " + i, str(key.mOutputText), str(readKey.mOutputText));
+            assertEquals("x " + i, key.mX, readKey.mX);
+            assertEquals("y " + i, key.mY, readKey.mY);
+            assertEquals("width " + i, key.mWidth, readKey.mWidth);
+            assertEquals("height " + i, key.mHeight, readKey.mHeight);
+            assertEquals("hit box " + i, key.mHitBox, readKey.mHitBox);
+            assertEquals("spacer " + i, key.isSpacer(), readKey.isSpacer());
+            assertEquals("enabled " + i, key.isEnabled(), readKey.isEnabled());
+        }
+    }
+
+    public void testOtherSignatureIsIgnored() {
+        CompiledKeyboardLayout.write(mFile, SIGNATURE, createParams());
+        assertNull(CompiledKeyboardLayout.open(mFile, SIGNATURE + "2"));
+    }
+
+    public void testTruncatedFileIsIgnored() throws IOException {
+        mFile.delete();
+        assertNull(CompiledKeyboardLayout.open(mFile, SIGNATURE));
+        assertTrue(mFile.createNewFile());
+        assertNull(CompiledKeyboardLayout.open(mFile, SIGNATURE));
+    }
+
+    public void testTruncatedBodyIsIgnored() throws IOException {
+        CompiledKeyboardLayout.write(mFile, SIGNATURE, createParams());
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            // In the middle of the keys.
+            file.setLength(file.length() - 20);
+        } finally {
+            file.close();
+        }
+        assertNull(CompiledKeyboardLayout.open(mFile, SIGNATURE));
+    }
+
+    public void testHugeLengthIsRejected() {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(Integer.MAX_VALUE).putInt(0).flip();
+        try {
+            CompiledKeyboardLayout.readText(buffer);
+            fail("text length");
+        } catch (IllegalArgumentException e) {
+            // Expected, instead of allocating the text.
+        }
+        buffer.rewind();
+        try {
+            CompiledKeyboardLayout.readTextArray(buffer);
+            fail("array length");
+        } catch (IllegalArgumentException e) {
+            // Expected, instead of allocating the array.
+        }
+    }
+
+    private KeyboardId createQwertyKeyboardId() {
+        final DisplayMetrics dm = getContext().getResources().getDisplayMetrics();
+        final Locale locale = Locale.US;
+        return new KeyboardId(locale.toString() + " keyboard", R.xml.kbd_qwerty, locale,
+                Configuration.ORIENTATION_PORTRAIT, Math.min(dm.widthPixels, dm.heightPixels),
+                KeyboardId.MODE_TEXT, new EditorInfo(), true, KeyboardId.F2KEY_MODE_NONE,
+                false, true, true);
+    }
+
+    private Keyboard loadCompiledKeyboard(KeyboardId id) {
+        return new LatinKeyboard.Builder(getContext()).load(id, mDir).build();
+    }
+
+    private File getCompiledFile() {
+        final File[] files = mDir.listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    public void testCompiledQwertyMatchesXml() {
+        final KeyboardId id = createQwertyKeyboardId();
+        final Keyboard parsed = new LatinKeyboard.Builder(getContext()).load(id).build();
+        // The first load parses the XML and compiles it, the second one reads the compiled file.
+        assertKeyboardsEqual(parsed, loadCompiledKeyboard(id));
+        final long lastModified = getCompiledFile().lastModified();
+        assertKeyboardsEqual(parsed, loadCompiledKeyboard(id));
+        assertEquals(lastModified, getCompiledFile().lastModified());
+    }
+
+    public void testTruncatedCompiledQwertyFallsBackToXml() throws IOException {
+        final KeyboardId id = createQwertyKeyboardId();
+        final Keyboard parsed = new LatinKeyboard.Builder(getContext()).load(id).build();
+        loadCompiledKeyboard(id);
+        final File compiledFile = getCompiledFile();
+        final long length = compiledFile.length();
+        final RandomAccessFile file = new RandomAccessFile(compiledFile, "rw");
+        try {
+            file.setLength(length / 2);
+        } finally {
+            file.close();
+        }
+        assertKeyboardsEqual(parsed, loadCompiledKeyboard(id));
+        // It has been compiled again.
+        assertEquals(length, getCompiledFile().length());
+    }
+
+    private static void assertKeyboardsEqual(Keyboard expected, Keyboard actual) {
+        assertEquals("occupied height", expected.mOccupiedHeight, actual.mOccupiedHeight);
+        assertEquals("occupied width", expected.mOccupiedWidth, actual.mOccupiedWidth);
+        assertEquals("top padding", expected.mTopPadding, actual.mTopPadding);
+        assertEquals("vertical gap", expected.mVerticalGap, actual.mVerticalGap);
+        assertEquals("most common key height", expected.mMostCommonKeyHeight,
+                actual.mMostCommonKeyHeight);
+        assertEquals("most common key width", expected.mMostCommonKeyWidth,
+                actual.mMostCommonKeyWidth);
+        assertEquals("more keys template", expected.mMoreKeysTemplate, actual.mMoreKeysTemplate);
+        assertEquals("max mini keyboard column", expected.mMaxMiniKeyboardColumn,
+                actual.mMaxMiniKeyboardColumn);
+        assertEquals("rtl", expected.mIsRtlKeyboard, actual.mIsRtlKeyboard);
+        assertEquals("shift keys", expected.mShiftKeys.size(), actual.mShiftKeys.size());
+        assertEquals("shift lock keys", expected.mShiftLockKeys.size(),
+                actual.mShiftLockKeys.size());
+        assertEquals("shifted icons", expected.mShiftedIcons.size(), actual.mShiftedIcons.size());
+        assertEquals("key count", expected.mKeys.size(), actual.mKeys.size());
+        for (int i = 0; i < expected.mKeys.size(); i++) {
+            final Key key = expected.mKeys.get(i);
+            final Key actualKey = actual.mKeys.get(i);
+            assertKeysEqual("key " + i + " " + key.mLabel + ": ", key, actualKey);
+            assertEquals("shift key " + i, expected.mShiftKeys.contains(key),
+                    actual.mShiftKeys.contains(actualKey));
+            assertEquals("shift lock key " + i, expected.mShiftLockKeys.contains(key),
+                    actual.mShiftLockKeys.contains(actualKey));
+            assertIconsEqual("shifted icon " + i, expected.mShiftedIcons.get(key),
+                    actual.mShiftedIcons.get(actualKey));
+        }
+    }
+
+    private static void assertKeysEqual(String message, Key expected, Key actual) {
+        assertEquals(message + "code", expected.mCode, actual.mCode);
+        assertEquals(message + "label", str(expected.mLabel), str(actual.mLabel));
+        assertEquals(message + "hint label", str(expected.mHintLabel), str(actual.mHintLabel));
+        assertEquals(message + "output text", str(expected.mOutputText),
+                str(actual.mOutputText));
+        assertEquals(message + "more keys", strs(expected.mMoreKeys), strs(actual.mMoreKeys));
+        assertEquals(message + "max more keys column", expected.mMaxMoreKeysColumn,
+                actual.mMaxMoreKeysColumn);
+        assertEquals(message + "background type", expected.mBackgroundType,
+                actual.mBackgroundType);
+        assertEquals(message + "repeatable", expected.mRepeatable, actual.mRepeatable);
+        assertEquals(message + "x", expected.mX, actual.mX);
+        assertEquals(message + "y", expected.mY, actual.mY);
+        assertEquals(message + "width", expected.mWidth, actual.mWidth);
+        assertEquals(message + "height", expected.mHeight, actual.mHeight);
+        assertEquals(message + "horizontal gap", expected.mHorizontalGap, actual.mHorizontalGap);
+        assertEquals(message + "vertical gap", expected.mVerticalGap, actual.mVerticalGap);
+        assertEquals(message + "visual insets left", expected.mVisualInsetsLeft,
+                actual.mVisualInsetsLeft);
+        assertEquals(message + "visual insets right", expected.mVisualInsetsRight,
+                actual.mVisualInsetsRight);
+        // The edge flags of the key are folded into its hit box.
+        assertEquals(message + "hit box", expected.mHitBox, actual.mHitBox);
+        assertEquals(message + "spacer", expected.isSpacer(), actual.isSpacer());
+        assertEquals(message + "sticky", expected.isSticky(), actual.isSticky());
+        assertEquals(message + "enabled", expected.isEnabled(), actual.isEnabled());
+        // The label options.
+        assertEquals(message + "align left", expected.isAlignLeft(), actual.isAlignLeft());
+        assertEquals(message + "align right", expected.isAlignRight(), actual.isAlignRight());
+        assertEquals(message + "align left of center", expected.isAlignLeftOfCenter(),
+                actual.isAlignLeftOfCenter());
+        assertEquals(message + "popup hint", expected.hasPopupHint(), actual.hasPopupHint());
+        assertEquals(message + "uppercase letter", expected.hasUppercaseLetter(),
+                actual.hasUppercaseLetter());
+        assertEquals(message + "has hint label", expected.hasHintLabel(), actual.hasHintLabel());
+        assertEquals(message + "icon left", expected.hasLabelWithIconLeft(),
+                actual.hasLabelWithIconLeft());
+        assertEquals(message + "icon right", expected.hasLabelWithIconRight(),
+                actual.hasLabelWithIconRight());
+        assertEquals(message + "x scale", expected.needsXScale(), actual.needsXScale());
+        assertSame(message + "typeface", expected.selectTypeface(null),
+                actual.selectTypeface(null));
+        if (expected.mLabel != null) {
+            assertEquals(message + "text size", expected.selectTextSize(1, 2, 3, 4),
+                    actual.selectTextSize(1, 2, 3, 4));
+        }
+        assertIconsEqual(message + "icon", expected.getIcon(), actual.getIcon());
+        assertIconsEqual(message + "preview icon", expected.getPreviewIcon(),
+                actual.getPreviewIcon());
+    }
+
+    // Both keyboards load their own icons from the theme, so they are equal but not the same.
+    private static void assertIconsEqual(String message, Drawable expected, Drawable actual) {
+        if (expected == null || actual == null) {
+            assertSame(message, expected, actual);
+            return;
+        }
+        assertSame(message, expected.getConstantState(), actual.getConstantState());
+    }
+
+    private static String strs(CharSequence[] texts) {
+        if (texts == null) return null;
+        final String[] strings = new String[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            strings[i] = str(texts[i]);
+        }
+        return Arrays.toString(strings);
+    }
+
+    private static String str(CharSequence text) {
+        return text == null ? null : text.toString();
+    }
+}
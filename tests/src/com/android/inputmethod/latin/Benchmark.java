@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * A minimal micro benchmark harness. An operation is run for some warm-up rounds, so that the
+ * JIT and the caches settle, then for the measured rounds. The median and the 90th percentile
+ * of the time per operation are logged under the {@link #TAG} tag, so that the logs of two
+ * builds can be compared to find latency regressions.
+ */
+class Benchmark {
+    public static final String TAG = "LatinIMEBenchmark";
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 21;
+
+    // Keeps the results of the operations alive, so that their work is not optimized away.
+    private static int sSink;
+
+    public interface Round {
+        /**
+         * Runs one round of operations, and returns anything computed from their results.
+         */
+        public int run();
+    }
+
+    /**
+     * Runs the benchmark and logs its result.
+     * @param name the name of the benchmark in the log
+     * @param operationsPerRound the number of operations of a round, e.g. the number of key
+     *        strokes of a corpus
+     * @return the median time of an operation, in nanoseconds
+     */
+    public static long run(String name, int operationsPerRound, Round round) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sSink += round.run();
+        }
+        final long[] times = new long[MEASURED_ROUNDS];
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            final long start = System.nanoTime();
+            sSink += round.run();
+            times[i] = (System.nanoTime() - start) / operationsPerRound;
+        }
+        Arrays.sort(times);
+        final long median = times[MEASURED_ROUNDS / 2];
+        Log.i(TAG, name + ": " + median + " ns/op median, "
+                + times[MEASURED_ROUNDS * 9 / 10] + " ns/op 90th percentile"
+                + " (" + operationsPerRound + " ops per round)");
+        return median;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import com.android.inputmethod.keyboard.ProximityInfo;
+import com.android.inputmethod.latin.tests.R;
+
+import android.content.res.AssetFileDescriptor;
+
+public class BinaryDictionarySharingTests extends SuggestTestsBase {
+    private BinaryDictionary mDictionary;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final AssetFileDescriptor dict = openTestRawResourceFd(R.raw.test);
+        mDictionary = (BinaryDictionary)DictionaryFactory.createDictionaryForTest(getContext(),
+                mTestPackageFile, dict.getStartOffset(), dict.getLength(), null);
+        assertTrue(mDictionary.isValidDictionary());
+    }
+
+    public void testSharingDictionaryOutlivesSource() {
+        final BinaryDictionary sharing = mDictionary.createSharingDictionary();
+        assertTrue(sharing.isValidWord("people"));
+        assertTrue(mDictionary.isValidWord("people"));
+        // The buffer is still in use by the sharing dictionary.
+        mDictionary.close();
+        assertTrue(sharing.isValidWord("people"));
+        assertNull(mDictionary.createSharingDictionary());
+        final BinaryDictionary sharing2 = sharing.createSharingDictionary();
+        sharing.close();
+        assertTrue(sharing2.isValidWord("people"));
+        sharing2.close();
+        assertFalse(sharing2.isValidDictionary());
+    }
+
+    public void testCommonPrefixReturnsMoreThanFourWords() {
+        final WordComposer composer = new WordComposer();
+        final int code = 't';
+        composer.add(code, new int[] { code, WordComposer.NOT_A_CODE },
+                WordComposer.NOT_A_COORDINATE, WordComposer.NOT_A_COORDINATE);
+        final int[] count = new int[1];
+        mDictionary.getWords(composer, new Dictionary.WordCallback() {
+            @Override
+            public boolean addWord(char[] word, int wordOffset, int wordLength, int score,
+                    int dicTypeId, Dictionary.DataType dataType) {
+                count[0]++;
+                return true;
+            }
+        }, ProximityInfo.createSpellCheckerProximityInfo());
+        // The lookup buffers hold up to MAX_WORDS words, not a quarter of them.
+        assertTrue("words: " + count[0], count[0] > 4);
+    }
+
+    public void testSharingCollection() {
+        final DictionaryCollection source = new DictionaryCollection(mDictionary);
+        final DictionaryCollection first = DictionaryFactory.createDictionarySharingBuffers(source);
+        final DictionaryCollection second =
+                DictionaryFactory.createDictionarySharingBuffers(source);
+        source.close();
+        assertTrue(first.isValidWord("about"));
+        first.close();
+        assertTrue(second.isValidWord("about"));
+        second.close();
+    }
+
+    public void testClosedCollectionIsNotShared() {
+        final DictionaryCollection source = new DictionaryCollection(mDictionary);
+        source.close();
+        assertNull(DictionaryFactory.createDictionarySharingBuffers(source));
+    }
+}
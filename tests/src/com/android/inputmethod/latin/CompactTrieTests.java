@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class CompactTrieTests extends AndroidTestCase {
+    private static int addWord(CompactTrie trie, String word, int frequency) {
+        final int node = trie.insert(word, word.length());
+        trie.setFrequency(node, frequency);
+        return node;
+    }
+
+    private static String getWord(CompactTrie trie, int node) {
+        final char[] buffer = new char[BinaryDictionary.MAX_WORD_LENGTH];
+        final int index = trie.getWord(node, buffer);
+        return new String(buffer, index, buffer.length - index);
+    }
+
+    public void testSearch() {
+        final CompactTrie trie = new CompactTrie();
+        addWord(trie, "hello", 100);
+        addWord(trie, "help", 50);
+        assertEquals(100, trie.getFrequency(trie.search("hello", 5)));
+        assertEquals(50, trie.getFrequency(trie.search("help", 4)));
+        // Prefixes that are not words themselves are not found.
+        assertEquals(CompactTrie.NOT_A_NODE, trie.search("hel", 3));
+        assertEquals(CompactTrie.NOT_A_NODE, trie.search("helping", 7));
+        // Only the first length characters are looked up.
+        assertEquals(trie.search("help", 4), trie.search("helpful", 4));
+    }
+
+    public void testSharedPrefix() {
+        final CompactTrie trie = new CompactTrie();
+        addWord(trie, "hello", 100);
+        final int nodeCount = trie.getNodeCount();
+        addWord(trie, "help", 50);
+        // Only 'p' is new.
+        assertEquals(nodeCount + 1, trie.getNodeCount());
+    }
+
+    public void testChildrenKeepInsertionOrder() {
+        final CompactTrie trie = new CompactTrie();
+        addWord(trie, "c", 1);
+        addWord(trie, "a", 1);
+        addWord(trie, "b", 1);
+        int child = trie.getFirstChild(CompactTrie.ROOT);
+        assertEquals('c', trie.getCode(child));
+        child = trie.getNextSibling(child);
+        assertEquals('a', trie.getCode(child));
+        child = trie.getNextSibling(child);
+        assertEquals('b', trie.getCode(child));
+        assertEquals(CompactTrie.NOT_A_NODE, trie.getNextSibling(child));
+    }
+
+    public void testGetWord() {
+        final CompactTrie trie = new CompactTrie();
+        final int node = addWord(trie, "would've", 10);
+        assertEquals("would've", getWord(trie, node));
+    }
+
+    public void testLinks() {
+        final CompactTrie trie = new CompactTrie();
+        final int from = addWord(trie, "good", 10);
+        final int to1 = addWord(trie, "morning", 10);
+        final int to2 = addWord(trie, "night", 10);
+        assertEquals(CompactTrie.NOT_A_LINK, trie.findLink(from, to1));
+        trie.addLink(from, to1, 3);
+        trie.addLink(from, to2, 5);
+        final int link1 = trie.getFirstLink(from);
+        assertEquals(to1, trie.getLinkTarget(link1));
+        assertEquals(3, trie.getLinkFrequency(link1));
+        final int link2 = trie.getNextLink(link1);
+        assertEquals(to2, trie.getLinkTarget(link2));
+        assertEquals(CompactTrie.NOT_A_LINK, trie.getNextLink(link2));
+        assertEquals(link2, trie.findLink(from, to2));
+        assertEquals(CompactTrie.NOT_A_LINK, trie.getFirstLink(to1));
+    }
+
+    public void testRemovedLinksAreNotChained() {
+        final CompactTrie trie = new CompactTrie();
+        final int from = addWord(trie, "good", 10);
+        final int to1 = addWord(trie, "morning", 10);
+        final int to2 = addWord(trie, "night", 10);
+        trie.addLink(from, to1, 3);
+        trie.addLink(from, to2, 5);
+        assertTrue(trie.removeLink(from, to1));
+        assertFalse(trie.removeLink(from, to1));
+        // The slot of the removed link is still there.
+        assertEquals(2, trie.getLinkCount());
+        assertEquals(1, trie.getChainedLinkCount());
+        assertEquals(1, new CompactTrie(trie).getChainedLinkCount());
+        assertEquals(to2, trie.getLinkTarget(trie.getFirstLink(from)));
+    }
+
+    public void testRemovedLinkSlotsAreReused() {
+        final CompactTrie trie = new CompactTrie();
+        final int from = addWord(trie, "good", 10);
+        final int to1 = addWord(trie, "morning", 10);
+        final int to2 = addWord(trie, "night", 10);
+        final int to3 = addWord(trie, "evening", 10);
+        final int link1 = trie.addLink(from, to1, 3);
+        trie.addLink(from, to2, 5);
+        trie.removeLink(from, to1);
+        assertEquals(link1, trie.addLink(from, to3, 7));
+        assertEquals(2, trie.getLinkCount());
+        assertEquals(2, trie.getChainedLinkCount());
+        // The reused slot is still chained last.
+        final int first = trie.getFirstLink(from);
+        assertEquals(to2, trie.getLinkTarget(first));
+        assertEquals(to3, trie.getLinkTarget(trie.getNextLink(first)));
+        assertEquals(CompactTrie.NOT_A_LINK, trie.getNextLink(trie.getNextLink(first)));
+
+        // The chain is out of order, but it is still read back, and so is a free slot.
+        trie.removeLink(from, to2);
+        final ByteBuffer buffer = ByteBuffer.allocate(trie.getSerializedSize());
+        trie.writeTo(buffer);
+        buffer.flip();
+        final CompactTrie readTrie = CompactTrie.readFrom(buffer);
+        assertNotNull(readTrie);
+        assertEquals(1, readTrie.getChainedLinkCount());
+        assertEquals(link1, readTrie.findLink(from, to3));
+        readTrie.addLink(from, to1, 3);
+        assertEquals(2, readTrie.getLinkCount());
+    }
+
+    public void testRemovedLinkSlotsAreNotReusedInViewedTries() {
+        final CompactTrie trie = new CompactTrie();
+        final int from = addWord(trie, "good", 10);
+        final int to1 = addWord(trie, "morning", 10);
+        final int to2 = addWord(trie, "night", 10);
+        trie.addLink(from, to1, 3);
+        final CompactTrie view = trie.createView();
+        trie.removeLink(from, to1);
+        trie.addLink(from, to2, 5);
+        assertEquals(2, trie.getLinkCount());
+        // A lookup in the view that was at the removed link still finds its target.
+        assertEquals(to1, view.getLinkTarget(0));
+        // A copy has no views, so it reuses the slot.
+        final CompactTrie copy = new CompactTrie(trie);
+        copy.removeLink(from, to2);
+        copy.addLink(from, to1, 3);
+        assertEquals(2, copy.getLinkCount());
+    }
+
+    public void testViewIgnoresAppendedNodesAndLinks() {
+        final CompactTrie trie = new CompactTrie();
+        final int from = addWord(trie, "good", 10);
+        final int to1 = addWord(trie, "morning", 10);
+        trie.addLink(from, to1, 3);
+        final CompactTrie view = trie.createView();
+        final int to2 = addWord(trie, "goodness", 20);
+        trie.addLink(from, to2, 5);
+        trie.setFrequency(to1, 30);
+        assertEquals(CompactTrie.NOT_A_NODE, view.search("goodness", 8));
+        assertEquals(CompactTrie.NOT_A_LINK, view.findLink(from, to2));
+        assertEquals(CompactTrie.NOT_A_LINK, view.getNextLink(view.getFirstLink(from)));
+        // Frequencies are changed in place.
+        assertEquals(30, view.getFrequency(view.search("morning", 7)));
+        assertFalse(view.hasSameNodes(trie));
+        assertTrue(trie.createView().hasSameNodes(trie));
+        assertFalse(new CompactTrie(trie).hasSameNodes(trie));
+    }
+
+    public void testGrowth() {
+        final CompactTrie trie = new CompactTrie(1, 1);
+        final Random random = new Random(1);
+        final String[] words = new String[1000];
+        for (int i = 0; i < words.length; i++) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = 1 + random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                sb.append((char)('a' + random.nextInt(26)));
+            }
+            words[i] = sb.toString();
+            addWord(trie, words[i], i % 256);
+            if (i > 0) trie.addLink(trie.search(words[i - 1], words[i - 1].length()),
+                    trie.search(words[i], words[i].length()), 1);
+        }
+        for (final String word : words) {
+            final int node = trie.search(word, word.length());
+            assertTrue(word, node != CompactTrie.NOT_A_NODE);
+            assertEquals(word, getWord(trie, node));
+        }
+    }
+
+    public void testHeapFootprint() {
+        final CompactTrie trie = new CompactTrie();
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = 3 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                sb.append((char)('a' + random.nextInt(26)));
+            }
+            addWord(trie, sb.toString(), 100);
+        }
+        // A Node object alone takes about 32 bytes, not counting its NodeArray of children. The
+        // arrays take 22 bytes per node, plus up to 50% of slack from growing.
+        final int bytesPerNode = trie.getHeapFootprint() / trie.getNodeCount();
+        assertTrue("bytes per node: " + bytesPerNode, bytesPerNode <= 34);
+    }
+}
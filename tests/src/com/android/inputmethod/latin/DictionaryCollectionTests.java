@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class DictionaryCollectionTests extends AndroidTestCase {
+    private static class WordCollector implements Dictionary.WordCallback {
+        public final ArrayList<String> mWords = new ArrayList<String>();
+
+        @Override
+        public boolean addWord(char[] word, int wordOffset, int wordLength, int score,
+                int dicTypeId, Dictionary.DataType dataType) {
+            mWords.add(new String(word, wordOffset, wordLength) + ":" + score + ":" + dicTypeId
+                    + ":" + dataType);
+            return true;
+        }
+    }
+
+    private DictionaryCollection createCollection(Random random) {
+        final DictionaryCollection collection = new DictionaryCollection();
+        for (int i = 0; i < 4; i++) {
+            final ExpandableDictionary dictionary = new ExpandableDictionary(getContext(), i);
+            for (int j = 0; j < 500; j++) {
+                final StringBuilder sb = new StringBuilder();
+                final int length = 2 + random.nextInt(6);
+                for (int k = 0; k < length; k++) {
+                    sb.append((char)('a' + random.nextInt(6)));
+                }
+                dictionary.addWord(sb.toString(), 1 + random.nextInt(255));
+            }
+            dictionary.setBigram("ab", "abc", 10 + i);
+            collection.addDictionary(dictionary);
+        }
+        return collection;
+    }
+
+    private static WordComposer createWordComposer(String word) {
+        final WordComposer composer = new WordComposer();
+        for (int i = 0; i < word.length(); i++) {
+            final int code = word.charAt(i);
+            composer.add(code, new int[] { code, WordComposer.NOT_A_CODE },
+                    WordComposer.NOT_A_COORDINATE, WordComposer.NOT_A_COORDINATE);
+        }
+        return composer;
+    }
+
+    public void testParallelLookupIsDeterministic() {
+        final DictionaryCollection sequential = createCollection(new Random(10));
+        final DictionaryCollection parallel = createCollection(new Random(10));
+        parallel.setParallelLookup(true);
+        for (final String typed : new String[] { "a", "ab", "abc", "fed", "bad" }) {
+            final WordComposer composer = createWordComposer(typed);
+            final WordCollector expected = new WordCollector();
+            sequential.getWords(composer, expected, null);
+            for (int i = 0; i < 5; i++) {
+                final WordCollector actual = new WordCollector();
+                parallel.getWords(composer, actual, null);
+                assertEquals(typed, expected.mWords, actual.mWords);
+            }
+            final WordCollector expectedBigrams = new WordCollector();
+            sequential.getBigrams(composer, "ab", expectedBigrams);
+            final WordCollector actualBigrams = new WordCollector();
+            parallel.getBigrams(composer, "ab", actualBigrams);
+            assertEquals(4, actualBigrams.mWords.size());
+            assertEquals(expectedBigrams.mWords, actualBigrams.mWords);
+        }
+    }
+
+    public void testParallelLookupRethrowsOnceAllLookupsAreDone() {
+        final RuntimeException exception = new IllegalStateException("broken dictionary");
+        final boolean[] broken = { true };
+        final ExpandableDictionary brokenDictionary = new ExpandableDictionary(getContext(), 4) {
+            @Override
+            public void getWords(WordComposer composer, WordCallback callback,
+                    com.android.inputmethod.keyboard.ProximityInfo proximityInfo) {
+                if (broken[0]) throw exception;
+            }
+        };
+        final DictionaryCollection sequential = createCollection(new Random(10));
+        sequential.addDictionary(brokenDictionary);
+        final DictionaryCollection parallel = createCollection(new Random(10));
+        parallel.addDictionary(brokenDictionary);
+        parallel.setParallelLookup(true);
+        final WordComposer composer = createWordComposer("ab");
+        for (int i = 0; i < 5; i++) {
+            try {
+                parallel.getWords(composer, new WordCollector(), null);
+                fail("exception of a dictionary is swallowed");
+            } catch (IllegalStateException e) {
+                assertSame(exception, e);
+            }
+        }
+        // The reused buffers don't keep the words of the failed lookups.
+        broken[0] = false;
+        final WordCollector expected = new WordCollector();
+        sequential.getWords(composer, expected, null);
+        final WordCollector actual = new WordCollector();
+        parallel.getWords(composer, actual, null);
+        assertEquals(expected.mWords, actual.mWords);
+    }
+}
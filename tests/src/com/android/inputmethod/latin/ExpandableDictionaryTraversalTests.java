@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+public class ExpandableDictionaryTraversalTests extends AndroidTestCase {
+    private static final String TAG = ExpandableDictionaryTraversalTests.class.getSimpleName();
+
+    private static final int QUERY_WORDS = 200;
+    private static final int ROUNDS = 5;
+
+    private static class WordCounter implements Dictionary.WordCallback {
+        public int mCount;
+        public boolean mFoundWord;
+        private final String mWordToFind;
+
+        public WordCounter(String wordToFind) {
+            mWordToFind = wordToFind;
+        }
+
+        @Override
+        public boolean addWord(char[] word, int wordOffset, int wordLength, int score,
+                int dicTypeId, Dictionary.DataType dataType) {
+            mCount++;
+            if (mWordToFind != null && mWordToFind.equals(new String(word, wordOffset, wordLength))) {
+                mFoundWord = true;
+            }
+            return true;
+        }
+    }
+
+    private static String[] generateWords(Random random, int count) {
+        final String[] words = new String[count];
+        for (int i = 0; i < count; i++) {
+            final int length = 3 + random.nextInt(8);
+            final StringBuilder sb = new StringBuilder(length);
+            for (int j = 0; j < length; j++) {
+                // Skew towards the beginning of the alphabet, so that prefixes are shared.
+                sb.append((char)('a' + (int)(random.nextDouble() * random.nextDouble() * 26)));
+            }
+            words[i] = sb.toString();
+        }
+        return words;
+    }
+
+    private static WordComposer createWordComposer(String word, int length) {
+        final WordComposer composer = new WordComposer();
+        for (int i = 0; i < length; i++) {
+            final int code = word.charAt(i);
+            composer.add(code, new int[] { code, WordComposer.NOT_A_CODE },
+                    WordComposer.NOT_A_COORDINATE, WordComposer.NOT_A_COORDINATE);
+        }
+        return composer;
+    }
+
+    public void testWordLongerThanThirtyTwoCharacters() {
+        final ExpandableDictionary dictionary = new ExpandableDictionary(getContext(), 0);
+        final String longWord = "pneumonoultramicroscopicsilicovolcanoconiosis";
+        assertTrue(longWord.length() > 32 && longWord.length() < dictionary.getMaxWordLength());
+        dictionary.addWord(longWord, 100);
+        final WordCounter counter = new WordCounter(longWord);
+        dictionary.getWords(createWordComposer(longWord, longWord.length() - 1), counter, null);
+        assertTrue(counter.mFoundWord);
+        assertTrue(dictionary.isValidWord(longWord));
+    }
+
+    private static class BlockingReloadDictionary extends ExpandableDictionary {
+        public final CountDownLatch mLoadStarted = new CountDownLatch(1);
+        public final CountDownLatch mLoadAllowed = new CountDownLatch(1);
+
+        public BlockingReloadDictionary() {
+            super(null, 0);
+        }
+
+        @Override
+        public void loadDictionaryAsync() {
+            clearDictionary();
+            addWord("newword", 100);
+            mLoadStarted.countDown();
+            try {
+                mLoadAllowed.await();
+            } catch (InterruptedException e) {
+                // Go on with the words loaded so far.
+            }
+        }
+    }
+
+    public void testLookupsDuringReloadSeeOldWords() throws InterruptedException {
+        final BlockingReloadDictionary dictionary = new BlockingReloadDictionary();
+        dictionary.addWord("oldword", 100);
+        dictionary.loadDictionary();
+        dictionary.mLoadStarted.await();
+        assertTrue(dictionary.isValidWord("oldword"));
+        assertFalse(dictionary.isValidWord("newword"));
+        final WordCounter counter = new WordCounter("oldword");
+        dictionary.getWords(createWordComposer("oldword", 3), counter, null);
+        assertTrue(counter.mFoundWord);
+        dictionary.mLoadAllowed.countDown();
+        dictionary.waitForDictionaryLoading();
+        assertFalse(dictionary.isValidWord("oldword"));
+        assertTrue(dictionary.isValidWord("newword"));
+    }
+
+    public void testChangesDuringLookups() throws InterruptedException {
+        final ExpandableDictionary dictionary = new ExpandableDictionary(getContext(), 0);
+        final String[] words = generateWords(new Random(7), 1000);
+        final Throwable[] failure = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        // Lookups on another thread, like the suggestion worker does, while words and bigrams
+        // are added.
+        final Thread lookupThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (done.getCount() > 0) {
+                        for (int length = 1; length <= 4; length++) {
+                            dictionary.getWords(createWordComposer("abca", length),
+                                    new WordCounter(null), null);
+                        }
+                        dictionary.getBigrams(null, "abc", new WordCounter(null));
+                    }
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        lookupThread.start();
+        for (int i = 0; i < words.length; i++) {
+            dictionary.addWord(words[i], 1 + i % 255);
+            if (i > 0) dictionary.setBigram(words[i - 1], words[i], 10);
+        }
+        dictionary.setBigram("abc", "abcd", 10);
+        done.countDown();
+        lookupThread.join();
+        if (failure[0] != null) throw new RuntimeException(failure[0]);
+        for (final String word : words) {
+            assertTrue(word, dictionary.isValidWord(word));
+        }
+        final WordCounter counter = new WordCounter("abcd");
+        dictionary.getBigrams(null, "abc", counter);
+        assertTrue(counter.mFoundWord);
+    }
+
+    private static class UpdatingDictionary extends ExpandableDictionary {
+        public UpdatingDictionary() {
+            super(null, 0);
+        }
+
+        @Override
+        protected boolean canUpdateDictionary() {
+            return true;
+        }
+
+        @Override
+        protected void updateDictionaryAsync() {
+            removeBigram("Ann", "Smith");
+            removeWord("Ann");
+            removeWord("Smith");
+            addWord("Anne", 40);
+        }
+    }
+
+    public void testUpdateOnlyChangesTheUpdatedWords() {
+        final UpdatingDictionary dictionary = new UpdatingDictionary();
+        dictionary.addWord("Ann", 40);
+        dictionary.addWord("Smith", 40);
+        dictionary.addWord("Jones", 40);
+        dictionary.setBigram("Ann", "Smith", 90);
+        dictionary.setBigram("ann", "Jones", 90);
+        dictionary.loadDictionary();
+        dictionary.waitForDictionaryLoading();
+        assertFalse(dictionary.isValidWord("Smith"));
+        assertTrue(dictionary.isValidWord("Jones"));
+        assertTrue(dictionary.isValidWord("Anne"));
+        // The bigrams of "Ann" are those of "ann", that are left alone.
+        assertFalse(dictionary.isValidWord("Ann"));
+        final WordCollector collector = new WordCollector();
+        dictionary.getBigrams(createWordComposer("J", 1), "Ann", collector);
+        assertEquals(Arrays.asList("Jones:90"), collector.mWords);
+    }
+
+    private static class WordCollector implements Dictionary.WordCallback {
+        public final ArrayList<String> mWords = new ArrayList<String>();
+
+        @Override
+        public boolean addWord(char[] word, int wordOffset, int wordLength, int score,
+                int dicTypeId, Dictionary.DataType dataType) {
+            mWords.add(new String(word, wordOffset, wordLength) + ":" + score);
+            return true;
+        }
+    }
+
+    private static ArrayList<String> getSortedWords(ExpandableDictionary dictionary,
+            WordComposer composer) {
+        final WordCollector collector = new WordCollector();
+        dictionary.getWords(composer, collector, null);
+        Collections.sort(collector.mWords);
+        return collector.mWords;
+    }
+
+    private ExpandableDictionary createDictionary(ArrayList<String> words) {
+        final ExpandableDictionary dictionary = new ExpandableDictionary(getContext(), 0);
+        for (int i = 0; i < words.size(); i++) {
+            dictionary.addWord(words.get(i), 1 + i % 255);
+        }
+        return dictionary;
+    }
+
+    public void testTypingAndDeletingReusesFrontiers() {
+        final Random random = new Random(4);
+        final ArrayList<String> words = new ArrayList<String>(
+                Arrays.asList(generateWords(random, 2000)));
+        words.add("would've");
+        final ExpandableDictionary dictionary = createDictionary(words);
+        final String typed = "wouldve" + words.get(0);
+        final WordComposer composer = new WordComposer();
+        int length = 0;
+        for (int step = 0; step < 3 * typed.length(); step++) {
+            if (length > 0 && random.nextInt(3) == 0) {
+                composer.deleteLast();
+                length--;
+            } else if (length < typed.length()) {
+                final int code = typed.charAt(length);
+                composer.add(code, new int[] { code, 'a' + random.nextInt(26), 'e',
+                        WordComposer.NOT_A_CODE },
+                        WordComposer.NOT_A_COORDINATE, WordComposer.NOT_A_COORDINATE);
+                length++;
+            }
+            if (step % 5 == 4) {
+                // A new word invalidates the frontiers. This one branches off at a node that has
+                // been matched by an earlier key stroke.
+                final String word = typed.substring(0, length / 2) + "'"
+                        + typed.substring(length / 2, length);
+                words.add(word);
+                dictionary.addWord(word, 1 + (words.size() - 1) % 255);
+            }
+            // A new dictionary has no frontiers to reuse.
+            assertEquals(typed.substring(0, length),
+                    getSortedWords(createDictionary(words), composer),
+                    getSortedWords(dictionary, composer));
+        }
+    }
+
+    private static final String[] FIXTURE_WORDS = {
+        "hello", "help", "helmet", "hell", "world", "would", "would've", "wouldn't", "the",
+        "they", "then", "there", "their", "form", "from", "fro", "an", "and", "ant", "sand",
+        "hand", "test", "tests", "teas", "Hello", "Texas", "it's", "its"
+    };
+
+    // The codes of each key stroke: the typed one, then the nearby ones.
+    private static WordComposer createWordComposer(String... keys) {
+        final WordComposer composer = new WordComposer();
+        for (final String key : keys) {
+            final int[] codes = new int[key.length() + 1];
+            for (int i = 0; i < key.length(); i++) {
+                codes[i] = key.charAt(i);
+            }
+            codes[key.length()] = WordComposer.NOT_A_CODE;
+            composer.add(codes[0], codes, WordComposer.NOT_A_COORDINATE,
+                    WordComposer.NOT_A_COORDINATE);
+        }
+        return composer;
+    }
+
+    private static void assertSameWords(String message, RecursiveExpandableDictionary expected,
+            ExpandableDictionary actual, WordComposer composer) {
+        final WordCollector collector = new WordCollector();
+        expected.getWords(composer, collector, null);
+        Collections.sort(collector.mWords);
+        // The words and their scores, with as many duplicates as the recursive lookup gives.
+        assertEquals(message, collector.mWords, getSortedWords(actual, composer));
+    }
+
+    public void testTraversalMatchesRecursiveLookup() {
+        final RecursiveExpandableDictionary expected = new RecursiveExpandableDictionary(0);
+        final ExpandableDictionary actual = new ExpandableDictionary(getContext(), 0);
+        for (int i = 0; i < FIXTURE_WORDS.length; i++) {
+            expected.addWord(FIXTURE_WORDS[i], 10 + 7 * i);
+            actual.addWord(FIXTURE_WORDS[i], 10 + 7 * i);
+        }
+        assertSameWords("exact", expected, actual, createWordComposer("h", "e", "l", "p"));
+        assertSameWords("completion", expected, actual, createWordComposer("t", "h"));
+        assertSameWords("upper case", expected, actual, createWordComposer("H", "e", "l"));
+        assertSameWords("proximity", expected, actual,
+                createWordComposer("h", "rew", "l", "l", "pio"));
+        assertSameWords("proximity on every key", expected, actual,
+                createWordComposer("fdg", "ioe", "rte", "mn"));
+        assertSameWords("transposition", expected, actual, createWordComposer("t", "e", "h"));
+        assertSameWords("transposition", expected, actual,
+                createWordComposer("f", "o", "r", "m"));
+        assertSameWords("transposition", expected, actual,
+                createWordComposer("w", "o", "u", "l", "d", "n", "t", "'"));
+        assertSameWords("omission", expected, actual, createWordComposer("h", "e", "l", "o"));
+        assertSameWords("omission", expected, actual, createWordComposer("w", "r", "l", "d"));
+        assertSameWords("omission with proximity", expected, actual,
+                createWordComposer("t", "rhe", "e", "r"));
+        assertSameWords("apostrophe", expected, actual,
+                createWordComposer("w", "o", "u", "l", "d", "v", "e"));
+        assertSameWords("typed apostrophe", expected, actual,
+                createWordComposer("i", "t", "'", "s"));
+    }
+
+    public void testTraversalMatchesRecursiveLookupOnRandomTypos() {
+        final Random random = new Random(11);
+        final String[] words = generateWords(random, 3000);
+        final RecursiveExpandableDictionary expected = new RecursiveExpandableDictionary(0);
+        final ExpandableDictionary actual = new ExpandableDictionary(getContext(), 0);
+        for (int i = 0; i < words.length; i++) {
+            expected.addWord(words[i], 1 + i % 255);
+            actual.addWord(words[i], 1 + i % 255);
+        }
+        for (int i = 0; i < 300; i++) {
+            final StringBuilder typed = new StringBuilder(words[i]);
+            switch (i % 3) {
+            case 0:
+                // Transposition
+                final int swap = random.nextInt(typed.length() - 1);
+                final char c = typed.charAt(swap);
+                typed.setCharAt(swap, typed.charAt(swap + 1));
+                typed.setCharAt(swap + 1, c);
+                break;
+            case 1:
+                // Omission
+                typed.deleteCharAt(random.nextInt(typed.length()));
+                break;
+            default:
+                // Plain typing, with proximity below.
+                break;
+            }
+            final String[] keys = new String[typed.length()];
+            for (int j = 0; j < keys.length; j++) {
+                keys[j] = typed.charAt(j) + "" + (char)('a' + random.nextInt(26))
+                        + (char)('a' + random.nextInt(26));
+            }
+            assertSameWords(typed.toString(), expected, actual, createWordComposer(keys));
+        }
+    }
+
+    private void runTraversalBenchmark(int wordCount) {
+        final Random random = new Random(wordCount);
+        final ExpandableDictionary dictionary = new ExpandableDictionary(getContext(), 0);
+        final String[] words = generateWords(random, wordCount);
+        for (final String word : words) {
+            dictionary.addWord(word, 1 + random.nextInt(255));
+        }
+        // Replay typing of some dictionary words, one lookup per key stroke.
+        final WordCounter counter = new WordCounter(null);
+        long elapsed = 0;
+        int keyStrokes = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < QUERY_WORDS; i++) {
+                final String word = words[i];
+                for (int length = 1; length <= word.length(); length++) {
+                    final WordComposer composer = createWordComposer(word, length);
+                    final long start = System.nanoTime();
+                    dictionary.getWords(composer, counter, null);
+                    elapsed += System.nanoTime() - start;
+                    keyStrokes++;
+                }
+            }
+        }
+        assertTrue(counter.mCount > 0);
+        Log.i(TAG, wordCount + " words: " + (elapsed / keyStrokes / 1000) + " us per key stroke"
+                + " (" + keyStrokes + " key strokes)");
+    }
+
+    public void testTraversalTime5kWords() {
+        runTraversalBenchmark(5000);
+    }
+
+    public void testTraversalTime20kWords() {
+        runTraversalBenchmark(20000);
+    }
+
+    public void testTraversalTime50kWords() {
+        runTraversalBenchmark(50000);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * A corpus of sentences to replay the typing of, read from a text file with one sentence per
+ * line. Lines starting with # are comments.
+ */
+class KeystrokeCorpus {
+    private final ArrayList<String[]> mSentences = new ArrayList<String[]>();
+    private final ArrayList<String> mWords = new ArrayList<String>();
+    private int mKeyStrokeCount;
+
+    public KeystrokeCorpus(InputStream in) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        final LinkedHashSet<String> words = new LinkedHashSet<String>();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                final String[] sentence = line.split("\\s+");
+                for (final String word : sentence) {
+                    words.add(word);
+                    mKeyStrokeCount += word.length();
+                }
+                mSentences.add(sentence);
+            }
+        } finally {
+            reader.close();
+        }
+        mWords.addAll(words);
+    }
+
+    public List<String[]> getSentences() {
+        return mSentences;
+    }
+
+    /**
+     * Returns the distinct words of the corpus, in order of first appearance.
+     */
+    public List<String> getWords() {
+        return mWords;
+    }
+
+    /**
+     * Returns the number of key strokes it takes to type all the sentences, not counting spaces.
+     */
+    public int getKeyStrokeCount() {
+        return mKeyStrokeCount;
+    }
+}
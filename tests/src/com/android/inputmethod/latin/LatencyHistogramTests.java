@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+public class LatencyHistogramTests extends AndroidTestCase {
+    private static final long MICROS = 1000;
+
+    public void testBucketsAreContiguous() {
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT - 1; bucket++) {
+            final long start = LatencyHistogram.getBucketStart(bucket);
+            final long end = LatencyHistogram.getBucketStart(bucket + 1);
+            assertTrue("bucket " + bucket, start < end);
+            assertEquals(bucket, LatencyHistogram.getBucket(start));
+            assertEquals(bucket, LatencyHistogram.getBucket(end - 1));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                LatencyHistogram.getBucket(Long.MAX_VALUE));
+        assertEquals(0, LatencyHistogram.getBucket(-1));
+    }
+
+    public void testBucketsAreWithinAQuarter() {
+        for (int bucket = LatencyHistogram.SUB_BUCKETS;
+                bucket < LatencyHistogram.BUCKET_COUNT - 1; bucket++) {
+            final long start = LatencyHistogram.getBucketStart(bucket);
+            final long end = LatencyHistogram.getBucketStart(bucket + 1);
+            assertTrue("bucket " + bucket, (end - start) * 4 <= start);
+        }
+    }
+
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 100 * MICROS);
+        }
+        assertEquals(100, histogram.getCount());
+        final long p50 = histogram.getPercentile(50);
+        assertTrue("p50=" + p50, p50 >= 5000 && p50 <= 5000 * 5 / 4);
+        final long p99 = histogram.getPercentile(99);
+        assertTrue("p99=" + p99, p99 >= 9900 && p99 <= 10000);
+        assertEquals(10000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+}
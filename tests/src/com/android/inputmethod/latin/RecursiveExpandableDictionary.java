@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import com.android.inputmethod.keyboard.Keyboard;
+import com.android.inputmethod.keyboard.ProximityInfo;
+
+import java.util.Arrays;
+
+/**
+ * The unigram lookup of {@link ExpandableDictionary} as it was before it traversed the trie
+ * breadth first, used as the reference the traversal is checked against. The words must be
+ * ASCII, since the accents are not folded when matching lower case characters.
+ */
+public class RecursiveExpandableDictionary extends Dictionary {
+    private static final int MAX_WORD_LENGTH = 32;
+
+    private final char[] mWordBuilder = new char[MAX_WORD_LENGTH];
+    private final int mDicTypeId;
+    private int mMaxDepth;
+    private int mInputLength;
+
+    private static class Node {
+        char mCode;
+        int mFrequency;
+        boolean mTerminal;
+        NodeArray mChildren;
+    }
+
+    private static class NodeArray {
+        Node[] mData;
+        int mLength = 0;
+        private static final int INCREMENT = 2;
+
+        NodeArray() {
+            mData = new Node[INCREMENT];
+        }
+
+        void add(Node n) {
+            if (mLength + 1 > mData.length) {
+                Node[] tempData = new Node[mLength + INCREMENT];
+                if (mLength > 0) {
+                    System.arraycopy(mData, 0, tempData, 0, mLength);
+                }
+                mData = tempData;
+            }
+            mData[mLength++] = n;
+        }
+    }
+
+    private final NodeArray mRoots = new NodeArray();
+
+    private int[][] mCodes = new int[MAX_WORD_LENGTH][];
+
+    public RecursiveExpandableDictionary(int dicTypeId) {
+        mDicTypeId = dicTypeId;
+    }
+
+    public void addWord(String word, int frequency) {
+        addWordRec(mRoots, word, 0, frequency);
+    }
+
+    private void addWordRec(NodeArray children, final String word, final int depth,
+            final int frequency) {
+        final int wordLength = word.length();
+        if (wordLength <= depth) return;
+        final char c = word.charAt(depth);
+        // Does children have the current character?
+        final int childrenLength = children.mLength;
+        Node childNode = null;
+        for (int i = 0; i < childrenLength; i++) {
+            final Node node = children.mData[i];
+            if (node.mCode == c) {
+                childNode = node;
+                break;
+            }
+        }
+        if (childNode == null) {
+            childNode = new Node();
+            childNode.mCode = c;
+            children.add(childNode);
+        }
+        if (wordLength == depth + 1) {
+            // Terminate this word
+            childNode.mTerminal = true;
+            childNode.mFrequency = Math.max(frequency, childNode.mFrequency);
+            if (childNode.mFrequency > 255) childNode.mFrequency = 255;
+            return;
+        }
+        if (childNode.mChildren == null) {
+            childNode.mChildren = new NodeArray();
+        }
+        addWordRec(childNode.mChildren, word, depth + 1, frequency);
+    }
+
+    @Override
+    public void getWords(final WordComposer codes, final WordCallback callback,
+            final ProximityInfo proximityInfo) {
+        mInputLength = codes.size();
+        if (mCodes.length < mInputLength) mCodes = new int[mInputLength][];
+        // Cache the codes of each keystroke, as the list of the composer used to give them.
+        final int[] allCodes = codes.getCodes();
+        for (int i = 0; i < mInputLength; i++) {
+            mCodes[i] = Arrays.copyOfRange(allCodes, i * WordComposer.CODES_PER_KEY,
+                    (i + 1) * WordComposer.CODES_PER_KEY);
+        }
+        mMaxDepth = mInputLength * 3;
+        getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
+        for (int i = 0; i < mInputLength; i++) {
+            getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, i, callback);
+        }
+    }
+
+    @Override
+    public boolean isValidWord(CharSequence word) {
+        throw new UnsupportedOperationException();
+    }
+
+    private static int computeSkippedWordFinalFreq(int freq, int snr, int inputLength) {
+        // The computation itself makes sense for >= 2, but the == 2 case returns 0
+        // anyway so we may as well test against 3 instead and return the constant
+        if (inputLength >= 3) {
+            return (freq * snr * (inputLength - 2)) / (inputLength - 1);
+        } else {
+            return 0;
+        }
+    }
+
+    private void getWordsRec(NodeArray roots, final WordComposer codes, final char[] word,
+            final int depth, final boolean completion, int snr, int inputIndex, int skipPos,
+            WordCallback callback) {
+        final int count = roots.mLength;
+        final int codeSize = mInputLength;
+        // Optimization: Prune out words that are too long compared to how much was typed.
+        if (depth > mMaxDepth) {
+            return;
+        }
+        final int[] currentChars;
+        if (codeSize <= inputIndex) {
+            currentChars = null;
+        } else {
+            currentChars = mCodes[inputIndex];
+        }
+
+        for (int i = 0; i < count; i++) {
+            final Node node = roots.mData[i];
+            final char c = node.mCode;
+            final char lowerC = Character.toLowerCase(c);
+            final boolean terminal = node.mTerminal;
+            final NodeArray children = node.mChildren;
+            final int freq = node.mFrequency;
+            if (completion || currentChars == null) {
+                word[depth] = c;
+                if (terminal) {
+                    final int finalFreq;
+                    if (skipPos < 0) {
+                        finalFreq = freq * snr;
+                    } else {
+                        finalFreq = computeSkippedWordFinalFreq(freq, snr, mInputLength);
+                    }
+                    if (!callback.addWord(word, 0, depth + 1, finalFreq, mDicTypeId,
+                            DataType.UNIGRAM)) {
+                        return;
+                    }
+                }
+                if (children != null) {
+                    getWordsRec(children, codes, word, depth + 1, true, snr, inputIndex,
+                            skipPos, callback);
+                }
+            } else if ((c == Keyboard.CODE_SINGLE_QUOTE
+                    && currentChars[0] != Keyboard.CODE_SINGLE_QUOTE) || depth == skipPos) {
+                // Skip the ' and continue deeper
+                word[depth] = c;
+                if (children != null) {
+                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex,
+                            skipPos, callback);
+                }
+            } else {
+                // Don't use alternatives if we're looking for missing characters
+                final int alternativesSize = skipPos >= 0? 1 : currentChars.length;
+                for (int j = 0; j < alternativesSize; j++) {
+                    final int addedAttenuation = (j > 0 ? 1 : 2);
+                    final int currentChar = currentChars[j];
+                    if (currentChar == -1) {
+                        break;
+                    }
+                    if (currentChar == lowerC || currentChar == c) {
+                        word[depth] = c;
+
+                        if (codeSize == inputIndex + 1) {
+                            if (terminal) {
+                                if (INCLUDE_TYPED_WORD_IF_VALID
+                                        || !same(word, depth + 1, codes.getTypedWord())) {
+                                    final int finalFreq;
+                                    if (skipPos < 0) {
+                                        finalFreq = freq * snr * addedAttenuation
+                                                * FULL_WORD_SCORE_MULTIPLIER;
+                                    } else {
+                                        finalFreq = computeSkippedWordFinalFreq(freq,
+                                                snr * addedAttenuation, mInputLength);
+                                    }
+                                    callback.addWord(word, 0, depth + 1, finalFreq, mDicTypeId,
+                                            DataType.UNIGRAM);
+                                }
+                            }
+                            if (children != null) {
+                                getWordsRec(children, codes, word, depth + 1,
+                                        true, snr * addedAttenuation, inputIndex + 1,
+                                        skipPos, callback);
+                            }
+                        } else if (children != null) {
+                            getWordsRec(children, codes, word, depth + 1,
+                                    false, snr * addedAttenuation, inputIndex + 1,
+                                    skipPos, callback);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Configuration;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.inputmethod.keyboard.Key;
+import com.android.inputmethod.keyboard.KeyDetector;
+import com.android.inputmethod.keyboard.ProximityInfo;
+import com.android.inputmethod.latin.tests.R;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Benchmarks of the suggestion and dictionary lookups, that replay the typing of the sentences
+ * of the keystroke corpus. The results are logged by {@link Benchmark}. Being large tests, they
+ * can be run on their own with "am instrument -e size large".
+ */
+@LargeTest
+public class SuggestBenchmarks extends SuggestTestsBase {
+    private static final Locale LOCALE = Locale.US;
+
+    private SuggestHelper mHelper;
+    private ProximityInfo mProximityInfo;
+    private KeyDetector mKeyDetector;
+    private KeystrokeCorpus mCorpus;
+    private ExpandableDictionary mUserDictionary;
+    private ExpandableDictionary mUserBigramDictionary;
+
+    // By key stroke: the word typed so far, the word before it or null, and where the key was
+    // touched.
+    private final ArrayList<WordComposer> mComposers = new ArrayList<WordComposer>();
+    private final ArrayList<String> mPreviousWords = new ArrayList<String>();
+    private int[] mXCoordinates;
+    private int[] mYCoordinates;
+
+    private static class WordCounter implements Dictionary.WordCallback {
+        public int mCount;
+
+        @Override
+        public boolean addWord(char[] word, int wordOffset, int wordLength, int score,
+                int dicTypeId, Dictionary.DataType dataType) {
+            mCount++;
+            return true;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final AssetFileDescriptor dict = openTestRawResourceFd(R.raw.test);
+        mHelper = new SuggestHelper(getContext(), mTestPackageFile, dict.getStartOffset(),
+                dict.getLength(), createKeyboardId(LOCALE, Configuration.ORIENTATION_PORTRAIT),
+                LOCALE);
+        mProximityInfo = mHelper.mKeyboard.getProximityInfo();
+        mKeyDetector = new KeyDetector(0);
+        mKeyDetector.setKeyboard(mHelper.mKeyboard, 0, 0);
+        mKeyDetector.setProximityCorrectionEnabled(true);
+        mKeyDetector.setProximityThreshold(mHelper.mKeyboard.mMostCommonKeyWidth);
+        mCorpus = new KeystrokeCorpus(openTestRawResource(R.raw.keystrokes));
+
+        // The user dictionaries know the words and the word pairs of the corpus, so that they
+        // are searched along with the main dictionary and the whitelist.
+        mUserDictionary = new ExpandableDictionary(getContext(), Suggest.DIC_USER);
+        mUserBigramDictionary = new ExpandableDictionary(getContext(), Suggest.DIC_USER_BIGRAM);
+        final List<String> words = mCorpus.getWords();
+        for (int i = 0; i < words.size(); i++) {
+            mUserDictionary.addWord(words.get(i), 1 + i % 255);
+        }
+        for (final String[] sentence : mCorpus.getSentences()) {
+            for (int i = 1; i < sentence.length; i++) {
+                mUserBigramDictionary.addWord(sentence[i], 1);
+                mUserBigramDictionary.setBigram(sentence[i - 1], sentence[i], 1 + i);
+            }
+        }
+        mHelper.mSuggest.setUserDictionary(mUserDictionary);
+        mHelper.mSuggest.setUserBigramDictionary(mUserBigramDictionary);
+        mHelper.setCorrectionMode(Suggest.CORRECTION_FULL_BIGRAM);
+
+        final int keyStrokes = mCorpus.getKeyStrokeCount();
+        mXCoordinates = new int[keyStrokes];
+        mYCoordinates = new int[keyStrokes];
+        int keyStroke = 0;
+        for (final String[] sentence : mCorpus.getSentences()) {
+            for (int i = 0; i < sentence.length; i++) {
+                final String word = sentence[i];
+                for (int length = 1; length <= word.length(); length++) {
+                    mComposers.add(mHelper.createWordComposer(word.substring(0, length)));
+                    mPreviousWords.add(i > 0 ? sentence[i - 1] : null);
+                    final Key key = findKey(word.charAt(length - 1));
+                    if (key != null) {
+                        mXCoordinates[keyStroke] = key.mX + key.mWidth / 2;
+                        mYCoordinates[keyStroke] = key.mY + key.mHeight / 2;
+                    }
+                    keyStroke++;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.mSuggest.close();
+        super.tearDown();
+    }
+
+    private Key findKey(int code) {
+        for (final Key key : mHelper.mKeyboard.mKeys) {
+            if (key.mCode == code) return key;
+        }
+        return null;
+    }
+
+    public void testGetSuggestions() {
+        final Suggest suggest = mHelper.mSuggest;
+        Benchmark.run("Suggest.getSuggestions", mComposers.size(), new Benchmark.Round() {
+            @Override
+            public int run() {
+                int count = 0;
+                for (int i = 0; i < mComposers.size(); i++) {
+                    count += suggest.getSuggestions(mComposers.get(i), mPreviousWords.get(i),
+                            mProximityInfo).size();
+                }
+                return count;
+            }
+        });
+    }
+
+    public void testExpandableDictionaryGetWords() {
+        final WordCounter counter = new WordCounter();
+        Benchmark.run("ExpandableDictionary.getWords", mComposers.size(), new Benchmark.Round() {
+            @Override
+            public int run() {
+                for (final WordComposer composer : mComposers) {
+                    mUserDictionary.getWords(composer, counter, mProximityInfo);
+                }
+                return counter.mCount;
+            }
+        });
+        assertTrue(counter.mCount > 0);
+    }
+
+    public void testExpandableDictionaryGetBigrams() {
+        final WordCounter counter = new WordCounter();
+        Benchmark.run("ExpandableDictionary.getBigrams", mComposers.size(),
+                new Benchmark.Round() {
+            @Override
+            public int run() {
+                for (int i = 0; i < mComposers.size(); i++) {
+                    final String previousWord = mPreviousWords.get(i);
+                    if (previousWord == null) continue;
+                    mUserBigramDictionary.getBigrams(mComposers.get(i), previousWord, counter);
+                }
+                return counter.mCount;
+            }
+        });
+        assertTrue(counter.mCount > 0);
+    }
+
+    public void testKeyDetector() {
+        final int[] codes = mKeyDetector.newCodeArray();
+        Benchmark.run("KeyDetector.getKeyIndexAndNearbyCodes", mXCoordinates.length,
+                new Benchmark.Round() {
+            @Override
+            public int run() {
+                int sum = 0;
+                for (int i = 0; i < mXCoordinates.length; i++) {
+                    sum += mKeyDetector.getKeyIndexAndNearbyCodes(mXCoordinates[i],
+                            mYCoordinates[i], codes);
+                }
+                return sum;
+            }
+        });
+    }
+
+    public void testWhitelistDictionary() {
+        final WhitelistDictionary whitelist = new WhitelistDictionary(getContext(), LOCALE);
+        final List<String> words = mCorpus.getWords();
+        Benchmark.run("WhitelistDictionary lookups", words.size(), new Benchmark.Round() {
+            @Override
+            public int run() {
+                int count = 0;
+                for (final String word : words) {
+                    if (whitelist.shouldForciblyAutoCorrectFrom(word)) count++;
+                    if (whitelist.isValidWord(word)) count++;
+                }
+                return count;
+            }
+        });
+        whitelist.close();
+    }
+
+    public void testEditDistance() {
+        // The distance between each typed word and the next word of the corpus, as between a
+        // typed word and a suggestion.
+        final List<String> words = mCorpus.getWords();
+        Benchmark.run("Utils.editDistance", words.size() - 1, new Benchmark.Round() {
+            @Override
+            public int run() {
+                int sum = 0;
+                for (int i = 1; i < words.size(); i++) {
+                    sum += Utils.editDistance(words.get(i - 1), words.get(i));
+                }
+                return sum;
+            }
+        });
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.content.res.AssetFileDescriptor;
+
+import com.android.inputmethod.latin.tests.R;
+
+import java.util.Locale;
+
+public class SuggestCacheTests extends SuggestTestsBase {
+    private SuggestCache.Entry createEntry() {
+        final AssetFileDescriptor dict = openTestRawResourceFd(R.raw.test);
+        final Suggest suggest = new Suggest(getContext(), mTestPackageFile,
+                dict.getStartOffset(), dict.getLength(), null, Locale.US);
+        return new SuggestCache.Entry(suggest, null, null, null);
+    }
+
+    public void testRemoveReturnsTheEntryOnce() {
+        final SuggestCache cache = new SuggestCache(2);
+        final SuggestCache.Entry entry = createEntry();
+        cache.put("en_US", entry);
+        assertSame(entry, cache.remove("en_US"));
+        assertNull(cache.remove("en_US"));
+        assertTrue(entry.mSuggest.hasMainDictionary());
+        entry.mSuggest.close();
+    }
+
+    public void testLeastRecentlyUsedIsClosed() {
+        final SuggestCache cache = new SuggestCache(2);
+        final SuggestCache.Entry english = createEntry();
+        final SuggestCache.Entry french = createEntry();
+        final SuggestCache.Entry german = createEntry();
+        cache.put("en_US", english);
+        cache.put("fr", french);
+        // Using English again makes French the least recently used.
+        cache.put("en_US", cache.remove("en_US"));
+        cache.put("de", german);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.remove("fr"));
+        assertFalse(french.mSuggest.hasMainDictionary());
+        assertTrue(english.mSuggest.hasMainDictionary());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertFalse(english.mSuggest.hasMainDictionary());
+        assertFalse(german.mSuggest.hasMainDictionary());
+    }
+}
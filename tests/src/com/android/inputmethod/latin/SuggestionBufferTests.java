@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+public class SuggestionBufferTests extends AndroidTestCase {
+    private static final int CAPACITY = 5;
+
+    private static void insert(SuggestionBuffer buffer, int rank, String word, int score) {
+        buffer.insert(rank, word.toCharArray(), 0, word.length(), score, Suggest.DIC_MAIN,
+                CAPACITY);
+    }
+
+    private static String toString(SuggestionBuffer buffer) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < buffer.size(); i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(buffer.getWord(i)).append(':').append(buffer.getScores()[i]);
+        }
+        return sb.toString();
+    }
+
+    public void testInsertAndDropLast() {
+        final SuggestionBuffer buffer = new SuggestionBuffer(CAPACITY, 4);
+        insert(buffer, 0, "b", 20);
+        insert(buffer, 0, "a", 30);
+        insert(buffer, 2, "c", 10);
+        insert(buffer, 1, "pneumonia", 25);
+        insert(buffer, 4, "d", 5);
+        assertEquals("a:30 pneumonia:25 b:20 c:10 d:5", toString(buffer));
+        insert(buffer, 0, "e", 40);
+        assertEquals("e:40 a:30 pneumonia:25 b:20 c:10", toString(buffer));
+        assertEquals(9, buffer.getLength(2));
+        buffer.toUpperCase(2, true);
+        buffer.toUpperCase(1, false);
+        assertEquals("e:40 A:30 PNEUMONIA:25 b:20 c:10", toString(buffer));
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.getScores()[0]);
+    }
+
+    public void testAppend() {
+        final SuggestionBuffer source = new SuggestionBuffer(CAPACITY, 8);
+        insert(source, 0, "word", 90);
+        final SuggestionBuffer buffer = new SuggestionBuffer(1, 8);
+        buffer.append(source, 0);
+        buffer.append(source, 0);
+        assertEquals("word:0", toString(buffer));
+    }
+
+    public void testInsertDoesNotAllocate() {
+        final SuggestionBuffer buffer = new SuggestionBuffer(CAPACITY, 16);
+        final Random random = new Random(15);
+        final char[][] words = new char[100][];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = Integer.toString(random.nextInt()).toCharArray();
+        }
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int round = 0; round < 1000; round++) {
+            buffer.clear();
+            for (int i = 0; i < words.length; i++) {
+                final int rank = i % (buffer.size() + 1);
+                buffer.insert(Math.min(rank, CAPACITY - 1), words[i], 0, words[i].length, i,
+                        Suggest.DIC_MAIN, CAPACITY);
+                buffer.toUpperCase(0, true);
+            }
+        }
+        Debug.stopAllocCounting();
+        assertEquals(0, Debug.getThreadAllocCount());
+    }
+}
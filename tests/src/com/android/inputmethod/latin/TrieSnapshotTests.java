@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class TrieSnapshotTests extends AndroidTestCase {
+    private static final String SNAPSHOT_NAME = "test_snapshot";
+
+    private File mFile;
+    private TrieSnapshot mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getFilesDir(), SNAPSHOT_NAME + ".trie");
+        mFile.delete();
+        mSnapshot = new TrieSnapshot(getContext().getFilesDir(), SNAPSHOT_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static CompactTrie createTrie() {
+        final CompactTrie trie = new CompactTrie();
+        final String[] words = { "hello", "help", "helm", "world", "word" };
+        for (int i = 0; i < words.length; i++) {
+            trie.setFrequency(trie.insert(words[i], words[i].length()), 10 * i);
+        }
+        final int hello = trie.search("hello", 5);
+        trie.setLinkTime(trie.addLink(hello, trie.search("world", 5), 90), 1234);
+        trie.addLink(hello, trie.search("word", 4), 20);
+        return trie;
+    }
+
+    public void testReadWrittenSnapshot() {
+        assertNull(mSnapshot.read());
+        final CompactTrie trie = createTrie();
+        mSnapshot.write(trie);
+        final CompactTrie read = mSnapshot.read();
+        assertNotNull(read);
+        assertEquals(trie.getNodeCount(), read.getNodeCount());
+        assertEquals(trie.getLinkCount(), read.getLinkCount());
+        assertEquals(20, read.getFrequency(read.search("helm", 4)));
+        assertEquals(CompactTrie.NOT_A_NODE, read.search("hel", 3));
+        final int link = read.getFirstLink(read.search("hello", 5));
+        assertEquals(read.search("world", 5), read.getLinkTarget(link));
+        assertEquals(90, read.getLinkFrequency(link));
+        assertEquals(1234, read.getLinkTime(link));
+        assertEquals(read.search("word", 4), read.getLinkTarget(read.getNextLink(link)));
+    }
+
+    public void testBrokenSnapshotIsIgnored() throws IOException {
+        mSnapshot.write(createTrie());
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            final long position = file.length() - 1;
+            file.seek(position);
+            final int lastByte = file.read();
+            file.seek(position);
+            file.write(lastByte ^ 1);
+        } finally {
+            file.close();
+        }
+        assertNull(mSnapshot.read());
+    }
+
+    private static class SnapshotDictionary extends ExpandableDictionary {
+        public boolean mCanUpdate;
+
+        public SnapshotDictionary(Context context) {
+            super(context, 0);
+        }
+
+        @Override
+        protected String getSnapshotName() {
+            return SNAPSHOT_NAME;
+        }
+
+        @Override
+        public void loadDictionaryAsync() {
+            addWord("hello", 100);
+        }
+
+        @Override
+        protected boolean canUpdateDictionary() {
+            return mCanUpdate;
+        }
+
+        @Override
+        protected void updateDictionaryAsync() {
+            addWord("world", 100);
+        }
+    }
+
+    public void testSnapshotIsOnlyWrittenAfterFullLoads() {
+        final SnapshotDictionary dictionary = new SnapshotDictionary(getContext());
+        dictionary.loadDictionarySynchronously();
+        assertTrue(mFile.exists());
+        mFile.delete();
+        dictionary.mCanUpdate = true;
+        dictionary.loadDictionarySynchronously();
+        assertTrue(dictionary.isValidWord("world"));
+        assertFalse(mFile.exists());
+        dictionary.mCanUpdate = false;
+        dictionary.loadDictionarySynchronously();
+        assertNotNull(mSnapshot.read());
+    }
+}
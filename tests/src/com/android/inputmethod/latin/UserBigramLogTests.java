@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+public class UserBigramLogTests extends AndroidTestCase {
+    private static final String FILE_NAME = "userbigram_test.log";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getFilesDir(), FILE_NAME);
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static void write(UserBigramLog log, String locale, String word1, String word2,
+            int frequency) {
+        write(log, locale, word1, word2, frequency, UserBigramDictionary.getCurrentTime());
+    }
+
+    private static void write(UserBigramLog log, String locale, String word1, String word2,
+            int frequency, int time) {
+        final HashSet<UserBigramDictionary.Bigram> bigrams =
+                new HashSet<UserBigramDictionary.Bigram>();
+        bigrams.add(new UserBigramDictionary.Bigram(word1, word2, frequency, time));
+        log.write(locale, bigrams);
+    }
+
+    private static ArrayList<String> replay(UserBigramLog log, String locale) {
+        final ArrayList<String> bigrams = new ArrayList<String>();
+        log.replay(locale, new UserBigramLog.Visitor() {
+            @Override
+            public void onBigram(String word1, String word2, int frequency, int time) {
+                bigrams.add(word1 + " " + word2 + " " + frequency);
+            }
+        });
+        return bigrams;
+    }
+
+    public void testReplayPerLocale() {
+        final UserBigramLog log = new UserBigramLog(getContext(), FILE_NAME);
+        write(log, "en_US", "user", "bigram", 2);
+        write(log, "fr_FR", "locale", "france", 2);
+        write(log, "en_US", "user", "bigram", 4);
+        // A new instance reads the file again.
+        final UserBigramLog reopened = new UserBigramLog(getContext(), FILE_NAME);
+        log.waitForPendingWrites();
+        final ArrayList<String> bigrams = replay(reopened, "en_US");
+        assertEquals(2, bigrams.size());
+        // The last record of a pair holds its frequency.
+        assertEquals("user bigram 4", bigrams.get(1));
+        assertEquals("locale france 2", replay(reopened, "fr_FR").get(0));
+    }
+
+    public void testBrokenRecordIsDropped() throws IOException {
+        final UserBigramLog log = new UserBigramLog(getContext(), FILE_NAME);
+        write(log, "en_US", "hello", "world", 2);
+        log.waitForPendingWrites();
+        final long length = mFile.length();
+        // A record cut short by a crash.
+        final FileOutputStream stream = new FileOutputStream(mFile, true);
+        stream.write(new byte[] { 0, 0, 0, 20, 1, 2, 3 });
+        stream.close();
+        final UserBigramLog reopened = new UserBigramLog(getContext(), FILE_NAME);
+        assertEquals(1, replay(reopened, "en_US").size());
+        assertEquals(length, mFile.length());
+        // New records go after the last valid one.
+        write(reopened, "en_US", "hello", "there", 2);
+        reopened.waitForPendingWrites();
+        assertEquals(2, replay(new UserBigramLog(getContext(), FILE_NAME), "en_US").size());
+    }
+
+    public void testPruning() {
+        final UserBigramLog log = new UserBigramLog(getContext(), FILE_NAME);
+        log.setMaxBigrams(20);
+        log.setDeleteBigrams(10);
+        final int now = UserBigramDictionary.getCurrentTime();
+        final HashSet<UserBigramDictionary.Bigram> bigrams =
+                new HashSet<UserBigramDictionary.Bigram>();
+        for (int i = 0; i < 30; i++) {
+            bigrams.add(new UserBigramDictionary.Bigram("word" + i, "next", 2 + i, now));
+        }
+        // Typed often, but a long time ago.
+        write(log, "en_US", "hello", "world", 127, now - 24 * 365);
+        log.write("en_US", bigrams);
+        final ArrayList<String> replayed = replay(log, "en_US");
+        // Pruned down to 20 - 10 pairs, the lowest decayed frequencies first.
+        assertEquals(10, replayed.size());
+        for (int i = 20; i < 30; i++) {
+            assertTrue(replayed.contains("word" + i + " next " + (2 + i)));
+        }
+    }
+
+    public void testDecayedFrequency() {
+        final int now = UserBigramDictionary.getCurrentTime();
+        assertEquals(100, UserBigramDictionary.getDecayedFrequency(100, now, now));
+        // One half life is 30 days.
+        assertEquals(50, UserBigramDictionary.getDecayedFrequency(100, now - 30 * 24, now));
+        final int decayed = UserBigramDictionary.getDecayedFrequency(100, now - 15 * 24, now);
+        assertTrue(decayed > 50 && decayed < 100);
+        assertEquals(0, UserBigramDictionary.getDecayedFrequency(127, now - 24 * 365, now));
+    }
+}
@@ -92,10 +92,19 @@ public class UserBigramSuggestHelper extends SuggestHelper {
         }
     }
 
+    /**
+     * Returns the number of pairs in memory, once the pending eviction, if any, is done.
+     */
+    public int getUserBigramCount() {
+        if (mUserBigram == null) return 0;
+        mUserBigram.waitForDictionaryLoading();
+        return mUserBigram.getBigramCount();
+    }
+
     public void flushUserBigrams() {
         if (mUserBigram != null) {
             mUserBigram.flushPendingWrites();
-            mUserBigram.waitUntilUpdateDBDone();
+            mUserBigram.waitUntilPendingWritesDone();
         }
     }
 }
@@ -79,9 +79,11 @@ public class UserBigramSuggestTests extends SuggestTestsBase {
     }
 
     /**
-     * Test data gets pruned when it is over maximum
+     * Test the pairs with the lowest decayed frequency get pruned when there are too many, and
+     * the frequent ones survive
      */
     public void testPruningData() {
+        // "Hello world" gets a frequency of 12, the other pairs a frequency of 2.
         for (int i = 0; i < SUGGESTION_STARTS; i++) mHelper.addToUserBigram(sentence0);
         mHelper.flushUserBigrams();
         isInSuggestions("world after several sentence 0",
@@ -92,13 +94,19 @@ public class UserBigramSuggestTests extends SuggestTestsBase {
         isInSuggestions("world after sentence 1 and 2",
                 mHelper.searchUserBigramSuggestion("Hello", 'w', "world"));
 
-        // pruning should happen
+        // pruning should happen, down to MAX_DATA - DELETE_DATA pairs at once
         mHelper.addToUserBigram(sentence3);
         mHelper.addToUserBigram(sentence4);
+        final int count = mHelper.getUserBigramCount();
+        assertTrue("pairs after sentence 3 and 4: " + count, count <= MAX_DATA);
+        isInSuggestions("world after sentence 3 and 4",
+                mHelper.searchUserBigramSuggestion("Hello", 'w', "world"));
 
         // trying to reopen database to check pruning happened in database
         mHelper.changeUserBigramLocale(Locale.US);
-        isNotInSuggestions("world after sentence 3 and 4",
+        final int reopenedCount = mHelper.getUserBigramCount();
+        assertTrue("pairs after reopening: " + reopenedCount, reopenedCount <= MAX_DATA);
+        isInSuggestions("world after reopening",
                 mHelper.searchUserBigramSuggestion("Hello", 'w', "world"));
     }
 
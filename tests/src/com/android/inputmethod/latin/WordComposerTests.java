@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+public class WordComposerTests extends AndroidTestCase {
+    private static final int CODES_PER_KEY = WordComposer.CODES_PER_KEY;
+
+    private static IntBuffer allocateInts(int size) {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private static void add(WordComposer composer, char c) {
+        composer.add(c, new int[] { c, c + 1 }, c, -c);
+    }
+
+    public void testWriteToPadsTheCodesOfEachKey() {
+        final WordComposer composer = new WordComposer();
+        composer.add('a', new int[] { 'a', 's' }, 10, 20);
+        composer.add('b', new int[] { 'b', 'v', 'n', 'g', 'h' }, 30, 40);
+        final IntBuffer codes = allocateInts(3 * CODES_PER_KEY);
+        final IntBuffer xCoordinates = allocateInts(3);
+        final IntBuffer yCoordinates = allocateInts(3);
+
+        composer.writeTo(codes, xCoordinates, yCoordinates, composer.size());
+
+        final int[] expected = new int[3 * CODES_PER_KEY];
+        Arrays.fill(expected, 0, 2 * CODES_PER_KEY, WordComposer.NOT_A_CODE);
+        System.arraycopy(new int[] { 'a', 's' }, 0, expected, 0, 2);
+        System.arraycopy(new int[] { 'b', 'v', 'n', 'g', 'h' }, 0, expected, CODES_PER_KEY, 5);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("code " + i, expected[i], codes.get(i));
+        }
+        assertEquals(10, xCoordinates.get(0));
+        assertEquals(30, xCoordinates.get(1));
+        assertEquals(20, yCoordinates.get(0));
+        assertEquals(40, yCoordinates.get(1));
+    }
+
+    public void testAddCopiesAndCorrectsTheCodes() {
+        final WordComposer composer = new WordComposer();
+        final int[] keyCodes = { 'b', 'a', 'q' };
+        composer.add('a', keyCodes, 0, 0);
+        assertEquals('b', keyCodes[0]);
+        assertEquals('a', composer.getCodes()[0]);
+        assertEquals('b', composer.getCodes()[1]);
+        assertEquals('q', composer.getCodes()[2]);
+        assertEquals(WordComposer.NOT_A_CODE, composer.getCodes()[3]);
+    }
+
+    public void testCopiesDoNotSeeEachOthersChanges() {
+        final WordComposer composer = new WordComposer();
+        add(composer, 'a');
+        add(composer, 'b');
+        final WordComposer copy = new WordComposer(composer);
+        // Appending doesn't copy the arrays.
+        add(composer, 'c');
+        assertSame(composer.getCodes(), copy.getCodes());
+
+        composer.deleteLast();
+        composer.deleteLast();
+        add(composer, 'x');
+        add(copy, 'y');
+        assertEquals("ax", composer.getTypedWord());
+        assertEquals("aby", copy.getTypedWord());
+        assertEquals('x', composer.getCodes()[CODES_PER_KEY]);
+        assertEquals('x', composer.getXCoordinates()[1]);
+        assertEquals('b', copy.getCodes()[CODES_PER_KEY]);
+        assertEquals('b', copy.getXCoordinates()[1]);
+        assertEquals('y', copy.getCodes()[2 * CODES_PER_KEY]);
+    }
+
+    public void testTypedWordLongerThanTheCodes() {
+        final WordComposer composer = new WordComposer();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < BinaryDictionary.MAX_WORD_LENGTH + 10; i++) {
+            final char c = (char)('a' + i % 26);
+            add(composer, c);
+            expected.append(c);
+        }
+        assertEquals(expected.toString(), composer.getTypedWord());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class WordIndexTests extends AndroidTestCase {
+    private static int linearIndexOf(ArrayList<CharSequence> words, String word) {
+        for (int i = 0; i < words.size(); i++) {
+            if (words.get(i).toString().equals(word)) return i;
+        }
+        return -1;
+    }
+
+    private static String generateWord(Random random) {
+        final int length = 1 + random.nextInt(4);
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char)('a' + random.nextInt(3)));
+        }
+        return sb.toString();
+    }
+
+    public void testSameAsLinearSearch() {
+        final Random random = new Random(14);
+        final WordIndex index = new WordIndex(4);
+        final char[] buffer = new char[16];
+        for (int round = 0; round < 20; round++) {
+            // Lists with duplicates, that outgrow the initial capacity.
+            final ArrayList<CharSequence> words = new ArrayList<CharSequence>();
+            final int size = random.nextInt(100);
+            for (int i = 0; i < size; i++) {
+                words.add(new StringBuilder(generateWord(random)));
+            }
+            index.build(words);
+            for (int i = 0; i < 50; i++) {
+                final String word = generateWord(random);
+                final int offset = random.nextInt(buffer.length - word.length());
+                word.getChars(0, word.length(), buffer, offset);
+                assertEquals(word, linearIndexOf(words, word),
+                        index.indexOf(buffer, offset, word.length()));
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin.spellcheck;
+
+import android.test.AndroidTestCase;
+
+public class SuggestionsCacheTests extends AndroidTestCase {
+    private static final String[] SUGGESTIONS = { "hello" };
+
+    private static void put(SuggestionsCache cache, String text) {
+        cache.put(text, 5, cache.getGeneration(), new SuggestionsCache.Result(0, SUGGESTIONS));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        final SuggestionsCache cache = new SuggestionsCache(2);
+        put(cache, "helo");
+        put(cache, "hallo");
+        assertNotNull(cache.get("helo", 5));
+        put(cache, "hullo");
+        assertNull(cache.get("hallo", 5));
+        assertNotNull(cache.get("helo", 5));
+        assertNotNull(cache.get("hullo", 5));
+        // The limit is part of the key.
+        assertNull(cache.get("hullo", 3));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0.6f, cache.getHitRate(), 0.001f);
+    }
+
+    public void testClearDropsResultsComputedBefore() {
+        final SuggestionsCache cache = new SuggestionsCache(10);
+        put(cache, "helo");
+        final int generation = cache.getGeneration();
+        // The user dictionary changed while a result was being computed.
+        cache.clear();
+        cache.put("hallo", 5, generation, new SuggestionsCache.Result(0, SUGGESTIONS));
+        assertNull(cache.get("helo", 5));
+        assertNull(cache.get("hallo", 5));
+        put(cache, "hallo");
+        assertNotNull(cache.get("hallo", 5));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import com.android.inputmethod.latin.FusionDictionary.WeightedString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Benchmarks of writing and reading binary dictionaries. The median and the 90th percentile of
+ * the time of each operation are logged, so that two builds can be compared.
+ */
+public class BinaryDictInputOutputBenchmark extends TestCase {
+
+    private static final int WORD_COUNT = 20000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 11;
+
+    private FusionDictionary mDict;
+    private File mFile;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // A dictionary of random words, skewed towards the beginning of the alphabet so that
+        // prefixes are shared, each with a bigram to the word before it.
+        final Random random = new Random(WORD_COUNT);
+        mDict = new FusionDictionary();
+        final HashSet<String> words = new HashSet<String>();
+        String previous = null;
+        while (words.size() < WORD_COUNT) {
+            final int length = 3 + random.nextInt(8);
+            final StringBuilder sb = new StringBuilder(length);
+            for (int j = 0; j < length; j++) {
+                sb.append((char)('a' + random.nextInt(1 + random.nextInt(26))));
+            }
+            final String word = sb.toString();
+            if (!words.add(word)) continue;
+            ArrayList<WeightedString> bigrams = null;
+            if (previous != null) {
+                bigrams = new ArrayList<WeightedString>();
+                bigrams.add(new WeightedString(previous, 1 + random.nextInt(15)));
+            }
+            mDict.add(word, 1 + random.nextInt(255), bigrams);
+            previous = word;
+        }
+        mFile = File.createTempFile("makedict-benchmark", ".dict");
+    }
+
+    public void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static void log(String name, long[] times) {
+        Arrays.sort(times);
+        MakedictLog.i(name + ": " + times[times.length / 2] / 1000 + " us median, "
+                + times[times.length * 9 / 10] / 1000 + " us 90th percentile ("
+                + WORD_COUNT + " words)");
+    }
+
+    public void testWriteDictionaryBinary() throws IOException {
+        final long[] times = new long[MEASURED_ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final long start = System.nanoTime();
+            BinaryDictInputOutput.writeDictionaryBinary(out, mDict);
+            final long elapsed = System.nanoTime() - start;
+            if (round >= 0) times[round] = elapsed;
+            assertTrue(out.size() > 0);
+        }
+        log("writeDictionaryBinary", times);
+    }
+
+    public void testReadDictionaryBinary() throws IOException, UnsupportedFormatException {
+        final FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            BinaryDictInputOutput.writeDictionaryBinary(out, mDict);
+        } finally {
+            out.close();
+        }
+        final long[] times = new long[MEASURED_ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+            final RandomAccessFile source = new RandomAccessFile(mFile, "r");
+            try {
+                final long start = System.nanoTime();
+                final FusionDictionary dict =
+                        BinaryDictInputOutput.readDictionaryBinary(source, null);
+                final long elapsed = System.nanoTime() - start;
+                if (round >= 0) times[round] = elapsed;
+                assertNotNull(dict);
+            } finally {
+                source.close();
+            }
+        }
+        log("readDictionaryBinary", times);
+    }
+}